@@ -0,0 +1,230 @@
+package com.fasterxml.util.bitmate;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Encoder for batches of many (usually small) raw bitmaps, like columns
+ * of a wide table, into a single {@link EncodedBatch}. Compared to encoding
+ * bitmaps one by one with {@link EncodedBitmap#encode}, encoders and
+ * buffers are set up once per group of bitmaps, instead of for each bitmap,
+ * and encoded content is written back to back into one output arena
+ * (instead of separate arrays).
+ *<p>
+ * Groups may be encoded in parallel by using an {@link ExecutorService};
+ * result is the same regardless.
+ *<p>
+ * Instances are thread-safe (no state is retained between calls).
+ */
+public class BatchEncoder
+{
+    public final static int DEFAULT_GROUP_SIZE = 256;
+
+    protected final BitmapCodec _codec;
+
+    protected final BitOrder _bitOrder;
+
+    /**
+     * Executor to use for encoding groups; if null, encoding is done by calling thread.
+     */
+    protected final ExecutorService _executor;
+
+    /**
+     * Number of bitmaps in each group, encoded by a single task
+     */
+    protected final int _groupSize;
+
+    public BatchEncoder(BitmapCodec codec) {
+        this(codec, BitOrder.MSB_FIRST, null, DEFAULT_GROUP_SIZE);
+    }
+
+    /**
+     * @param executor Executor to use for encoding groups of bitmaps in parallel;
+     *    if null, encoding is done synchronously by calling thread
+     * @param groupSize Number of bitmaps in each group
+     */
+    public BatchEncoder(BitmapCodec codec, BitOrder order, ExecutorService executor, int groupSize)
+    {
+        if (groupSize < 1) {
+            throw new IllegalArgumentException("Invalid group size ("+groupSize+"): must be at least 1");
+        }
+        _codec = codec;
+        _bitOrder = order;
+        _executor = executor;
+        _groupSize = groupSize;
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API
+    /**********************************************************************
+     */
+
+    /**
+     * Method for encoding given raw bitmaps (all of which contain full bytes)
+     */
+    public EncodedBatch encode(List<byte[]> inputs)
+    {
+        final int count = inputs.size();
+        final byte[][] data = inputs.toArray(new byte[count][]);
+        final int[] offsets = new int[count];
+        final int[] lengths = new int[count];
+        for (int i = 0; i < count; ++i) {
+            lengths[i] = data[i].length;
+        }
+        return encode(data, offsets, lengths);
+    }
+
+    /**
+     * Method for encoding given raw bitmaps: bitmap <code>i</code> consists of
+     * <code>lengths[i]</code> bytes of <code>inputs[i]</code>, starting
+     * at <code>offsets[i]</code>. The same input array may be used for
+     * multiple bitmaps.
+     */
+    public EncodedBatch encode(final byte[][] inputs, final int[] offsets, final int[] lengths)
+    {
+        final int count = inputs.length;
+        if (offsets.length != count || lengths.length != count) {
+            throw new IllegalArgumentException("Mismatching input lengths: "+count+" inputs, "
+                    +offsets.length+" offsets, "+lengths.length+" lengths");
+        }
+        for (int i = 0; i < count; ++i) {
+            if (offsets[i] < 0 || lengths[i] < 0 || lengths[i] > (Integer.MAX_VALUE >> 3)
+                    || offsets[i] + lengths[i] > inputs[i].length) {
+                throw new IllegalArgumentException("Invalid input #"+i+": offset "+offsets[i]
+                        +", length "+lengths[i]+" for "+inputs[i].length+" bytes");
+            }
+        }
+        final int groups = (count + _groupSize - 1) / _groupSize;
+        final List<EncodedGroup> results = new ArrayList<EncodedGroup>(groups);
+        if (_executor == null || groups < 2) {
+            // single builder reused for all bitmaps
+            final EncodedBitmapBuilder builder = new EncodedBitmapBuilder(_codec, _bitOrder);
+            for (int g = 0; g < groups; ++g) {
+                results.add(_encodeGroup(builder, inputs, offsets, lengths, g * _groupSize,
+                        Math.min(count, (g+1) * _groupSize)));
+            }
+        } else {
+            List<Future<EncodedGroup>> futures = new ArrayList<Future<EncodedGroup>>(groups);
+            for (int g = 0; g < groups; ++g) {
+                final int from = g * _groupSize;
+                final int to = Math.min(count, from + _groupSize);
+                futures.add(_executor.submit(new Callable<EncodedGroup>() {
+                    @Override
+                    public EncodedGroup call() {
+                        return _encodeGroup(new EncodedBitmapBuilder(_codec, _bitOrder),
+                                inputs, offsets, lengths, from, to);
+                    }
+                }));
+            }
+            try {
+                for (Future<EncodedGroup> f : futures) {
+                    results.add(f.get());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while encoding batch", e);
+            } catch (ExecutionException e) {
+                Throwable t = e.getCause();
+                if (t instanceof RuntimeException) {
+                    throw (RuntimeException) t;
+                }
+                throw new IllegalStateException("Failed to encode batch: "+t, t);
+            }
+        }
+        return _assemble(results, count);
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    /**
+     * Method for encoding bitmaps <code>[from, to)</code> using given builder,
+     * which is reset between bitmaps; encoded content is appended to the group buffer.
+     */
+    protected EncodedGroup _encodeGroup(EncodedBitmapBuilder builder,
+            byte[][] inputs, int[] inputOffsets, int[] lengths, int from, int to)
+    {
+        long estimate = 0L;
+        for (int i = from; i < to; ++i) {
+            estimate += lengths[i] >> 3;
+        }
+        final EncodedGroup group = new EncodedGroup(to - from,
+                (int) Math.min(Integer.MAX_VALUE >> 1, Math.max(256L, estimate)));
+        for (int i = from; i < to; ++i) {
+            builder.reset();
+            builder.append(inputs[i], inputOffsets[i], lengths[i]);
+            final int length = builder._finish(lengths[i] << 3);
+            group.append(builder._output, length);
+        }
+        return group;
+    }
+
+    protected EncodedBatch _assemble(List<EncodedGroup> groups, int count)
+    {
+        final int headerLength = EncodedBatch.headerLength(count);
+        long total = headerLength;
+        for (EncodedGroup g : groups) {
+            total += g.outputTail;
+        }
+        if (total > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Encoded batch too big ("+total+" bytes)");
+        }
+        final byte[] data = new byte[(int) total];
+        data[0] = EncodedBatch.MARKER;
+        EncodedBatch._writeInt(count, data, 1);
+        int tablePtr = 5;
+        int base = 0;
+        for (EncodedGroup g : groups) {
+            for (int i = 0; i < g.count; ++i, tablePtr += 4) {
+                EncodedBatch._writeInt(base + g.offsets[i], data, tablePtr);
+            }
+            System.arraycopy(g.output, 0, data, headerLength + base, g.outputTail);
+            base += g.outputTail;
+        }
+        EncodedBatch._writeInt(base, data, tablePtr);
+        return new EncodedBatch(data, count);
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper classes
+    /**********************************************************************
+     */
+
+    /**
+     * Encoded content of a group of bitmaps, before being copied to the arena
+     */
+    protected final static class EncodedGroup
+    {
+        byte[] output;
+
+        int outputTail;
+
+        /**
+         * Offsets of encoded bitmaps within output
+         */
+        final int[] offsets;
+
+        int count;
+
+        EncodedGroup(int maxCount, int initialLength) {
+            offsets = new int[maxCount];
+            output = new byte[initialLength];
+        }
+
+        void append(byte[] encoded, int length)
+        {
+            if (outputTail + length > output.length) {
+                output = Arrays.copyOf(output, Math.max(outputTail + length,
+                        output.length + (output.length >> 1)));
+            }
+            offsets[count++] = outputTail;
+            System.arraycopy(encoded, 0, output, outputTail, length);
+            outputTail += length;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.fasterxml.util.bitmate;
+
+/**
+ * Enumeration of boolean operations that may be used to combine content
+ * of {@link EncodedBitmap}s into raw bitmaps; see
+ * {@link EncodedBitmap#combineInto(BitOp, long[], long)}.
+ */
+public enum BitOp
+{
+    /**
+     * Target bit is cleared unless bitmap bit is set
+     */
+    AND,
+
+    /**
+     * Target bit is set if bitmap bit is set
+     */
+    OR,
+
+    /**
+     * Target bit is cleared if bitmap bit is set
+     */
+    AND_NOT,
+
+    /**
+     * Target bit is flipped if bitmap bit is set
+     */
+    XOR,
+    ;
+
+    /**
+     * @return Result of combining target bits with bitmap bits
+     */
+    public long apply(long target, long bits)
+    {
+        switch (this) {
+        case AND:
+            return target & bits;
+        case OR:
+            return target | bits;
+        case AND_NOT:
+            return target & ~bits;
+        default:
+            return target ^ bits;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.fasterxml.util.bitmate;
+
+/**
+ * Enumeration of ways bits are ordered within bytes (and 64-bit words)
+ * of a raw bitmap.
+ */
+public enum BitOrder
+{
+    /**
+     * Order in which first bit of a byte is its most significant bit: this is
+     * the default order for raw bitmaps in {@code byte[]}s.
+     * For {@code long[]} words, the first bit is the most significant bit of
+     * the word, which corresponds to big-endian byte order.
+     */
+    MSB_FIRST,
+
+    /**
+     * Order in which first bit of a byte is its least significant bit, as used
+     * by {@link java.util.BitSet#toByteArray()}.
+     * For {@code long[]} words, the first bit is the least significant bit of
+     * the word (as with {@link java.util.BitSet#toLongArray()}), which corresponds
+     * to little-endian byte order.
+     */
+    LSB_FIRST,
+    ;
+
+    /**
+     * @return Mask for the last bit of a byte in this order: one that
+     *    determines which run (all-zeroes or all-ones) may follow the byte
+     */
+    public int lastBitMask() {
+        return (this == MSB_FIRST) ? 0x01 : 0x80;
+    }
+
+    /**
+     * @return Mask for the bit at given index (0 - 7) of a byte
+     */
+    public int bitMask(int index) {
+        return (this == MSB_FIRST) ? (0x80 >> index) : (1 << index);
+    }
+}
@@ -0,0 +1,663 @@
+package com.fasterxml.util.bitmate;
+
+import java.util.Arrays;
+
+/**
+ * Decoder for content produced by {@link BitRatEncoder}: needs to be given the
+ * top-level mask returned by encoder, as well as the initial run bit
+ * used for encoding, since neither is included in the encoded content itself.
+ */
+public class BitRatDecoder
+{
+    private final static int FULL_CHUNK_SIZE = BitRatEncoder.FULL_CHUNK_SIZE;
+
+    private final static int LEVEL2_CHUNK_SIZE = BitRatEncoder.LEVEL2_CHUNK_SIZE;
+
+    protected byte[] _input;
+
+    protected byte[] _output;
+
+    /**
+     * Alternative to {@link #_output}, used when decoding into 64-bit words
+     */
+    protected WordCombiner _combiner;
+
+    protected int _inputPtr;
+
+    protected int _outputPtr;
+
+    // 8-bit value that constitutes continuation of the match
+    protected int _matchLevel1;
+
+    protected final BitOrder _bitOrder;
+
+    /**
+     * Mask for the last bit of a byte, given bit order used
+     */
+    protected final int _lastBit;
+
+    public BitRatDecoder() {
+        this(BitOrder.MSB_FIRST);
+    }
+
+    public BitRatDecoder(BitOrder order) {
+        _bitOrder = order;
+        _lastBit = order.lastBitMask();
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API, accessors
+    /**********************************************************************
+     */
+
+    public int getInputPtr() { return _inputPtr; }
+    public int getOutputPtr() { return _outputPtr; }
+
+    /*
+    /**********************************************************************
+    /* Public API, decoding
+    /**********************************************************************
+     */
+
+    /**
+     * Method for decoding a full 4k chunk encoded with
+     * {@link BitRatEncoder#encodeFullChunk}.
+     *
+     * @param prevBit Initial run bit that was passed to encoder
+     * @param mask Top-level mask returned by encoder
+     *
+     * @return Offset in input right after the last decoded byte
+     */
+    public int decodeFullChunk(boolean prevBit, int mask, byte[] input, int inputPtr,
+            byte[] output, int outputPtr)
+    {
+        _input = input;
+        _inputPtr = inputPtr;
+        _output = output;
+        _outputPtr = outputPtr;
+        _matchLevel1 = prevBit ? 0xFF : 0x0;
+        _decodeFull(mask);
+        return _inputPtr;
+    }
+
+    /**
+     * Alternative to {@link #decodeFullChunk(boolean, int, byte[], int, byte[], int)}
+     * that decodes a full chunk directly into 512 64-bit words, using the bit order
+     * decoder was constructed with (see {@link BitOrder}).
+     * Note that {@link #getOutputPtr()} will return word (not byte) offset after call.
+     */
+    public int decodeFullChunk(boolean prevBit, int mask, byte[] input, int inputPtr,
+            long[] output, int outputPtr)
+    {
+        inputPtr = decodeFullChunk(prevBit, mask, input, inputPtr,
+                WordCombiner.copier(output, outputPtr, FULL_CHUNK_SIZE >> 3, _bitOrder));
+        _outputPtr = outputPtr + (FULL_CHUNK_SIZE >> 3);
+        return inputPtr;
+    }
+
+    /**
+     * Alternative to {@link #decodeFullChunk(boolean, int, byte[], int, byte[], int)}
+     * that feeds decoded words to given combiner, so that runs are applied
+     * without decoding them into words.
+     */
+    int decodeFullChunk(boolean prevBit, int mask, byte[] input, int inputPtr,
+            WordCombiner combiner)
+    {
+        _input = input;
+        _inputPtr = inputPtr;
+        _combiner = combiner;
+        _matchLevel1 = prevBit ? 0xFF : 0x0;
+        _decodeFullWords(mask);
+        _combiner = null;
+        return _inputPtr;
+    }
+
+    /**
+     * Method for decoding a chunk of less than 4k (usually the last one) encoded
+     * with {@link BitRatEncoder#encodePartialChunk}.
+     *
+     * @param inputLen Number of raw bytes that were encoded
+     *
+     * @return Offset in input right after the last decoded byte
+     */
+    public int decodePartialChunk(boolean prevBit, int mask, byte[] input, int inputPtr,
+            int inputLen, byte[] output, int outputPtr)
+    {
+        if (inputLen >= FULL_CHUNK_SIZE) {
+            if (inputLen == FULL_CHUNK_SIZE) {
+                return decodeFullChunk(prevBit, mask, input, inputPtr, output, outputPtr);
+            }
+            throw new IllegalArgumentException(String.format(
+                    "Invalid chunk size %d for partial input: should be less than %d",
+                    inputLen, FULL_CHUNK_SIZE));
+        }
+        _input = input;
+        _inputPtr = inputPtr;
+        _output = output;
+        _outputPtr = outputPtr;
+        _matchLevel1 = prevBit ? 0xFF : 0x0;
+        _decodePartial(mask, inputLen);
+        return _inputPtr;
+    }
+
+    /**
+     * Method for decoding a chunk encoded with {@link BitRatEncoder#encodeLargeChunk},
+     * that is, one that consists of multiple 4k sub-chunks.
+     *
+     * @param mask Sub-chunk mask returned by encoder
+     * @param subChunks Number of sub-chunks in a full chunk
+     * @param inputLen Number of raw bytes that were encoded
+     *
+     * @return Offset in input right after the last decoded byte
+     */
+    public int decodeLargeChunk(boolean prevBit, int mask, int subChunks, byte[] input, int inputPtr,
+            int inputLen, byte[] output, int outputPtr)
+    {
+        _input = input;
+        _inputPtr = inputPtr;
+        _output = output;
+        _outputPtr = outputPtr;
+        _matchLevel1 = prevBit ? 0xFF : 0x0;
+
+        int marker = 1 << (subChunks - 1);
+        int left = inputLen;
+        for (; left >= FULL_CHUNK_SIZE; left -= FULL_CHUNK_SIZE, marker >>= 1) {
+            if ((mask & marker) == 0) {
+                _fill(FULL_CHUNK_SIZE);
+            } else {
+                _decodeFull(_input[_inputPtr++] & 0xFF);
+            }
+        }
+        if (left > 0) {
+            if ((mask & marker) == 0) {
+                _fill(left);
+            } else {
+                _decodePartial(_input[_inputPtr++] & 0xFF, left);
+            }
+        }
+        return _inputPtr;
+    }
+
+    /**
+     * Alternative to {@link #decodeLargeChunk(boolean, int, int, byte[], int, int, byte[], int)}
+     * for full chunks, that feeds decoded words to given combiner.
+     */
+    int decodeLargeChunk(boolean prevBit, int mask, int subChunks, byte[] input, int inputPtr,
+            WordCombiner combiner)
+    {
+        _input = input;
+        _inputPtr = inputPtr;
+        _combiner = combiner;
+        _matchLevel1 = prevBit ? 0xFF : 0x0;
+
+        for (int marker = 1 << (subChunks - 1); marker != 0; marker >>= 1) {
+            if ((mask & marker) == 0) {
+                _fillWords(FULL_CHUNK_SIZE >> 3);
+            } else {
+                _decodeFullWords(_input[_inputPtr++] & 0xFF);
+            }
+        }
+        _combiner = null;
+        return _inputPtr;
+    }
+
+    /**
+     * Method for complementing a chunk encoded with {@link BitRatEncoder} in place,
+     * without decoding it: since runs continue the last bit of the preceding
+     * literal, inverting all literal bytes (and keeping masks as is) produces
+     * encoding of the complement of the original content, when decoded with
+     * inverted initial run bit.
+     *
+     * @param mask Top-level mask returned by encoder
+     * @param inputLen Number of raw bytes that were encoded
+     *
+     * @return Offset right after the encoded chunk
+     */
+    public int invertChunk(int mask, byte[] data, int ptr, int inputLen)
+    {
+        _input = data;
+        _inputPtr = ptr;
+        _invert(mask, inputLen);
+        _input = null;
+        return _inputPtr;
+    }
+
+    /**
+     * Variant of {@link #invertChunk} for chunks encoded with
+     * {@link BitRatEncoder#encodeLargeChunk}.
+     */
+    public int invertLargeChunk(int mask, int subChunks, byte[] data, int ptr, int inputLen)
+    {
+        _input = data;
+        _inputPtr = ptr;
+        int marker = 1 << (subChunks - 1);
+        for (int left = inputLen; left > 0; left -= FULL_CHUNK_SIZE, marker >>= 1) {
+            if ((mask & marker) != 0) {
+                _invert(_input[_inputPtr++] & 0xFF, Math.min(left, FULL_CHUNK_SIZE));
+            }
+        }
+        _input = null;
+        return _inputPtr;
+    }
+
+    /**
+     * Method for collecting statistics on structure of an encoded chunk
+     * (excluding frame), without decoding it.
+     *
+     * @return Offset right after the encoded chunk
+     */
+    int analyzeChunk(int mask, byte[] data, int ptr, int inputLen, ChunkStats stats)
+    {
+        _input = data;
+        _inputPtr = ptr;
+        _analyze(mask, inputLen, stats);
+        stats.finish();
+        _input = null;
+        return _inputPtr;
+    }
+
+    /**
+     * Variant of {@link #analyzeChunk} for chunks encoded with
+     * {@link BitRatEncoder#encodeLargeChunk}.
+     */
+    int analyzeLargeChunk(int mask, int subChunks, byte[] data, int ptr, int inputLen, ChunkStats stats)
+    {
+        _input = data;
+        _inputPtr = ptr;
+        int marker = 1 << (subChunks - 1);
+        for (int left = inputLen; left > 0; left -= FULL_CHUNK_SIZE, marker >>= 1) {
+            final int size = Math.min(left, FULL_CHUNK_SIZE);
+            if ((mask & marker) != 0) {
+                _analyze(_input[_inputPtr++] & 0xFF, size, stats);
+            } else {
+                stats.run(size);
+            }
+        }
+        stats.finish();
+        _input = null;
+        return _inputPtr;
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods, full chunk decoding
+    /**********************************************************************
+     */
+
+    /**
+     * Method for decoding a full 4k chunk (or sub-chunk) with given top-level mask
+     */
+    void _decodeFull(int mask)
+    {
+        for (int bit = 0x80; bit != 0; bit >>= 1) {
+            if ((mask & bit) == 0) {
+                _fill(LEVEL2_CHUNK_SIZE);
+            } else {
+                _decodeFullLevel2(_input[_inputPtr++] & 0xFF);
+            }
+        }
+    }
+
+    void _decodeFullWords(int mask)
+    {
+        for (int bit = 0x80; bit != 0; bit >>= 1) {
+            if ((mask & bit) == 0) {
+                _fillWords(LEVEL2_CHUNK_SIZE >> 3);
+            } else {
+                _decodeFullLevel2Words(_input[_inputPtr++] & 0xFF);
+            }
+        }
+    }
+
+    /**
+     * Second-level decoding method for 512 byte blocks, consisting of 8 pairs
+     * of 32-byte blocks.
+     */
+    void _decodeFullLevel2(int mask)
+    {
+        for (int bit = 0x80; bit != 0; bit >>= 1) {
+            if ((mask & bit) == 0) {
+                _fill(64);
+            } else {
+                int nibbles = _input[_inputPtr++];
+                _decodeFullLevel1((nibbles >> 4) & 0xF);
+                _decodeFullLevel1(nibbles & 0xF);
+            }
+        }
+    }
+
+    /**
+     * Lowest-level decoding method for full blocks of 32 bytes; handles the
+     * "not enough compression" case as well.
+     */
+    void _decodeFullLevel1(int mask)
+    {
+        if (mask == 0) {
+            _fill(32);
+            return;
+        }
+        int inputPtr = _inputPtr;
+        // Zero byte is never used as the mask, so it indicates uncompressed block
+        if (_input[inputPtr] == 0) {
+            ++inputPtr;
+            System.arraycopy(_input, inputPtr, _output, _outputPtr, 32);
+            _inputPtr = inputPtr + 32;
+            _outputPtr += 32;
+            _matchLevel1 = ((_input[inputPtr + 31] & _lastBit) == 0) ? 0 : 0xFF;
+            return;
+        }
+        _inputPtr = inputPtr;
+        for (int bit = 0x8; bit != 0; bit >>= 1) {
+            if ((mask & bit) == 0) {
+                _fill(8);
+            } else {
+                _decodeGroup(_input[_inputPtr++] & 0xFF, 8);
+            }
+        }
+    }
+
+    void _decodeFullLevel2Words(int mask)
+    {
+        for (int bit = 0x80; bit != 0; bit >>= 1) {
+            if ((mask & bit) == 0) {
+                _fillWords(8);
+            } else {
+                int nibbles = _input[_inputPtr++];
+                _decodeFullLevel1Words((nibbles >> 4) & 0xF);
+                _decodeFullLevel1Words(nibbles & 0xF);
+            }
+        }
+    }
+
+    void _decodeFullLevel1Words(int mask)
+    {
+        if (mask == 0) {
+            _fillWords(4);
+            return;
+        }
+        final boolean bigEndian = (_bitOrder == BitOrder.MSB_FIRST);
+        int inputPtr = _inputPtr;
+        if (_input[inputPtr] == 0) {
+            ++inputPtr;
+            for (int i = 0; i < 4; ++i) {
+                _combiner.addWord(BitRatEncoder._readWord(_input, inputPtr, bigEndian));
+                inputPtr += 8;
+            }
+            _inputPtr = inputPtr;
+            _matchLevel1 = ((_input[inputPtr - 1] & _lastBit) == 0) ? 0 : 0xFF;
+            return;
+        }
+        for (int bit = 0x8; bit != 0; bit >>= 1) {
+            if ((mask & bit) == 0) {
+                _fillWords(1);
+            } else {
+                _decodeGroupWord(_input[_inputPtr++] & 0xFF, bigEndian);
+            }
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods, partial chunk decoding
+    /**********************************************************************
+     */
+
+    void _decodePartial(int mask, int inputLen)
+    {
+        int marker = 0x80;
+        int left = inputLen;
+        for (; left >= LEVEL2_CHUNK_SIZE; left -= LEVEL2_CHUNK_SIZE) {
+            if ((mask & marker) == 0) {
+                _fill(LEVEL2_CHUNK_SIZE);
+            } else {
+                _decodeFullLevel2(_input[_inputPtr++] & 0xFF);
+            }
+            marker >>= 1;
+        }
+        if (left > 0) {
+            if ((mask & marker) == 0) {
+                _fill(left);
+            } else {
+                _decodePartialLevel2(_input[_inputPtr++] & 0xFF, left);
+            }
+        }
+    }
+
+    void _decodePartialLevel2(int mask, int chunkSize)
+    {
+        int marker = 0x80;
+        int left = chunkSize;
+        for (; left >= 64; left -= 64) {
+            if ((mask & marker) == 0) {
+                _fill(64);
+            } else {
+                int nibbles = _input[_inputPtr++];
+                _decodeFullLevel1((nibbles >> 4) & 0xF);
+                _decodeFullLevel1(nibbles & 0xF);
+            }
+            marker >>= 1;
+        }
+        if (left > 0) {
+            if ((mask & marker) == 0) {
+                _fill(left);
+            } else {
+                _decodePartialLevel1(_input[_inputPtr++] & 0xFF, left);
+            }
+        }
+    }
+
+    void _decodePartialLevel1(int mask, int chunkSize)
+    {
+        int marker = 0x80;
+        int left = chunkSize;
+        for (; left > 0; left -= 8) {
+            int count = Math.min(left, 8);
+            if ((mask & marker) == 0) {
+                _fill(count);
+            } else {
+                _decodeGroup(_input[_inputPtr++] & 0xFF, count);
+            }
+            marker >>= 1;
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods, complementing
+    /**********************************************************************
+     */
+
+    private void _invert(int mask, int inputLen)
+    {
+        int marker = 0x80;
+        int left = inputLen;
+        for (; left >= LEVEL2_CHUNK_SIZE; left -= LEVEL2_CHUNK_SIZE, marker >>= 1) {
+            if ((mask & marker) != 0) {
+                _invertLevel2(_input[_inputPtr++] & 0xFF, LEVEL2_CHUNK_SIZE);
+            }
+        }
+        if (left > 0 && (mask & marker) != 0) {
+            _invertLevel2(_input[_inputPtr++] & 0xFF, left);
+        }
+    }
+
+    private void _invertLevel2(int mask, int size)
+    {
+        int marker = 0x80;
+        int left = size;
+        for (; left >= 64; left -= 64, marker >>= 1) {
+            if ((mask & marker) != 0) {
+                int nibbles = _input[_inputPtr++];
+                _invertLevel1((nibbles >> 4) & 0xF);
+                _invertLevel1(nibbles & 0xF);
+            }
+        }
+        if (left > 0 && (mask & marker) != 0) {
+            _invertGroups(_input[_inputPtr++] & 0xFF, 0x80, left);
+        }
+    }
+
+    private void _invertLevel1(int mask)
+    {
+        if (mask == 0) {
+            return;
+        }
+        if (_input[_inputPtr] == 0) { // uncompressed block
+            ++_inputPtr;
+            _invertLiterals(32);
+            return;
+        }
+        _invertGroups(mask, 0x8, 32);
+    }
+
+    private void _invertGroups(int mask, int marker, int size)
+    {
+        for (int left = size; left > 0; left -= 8, marker >>= 1) {
+            if ((mask & marker) != 0) {
+                final int groupMask = _input[_inputPtr++] & 0xFF;
+                for (int bit = 0x80, end = 0x80 >> Math.min(left, 8); bit != end; bit >>= 1) {
+                    if ((groupMask & bit) != 0) {
+                        _invertLiterals(1);
+                    }
+                }
+            }
+        }
+    }
+
+    private void _analyze(int mask, int inputLen, ChunkStats stats)
+    {
+        int marker = 0x80;
+        for (int left = inputLen; left > 0; left -= LEVEL2_CHUNK_SIZE, marker >>= 1) {
+            final int size = Math.min(left, LEVEL2_CHUNK_SIZE);
+            final boolean present = (mask & marker) != 0;
+            stats.level2(present);
+            if (present) {
+                _analyzeLevel2(_input[_inputPtr++] & 0xFF, size, stats);
+            } else {
+                stats.run(size);
+            }
+        }
+    }
+
+    private void _analyzeLevel2(int mask, int size, ChunkStats stats)
+    {
+        int marker = 0x80;
+        for (int left = size; left > 0; left -= 64, marker >>= 1) {
+            final boolean present = (mask & marker) != 0;
+            stats.level1(present);
+            if (!present) {
+                stats.run(Math.min(left, 64));
+            } else if (left >= 64) {
+                int nibbles = _input[_inputPtr++];
+                _analyzeLevel1((nibbles >> 4) & 0xF, stats);
+                _analyzeLevel1(nibbles & 0xF, stats);
+            } else {
+                _analyzeGroups(_input[_inputPtr++] & 0xFF, 0x80, left, stats);
+            }
+        }
+    }
+
+    private void _analyzeLevel1(int mask, ChunkStats stats)
+    {
+        if (mask == 0) {
+            stats.run(32);
+        } else if (_input[_inputPtr] == 0) { // uncompressed block
+            _inputPtr += 33;
+            stats.escape();
+            stats.literals(32);
+        } else {
+            _analyzeGroups(mask, 0x8, 32, stats);
+        }
+    }
+
+    private void _analyzeGroups(int mask, int marker, int size, ChunkStats stats)
+    {
+        for (int left = size; left > 0; left -= 8, marker >>= 1) {
+            if ((mask & marker) == 0) {
+                stats.run(Math.min(left, 8));
+                continue;
+            }
+            final int groupMask = _input[_inputPtr++] & 0xFF;
+            for (int bit = 0x80, end = 0x80 >> Math.min(left, 8); bit != end; bit >>= 1) {
+                if ((groupMask & bit) != 0) {
+                    ++_inputPtr;
+                    stats.literals(1);
+                } else {
+                    stats.run(1);
+                }
+            }
+        }
+    }
+
+    private void _invertLiterals(int count)
+    {
+        for (final int end = _inputPtr + count; _inputPtr < end; ++_inputPtr) {
+            _input[_inputPtr] = (byte) ~_input[_inputPtr];
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal helper methods
+    /**********************************************************************
+     */
+
+    /**
+     * Method for decoding up to 8 bytes, using given mask to indicate
+     * which bytes are literals, and which continue the current run.
+     */
+    private final void _decodeGroup(int mask, int count)
+    {
+        final byte[] output = _output;
+        int outputPtr = _outputPtr;
+        int match = _matchLevel1;
+
+        for (int bit = 0x80, end = 0x80 >> count; bit != end; bit >>= 1) {
+            if ((mask & bit) == 0) {
+                output[outputPtr++] = (byte) match;
+            } else {
+                byte b = _input[_inputPtr++];
+                output[outputPtr++] = b;
+                match = ((b & _lastBit) == 0) ? 0 : 0xFF;
+            }
+        }
+        _outputPtr = outputPtr;
+        _matchLevel1 = match;
+    }
+
+    /**
+     * Variant of {@link #_decodeGroup} for a full group decoded into a word
+     */
+    private final void _decodeGroupWord(int mask, boolean bigEndian)
+    {
+        final int lastBit = _lastBit;
+        int match = _matchLevel1;
+        long w = 0L;
+
+        for (int i = 0; i < 8; ++i) {
+            int b;
+            if ((mask & (0x80 >> i)) == 0) {
+                b = match;
+            } else {
+                b = _input[_inputPtr++] & 0xFF;
+                match = ((b & lastBit) == 0) ? 0 : 0xFF;
+            }
+            w |= ((long) b) << (bigEndian ? (56 - (i << 3)) : (i << 3));
+        }
+        _combiner.addWord(w);
+        _matchLevel1 = match;
+    }
+
+    private final void _fillWords(int count)
+    {
+        _combiner.addWords(_matchLevel1 != 0, count);
+    }
+
+    private final void _fill(int count)
+    {
+        int end = _outputPtr + count;
+        Arrays.fill(_output, _outputPtr, end, (byte) _matchLevel1);
+        _outputPtr = end;
+    }
+}
@@ -8,6 +8,12 @@ public class BitRatEncoder
 
     public final static int LEVEL2_CHUNK_SIZE = 512;
 
+    /**
+     * Maximum size of encoded output for a single chunk: in worst case
+     * we get 1/32 of level 1 overhead, and a bit less on higher levels.
+     */
+    public final static int MAX_OUTPUT_BUFFER = FULL_CHUNK_SIZE + (FULL_CHUNK_SIZE >> 3);
+
     private final static byte ZERO_BYTE = 0;
 
     /**
@@ -15,6 +21,12 @@ public class BitRatEncoder
      */
     protected byte[] _input;
 
+    /**
+     * Alternative to {@link #_input}, used when encoding from 64-bit words;
+     * null when encoding from bytes.
+     */
+    protected long[] _words;
+
     protected byte[] _output;
 
     protected int _inputPtr;
@@ -25,7 +37,22 @@ public class BitRatEncoder
     // 8-bit value that constitutes continuation of the match
     protected int _matchLevel1 = 0x0; // starts with clear bits
 
-    public BitRatEncoder() { }
+    protected final BitOrder _bitOrder;
+
+    /**
+     * Mask for the last bit of a byte, given bit order used: determines
+     * which kind of run may follow a literal byte
+     */
+    protected final int _lastBit;
+
+    public BitRatEncoder() {
+        this(BitOrder.MSB_FIRST);
+    }
+
+    public BitRatEncoder(BitOrder order) {
+        _bitOrder = order;
+        _lastBit = order.lastBitMask();
+    }
 
     /*
     /**********************************************************************
@@ -56,23 +83,58 @@ public class BitRatEncoder
      */
     public int encodeFullChunk(boolean prevBit, byte[] input,
             byte[] output, int outputPtr)
+    {
+        return encodeFullChunk(prevBit, input, 0, output, outputPtr);
+    }
+
+    /**
+     * Alternative to {@link #encodeFullChunk(boolean, byte[], byte[], int)} to use
+     * when chunk to encode does not start at the beginning of the input buffer.
+     */
+    public int encodeFullChunk(boolean prevBit, byte[] input, int inputPtr,
+            byte[] output, int outputPtr)
     {
         _input = input;
+        _words = null;
         _output = output;
         _outputTail = outputPtr;
         _matchLevel1 = prevBit ? 0xFF : 0x0;
-        _inputPtr = 0;
+        _inputPtr = inputPtr;
+        return _encodeFullChunk(outputPtr);
+    }
 
+    /**
+     * Alternative to {@link #encodeFullChunk(boolean, byte[], int, byte[], int)} for
+     * encoding a full chunk (that is, 512 words) directly from 64-bit words, without
+     * converting them to bytes first. Words are read in the bit order encoder was
+     * constructed with; see {@link BitOrder}.
+     * Note that {@link #getInputPtr()} will return word (not byte) offset after call.
+     */
+    public int encodeFullChunk(boolean prevBit, long[] input, int inputPtr,
+            byte[] output, int outputPtr)
+    {
+        _input = null;
+        _words = input;
+        _output = output;
+        _outputTail = outputPtr;
+        _matchLevel1 = prevBit ? 0xFF : 0x0;
+        _inputPtr = inputPtr;
+        return _encodeFullChunk(outputPtr);
+    }
+
+    private int _encodeFullChunk(int outputPtr)
+    {
         // Let's do this unrolled:
-        int resultMask = _encodeFullLevel2(outputPtr+1);
-        if (resultMask != 0) { // had output, so prepend mask
-            _output[outputPtr] = (byte) resultMask;
-            resultMask |= 0x80;
+        int resultMask = 0;
+        int mask = _encodeFullLevel2(outputPtr+1);
+        if (mask != 0) { // had output, so prepend mask
+            _output[outputPtr] = (byte) mask;
+            resultMask = 0x80;
             outputPtr = _outputTail;
         }
 
         // and then 7 more times
-        int mask = _encodeFullLevel2(outputPtr+1);
+        mask = _encodeFullLevel2(outputPtr+1);
         if (mask != 0) {
             _output[outputPtr] = (byte) mask;
             resultMask |= 0x40;
@@ -122,21 +184,133 @@ public class BitRatEncoder
      */
     public int encodePartialChunk(boolean prevBit, byte[] input, int inputLen,
             byte[] output, int outputPtr)
+    {
+        return encodePartialChunk(prevBit, input, 0, inputLen, output, outputPtr);
+    }
+
+    public int encodePartialChunk(boolean prevBit, byte[] input, int inputPtr, int inputLen,
+            byte[] output, int outputPtr)
     {
         if (inputLen >= FULL_CHUNK_SIZE) {
             if (inputLen == FULL_CHUNK_SIZE) {
-                return encodeFullChunk(prevBit, input, output, outputPtr);
+                return encodeFullChunk(prevBit, input, inputPtr, output, outputPtr);
             }
             throw new IllegalArgumentException(String.format(
                     "Invalid chunk size %d for partial output: should be less than %d",
                     inputLen, FULL_CHUNK_SIZE));
         }
         _input = input;
-        _inputPtr = 0;
+        _words = null;
+        _inputPtr = inputPtr;
         _output = output;
         _outputTail = outputPtr;
         _matchLevel1 = prevBit ? 0xFF : 0x0;
-        
+        return _encodePartialChunk(outputPtr, inputLen);
+    }
+
+    /**
+     * Method for encoding a chunk that consists of multiple 4k sub-chunks
+     * (possibly with a partial last one), for codecs like {@link BitmapCodec#BITRAT_32K}:
+     * an additional mask level indicates which sub-chunks have output, and each
+     * one that has is preceded by its own top-level mask.
+     * Run state carries over from one sub-chunk to the next one.
+     *
+     * @param subChunks Number of sub-chunks in a full chunk; determines position of
+     *    the bit of the first sub-chunk in the resulting mask
+     *
+     * @return Mask indicating which of sub-chunks have output, first sub-chunk
+     *    as the highest of <code>subChunks</code> bits
+     */
+    public int encodeLargeChunk(boolean prevBit, byte[] input, int inputPtr, int inputLen,
+            int subChunks, byte[] output, int outputPtr)
+    {
+        if (inputLen > subChunks * FULL_CHUNK_SIZE) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid chunk size %d: should be at most %d",
+                    inputLen, subChunks * FULL_CHUNK_SIZE));
+        }
+        _input = input;
+        _words = null;
+        _inputPtr = inputPtr;
+        _output = output;
+        _outputTail = outputPtr;
+        _matchLevel1 = prevBit ? 0xFF : 0x0;
+
+        int resultMask = 0;
+        int marker = 1 << (subChunks - 1);
+        int left = inputLen;
+        for (; left >= FULL_CHUNK_SIZE; left -= FULL_CHUNK_SIZE, marker >>= 1) {
+            int mask = _encodeFullChunk(outputPtr+1);
+            if (mask != 0) {
+                _output[outputPtr] = (byte) mask;
+                resultMask |= marker;
+                outputPtr = _outputTail;
+            }
+        }
+        if (left > 0) {
+            int mask = _encodePartialChunk(outputPtr+1, left);
+            if (mask != 0) {
+                _output[outputPtr] = (byte) mask;
+                resultMask |= marker;
+            }
+        }
+        return resultMask;
+    }
+
+    /**
+     * Alternative to {@link #encodeLargeChunk(boolean, byte[], int, int, int, byte[], int)}
+     * for encoding a full chunk directly from 64-bit words.
+     */
+    public int encodeLargeChunk(boolean prevBit, long[] input, int inputPtr,
+            int subChunks, byte[] output, int outputPtr)
+    {
+        _input = null;
+        _words = input;
+        _inputPtr = inputPtr;
+        _output = output;
+        _outputTail = outputPtr;
+        _matchLevel1 = prevBit ? 0xFF : 0x0;
+
+        int resultMask = 0;
+        for (int marker = 1 << (subChunks - 1); marker != 0; marker >>= 1) {
+            int mask = _encodeFullChunk(outputPtr+1);
+            if (mask != 0) {
+                _output[outputPtr] = (byte) mask;
+                resultMask |= marker;
+                outputPtr = _outputTail;
+            }
+        }
+        return resultMask;
+    }
+
+    /**
+     * @return Upper bound for length of encoded output for a chunk of given
+     *    size (which may consist of multiple sub-chunks), excluding frame
+     */
+    public static int maxOutputLength(int chunkSize)
+    {
+        final int subChunks = (chunkSize + FULL_CHUNK_SIZE - 1) / FULL_CHUNK_SIZE;
+        if (subChunks <= 1) {
+            return MAX_OUTPUT_BUFFER;
+        }
+        // one mask byte per sub-chunk
+        return subChunks * (MAX_OUTPUT_BUFFER + 1);
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods, full chunk encoding
+    /**********************************************************************
+     */
+
+    /**
+     * Method for encoding content of up to 4k bytes, with input and output
+     * state already set up.
+     *
+     * @return Top-level mask
+     */
+    private int _encodePartialChunk(int outputPtr, int inputLen)
+    {
         int resultMask = 0;
         int marker = 0x80;
 
@@ -163,12 +337,6 @@ public class BitRatEncoder
         return resultMask;
     }
 
-    /*
-    /**********************************************************************
-    /* Internal methods, full chunk encoding
-    /**********************************************************************
-     */
-    
     /**
      * Second-level encoding function that delegates to {@link #_encodeFullLevel1}
      * for 32 byte chunks, calling it 8 x 2 times, for total block size of
@@ -187,12 +355,12 @@ public class BitRatEncoder
         while (true) {
             final int origOutputPtr = outputPtr;
             ++outputPtr;
-            int mask = _encodeFullLevel1(outputPtr);
+            int mask = _encodeLevel1(outputPtr);
             if (mask != 0) { // not a full run, appended output
                 mask <<= 4;
                 outputPtr = _outputTail;
             }
-            int lo = _encodeFullLevel1(outputPtr);
+            int lo = _encodeLevel1(outputPtr);
             if (lo != 0) {
                 outputPtr = _outputTail;
                 mask |= lo;
@@ -222,6 +390,7 @@ public class BitRatEncoder
      */
     int _encodeFullLevel1(int outputPtr)
     {
+        final int lastBit = _lastBit;
         int match = _matchLevel1;
         int resultBits = 0;
         int origOutputPtr = outputPtr; // to check whether compression achieved
@@ -237,50 +406,50 @@ public class BitRatEncoder
             // Basic component, repeated 8 times: see if run continues; if not, output byte, add bit
             if ((b & 0xFF) != match) {
                 _output[++outputPtr] = b; // important: advance first, to leave room for prefix
-                match = ((b & 0x1) == 0) ? 0 : 0xFF;
+                match = ((b & lastBit) == 0) ? 0 : 0xFF;
                 mask |= 0x80;
             }
             // and then repeat 7 more times
             b = _input[inputPtr++];
             if ((b & 0xFF) != match) {
                 _output[++outputPtr] = b;
-                match = ((b & 0x1) == 0) ? 0 : 0xFF;
+                match = ((b & lastBit) == 0) ? 0 : 0xFF;
                 mask |= 0x40;
             }
             b = _input[inputPtr++];
             if ((b & 0xFF) != match) {
                 _output[++outputPtr] = b;
-                match = ((b & 0x1) == 0) ? 0 : 0xFF;
+                match = ((b & lastBit) == 0) ? 0 : 0xFF;
                 mask |= 0x20;
             }
             b = _input[inputPtr++];
             if ((b & 0xFF) != match) {
                 _output[++outputPtr] = b;
-                match = ((b & 0x1) == 0) ? 0 : 0xFF;
+                match = ((b & lastBit) == 0) ? 0 : 0xFF;
                 mask |= 0x10;
             }
             b = _input[inputPtr++];
             if ((b & 0xFF) != match) {
                 _output[++outputPtr] = b;
-                match = ((b & 0x1) == 0) ? 0 : 0xFF;
+                match = ((b & lastBit) == 0) ? 0 : 0xFF;
                 mask |= 0x08;
             }
             b = _input[inputPtr++];
             if ((b & 0xFF) != match) {
                 _output[++outputPtr] = b;
-                match = ((b & 0x1) == 0) ? 0 : 0xFF;
+                match = ((b & lastBit) == 0) ? 0 : 0xFF;
                 mask |= 0x04;
             }
             b = _input[inputPtr++];
             if ((b & 0xFF) != match) {
                 _output[++outputPtr] = b;
-                match = ((b & 0x1) == 0) ? 0 : 0xFF;
+                match = ((b & lastBit) == 0) ? 0 : 0xFF;
                 mask |= 0x02;
             }
             b = _input[inputPtr++];
             if ((b & 0xFF) != match) {
                 _output[++outputPtr] = b;
-                match = ((b & 0x1) == 0) ? 0 : 0xFF;
+                match = ((b & lastBit) == 0) ? 0 : 0xFF;
                 mask |= 0x01;
             }
 
@@ -322,6 +491,64 @@ public class BitRatEncoder
         return resultBits;
     }
 
+    /**
+     * Variant of {@link #_encodeFullLevel1} used when encoding from 64-bit words:
+     * since each 8-byte group is a single word, groups that just continue the
+     * current run can be detected with a single comparison.
+     */
+    int _encodeFullLevel1Words(int outputPtr)
+    {
+        final long[] words = _words;
+        final int lastBit = _lastBit;
+        final boolean bigEndian = (_bitOrder == BitOrder.MSB_FIRST);
+        int match = _matchLevel1;
+        int resultBits = 0;
+        int origOutputPtr = outputPtr;
+        int inputPtr = _inputPtr;
+
+        for (int rounds = 0; rounds < 4; ++rounds) {
+            resultBits <<= 1;
+            final long w = words[inputPtr++];
+            // Common case: whole group continues the run, nothing to output
+            if (w == ((match == 0) ? 0L : -1L)) {
+                continue;
+            }
+            final int baseOut = outputPtr;
+            int mask = 0;
+            for (int i = 0; i < 8; ++i) {
+                int b = (int) (w >>> (bigEndian ? (56 - (i << 3)) : (i << 3))) & 0xFF;
+                if (b != match) {
+                    _output[++outputPtr] = (byte) b;
+                    match = ((b & lastBit) == 0) ? 0 : 0xFF;
+                    mask |= (0x80 >> i);
+                }
+            }
+            // must have had at least one literal, as word did not match the run
+            _output[baseOut] = (byte) mask;
+            ++outputPtr;
+            resultBits |= 1;
+        }
+        if (resultBits != 0) {
+            if ((outputPtr - origOutputPtr) > 32) { // not enough compression, as with bytes
+                _output[origOutputPtr++] = ZERO_BYTE;
+                for (int i = _inputPtr; i < inputPtr; ++i) {
+                    _writeWord(words[i], bigEndian, _output, origOutputPtr);
+                    origOutputPtr += 8;
+                }
+                outputPtr = origOutputPtr;
+                resultBits = 0xF;
+            }
+            _outputTail = outputPtr;
+            _matchLevel1 = match;
+        }
+        _inputPtr = inputPtr;
+        return resultBits;
+    }
+
+    private int _encodeLevel1(int outputPtr) {
+        return (_words == null) ? _encodeFullLevel1(outputPtr) : _encodeFullLevel1Words(outputPtr);
+    }
+
     /*
     /**********************************************************************
     /* Internal methods, partial chunk encoding
@@ -368,7 +595,7 @@ public class BitRatEncoder
         if (left > 0) {
             int mask = _encodePartialLevel1(outputPtr+1, left);
             if (mask != 0) {
-                _output[outputPtr] = (byte) resultMask;
+                _output[outputPtr] = (byte) mask;
                 resultMask |= marker;
                 outputPtr = _outputTail;
             }
@@ -389,6 +616,7 @@ public class BitRatEncoder
         // First, full 8-byte chunks. Note that here we do NOT worry about
         // sub-optimal last chunk
 
+        final int lastBit = _lastBit;
         int match = _matchLevel1;
         int inputPtr = _inputPtr;
         
@@ -402,7 +630,7 @@ public class BitRatEncoder
                 // Basic component, repeated 8 times: see if run continues; if not, output byte, add bit
                 if ((b & 0xFF) != match) {
                     _output[++outputPtr] = b; // important: advance first, to leave room for prefix
-                    match = ((b & 0x1) == 0) ? 0 : 0xFF;
+                    match = ((b & lastBit) == 0) ? 0 : 0xFF;
                     mask8 |= bit8;
                 }
             }
@@ -426,9 +654,10 @@ public class BitRatEncoder
                 // Basic component, repeated 8 times: see if run continues; if not, output byte, add bit
                 if ((b & 0xFF) != match) {
                     _output[++outputPtr] = b; // important: advance first, to leave room for prefix
-                    match = ((b & 0x1) == 0) ? 0 : 0xFF;
+                    match = ((b & lastBit) == 0) ? 0 : 0xFF;
                     mask8 |= bit8;
                 }
+                bit8 >>= 1;
             }
             if (mask8 != 0) { // yes, need to output prefix
                 _output[baseOut] = (byte) mask8;
@@ -452,6 +681,40 @@ public class BitRatEncoder
     /**********************************************************************
      */
     
+    /**
+     * Helper method for writing 8 bytes of given word in specified byte order
+     */
+    final static void _writeWord(long w, boolean bigEndian, byte[] output, int ptr)
+    {
+        if (bigEndian) {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                output[ptr++] = (byte) (w >>> shift);
+            }
+        } else {
+            for (int shift = 0; shift < 64; shift += 8) {
+                output[ptr++] = (byte) (w >>> shift);
+            }
+        }
+    }
+
+    /**
+     * Reverse of {@link #_writeWord}
+     */
+    final static long _readWord(byte[] input, int ptr, boolean bigEndian)
+    {
+        long w = 0L;
+        if (bigEndian) {
+            for (int end = ptr+8; ptr < end; ++ptr) {
+                w = (w << 8) | (input[ptr] & 0xFF);
+            }
+        } else {
+            for (int shift = 0; shift < 64; shift += 8) {
+                w |= (input[ptr++] & 0xFFL) << shift;
+            }
+        }
+        return w;
+    }
+
     // Helper method for changing extra unused bits to be the same
     // as the last actual content bit; this to make sure last run
     // is not accidentally broken by garbage
@@ -472,6 +735,22 @@ public class BitRatEncoder
         }
     }
 
+    // Same as above, but for LSB-first bit order where padding is in the high bits
+    final static void _fixLast(byte[] input, int offset, int lastBits, BitOrder order)
+    {
+        if (order == BitOrder.MSB_FIRST) {
+            _fixLast(input, offset, lastBits);
+            return;
+        }
+        int old = input[offset] & 0xFF;
+        boolean lastSet = ((old >> (lastBits - 1)) & 1) != 0;
+        int mask = (0xFF << lastBits) & 0xFF;
+        int changed = lastSet ? (old | mask) : (old & ~mask);
+        if (changed != old) {
+            input[offset] = (byte) changed;
+        }
+    }
+
     /*
     /**********************************************************************
     /* Testing
@@ -487,7 +766,7 @@ public class BitRatEncoder
 
         FileInputStream in = new FileInputStream(args[0]);
         byte[] input = new byte[FULL_CHUNK_SIZE];
-        byte[] output = new byte[FULL_CHUNK_SIZE + (FULL_CHUNK_SIZE >> 3)];
+        byte[] output = new byte[MAX_OUTPUT_BUFFER];
         final BitRatEncoder enc = new BitRatEncoder();
 
         int totalInput = 0;
@@ -0,0 +1,184 @@
+package com.fasterxml.util.bitmate;
+
+import java.util.Arrays;
+
+/**
+ * Helper class for constructing {@link EncodedBitmap}s from ranges of bits of
+ * other bitmaps (of the same codec and bit order), used for slicing and
+ * concatenation. As long as ranges start at chunk boundaries of source
+ * bitmaps and are appended at chunk boundaries, encoded chunks are copied
+ * as is (each carries its own initial run bit, so nothing needs fixing)
+ * and uniform spans are appended without going through chunks; other
+ * content is decoded and shifted through a window of two chunks, and
+ * re-encoded a chunk at a time.
+ */
+final class BitmapAppender
+{
+    private final BitmapCodec _codec;
+
+    private final BitOrder _bitOrder;
+
+    private final EncodedBitmapBuilder _builder;
+
+    private final long _chunkBits;
+
+    private final int _chunkWords;
+
+    /**
+     * Content not yet passed to builder: less than a chunk between calls,
+     * but has room for two chunks (and a word)
+     */
+    private long[] _window;
+
+    private long _windowBits;
+
+    /**
+     * Scratch buffer for decoded chunks
+     */
+    private long[] _chunk;
+
+    private long _totalBits;
+
+    public BitmapAppender(BitmapCodec codec, BitOrder order)
+    {
+        _codec = codec;
+        _bitOrder = order;
+        _builder = new EncodedBitmapBuilder(codec, order);
+        _chunkWords = codec.chunkSize() >> 3;
+        _chunkBits = (long) codec.chunkSize() << 3;
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API
+    /**********************************************************************
+     */
+
+    /**
+     * Method for appending given range of bits of given bitmap.
+     */
+    public void append(EncodedBitmap src, long fromBit, long toBit)
+    {
+        if (src.getCodec() != _codec || src.getBitOrder() != _bitOrder) {
+            throw new IllegalArgumentException("Can not append bitmap with codec "+src.getCodec()
+                    +" and bit order "+src.getBitOrder()+": expected "+_codec+"/"+_bitOrder);
+        }
+        if (fromBit >= toBit) {
+            return;
+        }
+        final long chunkBits = _chunkBits;
+        final int lastFull = (int) (toBit / chunkBits); // chunks before this fully in range
+        final EncodedBitmap.ChunkCursor c = src.new ChunkCursor((int) (fromBit / chunkBits));
+
+        while (c.next()) {
+            final int i = c.index();
+            final long chunkStart = i * chunkBits;
+            if (chunkStart >= toBit) {
+                break;
+            }
+            final long segFrom = Math.max(fromBit, chunkStart);
+            final long segTo = Math.min(toBit, chunkStart + ((long) src.getChunkRawLength(i) << 3));
+            final boolean wholeChunk = (segFrom == chunkStart) && (i < lastFull);
+
+            if (wholeChunk && c.offset() < 0) {
+                final boolean full = (c.offset() == EncodedBitmap.OFFSET_FULL);
+                final int end = Math.min(c.runEnd(), lastFull);
+                int count = end - i;
+                if (_windowBits > 0) {
+                    // place one chunk in window, after which rest are aligned with window
+                    _addRun(full, chunkBits);
+                    --count;
+                }
+                if (count > 0) {
+                    _builder.appendUniformChunks(full, count);
+                    _totalBits += count * chunkBits;
+                }
+                c.skipTo(end);
+            } else if (wholeChunk && _windowBits == 0) {
+                final int offset = c.offset();
+                _builder.appendEncodedChunk(src._data, offset, src._chunkLength(offset));
+                _totalBits += chunkBits;
+            } else if (c.offset() < 0) {
+                _addRun(c.offset() == EncodedBitmap.OFFSET_FULL, segTo - segFrom);
+            } else {
+                if (_chunk == null) {
+                    _chunk = new long[_chunkWords];
+                }
+                src.decodeChunkWords(i, _chunk, 0);
+                _addBits(_chunk, segFrom - chunkStart, segTo - chunkStart);
+            }
+        }
+    }
+
+    public EncodedBitmap build()
+    {
+        if (_totalBits > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Result too long ("+_totalBits
+                    +" bits): maximum is "+Integer.MAX_VALUE);
+        }
+        if (_windowBits > 0) {
+            _builder.appendWordBytes(_window, 0, (int) ((_windowBits + 7) >> 3));
+        }
+        return _builder.build((int) _totalBits);
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    private WordCombiner _windowCombiner(long bits)
+    {
+        if (_window == null) {
+            _window = new long[(_chunkWords << 1) + 1];
+        }
+        return new WordCombiner(null, _window, _windowBits, _windowBits + bits, _bitOrder);
+    }
+
+    private void _addRun(boolean ones, long bits)
+    {
+        _windowCombiner(bits).addRunBits(ones, bits);
+        _windowBits += bits;
+        _totalBits += bits;
+        _flush();
+    }
+
+    /**
+     * Method for adding given range of bits from given words to window
+     */
+    private void _addBits(long[] words, long from, long to)
+    {
+        final long bits = to - from;
+        final WordCombiner comb = _windowCombiner(bits);
+        final int shift = (int) (from & 63);
+        final boolean bigEndian = (_bitOrder == BitOrder.MSB_FIRST);
+        int ix = (int) (from >>> 6);
+        for (long left = bits; left > 0L; left -= 64, ++ix) {
+            long w = words[ix];
+            if (shift != 0) {
+                final long next = (ix+1 < words.length) ? words[ix+1] : 0L;
+                w = bigEndian ? ((w << shift) | (next >>> (64 - shift)))
+                        : ((w >>> shift) | (next << (64 - shift)));
+            }
+            comb.addWord(w);
+        }
+        _windowBits += bits;
+        _totalBits += bits;
+        _flush();
+    }
+
+    /**
+     * Method for passing a full chunk from window to builder, if available
+     */
+    private void _flush()
+    {
+        if (_windowBits >= _chunkBits) {
+            final int cw = _chunkWords;
+            _builder.appendWords(_window, 0, cw);
+            System.arraycopy(_window, cw, _window, 0, cw + 1);
+            Arrays.fill(_window, cw + 1, _window.length, 0L);
+            _windowBits -= _chunkBits;
+        }
+    }
+}
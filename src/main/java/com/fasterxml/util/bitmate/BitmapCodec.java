@@ -0,0 +1,134 @@
+package com.fasterxml.util.bitmate;
+
+/**
+ * Enumeration of codecs that may be used for encoding chunks of
+ * an {@link EncodedBitmap}. Besides the encoding itself, codec determines
+ * geometry of chunks (size, and layout of frames and length fields), so that
+ * codec id stored in the container header is enough to decode content.
+ */
+public enum BitmapCodec
+{
+    /**
+     * Codec that uses {@link BitRatEncoder} for encoding chunks
+     * of 4k bytes.
+     */
+    BITRAT(1, BitRatEncoder.FULL_CHUNK_SIZE, 1, false, false),
+
+    /**
+     * Codec that uses {@link NibblerEncoder} for encoding chunks
+     * of 8k bytes.
+     */
+    NIBBLER(2, NibblerEncoder.MAX_CHUNK_SIZE, 0, false, false),
+
+    /**
+     * Codec that uses {@link BitRatEncoder} for encoding chunks of 32k bytes,
+     * as 8 sub-chunks of 4k with an additional mask level, so that
+     * sub-chunks that just continue the current run take no space at all.
+     */
+    BITRAT_32K(3, 8 * BitRatEncoder.FULL_CHUNK_SIZE, 8, false, false),
+
+    /**
+     * Codec that uses {@link BitRatEncoder} for encoding chunks of 64k bytes,
+     * as 16 sub-chunks of 4k with an additional mask level.
+     */
+    BITRAT_64K(4, 16 * BitRatEncoder.FULL_CHUNK_SIZE, 16, false, false),
+
+    /**
+     * Codec that uses {@link NibblerEncoder} for encoding chunks of 64k bytes,
+     * with 24-bit (instead of 16-bit) chunk headers and long length fields.
+     */
+    NIBBLER_64K(5, NibblerEncoder.MAX_WIDE_CHUNK_SIZE, 0, true, false),
+
+    /**
+     * Codec that uses {@link GapEncoder} for encoding chunks of 64k bytes
+     * as lengths of runs of clear and set bits: meant for very sparse
+     * content, like columns with a handful of set bits in millions of rows.
+     */
+    GAP(6, GapEncoder.MAX_CHUNK_SIZE, 0, false, false),
+
+    /**
+     * Variant of {@link #NIBBLER} with skip tables (see {@link #hasSkipTables()}).
+     */
+    NIBBLER_INDEXED(7, NibblerEncoder.MAX_CHUNK_SIZE, 0, false, true),
+
+    /**
+     * Variant of {@link #NIBBLER_64K} with skip tables (see {@link #hasSkipTables()}):
+     * with larger chunks, decoding only part of the chunk matters more.
+     */
+    NIBBLER_64K_INDEXED(8, NibblerEncoder.MAX_WIDE_CHUNK_SIZE, 0, true, true),
+    ;
+
+    private final int _id;
+
+    private final int _chunkSize;
+
+    private final int _subChunks;
+
+    private final boolean _wideLengths;
+
+    private final boolean _skipTables;
+
+    private BitmapCodec(int id, int chunkSize, int subChunks, boolean wideLengths,
+            boolean skipTables) {
+        _id = id;
+        _chunkSize = chunkSize;
+        _subChunks = subChunks;
+        _wideLengths = wideLengths;
+        _skipTables = skipTables;
+    }
+
+    /**
+     * @return Id used for codec in the container header
+     */
+    public int id() { return _id; }
+
+    /**
+     * @return Size of raw (unencoded) chunks in bytes
+     */
+    public int chunkSize() { return _chunkSize; }
+
+    /**
+     * @return True for codecs that use {@link BitRatEncoder}
+     */
+    public boolean isBitRat() { return _subChunks > 0; }
+
+    /**
+     * @return True for codecs that use {@link NibblerEncoder}
+     */
+    public boolean isNibbler() { return (_subChunks == 0) && (this != GAP); }
+
+    /**
+     * @return True for {@link #GAP}
+     */
+    public boolean isGap() { return this == GAP; }
+
+    /**
+     * @return For BitRat codecs, number of 4k sub-chunks in a chunk: 1 for
+     *    {@link #BITRAT}, in which case there is no sub-chunk mask level;
+     *    0 for other codecs
+     */
+    public int subChunks() { return _subChunks; }
+
+    /**
+     * @return For Nibbler codecs, whether wide (24-bit) chunk headers and
+     *    long length fields are used, as needed for chunks over 8k
+     */
+    public boolean hasWideLengths() { return _wideLengths; }
+
+    /**
+     * @return For Nibbler codecs, whether encoded chunks are followed by skip
+     *    tables (see {@link NibblerDecoder}), with an entry for every
+     *    {@link NibblerDecoder#SKIP_INTERVAL} bytes of raw content, so that
+     *    access to a single bit (or range) only needs to decode part of the chunk
+     */
+    public boolean hasSkipTables() { return _skipTables; }
+
+    public static BitmapCodec forId(int id) {
+        for (BitmapCodec codec : values()) {
+            if (codec._id == id) {
+                return codec;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,585 @@
+package com.fasterxml.util.bitmate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Methods for calculating cardinalities of boolean operations between
+ * {@link EncodedBitmap}s, and similarity metrics derived from them, without
+ * producing result bitmaps. Bitmaps are walked together chunk by chunk:
+ * spans of uniform chunks are counted arithmetically, and only encoded
+ * chunks that can affect the result are decoded (into words, which are
+ * then counted using population count).
+ *<p>
+ * Bitmaps may use different codecs, bit orders and lengths: shorter bitmaps
+ * are considered to be padded with zeroes.
+ */
+public class BitmapMetrics
+{
+    private final static int TYPE_EMPTY = 0;
+    private final static int TYPE_FULL = 1;
+    private final static int TYPE_ENCODED = 2;
+
+    final static int COUNT_AND = 0;
+    final static int COUNT_A_ONLY = 1;
+    final static int COUNT_B_ONLY = 2;
+
+    private BitmapMetrics() { }
+
+    /*
+    /**********************************************************************
+    /* Public API, single bitmaps and pairs
+    /**********************************************************************
+     */
+
+    /**
+     * @return Number of set bits in given bitmap
+     */
+    public static long cardinality(EncodedBitmap bitmap) {
+        return _counts(bitmap, bitmap, true)[COUNT_AND];
+    }
+
+    /**
+     * @return Number of bits set in both bitmaps
+     */
+    public static long andCardinality(EncodedBitmap a, EncodedBitmap b) {
+        return _counts(a, b, true)[COUNT_AND];
+    }
+
+    /**
+     * @return Number of bits set in either bitmap
+     */
+    public static long orCardinality(EncodedBitmap a, EncodedBitmap b) {
+        long[] counts = _counts(a, b, false);
+        return counts[COUNT_AND] + counts[COUNT_A_ONLY] + counts[COUNT_B_ONLY];
+    }
+
+    /**
+     * @return Number of bits set in the first bitmap but not in the second
+     */
+    public static long andNotCardinality(EncodedBitmap a, EncodedBitmap b) {
+        return _counts(a, b, false)[COUNT_A_ONLY];
+    }
+
+    /**
+     * @return Number of bits set in exactly one of bitmaps
+     */
+    public static long xorCardinality(EncodedBitmap a, EncodedBitmap b) {
+        long[] counts = _counts(a, b, false);
+        return counts[COUNT_A_ONLY] + counts[COUNT_B_ONLY];
+    }
+
+    /**
+     * @return Jaccard similarity of bitmaps, <code>|A AND B| / |A OR B|</code>;
+     *   0.0 if both bitmaps are empty
+     */
+    public static double jaccard(EncodedBitmap a, EncodedBitmap b) {
+        long[] counts = _counts(a, b, false);
+        return _jaccard(counts[COUNT_AND],
+                counts[COUNT_AND] + counts[COUNT_A_ONLY] + counts[COUNT_B_ONLY]);
+    }
+
+    /**
+     * @return Cosine similarity of bitmaps, <code>|A AND B| / sqrt(|A| * |B|)</code>;
+     *   0.0 if either bitmap is empty
+     */
+    public static double cosine(EncodedBitmap a, EncodedBitmap b) {
+        long[] counts = _counts(a, b, false);
+        return _cosine(counts[COUNT_AND],
+                counts[COUNT_AND] + counts[COUNT_A_ONLY], counts[COUNT_AND] + counts[COUNT_B_ONLY]);
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API, batches
+    /**********************************************************************
+     */
+
+    /**
+     * Method for calculating intersection cardinalities of all pairs of given
+     * bitmaps. Each chunk of each bitmap is decoded at most once (and shared
+     * by all pairs). Work is divided by ranges of chunks into up to given
+     * number of tasks, run using given executor; tasks add their counts
+     * directly to the upper triangle of the result, one row at a time.
+     *
+     * @param executor Executor to run tasks with; if null, all work is done
+     *   by calling thread
+     * @param parallelism Maximum number of tasks to divide work into
+     *
+     * @return Symmetric matrix where entry <code>[i][j]</code> is
+     *   <code>|bitmaps[i] AND bitmaps[j]|</code>; so diagonal contains
+     *   cardinalities of bitmaps
+     */
+    public static long[][] allPairsAndCardinality(EncodedBitmap[] bitmaps,
+            ExecutorService executor, int parallelism)
+    {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Invalid parallelism ("+parallelism+"): must be at least 1");
+        }
+        final int n = bitmaps.length;
+        if (n == 0) {
+            return new long[0][];
+        }
+        final int unitBytes = _unitSize(bitmaps);
+        int units = 0;
+        for (EncodedBitmap bm : bitmaps) {
+            units = Math.max(units, _unitCount(bm, unitBytes));
+        }
+        final long[][] result = new long[n][n];
+        if (executor == null || parallelism == 1 || units < 2) {
+            new BatchTask(bitmaps, unitBytes, 0, units, result).call();
+        } else {
+            _runParallel(executor, bitmaps, unitBytes, units, Math.min(parallelism, units), result);
+        }
+        for (int i = 0; i < n; ++i) {
+            for (int j = 0; j < i; ++j) {
+                result[i][j] = result[j][i];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Method for calculating Jaccard similarities of all pairs of given bitmaps;
+     * see {@link #allPairsAndCardinality} for details.
+     */
+    public static double[][] allPairsJaccard(EncodedBitmap[] bitmaps,
+            ExecutorService executor, int parallelism)
+    {
+        final long[][] and = allPairsAndCardinality(bitmaps, executor, parallelism);
+        final int n = and.length;
+        final double[][] result = new double[n][n];
+        for (int i = 0; i < n; ++i) {
+            for (int j = 0; j < n; ++j) {
+                result[i][j] = _jaccard(and[i][j], and[i][i] + and[j][j] - and[i][j]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Method for calculating cosine similarities of all pairs of given bitmaps;
+     * see {@link #allPairsAndCardinality} for details.
+     */
+    public static double[][] allPairsCosine(EncodedBitmap[] bitmaps,
+            ExecutorService executor, int parallelism)
+    {
+        final long[][] and = allPairsAndCardinality(bitmaps, executor, parallelism);
+        final int n = and.length;
+        final double[][] result = new double[n][n];
+        for (int i = 0; i < n; ++i) {
+            for (int j = 0; j < n; ++j) {
+                result[i][j] = _cosine(and[i][j], and[i][i], and[j][j]);
+            }
+        }
+        return result;
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    private static double _jaccard(long and, long or) {
+        return (or == 0L) ? 0.0 : ((double) and / (double) or);
+    }
+
+    private static double _cosine(long and, long cardA, long cardB) {
+        if (cardA == 0L || cardB == 0L) {
+            return 0.0;
+        }
+        return and / Math.sqrt((double) cardA * (double) cardB);
+    }
+
+    /**
+     * Bitmaps are walked in units of the smallest chunk size used
+     */
+    static int _unitSize(EncodedBitmap... bitmaps) {
+        int size = Integer.MAX_VALUE;
+        for (EncodedBitmap bm : bitmaps) {
+            size = Math.min(size, bm.getCodec().chunkSize());
+        }
+        return size;
+    }
+
+    static int _unitCount(EncodedBitmap bm, int unitBytes) {
+        return (bm.getRawLength() + unitBytes - 1) / unitBytes;
+    }
+
+    /**
+     * @param andOnly Whether only count of common bits is needed: if so,
+     *    chunks are not decoded when the other bitmap has no bits set
+     *
+     * @return Counts of bits set in both bitmaps, only in the first, and
+     *    only in the second (latter two only if not <code>andOnly</code>)
+     */
+    private static long[] _counts(EncodedBitmap a, EncodedBitmap b, boolean andOnly) {
+        return _counts(a, b, andOnly, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Variant of {@link #_counts(EncodedBitmap, EncodedBitmap, boolean)} that only
+     * counts bits of given range of units (see {@link #_unitSize}).
+     */
+    static long[] _counts(EncodedBitmap a, EncodedBitmap b, boolean andOnly,
+            int fromUnit, int toUnit)
+    {
+        final int unitBytes = _unitSize(a, b);
+        final long unitBits = (long) unitBytes << 3;
+        final Source sa = new Source(a, a.getBitOrder(), unitBytes);
+        final Source sb = (b == a) ? sa : new Source(b, a.getBitOrder(), unitBytes);
+        final int units = Math.min(toUnit, Math.max(sa.unitCount, sb.unitCount));
+        final long[] counts = new long[3];
+
+        for (int u = fromUnit; u < units; ) {
+            final int ta = sa.type(u);
+            final int tb = sb.type(u);
+            if (ta != TYPE_ENCODED && tb != TYPE_ENCODED) {
+                final int end = Math.min(units, Math.min(sa.runEnd(u), sb.runEnd(u)));
+                final long bits = (end - u) * unitBits;
+                if (ta == TYPE_FULL) {
+                    counts[(tb == TYPE_FULL) ? COUNT_AND : COUNT_A_ONLY] += bits;
+                } else if (tb == TYPE_FULL) {
+                    counts[COUNT_B_ONLY] += bits;
+                }
+                u = end;
+                continue;
+            }
+            if (ta == TYPE_EMPTY) {
+                if (!andOnly) {
+                    counts[COUNT_B_ONLY] += sb.popCount(u);
+                }
+            } else if (tb == TYPE_EMPTY) {
+                if (!andOnly) {
+                    counts[COUNT_A_ONLY] += sa.popCount(u);
+                }
+            } else if (ta == TYPE_FULL) {
+                final long pop = sb.popCount(u);
+                counts[COUNT_AND] += pop;
+                counts[COUNT_A_ONLY] += unitBits - pop;
+            } else if (tb == TYPE_FULL) {
+                final long pop = sa.popCount(u);
+                counts[COUNT_AND] += pop;
+                counts[COUNT_B_ONLY] += unitBits - pop;
+            } else if (sa == sb) {
+                counts[COUNT_AND] += sa.popCount(u);
+            } else {
+                _countWords(sa, sb, u, counts, andOnly);
+            }
+            ++u;
+        }
+        return counts;
+    }
+
+    private static void _countWords(Source sa, Source sb, int unit, long[] counts, boolean andOnly)
+    {
+        final long[] wa = sa.words(unit);
+        final int pa = sa.offset(unit);
+        final int lenA = sa.length(unit);
+        final long[] wb = sb.words(unit);
+        final int pb = sb.offset(unit);
+        final int lenB = sb.length(unit);
+        final int common = Math.min(lenA, lenB);
+        long and = 0L;
+        if (andOnly) {
+            for (int i = 0; i < common; ++i) {
+                and += Long.bitCount(wa[pa+i] & wb[pb+i]);
+            }
+            counts[COUNT_AND] += and;
+            return;
+        }
+        long aOnly = 0L, bOnly = 0L;
+        for (int i = 0; i < common; ++i) {
+            final long x = wa[pa+i];
+            final long y = wb[pb+i];
+            and += Long.bitCount(x & y);
+            aOnly += Long.bitCount(x & ~y);
+            bOnly += Long.bitCount(~x & y);
+        }
+        for (int i = common; i < lenA; ++i) {
+            aOnly += Long.bitCount(wa[pa+i]);
+        }
+        for (int i = common; i < lenB; ++i) {
+            bOnly += Long.bitCount(wb[pb+i]);
+        }
+        counts[COUNT_AND] += and;
+        counts[COUNT_A_ONLY] += aOnly;
+        counts[COUNT_B_ONLY] += bOnly;
+    }
+
+    private static void _runParallel(ExecutorService executor, EncodedBitmap[] bitmaps,
+            int unitBytes, int units, int tasks, long[][] result)
+    {
+        List<Callable<Void>> calls = new ArrayList<Callable<Void>>(tasks);
+        for (int i = 0; i < tasks; ++i) {
+            int from = (int) ((long) units * i / tasks);
+            int to = (int) ((long) units * (i+1) / tasks);
+            calls.add(new BatchTask(bitmaps, unitBytes, from, to, result));
+        }
+        try {
+            for (Future<Void> f : executor.invokeAll(calls)) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while calculating cardinalities", e);
+        } catch (ExecutionException e) {
+            Throwable t = e.getCause();
+            if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            }
+            throw new IllegalStateException("Failed to calculate cardinalities: "+t, t);
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper classes
+    /**********************************************************************
+     */
+
+    /**
+     * Task for calculating intersection cardinalities of all pairs for a range
+     * of units, adding them to upper triangle (including diagonal) of shared
+     * result. Counts are collected for a row at a time, and added while holding
+     * the lock of the row, so that tasks only contend when adding to the same row.
+     */
+    private final static class BatchTask implements Callable<Void>
+    {
+        private final Source[] _sources;
+        private final int _from, _to;
+        private final long _unitBits;
+        private final long[][] _result;
+
+        /**
+         * Counts of the current row, from diagonal onwards
+         */
+        private final long[] _row;
+
+        public BatchTask(EncodedBitmap[] bitmaps, int unitBytes, int from, int to,
+                long[][] result)
+        {
+            _sources = new Source[bitmaps.length];
+            for (int i = 0; i < bitmaps.length; ++i) {
+                _sources[i] = new Source(bitmaps[i], bitmaps[0].getBitOrder(), unitBytes);
+            }
+            _from = from;
+            _to = to;
+            _unitBits = (long) unitBytes << 3;
+            _result = result;
+            _row = new long[bitmaps.length];
+        }
+
+        @Override
+        public Void call()
+        {
+            final Source[] sources = _sources;
+            final int n = sources.length;
+            final long[] row = _row;
+            final int[] types = new int[n];
+            final long[] pops = new long[n];
+
+            for (int u = _from; u < _to; ) {
+                boolean encoded = false;
+                int end = _to;
+                for (int i = 0; i < n; ++i) {
+                    int type = sources[i].type(u);
+                    types[i] = type;
+                    if (type == TYPE_ENCODED) {
+                        encoded = true;
+                        pops[i] = sources[i].popCount(u);
+                    } else {
+                        end = Math.min(end, sources[i].runEnd(u));
+                        pops[i] = (type == TYPE_FULL) ? _unitBits : 0L;
+                    }
+                }
+                if (!encoded) { // all uniform: can count a run of units at once
+                    final long runBits = (end - u) * _unitBits;
+                    for (int i = 0; i < n; ++i) {
+                        if (types[i] == TYPE_FULL) {
+                            for (int j = i; j < n; ++j) {
+                                if (types[j] == TYPE_FULL) {
+                                    row[j] = runBits;
+                                }
+                            }
+                            _addRow(i);
+                        }
+                    }
+                    u = end;
+                    continue;
+                }
+                for (int i = 0; i < n; ++i) {
+                    if (types[i] == TYPE_EMPTY) { // (and so pops[i] is 0)
+                        continue;
+                    }
+                    row[i] = pops[i];
+                    for (int j = i+1; j < n; ++j) {
+                        final int tj = types[j];
+                        if (tj == TYPE_EMPTY) {
+                            continue;
+                        }
+                        if (types[i] == TYPE_FULL) {
+                            row[j] = pops[j];
+                        } else if (tj == TYPE_FULL) {
+                            row[j] = pops[i];
+                        } else {
+                            row[j] = _andCount(sources[i], sources[j], u);
+                        }
+                    }
+                    _addRow(i);
+                }
+                ++u;
+            }
+            return null;
+        }
+
+        /**
+         * Method for adding counts of given row to the shared result, and
+         * clearing them
+         */
+        private void _addRow(int i)
+        {
+            final long[] row = _row;
+            final long[] target = _result[i];
+            synchronized (target) {
+                for (int j = i, n = row.length; j < n; ++j) {
+                    target[j] += row[j];
+                }
+            }
+            Arrays.fill(row, i, row.length, 0L);
+        }
+
+        private static long _andCount(Source a, Source b, int unit)
+        {
+            final long[] wa = a.words(unit);
+            final int pa = a.offset(unit);
+            final long[] wb = b.words(unit);
+            final int pb = b.offset(unit);
+            final int len = Math.min(a.length(unit), b.length(unit));
+            long count = 0L;
+            for (int i = 0; i < len; ++i) {
+                count += Long.bitCount(wa[pa+i] & wb[pb+i]);
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Helper class for accessing content of a bitmap in units of fixed size
+     * (same as, or a fraction of, chunk size of the bitmap): keeps the last
+     * decoded chunk, as words in specified bit order, for reuse.
+     */
+    private final static class Source
+    {
+        private final EncodedBitmap _bitmap;
+        private final boolean _reverse;
+        private final int _unitsPerChunk;
+        private final int _unitWords;
+        private final int _chunkCount;
+
+        final int unitCount;
+
+        private final long[] _chunk;
+        private int _chunkIndex = -1;
+        private int _chunkWords;
+
+        // population count for the last unit asked
+        private int _popUnit = -1;
+        private long _pop;
+
+        public Source(EncodedBitmap bitmap, BitOrder order, int unitBytes)
+        {
+            _bitmap = bitmap;
+            _reverse = (bitmap.getBitOrder() != order);
+            _unitsPerChunk = bitmap.getCodec().chunkSize() / unitBytes;
+            _unitWords = unitBytes >> 3;
+            _chunkCount = bitmap.getChunkCount();
+            unitCount = _unitCount(bitmap, unitBytes);
+            _chunk = new long[bitmap.getCodec().chunkSize() >> 3];
+        }
+
+        public int type(int unit)
+        {
+            if (unit >= unitCount) {
+                return TYPE_EMPTY;
+            }
+            switch (_bitmap.getChunkType(unit / _unitsPerChunk)) {
+            case EMPTY:
+                return TYPE_EMPTY;
+            case FULL:
+                return TYPE_FULL;
+            default:
+                return TYPE_ENCODED;
+            }
+        }
+
+        /**
+         * @return First unit after given uniform unit that may differ from it
+         */
+        public int runEnd(int unit)
+        {
+            if (unit >= unitCount) {
+                return Integer.MAX_VALUE;
+            }
+            int end = _bitmap.getRunEnd(unit / _unitsPerChunk);
+            if (end >= _chunkCount && type(unit) == TYPE_EMPTY) {
+                return Integer.MAX_VALUE;
+            }
+            return end * _unitsPerChunk;
+        }
+
+        /**
+         * @return Words of the chunk that contains given unit (which must
+         *   be encoded); see {@link #offset} and {@link #length}
+         */
+        public long[] words(int unit)
+        {
+            final int index = unit / _unitsPerChunk;
+            if (index != _chunkIndex) {
+                _chunkWords = _bitmap.decodeChunkWords(index, _chunk, 0);
+                if (_reverse) {
+                    for (int i = 0; i < _chunkWords; ++i) {
+                        _chunk[i] = Long.reverse(_chunk[i]);
+                    }
+                }
+                _chunkIndex = index;
+            }
+            return _chunk;
+        }
+
+        public int offset(int unit) {
+            return (unit % _unitsPerChunk) * _unitWords;
+        }
+
+        /**
+         * @return Number of words of given unit available (may be less than
+         *    full unit for the last unit)
+         */
+        public int length(int unit) {
+            words(unit);
+            return Math.max(0, Math.min(_unitWords, _chunkWords - offset(unit)));
+        }
+
+        public long popCount(int unit)
+        {
+            if (unit != _popUnit) {
+                final long[] words = words(unit);
+                final int start = offset(unit);
+                final int end = start + length(unit);
+                long pop = 0L;
+                for (int i = start; i < end; ++i) {
+                    pop += Long.bitCount(words[i]);
+                }
+                _pop = pop;
+                _popUnit = unit;
+            }
+            return _pop;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.fasterxml.util.bitmate;
+
+/**
+ * Extension point for tracing encoding, decoding and operations on bitmaps
+ * with an external event system; specifically, Java Flight Recorder events
+ * (see <code>com.fasterxml.util.bitmate.jfr</code>). Implementation is located
+ * reflectively when this class is loaded, so that the library does not depend
+ * on JFR classes and still works on JDKs without them: if no implementation is
+ * available, tracing costs a single null check per traced call, and if one is
+ * available but events are not enabled, an "is enabled" check.
+ *<p>
+ * Bitmap ids reported are those given to {@link DecodedChunkCache} where
+ * available; otherwise identity hash codes of {@link EncodedBitmap} instances.
+ */
+public abstract class BitmapTracer
+{
+    /**
+     * Name of the implementation class to look for
+     */
+    public final static String JFR_TRACER_CLASS = "com.fasterxml.util.bitmate.jfr.JfrBitmapTracer";
+
+    private final static BitmapTracer INSTANCE = _load();
+
+    /**
+     * @return Tracer implementation available, if any; null if none
+     */
+    public static BitmapTracer get() {
+        return INSTANCE;
+    }
+
+    /*
+    /**********************************************************************
+    /* Abstract API for implementations
+    /**********************************************************************
+     */
+
+    // Each traced piece of work is bracketed by "begin" and "end" calls: "begin"
+    // returns an opaque span (null if events of the type are not enabled, in
+    // which case "end" is not called); "end" decides whether event is recorded
+    // (for example, based on duration threshold).
+
+    public abstract Object beginChunkEncode();
+
+    public abstract void endChunkEncode(Object span, ChunkStats stats);
+
+    public abstract Object beginChunkDecode();
+
+    public abstract void endChunkDecode(Object span, BitmapCodec codec, long bitmapId,
+            int chunkIndex, int rawBytes);
+
+    public abstract Object beginOperation();
+
+    public abstract void endOperation(Object span, String name, BitmapCodec codec, long bitmapId,
+            long inputBytes, long outputBytes);
+
+    public abstract Object beginCacheMiss();
+
+    public abstract void endCacheMiss(Object span, BitmapCodec codec, long bitmapId,
+            int chunkIndex, int decodedBytes);
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    private static BitmapTracer _load()
+    {
+        try {
+            Class<?> cls = Class.forName(JFR_TRACER_CLASS);
+            return (BitmapTracer) cls.getDeclaredConstructor().newInstance();
+        } catch (Throwable t) {
+            // not included, or JFR not available (before JDK 11 or 8u262): no tracing
+            return null;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.fasterxml.util.bitmate;
+
+/**
+ * Helper class for collecting {@link ChunkStats} from encoded chunks
+ * (frames), used when a {@link CodecListener} is registered.
+ */
+final class ChunkAnalyzer
+{
+    private final BitmapCodec _codec;
+
+    private final BitRatDecoder _ratDecoder;
+
+    private final NibblerDecoder _nibblerDecoder;
+
+    private final GapDecoder _gapDecoder;
+
+    public ChunkAnalyzer(BitmapCodec codec, BitOrder order)
+    {
+        _codec = codec;
+        _ratDecoder = codec.isBitRat() ? new BitRatDecoder(order) : null;
+        _nibblerDecoder = codec.isNibbler() ? new NibblerDecoder(codec, order) : null;
+        _gapDecoder = codec.isGap() ? new GapDecoder(order) : null;
+    }
+
+    /**
+     * @param offset Offset of the frame of the chunk; negative for uniform chunks
+     *    (see {@link EncodedBitmap#OFFSET_EMPTY}, {@link EncodedBitmap#OFFSET_FULL})
+     */
+    public void analyze(byte[] data, int offset, ChunkStats stats)
+    {
+        if (offset < 0) {
+            stats.uniform();
+            stats.finish();
+            return;
+        }
+        final int end;
+        if (_nibblerDecoder != null) {
+            end = _nibblerDecoder.analyzeChunk(data, offset, stats.getRawLength(), stats);
+        } else if (_gapDecoder != null) {
+            end = _gapDecoder.analyzeChunk(data, offset, stats.getRawLength(), stats);
+        } else {
+            final int mask = EncodedBitmap._ratMask(_codec, data, offset);
+            final int start = offset + EncodedBitmap.ratFrameLength(_codec);
+            if (_codec.subChunks() == 1) {
+                _ratDecoder.analyzeChunk(mask, data, start, stats.getRawLength(), stats);
+            } else {
+                _ratDecoder.analyzeLargeChunk(mask, _codec.subChunks(), data, start,
+                        stats.getRawLength(), stats);
+            }
+            end = start + EncodedBitmap._ratContentLength(_codec, data, offset);
+        }
+        stats.setEncodedLength(end - offset);
+    }
+}
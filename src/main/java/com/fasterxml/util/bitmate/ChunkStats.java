@@ -0,0 +1,227 @@
+package com.fasterxml.util.bitmate;
+
+/**
+ * Statistics on encoding of a single chunk, passed to {@link CodecListener}s.
+ * Instances are reused by their producers for successive chunks, so listeners
+ * must copy values they need to retain, and not retain the instance itself.
+ *<p>
+ * Runs are spans of bytes that are not encoded as literals (that is, continue
+ * the current all-zero or all-one run); for {@link BitmapCodec#BITRAT}
+ * runs may span level boundaries.
+ */
+public final class ChunkStats
+{
+    /**
+     * Number of buckets in run length distribution: bucket <code>n</code>
+     * contains runs of <code>2^n</code> to <code>2^(n+1)-1</code> bytes.
+     */
+    public final static int RUN_LENGTH_BUCKETS = 14;
+
+    private BitmapCodec _codec;
+
+    private int _chunkIndex;
+
+    private int _rawLength;
+
+    private int _encodedLength;
+
+    private boolean _uniform;
+
+    private long _nanos;
+
+    private int _literalBytes;
+
+    private int _runCount;
+
+    private int _currentRun;
+
+    private final int[] _runLengths = new int[RUN_LENGTH_BUCKETS];
+
+    private int _escapes;
+
+    private int _level2Blocks, _level2Present;
+
+    private int _level1Blocks, _level1Present;
+
+    private int _nibbleLengths, _byteLengths, _wideLengths;
+
+    /*
+    /**********************************************************************
+    /* Public API, accessors
+    /**********************************************************************
+     */
+
+    public BitmapCodec getCodec() { return _codec; }
+
+    public int getChunkIndex() { return _chunkIndex; }
+
+    public int getRawLength() { return _rawLength; }
+
+    /**
+     * @return Length of the encoded frame of the chunk; 0 for uniform chunks
+     *    (only indicated in the summary)
+     */
+    public int getEncodedLength() { return _encodedLength; }
+
+    /**
+     * @return True if chunk has all bits set or all clear
+     */
+    public boolean isUniform() { return _uniform; }
+
+    /**
+     * @return Time spent encoding or decoding the chunk, in nanoseconds
+     */
+    public long getNanos() { return _nanos; }
+
+    public int getLiteralBytes() { return _literalBytes; }
+
+    /**
+     * @return Ratio of literal bytes to raw length of the chunk
+     */
+    public double getLiteralRatio() {
+        return (_rawLength == 0) ? 0.0 : ((double) _literalBytes / _rawLength);
+    }
+
+    public int getRunCount() { return _runCount; }
+
+    /**
+     * @return Number of runs with length in given bucket; see {@link #RUN_LENGTH_BUCKETS}
+     */
+    public int getRunLengthCount(int bucket) { return _runLengths[bucket]; }
+
+    /**
+     * @return Number of {@link BitmapCodec#BITRAT} 32-byte blocks stored uncompressed,
+     *    due to not compressing enough
+     */
+    public int getEscapeCount() { return _escapes; }
+
+    /**
+     * @return Number of {@link BitmapCodec#BITRAT} 512-byte blocks in the chunk
+     */
+    public int getLevel2Blocks() { return _level2Blocks; }
+
+    /**
+     * @return Number of {@link BitmapCodec#BITRAT} 512-byte blocks with literal bytes
+     *    (bits set in the chunk mask)
+     */
+    public int getLevel2Present() { return _level2Present; }
+
+    /**
+     * @return Number of {@link BitmapCodec#BITRAT} 64-byte blocks within 512-byte
+     *    blocks with literal bytes
+     */
+    public int getLevel1Blocks() { return _level1Blocks; }
+
+    /**
+     * @return Number of {@link BitmapCodec#BITRAT} 64-byte blocks with literal bytes
+     *    (bits set in masks of 512-byte blocks)
+     */
+    public int getLevel1Present() { return _level1Present; }
+
+    /**
+     * @return Number of {@link BitmapCodec#NIBBLER} lengths encoded as a single nibble
+     */
+    public int getNibbleLengths() { return _nibbleLengths; }
+
+    /**
+     * @return Number of {@link BitmapCodec#NIBBLER} lengths encoded as two nibbles
+     */
+    public int getByteLengths() { return _byteLengths; }
+
+    /**
+     * @return Number of {@link BitmapCodec#NIBBLER} lengths encoded as four nibbles
+     */
+    public int getWideLengths() { return _wideLengths; }
+
+    /**
+     * @return Bucket of run length distribution for runs of given length (in bytes)
+     */
+    public static int runLengthBucket(int length) {
+        return Math.min(RUN_LENGTH_BUCKETS - 1, 31 - Integer.numberOfLeadingZeros(length));
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods, collecting statistics
+    /**********************************************************************
+     */
+
+    void reset(BitmapCodec codec, int chunkIndex, int rawLength)
+    {
+        _codec = codec;
+        _chunkIndex = chunkIndex;
+        _rawLength = rawLength;
+        _encodedLength = 0;
+        _uniform = false;
+        _nanos = 0L;
+        _literalBytes = 0;
+        _runCount = 0;
+        _currentRun = 0;
+        for (int i = 0; i < RUN_LENGTH_BUCKETS; ++i) {
+            _runLengths[i] = 0;
+        }
+        _escapes = 0;
+        _level2Blocks = _level2Present = 0;
+        _level1Blocks = _level1Present = 0;
+        _nibbleLengths = _byteLengths = _wideLengths = 0;
+    }
+
+    void setEncodedLength(int length) { _encodedLength = length; }
+
+    void setNanos(long nanos) { _nanos = nanos; }
+
+    void uniform() {
+        _uniform = true;
+        run(_rawLength);
+    }
+
+    void run(int bytes) {
+        _currentRun += bytes;
+    }
+
+    void literals(int count) {
+        _closeRun();
+        _literalBytes += count;
+    }
+
+    void escape() { ++_escapes; }
+
+    void level2(boolean present) {
+        ++_level2Blocks;
+        if (present) {
+            ++_level2Present;
+        }
+    }
+
+    void level1(boolean present) {
+        ++_level1Blocks;
+        if (present) {
+            ++_level1Present;
+        }
+    }
+
+    void length(int nibbles) {
+        if (nibbles == 1) {
+            ++_nibbleLengths;
+        } else if (nibbles == 2) {
+            ++_byteLengths;
+        } else {
+            ++_wideLengths;
+        }
+    }
+
+    /**
+     * Method called after all content of the chunk has been reported
+     */
+    void finish() {
+        _closeRun();
+    }
+
+    private void _closeRun() {
+        if (_currentRun > 0) {
+            ++_runCount;
+            ++_runLengths[runLengthBucket(_currentRun)];
+            _currentRun = 0;
+        }
+    }
+}
@@ -0,0 +1,515 @@
+package com.fasterxml.util.bitmate;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Content-addressed store of encoded chunks, shared by multiple bitmaps: each
+ * distinct encoded chunk (frame) is stored once, identified by a numeric id,
+ * and bitmaps are stored as lists of chunk ids (see {@link StoredBitmap}).
+ * Chunks are looked up by a 64-bit hash of encoded content (verified by
+ * comparing content), and reference counted, so that chunks no longer
+ * referenced by any bitmap are removed.
+ *<p>
+ * Since identical chunks have identical ids, operations between stored bitmaps
+ * can skip decoding for chunks with identical ids, as well as for uniform chunks.
+ *<p>
+ * Instances are thread-safe; all bitmaps must use the codec and bit order
+ * of the store.
+ */
+public class ChunkStore
+{
+    /**
+     * Id used for chunks with all bits clear; not stored
+     */
+    public final static long EMPTY_CHUNK = -1L;
+
+    /**
+     * Id used for chunks with all bits set; not stored
+     */
+    public final static long FULL_CHUNK = -2L;
+
+    private final static long HASH_SEED = 0x9E3779B97F4A7C15L;
+
+    private final static long HASH_MULT = 0xC6A4A7935BD1E995L;
+
+    protected final BitmapCodec _codec;
+
+    protected final BitOrder _bitOrder;
+
+    protected final ConcurrentHashMap<ContentKey,Entry> _byContent = new ConcurrentHashMap<ContentKey,Entry>();
+
+    protected final ConcurrentHashMap<Long,Entry> _byId = new ConcurrentHashMap<Long,Entry>();
+
+    protected final AtomicLong _nextId = new AtomicLong();
+
+    protected final AtomicLong _storedBytes = new AtomicLong();
+
+    public ChunkStore(BitmapCodec codec, BitOrder order)
+    {
+        _codec = codec;
+        _bitOrder = order;
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API, accessors
+    /**********************************************************************
+     */
+
+    public BitmapCodec getCodec() { return _codec; }
+
+    public BitOrder getBitOrder() { return _bitOrder; }
+
+    /**
+     * @return Number of distinct chunks stored
+     */
+    public int getChunkCount() { return _byId.size(); }
+
+    /**
+     * @return Total length of distinct encoded chunks stored, in bytes
+     */
+    public long getStoredBytes() { return _storedBytes.get(); }
+
+    /**
+     * @return Number of references to chunk with given id; 0 if no such chunk stored
+     */
+    public int getReferenceCount(long chunkId) {
+        Entry e = _byId.get(chunkId);
+        return (e == null) ? 0 : Math.max(0, e.refs.get());
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API, storing and loading
+    /**********************************************************************
+     */
+
+    /**
+     * Method for storing chunks of given bitmap, adding a reference to each
+     * one (and storing the ones not yet stored).
+     */
+    public StoredBitmap store(EncodedBitmap bitmap)
+    {
+        _verifyCompatible(bitmap);
+        final long[] ids = new long[bitmap.getChunkCount()];
+        for (EncodedBitmap.ChunkCursor c = bitmap.new ChunkCursor(); c.next(); ) {
+            final int offset = c.offset();
+            if (offset < 0) {
+                ids[c.index()] = (offset == EncodedBitmap.OFFSET_FULL) ? FULL_CHUNK : EMPTY_CHUNK;
+            } else {
+                ids[c.index()] = _intern(bitmap._data, offset, bitmap._chunkLength(offset),
+                        bitmap.getChunkRawLength(c.index()));
+            }
+        }
+        return new StoredBitmap(this, bitmap.getBitLength(), ids);
+    }
+
+    /**
+     * Method for reconstructing encoded bitmap from stored chunks; encoded
+     * chunks are copied, not re-encoded.
+     */
+    public EncodedBitmap load(StoredBitmap bitmap)
+    {
+        _verifyOwned(bitmap);
+        final EncodedBitmapBuilder builder = new EncodedBitmapBuilder(_codec, _bitOrder);
+        final long[] ids = bitmap._chunkIds;
+        for (int i = 0; i < ids.length; ) {
+            final long id = ids[i];
+            if (id < 0L) {
+                int end = i+1;
+                while (end < ids.length && ids[end] == id) {
+                    ++end;
+                }
+                builder.appendUniformChunks(id == FULL_CHUNK, end - i);
+                i = end;
+            } else {
+                final Entry e = _entry(id);
+                builder.appendEncodedChunk(e.key.frame, 0, e.key.frame.length, e.key.rawLength);
+                ++i;
+            }
+        }
+        return builder.build(bitmap._bitLength);
+    }
+
+    /**
+     * Method for releasing references given bitmap has to stored chunks; chunks
+     * with no remaining references are removed. Bitmap may not be used afterwards.
+     */
+    public void release(StoredBitmap bitmap)
+    {
+        _verifyOwned(bitmap);
+        for (long id : bitmap._chunkIds) {
+            if (id >= 0L) {
+                _release(id);
+            }
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API, operations
+    /**********************************************************************
+     */
+
+    /**
+     * Method for constructing intersection of given bitmaps (of the same length),
+     * as a new stored bitmap. Chunks that are identical, or uniform in either
+     * bitmap, are resolved without decoding.
+     */
+    public StoredBitmap and(StoredBitmap a, StoredBitmap b) {
+        return _combine(BitOp.AND, a, b);
+    }
+
+    /**
+     * Method for constructing union of given bitmaps (of the same length),
+     * as a new stored bitmap; see {@link #and} for details.
+     */
+    public StoredBitmap or(StoredBitmap a, StoredBitmap b) {
+        return _combine(BitOp.OR, a, b);
+    }
+
+    /**
+     * @return Number of bits set in both bitmaps (which must be of the same length)
+     */
+    public long andCardinality(StoredBitmap a, StoredBitmap b)
+    {
+        _verifyPair(a, b);
+        final long[] wa = new long[_codec.chunkSize() >> 3];
+        final long[] wb = new long[wa.length];
+        long count = 0L;
+        for (int i = 0; i < a._chunkIds.length; ++i) {
+            final long ida = a._chunkIds[i];
+            final long idb = b._chunkIds[i];
+            if (ida == EMPTY_CHUNK || idb == EMPTY_CHUNK) {
+                continue;
+            }
+            final long validBits = _chunkBits(a, i);
+            if (ida == FULL_CHUNK && idb == FULL_CHUNK) {
+                count += validBits;
+            } else if (ida == idb || idb == FULL_CHUNK) {
+                count += _popCount(_entry(ida), wa, validBits);
+            } else if (ida == FULL_CHUNK) {
+                count += _popCount(_entry(idb), wb, validBits);
+            } else {
+                final int words = _entry(ida).decode(wa);
+                _entry(idb).decode(wb);
+                count += _popCount(wa, wb, words, validBits);
+            }
+        }
+        return count;
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    protected StoredBitmap _combine(BitOp op, StoredBitmap a, StoredBitmap b)
+    {
+        _verifyPair(a, b);
+        final long[] wa = new long[_codec.chunkSize() >> 3];
+        final long[] wb = new long[wa.length];
+        final long[] ids = new long[a._chunkIds.length];
+        // value that makes result the other chunk, and value that makes it uniform
+        final long identity = (op == BitOp.AND) ? FULL_CHUNK : EMPTY_CHUNK;
+        final long absorbing = (op == BitOp.AND) ? EMPTY_CHUNK : FULL_CHUNK;
+
+        for (int i = 0; i < ids.length; ++i) {
+            final long ida = a._chunkIds[i];
+            final long idb = b._chunkIds[i];
+            long id;
+            if (ida == absorbing || idb == absorbing) {
+                id = absorbing;
+            } else if (ida == identity || ida == idb) {
+                id = _acquire(idb);
+            } else if (idb == identity) {
+                id = _acquire(ida);
+            } else {
+                final int words = _entry(ida).decode(wa);
+                final int rawLength = _entry(ida).key.rawLength;
+                _entry(idb).decode(wb);
+                for (int j = 0; j < words; ++j) {
+                    wa[j] = op.apply(wa[j], wb[j]);
+                }
+                id = _encode(wa, rawLength);
+            }
+            ids[i] = id;
+        }
+        return new StoredBitmap(this, a._bitLength, ids);
+    }
+
+    /**
+     * Method for encoding a single chunk, and interning it unless uniform
+     */
+    protected long _encode(long[] words, int rawLength)
+    {
+        final EncodedBitmapBuilder builder = new EncodedBitmapBuilder(_codec, _bitOrder);
+        builder.appendWordBytes(words, 0, rawLength);
+        final EncodedBitmap bm = builder.build(rawLength << 3);
+        final EncodedBitmap.ChunkCursor c = bm.new ChunkCursor();
+        c.next();
+        final int offset = c.offset();
+        if (offset < 0) {
+            return (offset == EncodedBitmap.OFFSET_FULL) ? FULL_CHUNK : EMPTY_CHUNK;
+        }
+        return _intern(bm._data, offset, bm._chunkLength(offset), rawLength);
+    }
+
+    /**
+     * Method for finding id of given encoded chunk, storing it if not yet stored,
+     * and adding a reference to it.
+     */
+    protected long _intern(byte[] data, int offset, int length, int rawLength)
+    {
+        final ContentKey key = new ContentKey(Arrays.copyOfRange(data, offset, offset + length),
+                rawLength);
+        while (true) {
+            Entry e = _byContent.get(key);
+            if (e == null) {
+                // must be reachable by id before it can be found by content
+                Entry newEntry = new Entry(_nextId.getAndIncrement(), key);
+                _byId.put(newEntry.id, newEntry);
+                e = _byContent.putIfAbsent(key, newEntry);
+                if (e == null) {
+                    _storedBytes.addAndGet(length);
+                    return newEntry.id;
+                }
+                _byId.remove(newEntry.id);
+            }
+            if (e.tryAcquire()) {
+                return e.id;
+            }
+            // being removed: wait for removal, then retry
+            _byContent.remove(key, e);
+        }
+    }
+
+    protected long _acquire(long id)
+    {
+        if (id >= 0L && !_entry(id).tryAcquire()) {
+            throw new IllegalStateException("Chunk "+id+" has been released");
+        }
+        return id;
+    }
+
+    protected void _release(long id)
+    {
+        final Entry e = _entry(id);
+        if (e.refs.decrementAndGet() == 0) {
+            // mark as removed so it can not be acquired any more
+            if (e.refs.compareAndSet(0, -1)) {
+                _byContent.remove(e.key, e);
+                _byId.remove(id, e);
+                _storedBytes.addAndGet(-e.key.frame.length);
+            }
+        }
+    }
+
+    protected Entry _entry(long id)
+    {
+        Entry e = _byId.get(id);
+        if (e == null) {
+            throw new IllegalStateException("No chunk with id "+id+" in store");
+        }
+        return e;
+    }
+
+    /**
+     * @return Number of valid bits in given chunk of given bitmap
+     */
+    protected long _chunkBits(StoredBitmap bm, int index)
+    {
+        final long chunkBits = (long) _codec.chunkSize() << 3;
+        return Math.min(chunkBits, bm._bitLength - index * chunkBits);
+    }
+
+    protected long _popCount(Entry e, long[] buffer, long validBits)
+    {
+        if (validBits == ((long) _codec.chunkSize() << 3)) {
+            return e.cardinality(buffer);
+        }
+        final int words = e.decode(buffer);
+        return _popCount(buffer, buffer, words, validBits);
+    }
+
+    protected long _popCount(long[] a, long[] b, int words, long validBits)
+    {
+        long count = 0L;
+        final int fullWords = (int) Math.min(words, validBits >> 6);
+        for (int i = 0; i < fullWords; ++i) {
+            count += Long.bitCount(a[i] & b[i]);
+        }
+        final int lastBits = (int) (validBits & 63);
+        if (lastBits != 0 && fullWords < words) {
+            long mask = (_bitOrder == BitOrder.LSB_FIRST) ? ((1L << lastBits) - 1) : ~(-1L >>> lastBits);
+            count += Long.bitCount(a[fullWords] & b[fullWords] & mask);
+        }
+        return count;
+    }
+
+    protected void _verifyCompatible(EncodedBitmap bm)
+    {
+        if (bm.getCodec() != _codec || bm.getBitOrder() != _bitOrder) {
+            throw new IllegalArgumentException("Can not store bitmap with codec "+bm.getCodec()
+                    +" and bit order "+bm.getBitOrder()+": store uses "+_codec+"/"+_bitOrder);
+        }
+    }
+
+    protected void _verifyOwned(StoredBitmap bm)
+    {
+        if (bm._store != this) {
+            throw new IllegalArgumentException("Bitmap not stored in this store");
+        }
+    }
+
+    protected void _verifyPair(StoredBitmap a, StoredBitmap b)
+    {
+        _verifyOwned(a);
+        _verifyOwned(b);
+        if (a._bitLength != b._bitLength) {
+            throw new IllegalArgumentException("Can not combine bitmaps of different lengths ("
+                    +a._bitLength+" vs "+b._bitLength+")");
+        }
+    }
+
+    /**
+     * Fast non-cryptographic 64-bit hash over given bytes, processing 8 bytes at a time
+     */
+    protected static long _hash(byte[] data, int rawLength)
+    {
+        long h = HASH_SEED ^ (data.length * HASH_MULT) ^ rawLength;
+        int i = 0;
+        for (final int end = data.length - 7; i < end; i += 8) {
+            long k = BitRatEncoder._readWord(data, i, false);
+            k *= HASH_MULT;
+            k ^= k >>> 47;
+            k *= HASH_MULT;
+            h = (h ^ k) * HASH_MULT;
+        }
+        if (i < data.length) {
+            long k = 0L;
+            for (int shift = 0; i < data.length; ++i, shift += 8) {
+                k |= (data[i] & 0xFFL) << shift;
+            }
+            h = (h ^ k) * HASH_MULT;
+        }
+        h ^= h >>> 47;
+        h *= HASH_MULT;
+        return h ^ (h >>> 47);
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper classes
+    /**********************************************************************
+     */
+
+    protected final static class ContentKey
+    {
+        final byte[] frame;
+        final int rawLength;
+        final long hash;
+
+        ContentKey(byte[] frame, int rawLength) {
+            this.frame = frame;
+            this.rawLength = rawLength;
+            hash = _hash(frame, rawLength);
+        }
+
+        @Override
+        public int hashCode() { return (int) (hash ^ (hash >>> 32)); }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) return true;
+            if (!(o instanceof ContentKey)) return false;
+            ContentKey other = (ContentKey) o;
+            return (other.hash == hash) && (other.rawLength == rawLength)
+                    && Arrays.equals(other.frame, frame);
+        }
+    }
+
+    protected final class Entry
+    {
+        final long id;
+        final ContentKey key;
+
+        /**
+         * Number of references; -1 once removed
+         */
+        final AtomicInteger refs = new AtomicInteger(1);
+
+        /**
+         * Single-chunk bitmap for decoding the chunk; constructed when needed
+         */
+        private volatile EncodedBitmap _view;
+
+        /**
+         * Number of set bits, for full chunks; -1 if not yet calculated
+         */
+        private volatile long _cardinality = -1L;
+
+        Entry(long id, ContentKey key) {
+            this.id = id;
+            this.key = key;
+        }
+
+        boolean tryAcquire()
+        {
+            while (true) {
+                int count = refs.get();
+                if (count <= 0) {
+                    return false;
+                }
+                if (refs.compareAndSet(count, count+1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * @return Number of words decoded
+         */
+        int decode(long[] output)
+        {
+            EncodedBitmap view = _view;
+            if (view == null) {
+                final byte[] frame = key.frame;
+                final int bits = key.rawLength << 3;
+                byte[] data = new byte[EncodedBitmap.HEADER_LENGTH + 2 + frame.length];
+                data[0] = EncodedBitmap.HEADER_MARKER;
+                data[1] = (byte) _codec.id();
+                if (_bitOrder == BitOrder.LSB_FIRST) {
+                    data[1] |= EncodedBitmap.HEADER_LSB_FIRST;
+                }
+                data[2] = (byte) (bits >> 24);
+                data[3] = (byte) (bits >> 16);
+                data[4] = (byte) (bits >> 8);
+                data[5] = (byte) bits;
+                data[EncodedBitmap.HEADER_LENGTH] = (byte) 0x80; // single chunk, present
+                System.arraycopy(frame, 0, data, EncodedBitmap.HEADER_LENGTH + 2, frame.length);
+                view = new EncodedBitmap(_codec, _bitOrder, bits, data);
+                _view = view;
+            }
+            return view.decodeChunkWords(0, output, 0);
+        }
+
+        long cardinality(long[] buffer)
+        {
+            long card = _cardinality;
+            if (card < 0L) {
+                final int words = decode(buffer);
+                card = 0L;
+                for (int i = 0; i < words; ++i) {
+                    card += Long.bitCount(buffer[i]);
+                }
+                _cardinality = card;
+            }
+            return card;
+        }
+    }
+}
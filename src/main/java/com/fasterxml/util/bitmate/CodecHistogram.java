@@ -0,0 +1,205 @@
+package com.fasterxml.util.bitmate;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * {@link CodecListener} that aggregates chunk statistics into totals and
+ * histograms (with power-of-two buckets), for inspection or for periodic
+ * export to a metrics system. Structural statistics are aggregated from both
+ * encoded and decoded chunks; timings are kept separately for the two.
+ *<p>
+ * Instances are thread-safe, so a single instance may be shared by multiple
+ * builders.
+ */
+public class CodecHistogram implements CodecListener
+{
+    /**
+     * Number of buckets in size and timing histograms: bucket <code>n</code>
+     * contains values from <code>2^n</code> to <code>2^(n+1)-1</code>
+     * (and bucket 0 also zero).
+     */
+    public final static int BUCKETS = 40;
+
+    protected final AtomicLong _chunksEncoded = new AtomicLong();
+    protected final AtomicLong _chunksDecoded = new AtomicLong();
+    protected final AtomicLong _uniformChunks = new AtomicLong();
+
+    protected final AtomicLong _rawBytes = new AtomicLong();
+    protected final AtomicLong _encodedBytes = new AtomicLong();
+    protected final AtomicLong _literalBytes = new AtomicLong();
+
+    protected final AtomicLong _escapes = new AtomicLong();
+    protected final AtomicLong _level2Blocks = new AtomicLong();
+    protected final AtomicLong _level2Present = new AtomicLong();
+    protected final AtomicLong _level1Blocks = new AtomicLong();
+    protected final AtomicLong _level1Present = new AtomicLong();
+
+    protected final AtomicLong _nibbleLengths = new AtomicLong();
+    protected final AtomicLong _byteLengths = new AtomicLong();
+    protected final AtomicLong _wideLengths = new AtomicLong();
+
+    protected final AtomicLong _encodeNanos = new AtomicLong();
+    protected final AtomicLong _decodeNanos = new AtomicLong();
+
+    protected final AtomicLongArray _runLengths = new AtomicLongArray(ChunkStats.RUN_LENGTH_BUCKETS);
+    protected final AtomicLongArray _encodedSizes = new AtomicLongArray(BUCKETS);
+    protected final AtomicLongArray _encodeTimes = new AtomicLongArray(BUCKETS);
+    protected final AtomicLongArray _decodeTimes = new AtomicLongArray(BUCKETS);
+
+    /*
+    /**********************************************************************
+    /* CodecListener implementation
+    /**********************************************************************
+     */
+
+    @Override
+    public void chunkEncoded(ChunkStats stats)
+    {
+        _chunksEncoded.incrementAndGet();
+        _encodeNanos.addAndGet(stats.getNanos());
+        _encodeTimes.incrementAndGet(bucket(stats.getNanos()));
+        _add(stats);
+    }
+
+    @Override
+    public void chunkDecoded(ChunkStats stats)
+    {
+        _chunksDecoded.incrementAndGet();
+        _decodeNanos.addAndGet(stats.getNanos());
+        _decodeTimes.incrementAndGet(bucket(stats.getNanos()));
+        _add(stats);
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API, accessors
+    /**********************************************************************
+     */
+
+    public long getChunksEncoded() { return _chunksEncoded.get(); }
+
+    public long getChunksDecoded() { return _chunksDecoded.get(); }
+
+    public long getUniformChunks() { return _uniformChunks.get(); }
+
+    public long getRawBytes() { return _rawBytes.get(); }
+
+    public long getEncodedBytes() { return _encodedBytes.get(); }
+
+    /**
+     * @return Ratio of encoded length of chunks to raw length
+     */
+    public double getCompressionRatio() {
+        return _ratio(_encodedBytes.get(), _rawBytes.get());
+    }
+
+    /**
+     * @return Ratio of literal bytes to raw length of chunks
+     */
+    public double getLiteralRatio() {
+        return _ratio(_literalBytes.get(), _rawBytes.get());
+    }
+
+    public long getEscapeCount() { return _escapes.get(); }
+
+    /**
+     * @return Ratio of {@link BitmapCodec#BITRAT} 512-byte blocks with literals
+     *    to all such blocks
+     */
+    public double getLevel2Occupancy() {
+        return _ratio(_level2Present.get(), _level2Blocks.get());
+    }
+
+    /**
+     * @return Ratio of {@link BitmapCodec#BITRAT} 64-byte blocks with literals
+     *    to all such blocks within 512-byte blocks with literals
+     */
+    public double getLevel1Occupancy() {
+        return _ratio(_level1Present.get(), _level1Blocks.get());
+    }
+
+    public long getNibbleLengths() { return _nibbleLengths.get(); }
+
+    public long getByteLengths() { return _byteLengths.get(); }
+
+    public long getWideLengths() { return _wideLengths.get(); }
+
+    public long getEncodeNanos() { return _encodeNanos.get(); }
+
+    public long getDecodeNanos() { return _decodeNanos.get(); }
+
+    /**
+     * @return Number of runs in given bucket; see {@link ChunkStats#RUN_LENGTH_BUCKETS}
+     */
+    public long getRunLengthCount(int bucket) { return _runLengths.get(bucket); }
+
+    /**
+     * @return Number of encoded (non-uniform) chunks with encoded length in given bucket
+     */
+    public long getEncodedSizeCount(int bucket) { return _encodedSizes.get(bucket); }
+
+    /**
+     * @return Number of chunks with encoding time (in nanoseconds) in given bucket
+     */
+    public long getEncodeTimeCount(int bucket) { return _encodeTimes.get(bucket); }
+
+    /**
+     * @return Number of chunks with decoding time (in nanoseconds) in given bucket
+     */
+    public long getDecodeTimeCount(int bucket) { return _decodeTimes.get(bucket); }
+
+    /**
+     * @return Bucket of size and timing histograms for given value
+     */
+    public static int bucket(long value) {
+        if (value <= 0L) {
+            return 0;
+        }
+        return Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(value));
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("[chunks: %d encoded, %d decoded, %d uniform; compression %.3f, literals %.3f, escapes %d, level-2/level-1 occupancy %.3f/%.3f]",
+                getChunksEncoded(), getChunksDecoded(), getUniformChunks(), getCompressionRatio(),
+                getLiteralRatio(), getEscapeCount(), getLevel2Occupancy(), getLevel1Occupancy());
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    protected void _add(ChunkStats stats)
+    {
+        _rawBytes.addAndGet(stats.getRawLength());
+        if (stats.isUniform()) {
+            _uniformChunks.incrementAndGet();
+        } else {
+            _encodedBytes.addAndGet(stats.getEncodedLength());
+            _encodedSizes.incrementAndGet(bucket(stats.getEncodedLength()));
+        }
+        _literalBytes.addAndGet(stats.getLiteralBytes());
+        _escapes.addAndGet(stats.getEscapeCount());
+        _level2Blocks.addAndGet(stats.getLevel2Blocks());
+        _level2Present.addAndGet(stats.getLevel2Present());
+        _level1Blocks.addAndGet(stats.getLevel1Blocks());
+        _level1Present.addAndGet(stats.getLevel1Present());
+        _nibbleLengths.addAndGet(stats.getNibbleLengths());
+        _byteLengths.addAndGet(stats.getByteLengths());
+        _wideLengths.addAndGet(stats.getWideLengths());
+        for (int i = 0; i < ChunkStats.RUN_LENGTH_BUCKETS; ++i) {
+            final int count = stats.getRunLengthCount(i);
+            if (count != 0) {
+                _runLengths.addAndGet(i, count);
+            }
+        }
+    }
+
+    private static double _ratio(long a, long b) {
+        return (b == 0L) ? 0.0 : ((double) a / b);
+    }
+}
@@ -0,0 +1,26 @@
+package com.fasterxml.util.bitmate;
+
+/**
+ * Interface for receiving statistics on encoding and decoding of chunks,
+ * for example to bridge them to a metrics system; see {@link CodecHistogram}
+ * for an aggregating implementation. Listeners are registered with
+ * {@link EncodedBitmapBuilder#setListener} for encoding, and
+ * {@link EncodedBitmap#withListener} for decoding (or passed to
+ * {@link EncodedBitmap#reportChunkStats}); when no listener is registered no
+ * statistics are collected.
+ *<p>
+ * Statistics instances passed are reused for successive chunks, so
+ * implementations must not retain them.
+ */
+public interface CodecListener
+{
+    /**
+     * Method called after a chunk has been encoded.
+     */
+    public void chunkEncoded(ChunkStats stats);
+
+    /**
+     * Method called after a chunk has been decoded.
+     */
+    public void chunkDecoded(ChunkStats stats);
+}
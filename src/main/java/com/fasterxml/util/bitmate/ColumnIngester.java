@@ -0,0 +1,379 @@
+package com.fasterxml.util.bitmate;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Component for building presence bitmaps for columns of a table, from a stream
+ * of sparse rows (each row indicating which columns have a value).
+ * Each column only buffers one chunk of raw content (and only if it has any
+ * bits set within the chunk): whenever a chunk worth of rows has been added,
+ * buffered chunks are encoded, optionally using an {@link ExecutorService}
+ * so that groups of columns are encoded in parallel while next chunk of
+ * rows is being added.
+ *<p>
+ * Instances are not thread-safe: rows should be added from a single thread.
+ */
+public class ColumnIngester
+{
+    protected final BitmapCodec _codec;
+
+    /**
+     * Size of raw chunks, in bytes
+     */
+    protected final int _chunkSize;
+
+    /**
+     * Number of rows in a full chunk
+     */
+    protected final int _chunkRows;
+
+    /**
+     * Executor to use for encoding; if null, encoding is done by calling thread.
+     */
+    protected final ExecutorService _executor;
+
+    /**
+     * Number of tasks to split encoding of a chunk into, when using an executor.
+     */
+    protected final int _parallelism;
+
+    protected final Map<String,Integer> _columnIds = new HashMap<String,Integer>();
+
+    protected final List<Column> _columns = new ArrayList<Column>();
+
+    /**
+     * Raw chunk buffers that have been encoded and cleared, ready to be reused.
+     */
+    protected final Queue<byte[]> _bufferPool = new ConcurrentLinkedQueue<byte[]>();
+
+    /**
+     * Encoding tasks for the previous chunk, if any are still in progress.
+     */
+    protected List<Future<?>> _pending = Collections.emptyList();
+
+    protected int _rowCount;
+
+    /**
+     * Index of the next row within the current chunk
+     */
+    protected int _chunkRow;
+
+    /**
+     * Whether {@link #finish} has been called
+     */
+    protected boolean _finished;
+
+    public ColumnIngester(BitmapCodec codec) {
+        this(codec, null, 1);
+    }
+
+    /**
+     * @param executor Executor to use for encoding chunks; if null, encoding is
+     *    done synchronously by calling thread
+     * @param parallelism Number of tasks to split encoding of each chunk into
+     */
+    public ColumnIngester(BitmapCodec codec, ExecutorService executor, int parallelism)
+    {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Invalid parallelism ("+parallelism+"): must be at least 1");
+        }
+        _codec = codec;
+        _chunkSize = codec.chunkSize();
+        _chunkRows = _chunkSize << 3;
+        _executor = executor;
+        _parallelism = parallelism;
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API, accessors
+    /**********************************************************************
+     */
+
+    public int getRowCount() { return _rowCount; }
+
+    public int getColumnCount() { return _columns.size(); }
+
+    /**
+     * Method for finding id of the column with given name, registering it
+     * if necessary.
+     */
+    public int columnId(String name)
+    {
+        _verifyNotFinished();
+        Integer id = _columnIds.get(name);
+        if (id != null) {
+            return id.intValue();
+        }
+        int ix = _columns.size();
+        Column col = new Column(name, new EncodedBitmapBuilder(_codec));
+        // Chunks completed before column was registered are all empty
+        int chunks = _rowCount / _chunkRows;
+        if (chunks > 0) {
+            col.builder.appendUniformChunks(false, chunks);
+        }
+        _columns.add(col);
+        _columnIds.put(name, ix);
+        return ix;
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API, adding rows
+    /**********************************************************************
+     */
+
+    /**
+     * Method for adding a row that has values for columns with given ids
+     * (as returned by {@link #columnId}). If any of ids is invalid, row is
+     * not added at all.
+     */
+    public void addRow(int... columnIds)
+    {
+        _verifyNotFinished();
+        // verify all ids first, so that invalid row leaves no bits behind
+        for (int id : columnIds) {
+            if (id < 0 || id >= _columns.size()) {
+                throw new IllegalArgumentException("Invalid column id "+id+": have "
+                        +_columns.size()+" columns");
+            }
+        }
+        final int row = _chunkRow;
+        final int offset = row >> 3;
+        final int bit = 0x80 >> (row & 7);
+        for (int id : columnIds) {
+            byte[] buffer = _buffer(_columns.get(id));
+            buffer[offset] |= bit;
+        }
+        _nextRow();
+    }
+
+    /**
+     * Method for adding a row that has values for columns with given names.
+     */
+    public void addRow(Collection<String> columnNames)
+    {
+        _verifyNotFinished();
+        final int row = _chunkRow;
+        final int offset = row >> 3;
+        final int bit = 0x80 >> (row & 7);
+        for (String name : columnNames) {
+            byte[] buffer = _buffer(_columns.get(columnId(name)));
+            buffer[offset] |= bit;
+        }
+        _nextRow();
+    }
+
+    /**
+     * Method for adding a row represented as JSON Object, in which all properties
+     * with non-null values are considered present.
+     */
+    public void addRow(JsonNode row)
+    {
+        _verifyNotFinished();
+        if (!row.isObject()) {
+            throw new IllegalArgumentException("Invalid row: expected JSON Object, got "+row.getNodeType());
+        }
+        final int chunkRow = _chunkRow;
+        final int offset = chunkRow >> 3;
+        final int bit = 0x80 >> (chunkRow & 7);
+        Iterator<Map.Entry<String,JsonNode>> it = row.fields();
+        while (it.hasNext()) {
+            Map.Entry<String,JsonNode> entry = it.next();
+            if (!entry.getValue().isNull()) {
+                byte[] buffer = _buffer(_columns.get(columnId(entry.getKey())));
+                buffer[offset] |= bit;
+            }
+        }
+        _nextRow();
+    }
+
+    /**
+     * Method to call after all rows have been added, to encode remaining
+     * content and construct bitmaps for all columns. Ingester can not be
+     * used after this method has been called: further calls to any of
+     * <code>addRow</code> methods, {@link #columnId} or this method
+     * throw {@link IllegalStateException}.
+     *
+     * @return Encoded bitmaps by column name, in the order columns were registered
+     */
+    public Map<String,EncodedBitmap> finish()
+    {
+        _verifyNotFinished();
+        _finished = true;
+        _awaitPending();
+        if (_chunkRow > 0) {
+            final int rawLength = (_chunkRow + 7) >> 3;
+            List<Column> cols = new ArrayList<Column>();
+            for (Column col : _columns) {
+                if (col.buffer != null) {
+                    col.pending = col.buffer;
+                    col.buffer = null;
+                    cols.add(col);
+                }
+            }
+            _submit(cols, rawLength);
+            _awaitPending();
+        }
+        Map<String,EncodedBitmap> result = new LinkedHashMap<String,EncodedBitmap>();
+        for (Column col : _columns) {
+            result.put(col.name, col.builder.build(_rowCount));
+        }
+        return result;
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    protected void _verifyNotFinished()
+    {
+        if (_finished) {
+            throw new IllegalStateException("Ingester already finished: can not be used after finish()");
+        }
+    }
+
+    protected byte[] _buffer(Column col)
+    {
+        byte[] buffer = col.buffer;
+        if (buffer == null) {
+            buffer = _bufferPool.poll();
+            if (buffer == null) {
+                buffer = new byte[_chunkSize];
+            }
+            col.buffer = buffer;
+        }
+        return buffer;
+    }
+
+    protected void _nextRow()
+    {
+        ++_rowCount;
+        if (++_chunkRow == _chunkRows) {
+            _chunkRow = 0;
+            _flushChunk();
+        }
+    }
+
+    /**
+     * Method called when a full chunk of rows has been added: columns without
+     * set bits get empty chunk appended directly, others are encoded; possibly
+     * asynchronously, in which case encoding of previous chunk is first
+     * waited to complete.
+     */
+    protected void _flushChunk()
+    {
+        _awaitPending();
+        List<Column> cols = new ArrayList<Column>();
+        for (Column col : _columns) {
+            if (col.buffer == null) {
+                col.builder.appendUniformChunks(false, 1);
+            } else {
+                col.pending = col.buffer;
+                col.buffer = null;
+                cols.add(col);
+            }
+        }
+        _submit(cols, _chunkSize);
+    }
+
+    protected void _submit(List<Column> cols, int rawLength)
+    {
+        final int count = cols.size();
+        if (count == 0) {
+            return;
+        }
+        if (_executor == null || _parallelism == 1 || count == 1) {
+            if (_executor == null) {
+                new EncodeTask(cols, rawLength).run();
+                return;
+            }
+            _pending = Collections.<Future<?>>singletonList(
+                    _executor.submit(new EncodeTask(cols, rawLength)));
+            return;
+        }
+        final int tasks = Math.min(_parallelism, count);
+        List<Future<?>> futures = new ArrayList<Future<?>>(tasks);
+        for (int i = 0; i < tasks; ++i) {
+            List<Column> group = cols.subList((count * i) / tasks, (count * (i+1)) / tasks);
+            futures.add(_executor.submit(new EncodeTask(group, rawLength)));
+        }
+        _pending = futures;
+    }
+
+    protected void _awaitPending()
+    {
+        List<Future<?>> pending = _pending;
+        if (pending.isEmpty()) {
+            return;
+        }
+        _pending = Collections.emptyList();
+        try {
+            for (Future<?> f : pending) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for chunks to be encoded", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to encode chunk: "+e.getCause().getMessage(),
+                    e.getCause());
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper classes
+    /**********************************************************************
+     */
+
+    protected final static class Column
+    {
+        public final String name;
+
+        public final EncodedBitmapBuilder builder;
+
+        /**
+         * Buffer for the chunk being added, if any bits have been set
+         */
+        public byte[] buffer;
+
+        /**
+         * Buffer for the chunk being encoded, if any
+         */
+        public byte[] pending;
+
+        public Column(String n, EncodedBitmapBuilder b) {
+            name = n;
+            builder = b;
+        }
+    }
+
+    protected final class EncodeTask implements Runnable
+    {
+        private final List<Column> _cols;
+
+        private final int _rawLength;
+
+        public EncodeTask(List<Column> cols, int rawLength) {
+            _cols = cols;
+            _rawLength = rawLength;
+        }
+
+        @Override
+        public void run() {
+            for (Column col : _cols) {
+                byte[] buffer = col.pending;
+                col.pending = null;
+                col.builder.append(buffer, 0, _rawLength);
+                Arrays.fill(buffer, 0, _rawLength, (byte) 0);
+                _bufferPool.offer(buffer);
+            }
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package com.fasterxml.util.bitmate;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared cache of decoded chunks of {@link EncodedBitmap}s, as 64-bit words
+ * (in bit order of the bitmap, see {@link EncodedBitmap#decodeChunkWords}),
+ * keyed by caller-assigned bitmap id and chunk index, and bounded by total
+ * size of cached words.
+ *<p>
+ * Eviction uses segmented LRU: new entries go to a "probationary" segment and
+ * are only promoted to the "protected" segment when accessed again, and
+ * entries are evicted from probationary segment first, so that one-off
+ * scans over cold bitmaps do not push out frequently used chunks.
+ * Cache is divided in lock stripes (each with its own segments and
+ * share of the size limit), to reduce contention between threads.
+ *<p>
+ * On a miss, chunk is decoded without holding a lock, so concurrent misses
+ * for the same chunk may both decode it; only one result gets cached.
+ * Arrays returned are shared, and callers must not modify them.
+ */
+public class DecodedChunkCache
+{
+    /**
+     * Approximate per-entry memory overhead (key, map entry, array header)
+     * added to size of the words, in bytes
+     */
+    protected final static int ENTRY_OVERHEAD = 96;
+
+    protected final static int DEFAULT_STRIPES = 16;
+
+    /**
+     * Percentage of capacity of each stripe reserved for protected segment
+     */
+    protected final static int PROTECTED_PERCENT = 80;
+
+    protected final Stripe[] _stripes;
+
+    protected final long _maxBytes;
+
+    protected final AtomicLong _hits = new AtomicLong();
+
+    protected final AtomicLong _misses = new AtomicLong();
+
+    protected final AtomicLong _evictions = new AtomicLong();
+
+    public DecodedChunkCache(long maxBytes) {
+        this(maxBytes, DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param maxBytes Maximum total size of cached chunks (approximate, includes
+     *    estimated per-entry overhead)
+     * @param stripeCount Number of lock stripes to use; rounded up to a power of two
+     */
+    public DecodedChunkCache(long maxBytes, int stripeCount)
+    {
+        if (maxBytes <= 0L) {
+            throw new IllegalArgumentException("Invalid maxBytes ("+maxBytes+"): must be positive");
+        }
+        if (stripeCount < 1) {
+            throw new IllegalArgumentException("Invalid stripeCount ("+stripeCount+"): must be positive");
+        }
+        int count = Integer.highestOneBit(stripeCount);
+        if (count < stripeCount) {
+            count <<= 1;
+        }
+        _maxBytes = maxBytes;
+        _stripes = new Stripe[count];
+        final long stripeBytes = Math.max(1L, maxBytes / count);
+        for (int i = 0; i < count; ++i) {
+            _stripes[i] = new Stripe(stripeBytes);
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API, accessors
+    /**********************************************************************
+     */
+
+    public long getMaxBytes() { return _maxBytes; }
+
+    public long getHitCount() { return _hits.get(); }
+
+    public long getMissCount() { return _misses.get(); }
+
+    public long getEvictionCount() { return _evictions.get(); }
+
+    /**
+     * @return Approximate size of cached chunks, in bytes
+     */
+    public long getSizeInBytes() {
+        long total = 0L;
+        for (Stripe s : _stripes) {
+            synchronized (s) {
+                total += s.size;
+            }
+        }
+        return total;
+    }
+
+    public int getEntryCount() {
+        int total = 0;
+        for (Stripe s : _stripes) {
+            synchronized (s) {
+                total += s.probation.size() + s.protectedEntries.size();
+            }
+        }
+        return total;
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API, lookups
+    /**********************************************************************
+     */
+
+    /**
+     * Method for finding decoded chunk from cache, decoding and caching it if
+     * not yet cached.
+     *
+     * @param bitmapId Id of the bitmap, unique among bitmaps using this cache
+     *    (and never reused for different content)
+     *
+     * @return Decoded chunk as words; length is {@link EncodedBitmap#getChunkWordCount}.
+     *    Must not be modified by caller.
+     */
+    public long[] getChunk(long bitmapId, EncodedBitmap bitmap, int chunkIndex)
+    {
+        final ChunkKey key = new ChunkKey(bitmapId, chunkIndex);
+        final Stripe stripe = _stripeFor(key);
+        long[] words;
+        synchronized (stripe) {
+            words = stripe.get(key);
+        }
+        if (words != null) {
+            _hits.incrementAndGet();
+            return words;
+        }
+        _misses.incrementAndGet();
+        final BitmapTracer tracer = BitmapTracer.get();
+        final Object span = (tracer == null) ? null : tracer.beginCacheMiss();
+        words = new long[bitmap.getChunkWordCount(chunkIndex)];
+        bitmap.decodeChunkWords(chunkIndex, words, 0);
+        if (span != null) {
+            tracer.endCacheMiss(span, bitmap.getCodec(), bitmapId, chunkIndex, words.length << 3);
+        }
+        int evicted;
+        synchronized (stripe) {
+            long[] existing = stripe.get(key);
+            if (existing != null) { // someone beat us to it
+                return existing;
+            }
+            evicted = stripe.put(key, words);
+        }
+        if (evicted > 0) {
+            _evictions.addAndGet(evicted);
+        }
+        return words;
+    }
+
+    /**
+     * Method for decoding the whole bitmap into words, in bit order of
+     * the bitmap, using cached chunks where available.
+     */
+    public long[] decodeWords(long bitmapId, EncodedBitmap bitmap)
+    {
+        final long[] result = new long[(int) ((bitmap.getBitLength() + 63L) >>> 6)];
+        final int chunkWords = bitmap.getCodec().chunkSize() >> 3;
+        for (int i = 0, count = bitmap.getChunkCount(); i < count; ++i) {
+            long[] chunk = getChunk(bitmapId, bitmap, i);
+            System.arraycopy(chunk, 0, result, i * chunkWords, chunk.length);
+        }
+        return result;
+    }
+
+    /**
+     * Method for removing all cached chunks of given bitmap.
+     */
+    public void invalidate(long bitmapId)
+    {
+        for (Stripe s : _stripes) {
+            synchronized (s) {
+                s.removeBitmap(bitmapId);
+            }
+        }
+    }
+
+    public void clear()
+    {
+        for (Stripe s : _stripes) {
+            synchronized (s) {
+                s.probation.clear();
+                s.protectedEntries.clear();
+                s.size = 0L;
+                s.protectedSize = 0L;
+            }
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    protected Stripe _stripeFor(ChunkKey key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return _stripes[h & (_stripes.length - 1)];
+    }
+
+    protected static long _sizeOf(long[] words) {
+        return ENTRY_OVERHEAD + ((long) words.length << 3);
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper classes
+    /**********************************************************************
+     */
+
+    protected final static class ChunkKey
+    {
+        final long _bitmapId;
+        final int _chunkIndex;
+        final int _hash;
+
+        public ChunkKey(long bitmapId, int chunkIndex) {
+            _bitmapId = bitmapId;
+            _chunkIndex = chunkIndex;
+            _hash = (int) (bitmapId ^ (bitmapId >>> 32)) * 31 + chunkIndex;
+        }
+
+        @Override
+        public int hashCode() { return _hash; }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) return true;
+            if (!(o instanceof ChunkKey)) return false;
+            ChunkKey other = (ChunkKey) o;
+            return (other._bitmapId == _bitmapId) && (other._chunkIndex == _chunkIndex);
+        }
+    }
+
+    /**
+     * Single lock stripe, with its own segments; all access must be synchronized
+     * on the stripe.
+     */
+    protected final static class Stripe
+    {
+        final long maxSize;
+        final long maxProtectedSize;
+
+        // Access-ordered, so iteration starts with least recently used entry
+        final LinkedHashMap<ChunkKey,long[]> probation = new LinkedHashMap<ChunkKey,long[]>(16, 0.75f, true);
+        final LinkedHashMap<ChunkKey,long[]> protectedEntries = new LinkedHashMap<ChunkKey,long[]>(16, 0.75f, true);
+
+        long size;
+        long protectedSize;
+
+        Stripe(long maxSize) {
+            this.maxSize = maxSize;
+            maxProtectedSize = (maxSize * PROTECTED_PERCENT) / 100;
+        }
+
+        long[] get(ChunkKey key)
+        {
+            long[] words = protectedEntries.get(key);
+            if (words != null) {
+                return words;
+            }
+            words = probation.remove(key);
+            if (words != null) { // second access: promote
+                protectedEntries.put(key, words);
+                protectedSize += _sizeOf(words);
+                // and if protected is over its share, demote least recently used
+                Iterator<Map.Entry<ChunkKey,long[]>> it = protectedEntries.entrySet().iterator();
+                while (protectedSize > maxProtectedSize && protectedEntries.size() > 1) {
+                    Map.Entry<ChunkKey,long[]> lru = it.next();
+                    it.remove();
+                    protectedSize -= _sizeOf(lru.getValue());
+                    probation.put(lru.getKey(), lru.getValue());
+                }
+            }
+            return words;
+        }
+
+        /**
+         * @return Number of entries evicted
+         */
+        int put(ChunkKey key, long[] words)
+        {
+            probation.put(key, words);
+            size += _sizeOf(words);
+            int evicted = 0;
+            while (size > maxSize) {
+                LinkedHashMap<ChunkKey,long[]> segment = probation.isEmpty() ? protectedEntries : probation;
+                Iterator<Map.Entry<ChunkKey,long[]>> it = segment.entrySet().iterator();
+                Map.Entry<ChunkKey,long[]> lru = it.next();
+                it.remove();
+                long entrySize = _sizeOf(lru.getValue());
+                size -= entrySize;
+                if (segment == protectedEntries) {
+                    protectedSize -= entrySize;
+                }
+                ++evicted;
+            }
+            return evicted;
+        }
+
+        void removeBitmap(long bitmapId)
+        {
+            for (Iterator<Map.Entry<ChunkKey,long[]>> it = probation.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<ChunkKey,long[]> entry = it.next();
+                if (entry.getKey()._bitmapId == bitmapId) {
+                    it.remove();
+                    size -= _sizeOf(entry.getValue());
+                }
+            }
+            for (Iterator<Map.Entry<ChunkKey,long[]>> it = protectedEntries.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<ChunkKey,long[]> entry = it.next();
+                if (entry.getKey()._bitmapId == bitmapId) {
+                    it.remove();
+                    long entrySize = _sizeOf(entry.getValue());
+                    size -= entrySize;
+                    protectedSize -= entrySize;
+                }
+            }
+        }
+    }
+}
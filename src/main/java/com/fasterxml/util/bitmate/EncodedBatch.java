@@ -0,0 +1,158 @@
+package com.fasterxml.util.bitmate;
+
+import java.util.Arrays;
+
+/**
+ * Container for a batch of {@link EncodedBitmap}s (like columns of a wide table)
+ * stored in a single contiguous byte array, as produced by {@link BatchEncoder}.
+ * Serialized form (see {@link #toByteArray()}) consists of:
+ *<ol>
+ * <li>Marker byte ({@link #MARKER})</li>
+ * <li>Number of bitmaps, as 4-byte big-endian int</li>
+ * <li>Offset table: for each bitmap, offset of its serialized form, followed
+ *   by the end offset of the last one, all as 4-byte big-endian ints
+ *   relative to the start of the arena</li>
+ * <li>Arena: serialized forms of bitmaps (as with {@link EncodedBitmap#toByteArray()}),
+ *   back to back</li>
+ *</ol>
+ * so that it can be stored as is (like in a memory-mapped file), and each
+ * bitmap located with a single lookup.
+ *<p>
+ * Instances are immutable and may be shared between threads.
+ */
+public class EncodedBatch
+{
+    public final static byte MARKER = (byte) 0xB3;
+
+    /**
+     * Serialized form
+     */
+    protected final byte[] _data;
+
+    protected final int _count;
+
+    /**
+     * Offset of the arena within serialized form
+     */
+    protected final int _arenaStart;
+
+    protected EncodedBatch(byte[] data, int count)
+    {
+        _data = data;
+        _count = count;
+        _arenaStart = headerLength(count);
+    }
+
+    /**
+     * Factory method for accessing a batch from its serialized form
+     * (as produced by {@link #toByteArray()}); content is not copied.
+     */
+    public static EncodedBatch wrap(byte[] data)
+    {
+        if (data.length < 5 || data[0] != MARKER) {
+            throw new IllegalArgumentException("Invalid encoded batch: missing marker");
+        }
+        final int count = _readInt(data, 1);
+        if (count < 0 || (count + 1L) * 4L > data.length - 5) {
+            throw new IllegalArgumentException("Invalid encoded batch: bitmap count "+count
+                    +" too big for "+data.length+" bytes");
+        }
+        final EncodedBatch batch = new EncodedBatch(data, count);
+        int prev = 0;
+        for (int i = 0; i <= count; ++i) {
+            final int offset = batch._offset(i);
+            if (offset < prev || (i == 0 && offset != 0)) {
+                throw new IllegalArgumentException("Invalid encoded batch: offset #"+i+" ("+offset
+                        +") out of order");
+            }
+            prev = offset;
+        }
+        if (batch._arenaStart + prev != data.length) {
+            throw new IllegalArgumentException("Invalid encoded batch: arena ends at "
+                    +(batch._arenaStart + prev)+", content has "+data.length+" bytes");
+        }
+        return batch;
+    }
+
+    /**
+     * @return Length of header (marker, count and offset table) for given number of bitmaps
+     */
+    public static int headerLength(int count) {
+        return 5 + ((count + 1) << 2);
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API
+    /**********************************************************************
+     */
+
+    public int size() { return _count; }
+
+    /**
+     * @return Offset of serialized form of bitmap with given index, within
+     *    serialized form of the batch
+     */
+    public int getOffset(int index) {
+        return _arenaStart + _offset(_verifyIndex(index));
+    }
+
+    public int getEncodedLength(int index) {
+        _verifyIndex(index);
+        return _offset(index+1) - _offset(index);
+    }
+
+    /**
+     * @return Total length of serialized form of the batch
+     */
+    public int getTotalLength() { return _data.length; }
+
+    /**
+     * @return Bitmap with given index; content is copied
+     */
+    public EncodedBitmap get(int index)
+    {
+        final int start = getOffset(index);
+        return EncodedBitmap.wrap(Arrays.copyOfRange(_data, start, start + getEncodedLength(index)));
+    }
+
+    /**
+     * @return Serialized form of the batch; not copied, so caller must not modify it
+     */
+    public byte[] toByteArray() {
+        return _data;
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    private int _offset(int index) {
+        return _readInt(_data, 5 + (index << 2));
+    }
+
+    private int _verifyIndex(int index)
+    {
+        if (index < 0 || index >= _count) {
+            throw new IllegalArgumentException("Invalid bitmap index "+index+": batch has "
+                    +_count+" bitmaps");
+        }
+        return index;
+    }
+
+    static void _writeInt(int value, byte[] output, int ptr)
+    {
+        output[ptr++] = (byte) (value >> 24);
+        output[ptr++] = (byte) (value >> 16);
+        output[ptr++] = (byte) (value >> 8);
+        output[ptr] = (byte) value;
+    }
+
+    static int _readInt(byte[] input, int ptr)
+    {
+        return ((input[ptr] & 0xFF) << 24) | ((input[ptr+1] & 0xFF) << 16)
+                | ((input[ptr+2] & 0xFF) << 8) | (input[ptr+3] & 0xFF);
+    }
+}
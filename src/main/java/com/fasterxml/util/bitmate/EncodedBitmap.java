@@ -0,0 +1,1525 @@
+package com.fasterxml.util.bitmate;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Container for a complete bitmap, encoded as a sequence of chunks using one
+ * of {@link BitmapCodec}s. Serialized form consists of a fixed-size header,
+ * followed by summary entries for super-blocks of {@link #SUPER_BLOCK_CHUNKS}
+ * chunks, each followed by encoded chunks of the super-block that are neither
+ * all-zero nor all-one; chunks are self-contained so that any one of
+ * them may be decoded without decoding preceding ones.
+ *<p>
+ * Header layout:
+ *<ol>
+ * <li>Marker byte ({@link #HEADER_MARKER})</li>
+ * <li>Codec id ({@link BitmapCodec#id()}), with {@link #HEADER_LSB_FIRST} flag
+ *   added if raw content uses {@link BitOrder#LSB_FIRST} bit order</li>
+ * <li>Length of bitmap in bits, as 4-byte big-endian int</li>
+ *</ol>
+ * Summary entry layout:
+ *<ol>
+ * <li>Mask of chunks present (that is, encoded), first chunk as MSB</li>
+ * <li>Mask of chunks not present that are all-one (others being all-zero)</li>
+ * <li>If no chunks are present: repeat count (as variable-length int, 7 bits
+ *   per byte, least-significant first, MSB set for all but the last byte),
+ *   number of following super-blocks identical to this one</li>
+ *</ol>
+ * so that long spans of all-zero or all-one chunks only take a few bytes,
+ * and can be skipped without going through individual chunks.
+ *<p>
+ * For {@link BitmapCodec#BITRAT} chunks, encoded content is preceded by 3 byte
+ * frame header: top-level mask returned by {@link BitRatEncoder}, followed by
+ * 2-byte big-endian value with initial run bit as MSB and 13-bit length of
+ * encoded content.
+ * For BitRat codecs with larger chunks ({@link BitmapCodec#BITRAT_32K},
+ * {@link BitmapCodec#BITRAT_64K}) frame header consists of sub-chunk mask
+ * (1 or 2 bytes, big-endian), followed by 3-byte big-endian value with initial
+ * run bit as MSB and 23-bit length of encoded content.
+ * For {@link BitmapCodec#NIBBLER} chunks, header produced by {@link NibblerEncoder}
+ * is used as is (with {@link BitmapCodec#NIBBLER_64K}, one with wide lengths);
+ * and similarly for {@link BitmapCodec#GAP} chunks, header produced by {@link GapEncoder}.
+ * With {@link BitmapCodec#NIBBLER_INDEXED} and {@link BitmapCodec#NIBBLER_64K_INDEXED},
+ * encoded chunks are followed by skip tables (see {@link NibblerDecoder}).
+ * Since codec determines chunk geometry, codec id of the header is all that is
+ * needed to decode chunks.
+ *<p>
+ * Instances are immutable and may be shared between threads.
+ */
+public class EncodedBitmap
+{
+    public final static byte HEADER_MARKER = (byte) 0xB1;
+
+    public final static int HEADER_LENGTH = 6;
+
+    /**
+     * Flag added to codec id byte of header to indicate that raw content
+     * uses {@link BitOrder#LSB_FIRST}
+     */
+    public final static int HEADER_LSB_FIRST = 0x80;
+
+    protected final static int HEADER_CODEC_MASK = 0x7F;
+
+    protected final static int OFFSET_EMPTY = -1;
+
+    protected final static int OFFSET_FULL = -2;
+
+    /**
+     * Length of frame header for chunks encoded with {@link BitmapCodec#BITRAT}
+     */
+    public final static int BITRAT_FRAME_LENGTH = 3;
+
+    protected final static int BITRAT_PREV_BIT = 0x8000;
+
+    protected final static int BITRAT_LENGTH_MASK = 0x1FFF;
+
+    /**
+     * Mask for length of encoded content in frame header of BitRat codecs with
+     * sub-chunks
+     */
+    protected final static int BITRAT_LARGE_LENGTH_MASK = 0x7FFFFF;
+
+    /**
+     * Number of chunks covered by a single summary entry
+     */
+    public final static int SUPER_BLOCK_CHUNKS = 8;
+
+    /**
+     * Type of a chunk, as indicated by the summary
+     */
+    public enum ChunkType {
+        /**
+         * Chunk with all bits clear; not encoded
+         */
+        EMPTY,
+
+        /**
+         * Chunk with all bits set; not encoded
+         */
+        FULL,
+
+        /**
+         * Chunk with both set and clear bits (or possibly the last, partial,
+         * chunk), which is encoded
+         */
+        ENCODED;
+    }
+
+    protected final BitmapCodec _codec;
+
+    protected final BitOrder _bitOrder;
+
+    protected final int _bitLength;
+
+    /**
+     * Serialized form, including header
+     */
+    protected final byte[] _data;
+
+    /**
+     * Lazily constructed index of summary entries; volatile so that it is
+     * safely published to other threads (building it more than once is harmless).
+     */
+    protected volatile Summary _summary;
+
+    /**
+     * Listener to report decoded chunks to, if any; see {@link #withListener}
+     */
+    protected final CodecListener _listener;
+
+    protected EncodedBitmap(BitmapCodec codec, BitOrder order, int bitLength, byte[] data) {
+        this(codec, order, bitLength, data, null);
+    }
+
+    protected EncodedBitmap(BitmapCodec codec, BitOrder order, int bitLength, byte[] data,
+            CodecListener listener)
+    {
+        _codec = codec;
+        _bitOrder = order;
+        _bitLength = bitLength;
+        _data = data;
+        _listener = listener;
+    }
+
+    /**
+     * Factory method for constructing an instance from serialized form
+     * (as returned by {@link #toByteArray()}). Note that the array is NOT
+     * copied, so caller must not modify it afterwards.
+     */
+    public static EncodedBitmap wrap(byte[] data)
+    {
+        if (data.length < HEADER_LENGTH || data[0] != HEADER_MARKER) {
+            throw new IllegalArgumentException("Invalid encoded bitmap: missing header");
+        }
+        final int codecId = data[1] & HEADER_CODEC_MASK;
+        BitmapCodec codec = BitmapCodec.forId(codecId);
+        if (codec == null) {
+            throw new IllegalArgumentException("Invalid encoded bitmap: unknown codec id "+codecId);
+        }
+        BitOrder order = ((data[1] & HEADER_LSB_FIRST) == 0) ? BitOrder.MSB_FIRST : BitOrder.LSB_FIRST;
+        int bitLength = ((data[2] & 0xFF) << 24) | ((data[3] & 0xFF) << 16)
+                | ((data[4] & 0xFF) << 8) | (data[5] & 0xFF);
+        if (bitLength < 0) {
+            throw new IllegalArgumentException("Invalid encoded bitmap: negative bit length "+bitLength);
+        }
+        return new EncodedBitmap(codec, order, bitLength, data);
+    }
+
+    /**
+     * Convenience method for encoding given raw bitmap in one go.
+     */
+    public static EncodedBitmap encode(BitmapCodec codec, byte[] raw, int bitLength)
+    {
+        EncodedBitmapBuilder b = new EncodedBitmapBuilder(codec);
+        b.append(raw, 0, Math.min(raw.length, (bitLength + 7) >>> 3));
+        return b.build(bitLength);
+    }
+
+    /**
+     * Convenience method for encoding given raw bitmap, expressed as 64-bit
+     * words in specified bit order, in one go. For example, contents of
+     * {@link java.util.BitSet} may be encoded with
+     *<pre>
+     *  EncodedBitmap.encode(codec, bits.toLongArray(), bits.length(), BitOrder.LSB_FIRST);
+     *</pre>
+     * Words beyond given bit length are ignored; missing words are considered
+     * to be all zeroes.
+     */
+    public static EncodedBitmap encode(BitmapCodec codec, long[] words, int bitLength,
+            BitOrder order)
+    {
+        EncodedBitmapBuilder b = new EncodedBitmapBuilder(codec, order);
+        final int rawLength = getRawLength(bitLength);
+        final int fullWords = Math.min(words.length, rawLength >>> 3);
+        b.appendWords(words, 0, fullWords);
+        // last word may extend past the end, so need to append just the needed bytes
+        final int tail = rawLength - (fullWords << 3);
+        if (tail > 0 && fullWords < words.length) {
+            byte[] buf = new byte[8];
+            BitRatEncoder._writeWord(words[fullWords], (order == BitOrder.MSB_FIRST), buf, 0);
+            b.append(buf, 0, tail);
+        }
+        return b.build(bitLength);
+    }
+
+    /**
+     * Convenience method for encoding a bitmap given as sorted (strictly ascending)
+     * indexes of set bits, such as row ids, without constructing the raw bitmap.
+     * Bit order of {@link BitOrder#MSB_FIRST} is used.
+     */
+    public static EncodedBitmap encodeSorted(BitmapCodec codec, int[] ids, int count, int bitLength)
+    {
+        EncodedBitmapBuilder b = new EncodedBitmapBuilder(codec);
+        b.appendSortedIds(ids, 0, count);
+        return b.build(bitLength);
+    }
+
+    /**
+     * Convenience method for encoding given raw bitmap using all codecs,
+     * and returning the smallest result.
+     */
+    public static EncodedBitmap encodeSmallest(byte[] raw, int bitLength)
+    {
+        EncodedBitmap best = null;
+        for (BitmapCodec codec : BitmapCodec.values()) {
+            EncodedBitmap bm = encode(codec, raw, bitLength);
+            if (best == null || bm.getEncodedLength() < best.getEncodedLength()) {
+                best = bm;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Variant of {@link #encodeSmallest(byte[], int)} for raw bitmaps expressed
+     * as 64-bit words.
+     */
+    public static EncodedBitmap encodeSmallest(long[] words, int bitLength, BitOrder order)
+    {
+        EncodedBitmap best = null;
+        for (BitmapCodec codec : BitmapCodec.values()) {
+            EncodedBitmap bm = encode(codec, words, bitLength, order);
+            if (best == null || bm.getEncodedLength() < best.getEncodedLength()) {
+                best = bm;
+            }
+        }
+        return best;
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API, accessors
+    /**********************************************************************
+     */
+
+    public BitmapCodec getCodec() { return _codec; }
+
+    /**
+     * @return Bit order of the raw content: determines layout of
+     *   {@link #decode()} results
+     */
+    public BitOrder getBitOrder() { return _bitOrder; }
+
+    public int getBitLength() { return _bitLength; }
+
+    /**
+     * @return Length of the raw (decoded) bitmap in bytes
+     */
+    public int getRawLength() { return getRawLength(_bitLength); }
+
+    static int getRawLength(int bitLength) { return (int) ((bitLength + 7L) >>> 3); }
+
+    /**
+     * @return Length of the serialized form, including header
+     */
+    public int getEncodedLength() { return _data.length; }
+
+    public int getChunkCount() {
+        final int chunkSize = _codec.chunkSize();
+        return (getRawLength() + chunkSize - 1) / chunkSize;
+    }
+
+    /**
+     * @return Length of raw content of given chunk, in bytes: same as
+     *   {@link BitmapCodec#chunkSize()} for all but the last chunk
+     */
+    public int getChunkRawLength(int index) {
+        final int chunkSize = _codec.chunkSize();
+        return Math.min(chunkSize, getRawLength() - (index * chunkSize));
+    }
+
+    /**
+     * @return Length of content of given chunk as 64-bit words, including
+     *   possible partial last word
+     */
+    public int getChunkWordCount(int index) {
+        return (getChunkRawLength(index) + 7) >> 3;
+    }
+
+    public ChunkType getChunkType(int index) {
+        int offset = _chunkOffset(index);
+        if (offset >= 0) {
+            return ChunkType.ENCODED;
+        }
+        return (offset == OFFSET_FULL) ? ChunkType.FULL : ChunkType.EMPTY;
+    }
+
+    /**
+     * Method for finding the end of run of chunks of same type as given
+     * (non-encoded) chunk: for long spans of all-zero or all-one content this
+     * is found without going through individual chunks.
+     *
+     * @return Index of the first chunk after given one that is of different type
+     *   (or, for spans longer than one summary entry, possibly of the same type);
+     *   or <code>index+1</code> for encoded chunks
+     */
+    public int getRunEnd(int index)
+    {
+        final Summary s = _summary();
+        return s.runEnd(s.entryFor(index), index);
+    }
+
+    /**
+     * Method for accessing serialized form of this bitmap; returns a copy
+     * so caller is free to modify it.
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(_data, _data.length);
+    }
+
+    /**
+     * Method for accessing serialized form of this bitmap without copying it.
+     */
+    public InputStream asInputStream() {
+        return new ByteArrayInputStream(_data);
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API, decoding
+    /**********************************************************************
+     */
+
+    /**
+     * Method for decoding the full bitmap, using bit order of {@link #getBitOrder()}.
+     * Padding bits of the last byte (beyond {@link #getBitLength()}) are cleared.
+     *
+     * @return Decoded bitmap, with length of {@link #getRawLength()}
+     */
+    public byte[] decode()
+    {
+        final BitmapTracer tracer = BitmapTracer.get();
+        final Object span = (tracer == null) ? null : tracer.beginOperation();
+        final byte[] result = new byte[getRawLength()];
+        final int chunkSize = _codec.chunkSize();
+        final BitRatDecoder ratDec = _codec.isBitRat() ? new BitRatDecoder(_bitOrder) : null;
+        final NibblerDecoder nibblerDec = _codec.isNibbler()
+                ? new NibblerDecoder(_codec, _bitOrder) : null;
+        final GapDecoder gapDec = _codec.isGap() ? new GapDecoder(_bitOrder) : null;
+        final ChunkReporter reporter = _reporter();
+
+        for (ChunkCursor c = new ChunkCursor(); c.next(); ) {
+            final int i = c.index();
+            if (c.offset() == OFFSET_EMPTY) { // already zeroes
+                if (reporter != null) {
+                    reporter.chunkDecoded(i, OFFSET_EMPTY, 0L);
+                }
+                continue;
+            }
+            final long start = (reporter == null) ? 0L : System.nanoTime();
+            final int rawLength = getChunkRawLength(i);
+            if (c.offset() == OFFSET_FULL) {
+                Arrays.fill(result, i * chunkSize, i * chunkSize + rawLength, (byte) 0xFF);
+            } else if (ratDec != null) {
+                _decodeRatChunk(ratDec, c.offset(), rawLength, result, i * chunkSize);
+            } else if (gapDec != null) {
+                gapDec.decode(_data, c.offset(), result, i * chunkSize, rawLength);
+            } else {
+                nibblerDec.decode(_data, c.offset(), result, i * chunkSize, rawLength);
+            }
+            if (reporter != null) {
+                reporter.chunkDecoded(i, c.offset(), System.nanoTime() - start);
+            }
+        }
+        final int lastBits = _bitLength & 7;
+        if (lastBits != 0) {
+            int mask = (_bitOrder == BitOrder.MSB_FIRST) ? (0xFF00 >> lastBits) : ((1 << lastBits) - 1);
+            result[result.length-1] &= mask;
+        }
+        if (span != null) {
+            tracer.endOperation(span, "decode", _codec, System.identityHashCode(this),
+                    _data.length, result.length);
+        }
+        return result;
+    }
+
+    /**
+     * Method for decoding the full bitmap into 64-bit words, using specified bit order
+     * (which need not match {@link #getBitOrder()}). For {@link BitOrder#LSB_FIRST}
+     * result is suitable for {@link java.util.BitSet#valueOf(long[])}.
+     * Padding bits of the last word (beyond {@link #getBitLength()}) are cleared.
+     * Full chunks of BitRat codecs are decoded directly into words;
+     * others via a chunk-sized intermediate buffer.
+     */
+    public long[] decodeWords(BitOrder order)
+    {
+        final BitmapTracer tracer = BitmapTracer.get();
+        final Object span = (tracer == null) ? null : tracer.beginOperation();
+        final long[] result = new long[(int) ((_bitLength + 63L) >>> 6)];
+        final int chunkWords = _codec.chunkSize() >> 3;
+        final WordDecoder dec = new WordDecoder();
+
+        for (ChunkCursor c = new ChunkCursor(); c.next(); ) {
+            if (c.offset() != OFFSET_EMPTY) {
+                dec.decodeChunk(c.index(), c.offset(), result, c.index() * chunkWords);
+            } else {
+                dec.skipChunks(c.index(), c.index()+1, OFFSET_EMPTY);
+            }
+        }
+        if (order != _bitOrder) {
+            for (int i = 0; i < result.length; ++i) {
+                result[i] = Long.reverse(result[i]);
+            }
+        }
+        _clearPadding(result, result.length-1, order);
+        if (span != null) {
+            tracer.endOperation(span, "decodeWords", _codec, System.identityHashCode(this),
+                    _data.length, (long) result.length << 3);
+        }
+        return result;
+    }
+
+    /**
+     * Method for decoding all chunks of the bitmap, reporting statistics of each
+     * (including time taken to decode it) to given listener; useful for finding
+     * out why content encodes the way it does. Decoded content is discarded.
+     * To get statistics from actual decoding instead, see {@link #withListener}.
+     */
+    public void reportChunkStats(CodecListener listener)
+    {
+        final WordDecoder dec = new WordDecoder(listener);
+        final long[] words = new long[_codec.chunkSize() >> 3];
+
+        for (ChunkCursor c = new ChunkCursor(); c.next(); ) {
+            dec.decodeChunk(c.index(), c.offset(), words, 0);
+        }
+    }
+
+    /**
+     * Method for constructing a view of this bitmap (sharing encoded content)
+     * that reports statistics of chunks it decodes to given listener, as
+     * {@link CodecListener#chunkDecoded}; or, if listener is null, one that
+     * does not report. Chunks are reported by {@link #decode()},
+     * {@link #decodeWords}, {@link #decodeChunk}, {@link #decodeChunkWords},
+     * {@link #decodeRange}, {@link #get} and {@link #combineInto} (except for
+     * chunks found in cache), including uniform chunks; and by {@link #rank}
+     * for chunks it decodes fully; as well as by other operations that decode
+     * chunks using these methods (like {@link PipelinedScanner} scans). Bitmaps
+     * produced by transformations (like {@link #slice}) do not report.
+     * Time reported for partially decoded chunks ({@link #decodeRange},
+     * {@link #get}) is that of the partial decode.
+     */
+    public EncodedBitmap withListener(CodecListener listener)
+    {
+        if (listener == _listener) {
+            return this;
+        }
+        final EncodedBitmap bm = new EncodedBitmap(_codec, _bitOrder, _bitLength, _data, listener);
+        bm._summary = _summary;
+        return bm;
+    }
+
+    public CodecListener getListener() { return _listener; }
+
+    /**
+     * Method for decoding a single chunk of the bitmap into 64-bit words, in
+     * bit order of {@link #getBitOrder()}. Padding bits of the last chunk are cleared.
+     *
+     * @return Number of words decoded; see {@link #getChunkWordCount(int)}
+     */
+    public int decodeChunkWords(int index, long[] output, int outputPtr)
+    {
+        final BitmapTracer tracer = BitmapTracer.get();
+        final Object span = (tracer == null) ? null : tracer.beginChunkDecode();
+        new WordDecoder().decodeChunk(index, _chunkOffset(index), output, outputPtr);
+        final int count = getChunkWordCount(index);
+        if (index == getChunkCount()-1) {
+            _clearPadding(output, outputPtr + count - 1, _bitOrder);
+        }
+        if (span != null) {
+            tracer.endChunkDecode(span, _codec, System.identityHashCode(this), index, count << 3);
+        }
+        return count;
+    }
+
+    /**
+     * Method for decoding a single chunk of the bitmap. Note that unlike with
+     * {@link #decode()}, padding bits of the last chunk are not cleared.
+     *
+     * @return Number of bytes decoded
+     */
+    public int decodeChunk(int index, byte[] output, int outputPtr)
+    {
+        final BitmapTracer tracer = BitmapTracer.get();
+        final Object span = (tracer == null) ? null : tracer.beginChunkDecode();
+        final long start = (_listener == null) ? 0L : System.nanoTime();
+        final int rawLength = getChunkRawLength(index);
+        final int inputPtr = _chunkOffset(index);
+        if (inputPtr < 0) {
+            Arrays.fill(output, outputPtr, outputPtr + rawLength,
+                    (inputPtr == OFFSET_FULL) ? (byte) 0xFF : 0);
+        } else if (_codec.isBitRat()) {
+            _decodeRatChunk(new BitRatDecoder(_bitOrder), inputPtr, rawLength, output, outputPtr);
+        } else if (_codec.isGap()) {
+            new GapDecoder(_bitOrder).decode(_data, inputPtr, output, outputPtr, rawLength);
+        } else {
+            new NibblerDecoder(_codec, _bitOrder)
+                .decode(_data, inputPtr, output, outputPtr, rawLength);
+        }
+        if (_listener != null) {
+            _reporter().chunkDecoded(index, inputPtr, System.nanoTime() - start);
+        }
+        if (span != null) {
+            tracer.endChunkDecode(span, _codec, System.identityHashCode(this), index, rawLength);
+        }
+        return rawLength;
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API, random access
+    /**********************************************************************
+     */
+
+    /**
+     * @return Whether bit at given index is set. Only the chunk containing
+     *   the bit is decoded; and for codecs with skip tables (see
+     *   {@link BitmapCodec#hasSkipTables()}), only part of it. For gap-coded
+     *   chunks only runs are checked, without decoding.
+     */
+    public boolean get(int bitIndex)
+    {
+        if (bitIndex < 0 || bitIndex >= _bitLength) {
+            throw new IllegalArgumentException("Invalid bit index "+bitIndex+": bitmap has "
+                    +_bitLength+" bits");
+        }
+        if (_codec.isGap()) {
+            final int chunkBits = _codec.chunkSize() << 3;
+            final int index = bitIndex / chunkBits;
+            final int offset = _chunkOffset(index);
+            if (offset < 0) {
+                if (_listener != null) {
+                    _reporter().chunkDecoded(index, offset, 0L);
+                }
+                return (offset == OFFSET_FULL);
+            }
+            final long start = (_listener == null) ? 0L : System.nanoTime();
+            final boolean set = new GapDecoder(_bitOrder).get(_data, offset,
+                    getChunkRawLength(index), bitIndex - index * chunkBits);
+            if (_listener != null) {
+                _reporter().chunkDecoded(index, offset, System.nanoTime() - start);
+            }
+            return set;
+        }
+        final byte[] b = new byte[1];
+        decodeRange(bitIndex >>> 3, (bitIndex >>> 3) + 1, b, 0);
+        return (b[0] & _bitOrder.bitMask(bitIndex & 7)) != 0;
+    }
+
+    /**
+     * @return Number of set bits before given bit index (that is, within
+     *   <code>[0, bitIndex)</code>). Chunks before the one containing the
+     *   index are decoded fully (except for uniform ones); for codecs with
+     *   skip tables, counting within the last chunk starts from the closest
+     *   skip table entry. Gap-coded chunks are not decoded, only their runs counted.
+     */
+    public int rank(int bitIndex)
+    {
+        if (bitIndex < 0 || bitIndex > _bitLength) {
+            throw new IllegalArgumentException("Invalid bit index "+bitIndex+": bitmap has "
+                    +_bitLength+" bits");
+        }
+        final int chunkBits = _codec.chunkSize() << 3;
+        final int lastChunk = bitIndex / chunkBits;
+        final WordDecoder dec = new WordDecoder();
+        final GapDecoder gapDec = _codec.isGap() ? new GapDecoder(_bitOrder) : null;
+        long[] words = null;
+        int count = 0;
+        for (ChunkCursor c = new ChunkCursor(); c.next() && c.index() < lastChunk; ) {
+            if (c.offset() == OFFSET_FULL) {
+                count += chunkBits;
+            } else if (gapDec != null) {
+                if (c.offset() != OFFSET_EMPTY) {
+                    count += gapDec.rank(_data, c.offset(), _codec.chunkSize(), chunkBits);
+                }
+            } else if (c.offset() != OFFSET_EMPTY) {
+                if (words == null) {
+                    words = new long[_codec.chunkSize() >> 3];
+                }
+                dec.decodeChunk(c.index(), c.offset(), words, 0);
+                for (long w : words) {
+                    count += Long.bitCount(w);
+                }
+            }
+        }
+        final int bitOffset = bitIndex - lastChunk * chunkBits;
+        if (bitOffset > 0) {
+            final int offset = _chunkOffset(lastChunk);
+            if (offset == OFFSET_FULL) {
+                count += bitOffset;
+            } else if (offset != OFFSET_EMPTY) {
+                final int rawLength = getChunkRawLength(lastChunk);
+                if (_codec.isNibbler()) {
+                    count += new NibblerDecoder(_codec, _bitOrder).rank(_data, offset,
+                            rawLength, bitOffset);
+                } else if (gapDec != null) {
+                    count += gapDec.rank(_data, offset, rawLength, bitOffset);
+                } else {
+                    final byte[] raw = new byte[rawLength];
+                    decodeChunk(lastChunk, raw, 0);
+                    final int fullBytes = bitOffset >> 3;
+                    for (int i = 0; i < fullBytes; ++i) {
+                        count += Integer.bitCount(raw[i] & 0xFF);
+                    }
+                    for (int bit = fullBytes << 3; bit < bitOffset; ++bit) {
+                        if ((raw[fullBytes] & _bitOrder.bitMask(bit & 7)) != 0) {
+                            ++count;
+                        }
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Method for decoding given range of bytes of raw content, from
+     * <code>fromByte</code> (inclusive) to <code>toByte</code> (exclusive).
+     * Only chunks that overlap the range are decoded; and for codecs with
+     * skip tables (see {@link BitmapCodec#hasSkipTables()}), only parts
+     * of them starting from the closest skip table entry. For BitRat codecs
+     * with large chunks, 4k sub-chunks after the range are not decoded.
+     * As with {@link #decodeChunk}, padding bits of the last byte are not cleared.
+     */
+    public void decodeRange(int fromByte, int toByte, byte[] output, int outputPtr)
+    {
+        if (fromByte < 0 || fromByte > toByte || toByte > getRawLength()) {
+            throw new IllegalArgumentException("Invalid byte range ["+fromByte+", "+toByte
+                    +"): bitmap has "+getRawLength()+" bytes");
+        }
+        final int chunkSize = _codec.chunkSize();
+        final ChunkReporter reporter = _reporter();
+        NibblerDecoder nibblerDec = null;
+        byte[] buffer = null;
+        for (int i = fromByte / chunkSize; (i * chunkSize) < toByte; ++i) {
+            final int chunkStart = i * chunkSize;
+            final int rawLength = getChunkRawLength(i);
+            final int from = Math.max(fromByte, chunkStart) - chunkStart;
+            final int to = Math.min(toByte, chunkStart + rawLength) - chunkStart;
+            final int outPtr = outputPtr + (chunkStart + from - fromByte);
+            final int offset = _chunkOffset(i);
+            final long start = (reporter == null) ? 0L : System.nanoTime();
+            if (offset < 0) {
+                Arrays.fill(output, outPtr, outPtr + (to - from),
+                        (offset == OFFSET_FULL) ? (byte) 0xFF : 0);
+            } else if (_codec.isNibbler()) {
+                if (nibblerDec == null) {
+                    nibblerDec = new NibblerDecoder(_codec, _bitOrder);
+                }
+                nibblerDec.decodeRange(_data, offset, rawLength, from, to, output, outPtr);
+            } else if (_codec.isBitRat() && _codec.subChunks() > 1) {
+                // sub-chunks only depend on preceding ones: no need to decode ones after range
+                if (buffer == null) {
+                    buffer = new byte[chunkSize];
+                }
+                final int subChunk = BitRatEncoder.FULL_CHUNK_SIZE;
+                final int needed = Math.min(rawLength, (to + subChunk - 1) / subChunk * subChunk);
+                _decodeRatChunk(new BitRatDecoder(_bitOrder), offset, needed, buffer, 0);
+                System.arraycopy(buffer, from, output, outPtr, to - from);
+            } else {
+                if (buffer == null) {
+                    buffer = new byte[chunkSize];
+                }
+                decodeChunk(i, buffer, 0); // (reports chunk itself)
+                System.arraycopy(buffer, from, output, outPtr, to - from);
+                continue;
+            }
+            if (reporter != null) {
+                reporter.chunkDecoded(i, offset, System.nanoTime() - start);
+            }
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API, combining into raw bitmaps
+    /**********************************************************************
+     */
+
+    /**
+     * Method for clearing bits of given raw bitmap that are not set in this bitmap:
+     * same as {@link #combineInto(BitOp, long[], long)} with {@link BitOp#AND}.
+     */
+    public void andInto(long[] target, long bitOffset) {
+        combineInto(BitOp.AND, target, bitOffset, null, 0L);
+    }
+
+    public void orInto(long[] target, long bitOffset) {
+        combineInto(BitOp.OR, target, bitOffset, null, 0L);
+    }
+
+    public void andNotInto(long[] target, long bitOffset) {
+        combineInto(BitOp.AND_NOT, target, bitOffset, null, 0L);
+    }
+
+    public void xorInto(long[] target, long bitOffset) {
+        combineInto(BitOp.XOR, target, bitOffset, null, 0L);
+    }
+
+    /**
+     * Method for combining this bitmap into given raw bitmap (as 64-bit words,
+     * in bit order of {@link #getBitOrder()}), starting at given bit offset
+     * (which need not be word-aligned): only bits from
+     * <code>bitOffset</code> to <code>bitOffset + getBitLength()</code> of target
+     * are modified. Encoded content is combined as it is decoded, without
+     * decoding into an intermediate buffer; runs (including uniform chunks)
+     * are applied as bulk operations, and skipped if they can not change
+     * target (like runs of ones for {@link BitOp#AND}).
+     */
+    public void combineInto(BitOp op, long[] target, long bitOffset) {
+        combineInto(op, target, bitOffset, null, 0L);
+    }
+
+    /**
+     * Alternative to {@link #combineInto(BitOp, long[], long)} that uses given
+     * cache for encoded chunks (if cache is not null).
+     *
+     * @param bitmapId Id of this bitmap for the cache; see {@link DecodedChunkCache#getChunk}
+     */
+    public void combineInto(BitOp op, long[] target, long bitOffset,
+            DecodedChunkCache cache, long bitmapId)
+    {
+        if (bitOffset < 0L || (bitOffset + _bitLength) > ((long) target.length << 6)) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid bit offset %d for bitmap of %d bits: target only has %d bits",
+                    bitOffset, _bitLength, (long) target.length << 6));
+        }
+        final BitmapTracer tracer = BitmapTracer.get();
+        final Object span = (tracer == null) ? null : tracer.beginOperation();
+        final long chunkBits = (long) _codec.chunkSize() << 3;
+        final WordCombiner comb = new WordCombiner(op, target, bitOffset, bitOffset + _bitLength,
+                _bitOrder);
+        final WordDecoder dec = (cache == null) ? new WordDecoder() : null;
+
+        for (ChunkCursor c = new ChunkCursor(); c.next(); ) {
+            final int i = c.index();
+            if (c.offset() < 0) {
+                final int end = c.runEnd();
+                comb.addRunBits(c.offset() == OFFSET_FULL, (end - i) * chunkBits);
+                if (dec != null) {
+                    dec.skipChunks(i, end, c.offset());
+                }
+                c.skipTo(end);
+            } else if (dec != null) {
+                dec.combineChunk(i, c.offset(), comb);
+            } else {
+                for (long w : cache.getChunk(bitmapId, this, i)) {
+                    comb.addWord(w);
+                }
+            }
+        }
+        comb.finish();
+        if (span != null) {
+            tracer.endOperation(span, op.name(), _codec,
+                    (cache == null) ? System.identityHashCode(this) : bitmapId,
+                    _data.length, (_bitLength + 7L) >>> 3);
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API, transformations
+    /**********************************************************************
+     */
+
+    /**
+     * Method for constructing a bitmap that contains given range of bits of this
+     * bitmap. If <code>fromBit</code> is at chunk boundary, encoded chunks fully
+     * within range are copied as is, and only the last chunk is re-encoded;
+     * otherwise content needs to be shifted and all of it is re-encoded.
+     *
+     * @param fromBit First bit to include
+     * @param toBit Bit after the last bit to include
+     */
+    public EncodedBitmap slice(int fromBit, int toBit)
+    {
+        if (fromBit < 0 || fromBit > toBit || toBit > _bitLength) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid range [%d, %d) for bitmap of %d bits", fromBit, toBit, _bitLength));
+        }
+        final BitmapTracer tracer = BitmapTracer.get();
+        final Object span = (tracer == null) ? null : tracer.beginOperation();
+        BitmapAppender appender = new BitmapAppender(_codec, _bitOrder);
+        appender.append(this, fromBit, toBit);
+        EncodedBitmap result = appender.build();
+        if (span != null) {
+            tracer.endOperation(span, "slice", _codec, System.identityHashCode(this),
+                    _data.length, result._data.length);
+        }
+        return result;
+    }
+
+    /**
+     * Method for constructing a bitmap that contains content of given bitmaps,
+     * one after another. All bitmaps must use the same codec and bit order.
+     * Encoded chunks of a bitmap are copied as is, as long as bit length of
+     * preceding bitmaps is a multiple of chunk size (in bits); otherwise
+     * content is shifted and re-encoded. Partial last chunks of all but the
+     * last bitmap are always re-encoded.
+     */
+    public static EncodedBitmap concat(EncodedBitmap... bitmaps)
+    {
+        if (bitmaps.length == 0) {
+            throw new IllegalArgumentException("Need at least one bitmap to concatenate");
+        }
+        final BitmapTracer tracer = BitmapTracer.get();
+        final Object span = (tracer == null) ? null : tracer.beginOperation();
+        BitmapAppender appender = new BitmapAppender(bitmaps[0].getCodec(), bitmaps[0].getBitOrder());
+        long inputBytes = 0L;
+        for (EncodedBitmap bm : bitmaps) {
+            appender.append(bm, 0, bm.getBitLength());
+            inputBytes += bm._data.length;
+        }
+        EncodedBitmap result = appender.build();
+        if (span != null) {
+            tracer.endOperation(span, "concat", result._codec, System.identityHashCode(result),
+                    inputBytes, result._data.length);
+        }
+        return result;
+    }
+
+    /**
+     * Method for constructing complement of this bitmap. Encoded content is
+     * transformed directly, without decoding: uniform chunks are swapped in
+     * the summary, and literal bytes of encoded chunks inverted, with the
+     * structure (and length) of encoded content unchanged.
+     */
+    public EncodedBitmap not()
+    {
+        final BitmapTracer tracer = BitmapTracer.get();
+        final Object span = (tracer == null) ? null : tracer.beginOperation();
+        final byte[] data = Arrays.copyOf(_data, _data.length);
+        final FrameInverter inverter = new FrameInverter();
+        final int chunkCount = getChunkCount();
+        int ptr = HEADER_LENGTH;
+        int chunk = 0;
+
+        while (chunk < chunkCount) {
+            final int present = data[ptr] & 0xFF;
+            final int onesPtr = ptr + 1;
+            ptr += 2;
+            int chunks = Math.min(SUPER_BLOCK_CHUNKS, chunkCount - chunk);
+            if (present == 0) {
+                long repeat = 0L;
+                for (int shift = 0; ; shift += 7) {
+                    int b = data[ptr++];
+                    repeat |= (long) (b & 0x7F) << shift;
+                    if (b >= 0) {
+                        break;
+                    }
+                }
+                if (repeat > 0L) {
+                    chunks = SUPER_BLOCK_CHUNKS;
+                }
+                chunk = (int) Math.min(chunkCount, chunk + (repeat + 1L) * SUPER_BLOCK_CHUNKS);
+            } else {
+                for (int bit = 0x80, end = chunk + chunks; chunk < end; bit >>= 1, ++chunk) {
+                    if ((present & bit) != 0) {
+                        ptr = inverter.invert(data, ptr, getChunkRawLength(chunk));
+                    }
+                }
+            }
+            // ones only indicated for non-encoded chunks that exist
+            data[onesPtr] = (byte) (~data[onesPtr] & ~present & (0xFF00 >> chunks));
+        }
+        if (span != null) {
+            tracer.endOperation(span, "not", _codec, System.identityHashCode(this),
+                    _data.length, data.length);
+        }
+        return new EncodedBitmap(_codec, _bitOrder, _bitLength, data);
+    }
+
+    /**
+     * Method for constructing a copy of this bitmap with bits from
+     * <code>fromBit</code> (inclusive) to <code>toBit</code> (exclusive) flipped.
+     * Chunks completely within (or outside of) the range are copied without
+     * decoding, as with {@link #not()}; only (at most two) chunks that cross range
+     * boundaries, and the partial last chunk, are decoded and re-encoded.
+     */
+    public EncodedBitmap flip(int fromBit, int toBit)
+    {
+        if (fromBit < 0 || fromBit > toBit || toBit > _bitLength) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid range [%d, %d) for bitmap of %d bits", fromBit, toBit, _bitLength));
+        }
+        if (fromBit == 0 && toBit == _bitLength) {
+            return not();
+        }
+        final BitmapTracer tracer = BitmapTracer.get();
+        final Object span = (tracer == null) ? null : tracer.beginOperation();
+        final EncodedBitmapBuilder builder = new EncodedBitmapBuilder(_codec, _bitOrder);
+        final int chunkSize = _codec.chunkSize();
+        final long chunkBits = (long) chunkSize << 3;
+        final FrameInverter inverter = new FrameInverter();
+        byte[] buffer = null;
+
+        for (ChunkCursor c = new ChunkCursor(); c.next(); ) {
+            final int i = c.index();
+            final int rawLength = getChunkRawLength(i);
+            final long start = i * chunkBits;
+            final long end = start + chunkBits;
+            final boolean inside = (start >= fromBit) && (end <= toBit);
+            final boolean outside = (end <= fromBit) || (start >= toBit);
+
+            if (rawLength == chunkSize && (inside || outside)) {
+                if (c.offset() < 0) {
+                    int runEnd = c.runEnd();
+                    // but only as far as all chunks are on the same side of a boundary
+                    if (inside) {
+                        runEnd = (int) Math.min(runEnd, toBit / chunkBits);
+                    } else if (end <= fromBit) {
+                        runEnd = (int) Math.min(runEnd, fromBit / chunkBits);
+                    }
+                    builder.appendUniformChunks((c.offset() == OFFSET_FULL) != inside, runEnd - i);
+                    c.skipTo(runEnd);
+                } else {
+                    final int len = _chunkLength(c.offset());
+                    if (inside) {
+                        if (buffer == null || buffer.length < len) {
+                            buffer = new byte[Math.max(len, chunkSize)];
+                        }
+                        System.arraycopy(_data, c.offset(), buffer, 0, len);
+                        inverter.invert(buffer, 0, rawLength);
+                        builder.appendEncodedChunk(buffer, 0, len);
+                    } else {
+                        builder.appendEncodedChunk(_data, c.offset(), len);
+                    }
+                }
+                continue;
+            }
+            // otherwise need to decode, flip, re-encode
+            if (buffer == null || buffer.length < chunkSize) {
+                buffer = new byte[chunkSize];
+            }
+            decodeChunk(i, buffer, 0);
+            _flipBits(buffer, Math.max(0L, fromBit - start), Math.min(rawLength << 3, toBit - start));
+            builder.append(buffer, 0, rawLength);
+        }
+        EncodedBitmap result = builder.build(_bitLength);
+        if (span != null) {
+            tracer.endOperation(span, "flip", _codec, System.identityHashCode(this),
+                    _data.length, result._data.length);
+        }
+        return result;
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    protected void _clearPadding(long[] words, int lastIndex, BitOrder order)
+    {
+        final int lastBits = _bitLength & 63;
+        if (lastBits != 0) {
+            words[lastIndex] &= (order == BitOrder.LSB_FIRST)
+                    ? ((1L << lastBits) - 1) : ~(-1L >>> lastBits);
+        }
+    }
+
+    /**
+     * Helper method for flipping given range of bits (relative to the start of
+     * buffer), if range is not empty.
+     */
+    protected void _flipBits(byte[] buffer, long from, long to)
+    {
+        for (long bit = from; bit < to; ) {
+            final int ix = (int) (bit >>> 3);
+            if ((bit & 7) == 0 && (to - bit) >= 8) {
+                buffer[ix] = (byte) ~buffer[ix];
+                bit += 8;
+            } else {
+                buffer[ix] ^= _bitOrder.bitMask((int) (bit & 7));
+                ++bit;
+            }
+        }
+    }
+
+    protected int _decodeRatChunk(BitRatDecoder dec, int inputPtr, int rawLength,
+            byte[] output, int outputPtr)
+    {
+        final int mask = _ratMask(_codec, _data, inputPtr);
+        final boolean prevBit = _ratPrevBit(_codec, _data, inputPtr);
+        final int length = _ratContentLength(_codec, _data, inputPtr);
+        inputPtr += ratFrameLength(_codec);
+        if (_codec.subChunks() == 1) {
+            dec.decodePartialChunk(prevBit, mask, _data, inputPtr, rawLength, output, outputPtr);
+        } else {
+            dec.decodeLargeChunk(prevBit, mask, _codec.subChunks(), _data, inputPtr, rawLength,
+                    output, outputPtr);
+        }
+        return inputPtr + length;
+    }
+
+    /**
+     * @return Total length of encoded chunk (including frame header) that
+     *    starts at given offset
+     */
+    protected int _chunkLength(int offset)
+    {
+        if (_codec.isBitRat()) {
+            return ratFrameLength(_codec) + _ratContentLength(_codec, _data, offset);
+        }
+        if (_codec.isGap()) {
+            return GapDecoder.encodedChunkLength(_data, offset);
+        }
+        final boolean wide = _codec.hasWideLengths();
+        final int length = NibblerDecoder.encodedChunkLength(_data, offset, wide);
+        if (_codec.hasSkipTables()) {
+            return length + NibblerDecoder.skipTableLength(_data, offset + length, wide);
+        }
+        return length;
+    }
+
+    /**
+     * @return Offset of the encoded chunk with given index; or, if chunk is
+     *   not encoded, either {@link #OFFSET_EMPTY} or {@link #OFFSET_FULL}
+     */
+    protected int _chunkOffset(int index)
+    {
+        if (index < 0 || index >= getChunkCount()) {
+            throw new IllegalArgumentException("Invalid chunk index "+index
+                    +": bitmap has "+getChunkCount()+" chunks");
+        }
+        final Summary s = _summary();
+        final int e = s.entryFor(index);
+        final int rel = (index - s.firstChunk[e]) & 7;
+        final int bit = 0x80 >> rel;
+        final int present = s.present[e];
+        if ((present & bit) == 0) {
+            return ((s.ones[e] & bit) == 0) ? OFFSET_EMPTY : OFFSET_FULL;
+        }
+        int ptr = s.frameOffset[e];
+        for (int b = 0x80; b != bit; b >>= 1) {
+            if ((present & b) != 0) {
+                ptr += _chunkLength(ptr);
+            }
+        }
+        return ptr;
+    }
+
+    /**
+     * @return Reporter for decoded chunks, if there is a listener; null otherwise
+     */
+    protected ChunkReporter _reporter() {
+        return (_listener == null) ? null : new ChunkReporter(_listener);
+    }
+
+    protected Summary _summary()
+    {
+        Summary s = _summary;
+        if (s == null) {
+            s = new Summary(this);
+            _summary = s;
+        }
+        return s;
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods, BitRat frames
+    /**********************************************************************
+     */
+
+    /**
+     * @return Length of frame header of chunks encoded with given BitRat codec
+     */
+    static int ratFrameLength(BitmapCodec codec) {
+        return _ratMaskLength(codec) + ((codec.subChunks() == 1) ? 2 : 3);
+    }
+
+    private static int _ratMaskLength(BitmapCodec codec) {
+        return (codec.subChunks() > 8) ? 2 : 1;
+    }
+
+    /**
+     * @return Top-level (or, for codecs with sub-chunks, sub-chunk) mask
+     *    of the frame at given offset
+     */
+    static int _ratMask(BitmapCodec codec, byte[] data, int ptr)
+    {
+        if (codec.subChunks() > 8) {
+            return ((data[ptr] & 0xFF) << 8) | (data[ptr+1] & 0xFF);
+        }
+        return data[ptr] & 0xFF;
+    }
+
+    /**
+     * @return Offset of the byte that has initial run bit as its MSB
+     */
+    static int _ratPrevBitOffset(BitmapCodec codec, int ptr) {
+        return ptr + _ratMaskLength(codec);
+    }
+
+    static boolean _ratPrevBit(BitmapCodec codec, byte[] data, int ptr) {
+        return data[_ratPrevBitOffset(codec, ptr)] < 0;
+    }
+
+    /**
+     * @return Length of encoded content (excluding frame header) of the frame
+     *    at given offset
+     */
+    static int _ratContentLength(BitmapCodec codec, byte[] data, int ptr)
+    {
+        ptr += _ratMaskLength(codec);
+        if (codec.subChunks() == 1) {
+            return (((data[ptr] & 0xFF) << 8) | (data[ptr+1] & 0xFF)) & BITRAT_LENGTH_MASK;
+        }
+        return (((data[ptr] & 0xFF) << 16) | ((data[ptr+1] & 0xFF) << 8) | (data[ptr+2] & 0xFF))
+                & BITRAT_LARGE_LENGTH_MASK;
+    }
+
+    /**
+     * Method for writing frame header of a chunk encoded with given BitRat codec
+     *
+     * @return Offset right after the frame header
+     */
+    static int _writeRatFrame(BitmapCodec codec, byte[] output, int ptr,
+            int mask, boolean prevBit, int length)
+    {
+        if (codec.subChunks() > 8) {
+            output[ptr++] = (byte) (mask >> 8);
+        }
+        output[ptr++] = (byte) mask;
+        if (codec.subChunks() == 1) {
+            output[ptr++] = (byte) ((length >> 8) | (prevBit ? (BITRAT_PREV_BIT >> 8) : 0));
+        } else {
+            output[ptr++] = (byte) ((length >> 16) | (prevBit ? 0x80 : 0));
+            output[ptr++] = (byte) (length >> 8);
+        }
+        output[ptr++] = (byte) length;
+        return ptr;
+    }
+
+    /**
+     * Index of summary entries, parsed from the serialized form; immutable
+     * once constructed.
+     */
+    protected final static class Summary
+    {
+        final int chunkCount;
+        final int count;
+        final int[] firstChunk;
+        final int[] frameOffset;
+        final byte[] present;
+        final byte[] ones;
+
+        Summary(EncodedBitmap bm)
+        {
+            final byte[] data = bm._data;
+            final int chunkCount = bm.getChunkCount();
+            int count = 0;
+            int[] firstChunk = new int[8];
+            int[] frameOffset = new int[8];
+            byte[] present = new byte[8];
+            byte[] ones = new byte[8];
+            int ptr = HEADER_LENGTH;
+            int chunk = 0;
+            while (chunk < chunkCount) {
+                if (count == firstChunk.length) {
+                    int newSize = count + (count >> 1);
+                    firstChunk = Arrays.copyOf(firstChunk, newSize);
+                    frameOffset = Arrays.copyOf(frameOffset, newSize);
+                    present = Arrays.copyOf(present, newSize);
+                    ones = Arrays.copyOf(ones, newSize);
+                }
+                final int p = data[ptr++];
+                firstChunk[count] = chunk;
+                present[count] = (byte) p;
+                ones[count] = data[ptr++];
+                if (p == 0) {
+                    long repeat = 0L;
+                    for (int shift = 0; ; shift += 7) {
+                        int b = data[ptr++];
+                        repeat |= (long) (b & 0x7F) << shift;
+                        if (b >= 0) {
+                            break;
+                        }
+                    }
+                    frameOffset[count] = -1;
+                    chunk = (int) Math.min(chunkCount, chunk + (repeat + 1L) * SUPER_BLOCK_CHUNKS);
+                } else {
+                    frameOffset[count] = ptr;
+                    final int end = Math.min(chunkCount, chunk + SUPER_BLOCK_CHUNKS);
+                    for (int bit = 0x80; chunk < end; bit >>= 1, ++chunk) {
+                        if ((p & bit) != 0) {
+                            ptr += bm._chunkLength(ptr);
+                        }
+                    }
+                }
+                ++count;
+            }
+            this.chunkCount = chunkCount;
+            this.count = count;
+            this.firstChunk = firstChunk;
+            this.frameOffset = frameOffset;
+            this.present = present;
+            this.ones = ones;
+        }
+
+        int entryEnd(int entry) {
+            return (entry+1 < count) ? firstChunk[entry+1] : chunkCount;
+        }
+
+        /**
+         * @see EncodedBitmap#getRunEnd
+         */
+        int runEnd(int entry, int index)
+        {
+            final int p = present[entry] & 0xFF;
+            final int o = ones[entry] & 0xFF;
+            final int end = entryEnd(entry);
+            int bit = 0x80 >> ((index - firstChunk[entry]) & 7);
+            if ((p & bit) != 0) {
+                return index+1;
+            }
+            if (p == 0 && (o == 0 || o == 0xFF)) {
+                return end;
+            }
+            final boolean full = (o & bit) != 0;
+            while (++index < end) {
+                bit = 0x80 >> ((index - firstChunk[entry]) & 7);
+                if ((p & bit) != 0 || ((o & bit) != 0) != full) {
+                    break;
+                }
+            }
+            return index;
+        }
+
+        /**
+         * @return Index of entry that contains given chunk
+         */
+        int entryFor(int chunk)
+        {
+            int ix = Arrays.binarySearch(firstChunk, 0, count, chunk);
+            return (ix >= 0) ? ix : (-ix - 2);
+        }
+    }
+
+    /**
+     * Helper class for going through chunks in order, without lookups
+     */
+    protected class ChunkCursor
+    {
+        private final Summary _entries = _summary();
+        private int _entry = -1;
+        private int _entryEnd = 0;
+        private int _index = -1;
+        private int _framePtr;
+        private int _offset;
+
+        public ChunkCursor() { }
+
+        /**
+         * Constructor for cursor that starts from given chunk: first call to
+         * {@link #next} moves to it.
+         */
+        public ChunkCursor(int start)
+        {
+            if (start > 0 && start < _entries.chunkCount) {
+                _entry = _entries.entryFor(start);
+                _entryEnd = _entries.entryEnd(_entry);
+                int ptr = _entries.frameOffset[_entry];
+                final int present = _entries.present[_entry];
+                for (int i = _entries.firstChunk[_entry]; i < start; ++i) {
+                    if ((present & (0x80 >> ((i - _entries.firstChunk[_entry]) & 7))) != 0) {
+                        ptr += _chunkLength(ptr);
+                    }
+                }
+                _framePtr = ptr;
+                _index = start-1;
+            } else if (start > 0) {
+                _index = _entries.chunkCount;
+            }
+        }
+
+        public boolean next()
+        {
+            if (++_index >= _entries.chunkCount) {
+                return false;
+            }
+            if (_index >= _entryEnd) {
+                ++_entry;
+                _entryEnd = _entries.entryEnd(_entry);
+                _framePtr = _entries.frameOffset[_entry];
+            }
+            final int bit = 0x80 >> ((_index - _entries.firstChunk[_entry]) & 7);
+            if ((_entries.present[_entry] & bit) != 0) {
+                _offset = _framePtr;
+                _framePtr += _chunkLength(_framePtr);
+            } else {
+                _offset = ((_entries.ones[_entry] & bit) == 0) ? OFFSET_EMPTY : OFFSET_FULL;
+            }
+            return true;
+        }
+
+        public int index() { return _index; }
+
+        /**
+         * @return Offset of the current chunk if encoded; otherwise
+         *    {@link #OFFSET_EMPTY} or {@link #OFFSET_FULL}
+         */
+        public int offset() { return _offset; }
+
+        /**
+         * @return End of run of uniform chunks current chunk belongs to;
+         *    see {@link EncodedBitmap#getRunEnd}
+         */
+        public int runEnd() {
+            return _entries.runEnd(_entry, _index);
+        }
+
+        /**
+         * Method for skipping the rest of run of uniform chunks, so that
+         * the next call to {@link #next} moves to the chunk at given index,
+         * which must not be beyond {@link #runEnd()}.
+         */
+        public void skipTo(int end) {
+            _index = end-1;
+        }
+    }
+
+    /**
+     * Helper class for complementing encoded chunks in place; see {@link #not()}
+     */
+    protected class FrameInverter
+    {
+        private final BitRatDecoder _ratDecoder;
+        private final NibblerDecoder _nibblerDecoder;
+        private final GapDecoder _gapDecoder;
+
+        public FrameInverter() {
+            _ratDecoder = _codec.isBitRat() ? new BitRatDecoder(_bitOrder) : null;
+            _nibblerDecoder = _codec.isNibbler()
+                    ? new NibblerDecoder(_codec, _bitOrder) : null;
+            _gapDecoder = _codec.isGap() ? new GapDecoder(_bitOrder) : null;
+        }
+
+        /**
+         * @return Offset right after the encoded chunk (including frame)
+         */
+        public int invert(byte[] data, int ptr, int rawLength)
+        {
+            if (_nibblerDecoder != null) {
+                return _nibblerDecoder.invertChunk(data, ptr, rawLength);
+            }
+            if (_gapDecoder != null) {
+                return _gapDecoder.invertChunk(data, ptr, rawLength);
+            }
+            final int mask = _ratMask(_codec, data, ptr);
+            final int length = _ratContentLength(_codec, data, ptr);
+            // initial run bit is inverted along with content
+            data[_ratPrevBitOffset(_codec, ptr)] ^= (byte) 0x80;
+            ptr += ratFrameLength(_codec);
+            if (_codec.subChunks() == 1) {
+                _ratDecoder.invertChunk(mask, data, ptr, rawLength);
+            } else {
+                _ratDecoder.invertLargeChunk(mask, _codec.subChunks(), data, ptr, rawLength);
+            }
+            return ptr + length;
+        }
+    }
+
+    /**
+     * Helper class for reporting statistics of decoded chunks to a
+     * {@link CodecListener}; only constructed when there is a listener.
+     */
+    protected final class ChunkReporter
+    {
+        private final CodecListener _target;
+        private final ChunkStats _stats = new ChunkStats();
+        private final ChunkAnalyzer _analyzer = new ChunkAnalyzer(_codec, _bitOrder);
+
+        public ChunkReporter(CodecListener target) {
+            _target = target;
+        }
+
+        /**
+         * @param offset Offset of the encoded chunk; or {@link #OFFSET_EMPTY}
+         *    or {@link #OFFSET_FULL} for uniform chunks
+         */
+        public void chunkDecoded(int index, int offset, long nanos)
+        {
+            _stats.reset(_codec, index, getChunkRawLength(index));
+            _stats.setNanos(nanos);
+            _analyzer.analyze(_data, offset, _stats);
+            _target.chunkDecoded(_stats);
+        }
+    }
+
+    /**
+     * Helper class for decoding chunks into 64-bit words, in bit order of the
+     * bitmap: full chunks of BitRat codecs are decoded directly into
+     * words, Nibbler chunks as runs and literal bytes, and gap-coded chunks
+     * as bit runs; only partial last BitRat chunk goes via a buffer.
+     */
+    protected class WordDecoder
+    {
+        private final BitRatDecoder _ratDecoder;
+        private final NibblerDecoder _nibblerDecoder;
+        private final GapDecoder _gapDecoder;
+        private final ChunkReporter _reporter;
+        private byte[] _buffer;
+
+        public WordDecoder() {
+            this(_listener);
+        }
+
+        /**
+         * @param listener Listener to report decoded chunks to, if any
+         */
+        public WordDecoder(CodecListener listener) {
+            _ratDecoder = _codec.isBitRat() ? new BitRatDecoder(_bitOrder) : null;
+            _nibblerDecoder = _codec.isNibbler()
+                    ? new NibblerDecoder(_codec, _bitOrder) : null;
+            _gapDecoder = _codec.isGap() ? new GapDecoder(_bitOrder) : null;
+            _reporter = (listener == null) ? null : new ChunkReporter(listener);
+        }
+
+        /**
+         * @param inputPtr Offset of the encoded chunk; or {@link #OFFSET_EMPTY}
+         *    or {@link #OFFSET_FULL} for uniform chunks
+         *
+         * @return Offset in encoded data right after decoded chunk
+         */
+        public int decodeChunk(int index, int inputPtr, long[] output, int wordPtr)
+        {
+            final int wordCount = getChunkWordCount(index);
+            if (inputPtr < 0) {
+                Arrays.fill(output, wordPtr, wordPtr + wordCount,
+                        (inputPtr == OFFSET_FULL) ? -1L : 0L);
+                skipChunks(index, index+1, inputPtr);
+                return inputPtr;
+            }
+            WordCombiner comb = WordCombiner.copier(output, wordPtr, wordCount, _bitOrder);
+            inputPtr = combineChunk(index, inputPtr, comb);
+            comb.finish();
+            return inputPtr;
+        }
+
+        /**
+         * Method for feeding content of given encoded chunk to given combiner.
+         *
+         * @return Offset in encoded data right after decoded chunk
+         */
+        public int combineChunk(int index, int inputPtr, WordCombiner output)
+        {
+            if (_reporter == null) {
+                return _combineChunk(index, inputPtr, output);
+            }
+            final long start = System.nanoTime();
+            final int end = _combineChunk(index, inputPtr, output);
+            _reporter.chunkDecoded(index, inputPtr, System.nanoTime() - start);
+            return end;
+        }
+
+        /**
+         * Method called for uniform chunks <code>[from, to)</code> that are handled
+         * as runs instead of being decoded: only reported, if there is a listener.
+         *
+         * @param offset Either {@link #OFFSET_EMPTY} or {@link #OFFSET_FULL}
+         */
+        public void skipChunks(int from, int to, int offset)
+        {
+            if (_reporter != null) {
+                for (int i = from; i < to; ++i) {
+                    _reporter.chunkDecoded(i, offset, 0L);
+                }
+            }
+        }
+
+        private int _combineChunk(int index, int inputPtr, WordCombiner output)
+        {
+            final int rawLength = getChunkRawLength(index);
+            if (_nibblerDecoder != null) {
+                return _nibblerDecoder.decode(_data, inputPtr, output, rawLength);
+            }
+            if (_gapDecoder != null) {
+                return _gapDecoder.decode(_data, inputPtr, output, rawLength);
+            }
+            final int chunkSize = _codec.chunkSize();
+            if (rawLength == chunkSize) {
+                final int mask = _ratMask(_codec, _data, inputPtr);
+                final boolean prevBit = _ratPrevBit(_codec, _data, inputPtr);
+                final int length = _ratContentLength(_codec, _data, inputPtr);
+                inputPtr += ratFrameLength(_codec);
+                if (_codec.subChunks() == 1) {
+                    _ratDecoder.decodeFullChunk(prevBit, mask, _data, inputPtr, output);
+                } else {
+                    _ratDecoder.decodeLargeChunk(prevBit, mask, _codec.subChunks(), _data, inputPtr,
+                            output);
+                }
+                return inputPtr + length;
+            }
+            if (_buffer == null) {
+                _buffer = new byte[chunkSize];
+            }
+            inputPtr = _decodeRatChunk(_ratDecoder, inputPtr, rawLength, _buffer, 0);
+            output.addBytes(_buffer, 0, rawLength);
+            return inputPtr;
+        }
+    }
+}
@@ -0,0 +1,820 @@
+package com.fasterxml.util.bitmate;
+
+import java.util.Arrays;
+
+/**
+ * Streaming encoder that produces {@link EncodedBitmap}s: raw content is
+ * appended in pieces of arbitrary size, and encoded a chunk at a time, so that
+ * at most one chunk of raw content is buffered.
+ *<p>
+ * Instances are not thread-safe, but separate instances may be used concurrently.
+ */
+public class EncodedBitmapBuilder
+{
+    private final static byte[] EMPTY = new byte[0];
+
+    /**
+     * Encoded frames for all-zero (first) and all-one (second)
+     * full chunks, indexed by {@link BitmapCodec#ordinal()}: chunks that
+     * encode to these are only indicated in the summary.
+     */
+    private final static byte[][][] UNIFORM_FRAMES = new byte[BitmapCodec.values().length][][];
+    static {
+        for (BitmapCodec codec : BitmapCodec.values()) {
+            byte[][] frames = new byte[2][];
+            for (int i = 0; i < 2; ++i) {
+                if (codec.isBitRat()) {
+                    frames[i] = new byte[EncodedBitmap.ratFrameLength(codec)];
+                    EncodedBitmap._writeRatFrame(codec, frames[i], 0, 0, i > 0, 0);
+                } else {
+                    byte[] raw = new byte[codec.chunkSize()];
+                    if (i > 0) {
+                        Arrays.fill(raw, (byte) 0xFF);
+                    }
+                    byte[] output = new byte[_maxEncoderOutput(codec)];
+                    int len = codec.isGap()
+                        ? new GapEncoder().encode(raw, 0, raw.length, output, 0)
+                        : new NibblerEncoder(BitOrder.MSB_FIRST, codec.hasWideLengths())
+                            .encode(raw, 0, raw.length, output, 0);
+                    frames[i] = Arrays.copyOf(output, len);
+                }
+            }
+            UNIFORM_FRAMES[codec.ordinal()] = frames;
+        }
+    }
+
+    protected final BitmapCodec _codec;
+
+    protected final BitOrder _bitOrder;
+
+    protected final int _chunkSize;
+
+    /**
+     * Length of frame header written for BitRat chunks; 0 for Nibbler and
+     * gap-coded chunks (for which encoder writes header)
+     */
+    protected final int _frameLength;
+
+    /**
+     * Maximum length of a single encoded chunk, including frame header
+     */
+    protected final int _maxChunkOutput;
+
+    protected BitRatEncoder _ratEncoder;
+
+    protected NibblerEncoder _nibblerEncoder;
+
+    protected GapEncoder _gapEncoder;
+
+    /**
+     * Encoder for chunks given as sorted lists of set bits; constructed when needed
+     */
+    protected SparseChunkEncoder _sparseEncoder;
+
+    /**
+     * Buffer for raw content of the current chunk; allocated when needed
+     */
+    protected byte[] _chunk;
+
+    protected int _chunkPtr;
+
+    /**
+     * Number of chunks encoded so far
+     */
+    protected int _chunkCount;
+
+    protected byte[] _output;
+
+    protected int _outputTail;
+
+    /*
+    /**********************************************************************
+    /* Summary state
+    /**********************************************************************
+     */
+
+    /**
+     * Offset of the summary entry for the current super-block (for which
+     * 2 bytes are reserved when its first chunk is started)
+     */
+    protected int _entryStart;
+
+    /**
+     * Number of chunks in the current super-block so far
+     */
+    protected int _entryChunks;
+
+    protected int _entryPresent;
+
+    protected int _entryOnes;
+
+    /**
+     * Offset of the last summary entry, if it is a uniform one (and
+     * so at the end of output); -1 if not
+     */
+    protected int _uniformStart = -1;
+
+    protected int _uniformOnes;
+
+    protected int _uniformRepeat;
+
+    /**
+     * Raw length of the partial last chunk, if appended as encoded chunk; 0 if not
+     */
+    protected int _encodedTail;
+
+    /**
+     * Decoder used for writing skip tables of encoded chunks, for codecs
+     * that use them; see {@link BitmapCodec#hasSkipTables()}
+     */
+    protected NibblerDecoder _skipTableWriter;
+
+    /*
+    /**********************************************************************
+    /* Instrumentation
+    /**********************************************************************
+     */
+
+    /**
+     * Listener to report encoded chunks to, if any
+     */
+    protected CodecListener _listener;
+
+    protected ChunkStats _stats;
+
+    protected ChunkAnalyzer _analyzer;
+
+    protected long _chunkStartNanos;
+
+    /**
+     * Tracer to report chunks to, if any; see {@link BitmapTracer}
+     */
+    protected final BitmapTracer _tracer = BitmapTracer.get();
+
+    /**
+     * Span for the chunk being encoded, if traced
+     */
+    protected Object _chunkSpan;
+
+    public EncodedBitmapBuilder(BitmapCodec codec) {
+        this(codec, BitOrder.MSB_FIRST);
+    }
+
+    /**
+     * @param order Bit order of raw content appended; also recorded in the
+     *    header of the resulting {@link EncodedBitmap}
+     */
+    public EncodedBitmapBuilder(BitmapCodec codec, BitOrder order)
+    {
+        _codec = codec;
+        _bitOrder = order;
+        _chunkSize = codec.chunkSize();
+        if (codec.isBitRat()) {
+            _ratEncoder = new BitRatEncoder(order);
+            _frameLength = EncodedBitmap.ratFrameLength(codec);
+            _maxChunkOutput = _frameLength + BitRatEncoder.maxOutputLength(_chunkSize);
+        } else {
+            if (codec.isGap()) {
+                _gapEncoder = new GapEncoder(order);
+            } else {
+                _nibblerEncoder = new NibblerEncoder(order, codec.hasWideLengths());
+            }
+            _frameLength = 0;
+            _maxChunkOutput = _maxEncoderOutput(codec);
+        }
+        _output = EMPTY;
+        _outputTail = EncodedBitmap.HEADER_LENGTH;
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API, accessors
+    /**********************************************************************
+     */
+
+    public BitmapCodec getCodec() { return _codec; }
+
+    public BitOrder getBitOrder() { return _bitOrder; }
+
+    /**
+     * @return Number of raw bytes appended so far
+     */
+    public long getRawLength() {
+        if (_encodedTail > 0) {
+            return ((long) (_chunkCount - 1) * _chunkSize) + _encodedTail;
+        }
+        return ((long) _chunkCount * _chunkSize) + _chunkPtr;
+    }
+
+    /**
+     * @return Number of bytes of encoded content produced so far, including
+     *    header
+     */
+    public int getEncodedLength() {
+        return _outputTail;
+    }
+
+    /**
+     * Method for registering listener to report statistics of each chunk encoded
+     * to (or, with null, to stop reporting). Chunks appended without encoding,
+     * with {@link #appendUniformChunks}, are not reported.
+     */
+    public void setListener(CodecListener listener) {
+        _listener = listener;
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API, appending content
+    /**********************************************************************
+     */
+
+    /**
+     * Method for appending raw content; content is copied in the chunk buffer
+     * and encoded whenever a full chunk is available.
+     */
+    public void append(byte[] data, int offset, int len)
+    {
+        // Fast path: no buffered content, full chunk(s) available
+        if (_chunkPtr == 0) {
+            while (len >= _chunkSize) {
+                _encodeChunk(data, offset, _chunkSize);
+                offset += _chunkSize;
+                len -= _chunkSize;
+            }
+        }
+        while (len > 0) {
+            if (_chunk == null) {
+                _chunk = new byte[_chunkSize];
+            }
+            int count = Math.min(len, _chunkSize - _chunkPtr);
+            System.arraycopy(data, offset, _chunk, _chunkPtr, count);
+            offset += count;
+            len -= count;
+            _chunkPtr += count;
+            if (_chunkPtr == _chunkSize) {
+                _encodeChunk(_chunk, 0, _chunkSize);
+                _chunkPtr = 0;
+            }
+        }
+    }
+
+    /**
+     * Method for appending raw content as 64-bit words, in the bit order
+     * builder was constructed with (for {@link BitOrder#LSB_FIRST} this is the
+     * layout of {@link java.util.BitSet#toLongArray()}). When at chunk boundary,
+     * full chunks are encoded directly from words without converting them to bytes.
+     */
+    public void appendWords(long[] words, int offset, int count)
+    {
+        final int chunkWords = _chunkSize >> 3;
+        final boolean bigEndian = (_bitOrder == BitOrder.MSB_FIRST);
+
+        while (count > 0) {
+            if (_chunkPtr == 0 && count >= chunkWords) {
+                _encodeWordChunk(words, offset);
+                offset += chunkWords;
+                count -= chunkWords;
+                continue;
+            }
+            if (_chunk == null) {
+                _chunk = new byte[_chunkSize];
+            }
+            if ((_chunkPtr + 8) <= _chunkSize) {
+                BitRatEncoder._writeWord(words[offset++], bigEndian, _chunk, _chunkPtr);
+                --count;
+                _chunkPtr += 8;
+                if (_chunkPtr == _chunkSize) {
+                    _encodeChunk(_chunk, 0, _chunkSize);
+                    _chunkPtr = 0;
+                }
+            } else { // word straddles chunk boundary (only if bytes were appended)
+                byte[] buf = new byte[8];
+                BitRatEncoder._writeWord(words[offset++], bigEndian, buf, 0);
+                --count;
+                append(buf, 0, 8);
+            }
+        }
+    }
+
+    /**
+     * Alternative to {@link #appendWords} for appending content of given
+     * length in bytes, which need not be a multiple of 8: only the leading
+     * bytes of the last word are appended. Used for appending the partial
+     * last chunk of a bitmap from decoded words.
+     *
+     * @param byteLength Number of bytes of content to append
+     */
+    public void appendWordBytes(long[] words, int offset, int byteLength)
+    {
+        final int fullWords = byteLength >> 3;
+        appendWords(words, offset, fullWords);
+        final int tail = byteLength & 7;
+        if (tail > 0) {
+            byte[] buf = new byte[8];
+            BitRatEncoder._writeWord(words[offset + fullWords],
+                    (_bitOrder == BitOrder.MSB_FIRST), buf, 0);
+            append(buf, 0, tail);
+        }
+    }
+
+    /**
+     * Method for appending content given as sorted (strictly ascending) indexes
+     * of set bits, relative to the start of the bitmap; all indexes must be at or
+     * beyond the current position, which must be at chunk boundary.
+     * Chunks without set bits are appended as uniform chunks, and others encoded
+     * directly from indexes, so that work done is proportional to the number
+     * of set bits and chunks, not to the number of bits.
+     * Content of the chunk with the last index is left buffered, up to and
+     * including the byte with the last set bit, so that more content may be
+     * appended before calling {@link #build}.
+     */
+    public void appendSortedIds(int[] ids, int offset, int count)
+    {
+        _verifyChunkBoundary();
+        final long chunkBits = _chunkSize << 3;
+        final int end = offset + count;
+        long base = getRawLength() << 3;
+        int ptr = offset;
+
+        while (ptr < end) {
+            final int first = ids[ptr];
+            if (first < base) {
+                throw new IllegalArgumentException("Invalid id #"+ptr+" ("+first
+                        +"): ids must be in ascending order, and at or after current position ("
+                        +base+")");
+            }
+            final int chunkIndex = (int) (first / chunkBits);
+            if (chunkIndex > _chunkCount) {
+                appendUniformChunks(false, chunkIndex - _chunkCount);
+            }
+            base = chunkIndex * chunkBits;
+            final long chunkEnd = base + chunkBits;
+            int idEnd = ptr+1;
+            for (; idEnd < end && ids[idEnd] < chunkEnd; ++idEnd) {
+                if (ids[idEnd] <= ids[idEnd-1]) {
+                    throw new IllegalArgumentException("Invalid id #"+idEnd+" ("+ids[idEnd]
+                            +"): ids must be in ascending order");
+                }
+            }
+            if (idEnd == end) { // last chunk with set bits: buffer
+                _bufferIds(ids, ptr, idEnd, base);
+            } else {
+                _encodeSparseChunk(ids, ptr, idEnd, base);
+            }
+            ptr = idEnd;
+            base = chunkEnd;
+        }
+    }
+
+    /**
+     * Method for appending a full chunk ({@link BitmapCodec#chunkSize()} bytes)
+     * of raw content, encoding it directly from given buffer. Can only be called
+     * when chunk boundary has been reached.
+     */
+    public void appendChunk(byte[] data, int offset)
+    {
+        _verifyChunkBoundary();
+        _encodeChunk(data, offset, _chunkSize);
+    }
+
+    /**
+     * Method for efficiently appending full chunks in which all bits are
+     * either set or clear. Can only be called when chunk boundary has been reached.
+     */
+    public void appendUniformChunks(boolean set, int count)
+    {
+        _verifyChunkBoundary();
+        while (count > 0) {
+            if (_entryChunks == 0 && count >= EncodedBitmap.SUPER_BLOCK_CHUNKS) {
+                // whole super-blocks can be added by just updating repeat count
+                final int blocks = count / EncodedBitmap.SUPER_BLOCK_CHUNKS;
+                final int ones = set ? 0xFF : 0;
+                if (_uniformStart >= 0 && _uniformOnes == ones) {
+                    _uniformRepeat += blocks;
+                } else {
+                    _ensureRoom(2);
+                    _uniformStart = _outputTail;
+                    _output[_outputTail++] = 0;
+                    _output[_outputTail++] = (byte) ones;
+                    _uniformOnes = ones;
+                    _uniformRepeat = blocks-1;
+                }
+                _writeUniformRepeat();
+                final int chunks = blocks * EncodedBitmap.SUPER_BLOCK_CHUNKS;
+                _chunkCount += chunks;
+                count -= chunks;
+                continue;
+            }
+            _startChunk();
+            _addChunk(false, set);
+            --count;
+        }
+    }
+
+    /**
+     * Method for appending a full chunk that has already been encoded, as a frame
+     * of an {@link EncodedBitmap} with the same codec and bit order (and that is
+     * not uniform). Can only be called when chunk boundary has been reached.
+     */
+    void appendEncodedChunk(byte[] data, int offset, int length) {
+        appendEncodedChunk(data, offset, length, _chunkSize);
+    }
+
+    /**
+     * Alternative to {@link #appendEncodedChunk(byte[], int, int)} that may also be
+     * used for the partial last chunk, in which case no more content may be appended,
+     * and {@link #build} must be called with matching bit length.
+     *
+     * @param rawLength Length of raw content of the chunk
+     */
+    void appendEncodedChunk(byte[] data, int offset, int length, int rawLength)
+    {
+        _verifyChunkBoundary();
+        _startChunk();
+        _ensureRoom(length);
+        System.arraycopy(data, offset, _output, _outputTail, length);
+        _outputTail += length;
+        _addChunk(true, false);
+        if (rawLength < _chunkSize) {
+            _encodedTail = rawLength;
+        }
+    }
+
+    /**
+     * Method to call after all content has been appended, to encode the
+     * last chunk and construct the result. If less content has been appended
+     * than indicated by bit length, the rest is padded with clear bits.
+     * After this method has been called, builder can not be used any more
+     * (unless {@link #reset} is called).
+     */
+    public EncodedBitmap build(int bitLength)
+    {
+        final int length = _finish(bitLength);
+        final byte[] data = Arrays.copyOf(_output, length);
+        _output = null;
+        return new EncodedBitmap(_codec, _bitOrder, bitLength, data);
+    }
+
+    /**
+     * Method for resetting builder, so that it can be used for building
+     * another bitmap: encoders and buffers are retained, which matters
+     * when building lots of small bitmaps.
+     */
+    public void reset()
+    {
+        if (_output == null) {
+            _output = EMPTY;
+        }
+        _outputTail = EncodedBitmap.HEADER_LENGTH;
+        _chunkPtr = 0;
+        _chunkCount = 0;
+        _entryChunks = 0;
+        _entryPresent = 0;
+        _entryOnes = 0;
+        _uniformStart = -1;
+        _encodedTail = 0;
+    }
+
+    /**
+     * Method that does the work for {@link #build}, leaving serialized
+     * form in the output buffer.
+     *
+     * @return Length of serialized form
+     */
+    int _finish(int bitLength)
+    {
+        final long rawLength = (bitLength + 7L) >>> 3;
+        if (getRawLength() > rawLength) {
+            throw new IllegalArgumentException("Invalid bit length ("+bitLength
+                    +"): have appended "+getRawLength()+" bytes of content");
+        }
+        if (_encodedTail > 0 && getRawLength() != rawLength) {
+            throw new IllegalArgumentException("Invalid bit length ("+bitLength
+                    +"): partial last chunk appended, with total of "+getRawLength()+" bytes of content");
+        }
+        // Pad with full chunks as necessary
+        long chunksLeft = (rawLength / _chunkSize) - _chunkCount;
+        if (chunksLeft > 0) {
+            if (_chunkPtr > 0) {
+                Arrays.fill(_chunk, _chunkPtr, _chunkSize, (byte) 0);
+                _encodeChunk(_chunk, 0, _chunkSize);
+                _chunkPtr = 0;
+                --chunksLeft;
+            }
+            appendUniformChunks(false, (int) chunksLeft);
+        }
+        int lastLength = (int) (rawLength - ((long) _chunkCount * _chunkSize));
+        if (lastLength > 0) {
+            if (_chunk == null) {
+                _chunk = new byte[_chunkSize];
+            }
+            // Rest of buffer may have content from previous chunks
+            Arrays.fill(_chunk, _chunkPtr, lastLength, (byte) 0);
+            int lastBits = bitLength & 7;
+            if (lastBits != 0) {
+                // To avoid breaking the last run by padding bits
+                BitRatEncoder._fixLast(_chunk, lastLength-1, lastBits, _bitOrder);
+            }
+            _encodeChunk(_chunk, 0, lastLength);
+            _chunkPtr = 0;
+        }
+        if (_entryChunks > 0) {
+            _closeEntry();
+        }
+        _ensureRoom(0);
+        final byte[] data = _output;
+        data[0] = EncodedBitmap.HEADER_MARKER;
+        data[1] = (byte) _codec.id();
+        if (_bitOrder == BitOrder.LSB_FIRST) {
+            data[1] |= EncodedBitmap.HEADER_LSB_FIRST;
+        }
+        data[2] = (byte) (bitLength >> 24);
+        data[3] = (byte) (bitLength >> 16);
+        data[4] = (byte) (bitLength >> 8);
+        data[5] = (byte) bitLength;
+        return _outputTail;
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    protected void _encodeChunk(byte[] data, int offset, int len)
+    {
+        _startChunk();
+        final int start = _outputTail;
+        _ensureRoom(_maxChunkOutput);
+        if (_ratEncoder != null) {
+            // Since initial run bit is stored, may as well choose one that works best
+            final boolean prevBit = (data[offset] == (byte) 0xFF);
+            final int encStart = start + _frameLength;
+            final int subChunks = _codec.subChunks();
+            int mask = (subChunks == 1)
+                    ? _ratEncoder.encodePartialChunk(prevBit, data, offset, len, _output, encStart)
+                    : _ratEncoder.encodeLargeChunk(prevBit, data, offset, len, subChunks, _output, encStart);
+            _finishRatFrame(prevBit, mask, start);
+        } else if (_gapEncoder != null) {
+            _outputTail = _gapEncoder.encode(data, offset, len, _output, _outputTail);
+        } else {
+            _outputTail = _nibblerEncoder.encode(data, offset, len, _output, _outputTail);
+        }
+        _endChunk(start, len);
+    }
+
+    protected void _encodeSparseChunk(int[] ids, int ptr, int end, long base)
+    {
+        // (gap-coded chunks are encoded directly from ids, no scratch chunk needed)
+        if (_sparseEncoder == null && _gapEncoder == null) {
+            _sparseEncoder = new SparseChunkEncoder(_codec, _bitOrder, _ratEncoder);
+        }
+        _startChunk();
+        final int start = _outputTail;
+        _ensureRoom(_maxChunkOutput);
+        if (_ratEncoder != null) {
+            // as with raw content, start with set bit if first byte is full
+            final boolean prevBit = (end - ptr) >= 8 && (ids[ptr+7] == base+7);
+            int mask = _sparseEncoder.encodeRat(prevBit, ids, ptr, end, base, _output,
+                    start + _frameLength);
+            _finishRatFrame(prevBit, mask, start);
+        } else if (_gapEncoder != null) {
+            _outputTail = _gapEncoder.encodeSorted(ids, ptr, end, base, _chunkSize, _output, start);
+        } else {
+            _outputTail = _sparseEncoder.encodeNibbler(ids, ptr, end, base, _output, _outputTail);
+        }
+        _endChunk(start, _chunkSize);
+    }
+
+    protected void _bufferIds(int[] ids, int ptr, int end, long base)
+    {
+        if (_chunk == null) {
+            _chunk = new byte[_chunkSize];
+        }
+        final int len = (int) ((ids[end-1] - base) >>> 3) + 1;
+        Arrays.fill(_chunk, 0, len, (byte) 0);
+        for (int i = ptr; i < end; ++i) {
+            int bit = (int) (ids[i] - base);
+            _chunk[bit >>> 3] |= _bitOrder.bitMask(bit & 7);
+        }
+        _chunkPtr = len;
+        if (_chunkPtr == _chunkSize) {
+            _encodeChunk(_chunk, 0, _chunkSize);
+            _chunkPtr = 0;
+        }
+    }
+
+    protected void _encodeWordChunk(long[] words, int offset)
+    {
+        final boolean bigEndian = (_bitOrder == BitOrder.MSB_FIRST);
+        if (_ratEncoder != null) {
+            _startChunk();
+            _ensureRoom(_maxChunkOutput);
+            final int firstByte = (int) (bigEndian ? (words[offset] >>> 56) : words[offset]) & 0xFF;
+            final boolean prevBit = (firstByte == 0xFF);
+            final int start = _outputTail;
+            final int encStart = start + _frameLength;
+            final int subChunks = _codec.subChunks();
+            int mask = (subChunks == 1)
+                    ? _ratEncoder.encodeFullChunk(prevBit, words, offset, _output, encStart)
+                    : _ratEncoder.encodeLargeChunk(prevBit, words, offset, subChunks, _output, encStart);
+            _finishRatFrame(prevBit, mask, start);
+            _endChunk(start, _chunkSize);
+        } else {
+            // Nibbler and gap encoders work on bytes, but we can at least keep the copy chunk-sized
+            if (_chunk == null) {
+                _chunk = new byte[_chunkSize];
+            }
+            for (int i = 0, ptr = 0; ptr < _chunkSize; ++i, ptr += 8) {
+                BitRatEncoder._writeWord(words[offset+i], bigEndian, _chunk, ptr);
+            }
+            _encodeChunk(_chunk, 0, _chunkSize);
+        }
+    }
+
+    protected void _finishRatFrame(boolean prevBit, int mask, int start)
+    {
+        final int encStart = start + _frameLength;
+        int encLen = (mask == 0) ? 0 : (_ratEncoder.getOutputPtr() - encStart);
+        EncodedBitmap._writeRatFrame(_codec, _output, start, mask, prevBit, encLen);
+        _outputTail = encStart + encLen;
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods, summary handling
+    /**********************************************************************
+     */
+
+    /**
+     * Method called before adding a chunk, to reserve room for the summary
+     * entry if a new super-block is started.
+     */
+    protected void _startChunk()
+    {
+        if (_entryChunks == 0) {
+            _ensureRoom(2);
+            _entryStart = _outputTail;
+            _outputTail += 2;
+        }
+        if (_listener != null) {
+            _chunkStartNanos = System.nanoTime();
+        }
+        if (_tracer != null) {
+            _chunkSpan = _tracer.beginChunkEncode();
+        }
+    }
+
+    /**
+     * Method called after a chunk has been encoded starting at given offset:
+     * if it turns out to be uniform, it is only indicated in the summary.
+     */
+    protected void _endChunk(int frameStart, int rawLength)
+    {
+        if (rawLength == _chunkSize) {
+            final byte[][] frames = UNIFORM_FRAMES[_codec.ordinal()];
+            final int len = _outputTail - frameStart;
+            for (int i = 0; i < 2; ++i) {
+                if (_matches(frames[i], frameStart, len)) {
+                    if (_listener != null || _chunkSpan != null) {
+                        _reportChunk(EncodedBitmap.OFFSET_EMPTY, rawLength);
+                    }
+                    _outputTail = frameStart;
+                    _addChunk(false, i > 0);
+                    return;
+                }
+            }
+        }
+        if (_codec.hasSkipTables()) {
+            _ensureRoom(NibblerDecoder.skipTableLength(rawLength, true));
+            if (_skipTableWriter == null) {
+                _skipTableWriter = new NibblerDecoder(_codec, _bitOrder);
+            }
+            _outputTail = _skipTableWriter.writeSkipTable(_output, frameStart, rawLength,
+                    _output, _outputTail);
+        }
+        if (_listener != null || _chunkSpan != null) {
+            _reportChunk(frameStart, rawLength);
+        }
+        _addChunk(true, false);
+    }
+
+    /**
+     * @param frameStart Offset of the encoded chunk; negative if uniform
+     */
+    protected void _reportChunk(int frameStart, int rawLength)
+    {
+        // (when only traced, tracer measures time itself)
+        final long nanos = (_listener == null) ? 0L : (System.nanoTime() - _chunkStartNanos);
+        if (_stats == null) {
+            _stats = new ChunkStats();
+            _analyzer = new ChunkAnalyzer(_codec, _bitOrder);
+        }
+        _stats.reset(_codec, _chunkCount, rawLength);
+        _stats.setNanos(nanos);
+        _analyzer.analyze(_output, frameStart, _stats);
+        if (_listener != null) {
+            _listener.chunkEncoded(_stats);
+        }
+        if (_chunkSpan != null) {
+            _tracer.endChunkEncode(_chunkSpan, _stats);
+            _chunkSpan = null;
+        }
+    }
+
+    protected void _addChunk(boolean encoded, boolean ones)
+    {
+        final int bit = 0x80 >> _entryChunks;
+        if (encoded) {
+            _entryPresent |= bit;
+        } else if (ones) {
+            _entryOnes |= bit;
+        }
+        ++_chunkCount;
+        if (++_entryChunks == EncodedBitmap.SUPER_BLOCK_CHUNKS) {
+            _closeEntry();
+        }
+    }
+
+    protected void _closeEntry()
+    {
+        final int ones = _entryOnes;
+        if (_entryPresent != 0) {
+            _output[_entryStart] = (byte) _entryPresent;
+            _output[_entryStart+1] = (byte) ones;
+            _uniformStart = -1;
+        } else if (_uniformStart >= 0 && _uniformOnes == ones) {
+            // same as the previous entry, just need to update its count
+            ++_uniformRepeat;
+            _writeUniformRepeat();
+        } else {
+            _output[_entryStart] = 0;
+            _output[_entryStart+1] = (byte) ones;
+            _uniformStart = _entryStart;
+            _uniformOnes = ones;
+            _uniformRepeat = 0;
+            _writeUniformRepeat();
+        }
+        _entryChunks = 0;
+        _entryPresent = 0;
+        _entryOnes = 0;
+    }
+
+    /**
+     * Helper method for (re)writing repeat count of the last (uniform)
+     * summary entry, as variable-length int, at the end of output.
+     */
+    protected void _writeUniformRepeat()
+    {
+        _outputTail = _uniformStart + 2;
+        _ensureRoom(5);
+        int value = _uniformRepeat;
+        while (value > 0x7F) {
+            _output[_outputTail++] = (byte) (0x80 | (value & 0x7F));
+            value >>>= 7;
+        }
+        _output[_outputTail++] = (byte) value;
+    }
+
+    private static int _maxEncoderOutput(BitmapCodec codec) {
+        if (codec.isGap()) {
+            return GapEncoder.MAX_OUTPUT_BUFFER;
+        }
+        return codec.hasWideLengths() ? NibblerEncoder.MAX_WIDE_OUTPUT_BUFFER
+                : NibblerEncoder.MAX_OUTPUT_BUFFER;
+    }
+
+    private boolean _matches(byte[] frame, int offset, int len)
+    {
+        if (frame.length != len) {
+            return false;
+        }
+        for (int i = 0; i < len; ++i) {
+            if (_output[offset+i] != frame[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    protected void _verifyChunkBoundary()
+    {
+        if (_encodedTail > 0) {
+            throw new IllegalStateException("Can not append content after partial last chunk");
+        }
+        if (_chunkPtr != 0) {
+            throw new IllegalStateException("Can not append full chunk: have "+_chunkPtr
+                    +" bytes of partial chunk buffered");
+        }
+    }
+
+    protected void _ensureRoom(int needed)
+    {
+        final int minSize = _outputTail + needed;
+        if (minSize > _output.length) {
+            int newSize = Math.max(minSize, _output.length + (_output.length >> 1));
+            _output = Arrays.copyOf(_output, Math.max(newSize, 256));
+        }
+    }
+}
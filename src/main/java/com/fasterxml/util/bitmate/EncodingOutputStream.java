@@ -0,0 +1,38 @@
+package com.fasterxml.util.bitmate;
+
+import java.io.OutputStream;
+
+/**
+ * Simple {@link OutputStream} adapter that appends all raw content written
+ * to an {@link EncodedBitmapBuilder}, so that content gets encoded a chunk
+ * at a time as it is written. Useful for incrementally decoding content
+ * from sources like Base64-encoded JSON Strings (see
+ * {@code JsonParser.readBinaryValue(OutputStream)}).
+ */
+public class EncodingOutputStream extends OutputStream
+{
+    protected final EncodedBitmapBuilder _builder;
+
+    protected byte[] _singleByte;
+
+    public EncodingOutputStream(EncodedBitmapBuilder builder) {
+        _builder = builder;
+    }
+
+    public EncodedBitmapBuilder getBuilder() { return _builder; }
+
+    @Override
+    public void write(int b)
+    {
+        if (_singleByte == null) {
+            _singleByte = new byte[1];
+        }
+        _singleByte[0] = (byte) b;
+        _builder.append(_singleByte, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int offset, int len) {
+        _builder.append(b, offset, len);
+    }
+}
@@ -0,0 +1,300 @@
+package com.fasterxml.util.bitmate;
+
+import java.util.Arrays;
+
+/**
+ * Optional second stage for {@link EncodedBitmap}s moved to cold storage,
+ * trading some decoding speed for size: serialized form is split into two
+ * streams, structure (container header, summary entries, frame headers and
+ * BitRat mask bytes) and literal bytes, each of which is entropy-coded with
+ * {@link HuffmanEncoder}. Distributions of both are skewed, but differently
+ * (mask bytes are dominated by a few values like <code>0x80</code> and
+ * <code>0x01</code>), so coding them separately works better than coding
+ * them together.
+ *<p>
+ * Packed form consists of marker byte ({@link #MARKER}), followed by the
+ * structure stream and the literal stream. Only BitRat codecs have literals
+ * separated; for other codecs, whole serialized form is the structure
+ * stream. Unpacking produces serialized form identical to the original.
+ *<p>
+ * Instances are not thread-safe, but may be reused.
+ */
+public class EntropyPacker
+{
+    public final static byte MARKER = (byte) 0xB2;
+
+    private final static int FULL_CHUNK_SIZE = BitRatEncoder.FULL_CHUNK_SIZE;
+
+    private final static int LEVEL2_CHUNK_SIZE = BitRatEncoder.LEVEL2_CHUNK_SIZE;
+
+    protected final HuffmanEncoder _encoder = new HuffmanEncoder();
+
+    protected final HuffmanDecoder _decoder = new HuffmanDecoder();
+
+    /**
+     * Whether serialized form is being reconstructed from streams (when
+     * unpacking) or split into them (when packing)
+     */
+    protected boolean _joining;
+
+    protected BitmapCodec _codec;
+
+    /**
+     * Serialized form of the bitmap
+     */
+    protected byte[] _data;
+
+    protected int _dataPtr;
+
+    protected byte[] _structure;
+
+    protected int _structurePtr;
+
+    protected byte[] _literals;
+
+    protected int _literalPtr;
+
+    public EntropyPacker() { }
+
+    /*
+    /**********************************************************************
+    /* Public API
+    /**********************************************************************
+     */
+
+    public byte[] pack(EncodedBitmap bitmap)
+    {
+        final byte[] data = bitmap._data;
+        _joining = false;
+        _data = data;
+        _dataPtr = 0;
+        _structure = new byte[data.length];
+        _structurePtr = 0;
+        _literals = new byte[data.length];
+        _literalPtr = 0;
+        _walk();
+
+        byte[] output = new byte[1 + HuffmanEncoder.maxEncodedLength(_structurePtr)
+                                 + HuffmanEncoder.maxEncodedLength(_literalPtr)];
+        output[0] = MARKER;
+        int ptr = _encoder.encode(_structure, 0, _structurePtr, output, 1);
+        ptr = _encoder.encode(_literals, 0, _literalPtr, output, ptr);
+        _reset();
+        return Arrays.copyOf(output, ptr);
+    }
+
+    public EncodedBitmap unpack(byte[] packed)
+    {
+        if (packed.length < 3 || packed[0] != MARKER) {
+            throw new IllegalArgumentException("Invalid packed bitmap: missing marker");
+        }
+        _structure = new byte[HuffmanDecoder.decodedLength(packed, 1)];
+        final int literalsPtr = _decoder.decode(packed, 1, _structure, 0);
+        _literals = new byte[HuffmanDecoder.decodedLength(packed, literalsPtr)];
+        if (_decoder.decode(packed, literalsPtr, _literals, 0) != packed.length) {
+            throw new IllegalArgumentException("Invalid packed bitmap: trailing content");
+        }
+        _joining = true;
+        _data = new byte[_structure.length + _literals.length];
+        _dataPtr = 0;
+        _structurePtr = 0;
+        _literalPtr = 0;
+        try {
+            _walk();
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Invalid packed bitmap: truncated content", e);
+        }
+        if (_structurePtr != _structure.length || _literalPtr != _literals.length) {
+            throw new IllegalArgumentException("Invalid packed bitmap: trailing content");
+        }
+        final byte[] data = _data;
+        _reset();
+        return EncodedBitmap.wrap(data);
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods, container
+    /**********************************************************************
+     */
+
+    private void _reset()
+    {
+        _data = null;
+        _structure = null;
+        _literals = null;
+    }
+
+    /**
+     * Method for going through serialized form, moving bytes between it
+     * and the streams
+     */
+    private void _walk()
+    {
+        for (int i = 0; i < EncodedBitmap.HEADER_LENGTH; ++i) {
+            _structure();
+        }
+        // only header needed for chunk geometry
+        final EncodedBitmap header = EncodedBitmap.wrap(Arrays.copyOf(_data, EncodedBitmap.HEADER_LENGTH));
+        _codec = header.getCodec();
+        if (!_codec.isBitRat()) {
+            final int rest = _joining ? (_structure.length - _structurePtr)
+                    : (_data.length - _dataPtr);
+            for (int i = 0; i < rest; ++i) {
+                _structure();
+            }
+            return;
+        }
+        final int chunkCount = header.getChunkCount();
+        int chunk = 0;
+        while (chunk < chunkCount) {
+            final int present = _structure();
+            _structure(); // ones
+            if (present == 0) {
+                long repeat = 0L;
+                for (int shift = 0; ; shift += 7) {
+                    int b = _structure();
+                    repeat |= (long) (b & 0x7F) << shift;
+                    if (b < 0x80) {
+                        break;
+                    }
+                }
+                chunk = (int) Math.min(chunkCount, chunk + (repeat + 1L) * EncodedBitmap.SUPER_BLOCK_CHUNKS);
+                continue;
+            }
+            final int end = Math.min(chunkCount, chunk + EncodedBitmap.SUPER_BLOCK_CHUNKS);
+            for (int bit = 0x80; chunk < end; bit >>= 1, ++chunk) {
+                if ((present & bit) != 0) {
+                    _frame(header.getChunkRawLength(chunk));
+                }
+            }
+        }
+    }
+
+    private void _frame(int rawLength)
+    {
+        final int start = _dataPtr;
+        for (int i = 0, len = EncodedBitmap.ratFrameLength(_codec); i < len; ++i) {
+            _structure();
+        }
+        final int mask = EncodedBitmap._ratMask(_codec, _data, start);
+        final int contentStart = _dataPtr;
+        final int subChunks = _codec.subChunks();
+        if (subChunks == 1) {
+            _chunk(mask, rawLength);
+        } else {
+            int marker = 1 << (subChunks - 1);
+            for (int left = rawLength; left > 0; left -= FULL_CHUNK_SIZE, marker >>= 1) {
+                if ((mask & marker) != 0) {
+                    _chunk(_structure(), Math.min(left, FULL_CHUNK_SIZE));
+                }
+            }
+        }
+        if (_dataPtr - contentStart != EncodedBitmap._ratContentLength(_codec, _data, start)) {
+            throw new IllegalArgumentException("Invalid encoded bitmap: frame at "+start
+                    +" has content length "+EncodedBitmap._ratContentLength(_codec, _data, start)
+                    +", structure indicates "+(_dataPtr - contentStart));
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods, BitRat chunks; same structure as with BitRatDecoder
+    /**********************************************************************
+     */
+
+    private void _chunk(int mask, int inputLen)
+    {
+        int marker = 0x80;
+        int left = inputLen;
+        for (; left >= LEVEL2_CHUNK_SIZE; left -= LEVEL2_CHUNK_SIZE, marker >>= 1) {
+            if ((mask & marker) != 0) {
+                _level2(_structure(), LEVEL2_CHUNK_SIZE);
+            }
+        }
+        if (left > 0 && (mask & marker) != 0) {
+            _level2(_structure(), left);
+        }
+    }
+
+    private void _level2(int mask, int size)
+    {
+        int marker = 0x80;
+        int left = size;
+        for (; left >= 64; left -= 64, marker >>= 1) {
+            if ((mask & marker) != 0) {
+                int nibbles = _structure();
+                _level1((nibbles >> 4) & 0xF);
+                _level1(nibbles & 0xF);
+            }
+        }
+        if (left > 0 && (mask & marker) != 0) {
+            _groups(_structure(), 0x80, left, -1);
+        }
+    }
+
+    private void _level1(int mask)
+    {
+        if (mask == 0) {
+            return;
+        }
+        // either marker of uncompressed block, or mask of the first group
+        final int first = _structure();
+        if (first == 0) {
+            _literals(32);
+        } else {
+            _groups(mask, 0x8, 32, first);
+        }
+    }
+
+    /**
+     * @param first Mask of the first present group, if already read; -1 if not
+     */
+    private void _groups(int mask, int marker, int size, int first)
+    {
+        for (int left = size; left > 0; left -= 8, marker >>= 1) {
+            if ((mask & marker) != 0) {
+                final int groupMask = (first < 0) ? _structure() : first;
+                first = -1;
+                final int unused = 8 - Math.min(left, 8);
+                _literals(Integer.bitCount((groupMask >> unused) << unused));
+            }
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods, moving bytes
+    /**********************************************************************
+     */
+
+    /**
+     * Method for moving a structure byte between serialized form and
+     * structure stream
+     *
+     * @return Byte moved, as unsigned value
+     */
+    private int _structure()
+    {
+        final byte b;
+        if (_joining) {
+            b = _structure[_structurePtr++];
+            _data[_dataPtr++] = b;
+        } else {
+            b = _data[_dataPtr++];
+            _structure[_structurePtr++] = b;
+        }
+        return b & 0xFF;
+    }
+
+    private void _literals(int count)
+    {
+        if (_joining) {
+            System.arraycopy(_literals, _literalPtr, _data, _dataPtr, count);
+        } else {
+            System.arraycopy(_data, _dataPtr, _literals, _literalPtr, count);
+        }
+        _literalPtr += count;
+        _dataPtr += count;
+    }
+}
@@ -0,0 +1,427 @@
+package com.fasterxml.util.bitmate;
+
+import java.util.Arrays;
+
+/**
+ * Decoder for chunks produced by {@link GapEncoder}. As with {@link NibblerDecoder},
+ * caller needs to pass length of the original (raw) content, as background
+ * after the last run extends to the end of the chunk.
+ *<p>
+ * Values are decoded in one batch per chunk, a group of 4 values
+ * (one control byte) at a time, before runs are applied to the output.
+ */
+public class GapDecoder
+{
+    protected final boolean _bigEndian;
+
+    /**
+     * Values of the chunk being decoded (see {@link GapEncoder}); allocated
+     * on first full decode, since random access reads values one by one
+     */
+    protected int[] _values;
+
+    protected int _valueCount;
+
+    /**
+     * Whether runs of the chunk being decoded are those of clear bits
+     * (within background of set bits)
+     */
+    protected boolean _inverted;
+
+    /**
+     * When reading values one by one: offsets of control and data bytes
+     * of the next value, and its index
+     */
+    protected int _controlPtr, _dataPtr, _valueIndex;
+
+    /**
+     * Number of bytes reported so far, when analyzing a chunk
+     */
+    protected int _doneBytes;
+
+    public GapDecoder() {
+        this(BitOrder.MSB_FIRST);
+    }
+
+    public GapDecoder(BitOrder order) {
+        _bigEndian = (order == BitOrder.MSB_FIRST);
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API
+    /**********************************************************************
+     */
+
+    /**
+     * Helper method for finding out the total length of the encoded chunk
+     * starting at given offset, including header.
+     */
+    public static int encodedChunkLength(byte[] input, int inputPtr)
+    {
+        final int start = inputPtr;
+        int head = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = input[inputPtr++];
+            head |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                break;
+            }
+        }
+        if ((head & GapEncoder.FLAG_RAW) != 0) {
+            int rawLength = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = input[inputPtr++];
+                rawLength |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            return (inputPtr - start) + rawLength;
+        }
+        // data length is implied by control bytes: each value takes 1 - 4 bytes
+        final int count = head >>> 2;
+        final int controlEnd = inputPtr + ((count + 3) >> 2);
+        int dataLength = count;
+        for (; inputPtr < controlEnd; ++inputPtr) {
+            final int control = input[inputPtr];
+            dataLength += (control & 3) + ((control >> 2) & 3)
+                    + ((control >> 4) & 3) + ((control >> 6) & 3);
+        }
+        return (inputPtr - start) + dataLength;
+    }
+
+    /**
+     * @param rawLength Length of content that was encoded
+     *
+     * @return Offset right after the encoded chunk
+     */
+    public int decode(byte[] input, int inputPtr, byte[] output, int outputPtr, int rawLength)
+    {
+        final int end = inputPtr + encodedChunkLength(input, inputPtr);
+        if (_readValues(input, inputPtr) < 0) {
+            System.arraycopy(input, end - rawLength, output, outputPtr, rawLength);
+            return end;
+        }
+        final boolean set = !_inverted;
+        Arrays.fill(output, outputPtr, outputPtr + rawLength, set ? 0 : (byte) 0xFF);
+        final int[] values = _values;
+        int pos = 0;
+        for (int i = 0, count = _valueCount; i < count; ++i) {
+            final int value = values[i];
+            pos += value >>> 1;
+            final int runEnd = ((value & 1) == 0) ? (pos + 1) : (pos + values[++i] + 2);
+            _fillBits(output, outputPtr, pos, runEnd, set);
+            pos = runEnd;
+        }
+        return end;
+    }
+
+    /**
+     * Method for decoding given chunk, feeding its content to given combiner:
+     * runs are fed as bit runs (which combiner applies as bulk operations),
+     * so work done is proportional to the number of runs.
+     *
+     * @return Offset right after the encoded chunk
+     */
+    public int decode(byte[] input, int inputPtr, WordCombiner output, int rawLength)
+    {
+        final int end = inputPtr + encodedChunkLength(input, inputPtr);
+        if (_readValues(input, inputPtr) < 0) {
+            output.addBytes(input, end - rawLength, rawLength);
+            return end;
+        }
+        final boolean set = !_inverted;
+        final int[] values = _values;
+        long pos = 0L;
+        for (int i = 0, count = _valueCount; i < count; ++i) {
+            final int value = values[i];
+            final int gap = value >>> 1;
+            final int length = ((value & 1) == 0) ? 1 : (values[++i] + 2);
+            if (gap > 0) {
+                output.addRunBits(!set, gap);
+            }
+            output.addRunBits(set, length);
+            pos += gap + length;
+        }
+        final long tail = ((long) rawLength << 3) - pos;
+        if (tail > 0L) {
+            output.addRunBits(!set, tail);
+        }
+        return end;
+    }
+
+    /**
+     * Method for checking whether given bit of the chunk is set, by going
+     * through runs up to the bit (without decoding the chunk, or even all
+     * values).
+     *
+     * @param bit Index of the bit within chunk
+     */
+    public boolean get(byte[] input, int inputPtr, int rawLength, int bit)
+    {
+        if (_startValues(input, inputPtr) < 0) {
+            final int end = inputPtr + encodedChunkLength(input, inputPtr);
+            return (input[end - rawLength + (bit >> 3)] & _mask(bit)) != 0;
+        }
+        int pos = 0;
+        for (int i = 0, count = _valueCount; i < count; ++i) {
+            final int value = _nextValue(input);
+            final int runStart = pos + (value >>> 1);
+            if (runStart > bit) {
+                break;
+            }
+            if ((value & 1) == 0) {
+                pos = runStart + 1;
+            } else {
+                pos = runStart + _nextValue(input) + 2;
+                ++i;
+            }
+            if (bit < pos) {
+                return !_inverted;
+            }
+        }
+        return _inverted;
+    }
+
+    /**
+     * Method for counting set bits within the first <code>bitOffset</code> bits
+     * of the chunk, by going through runs up to the offset (without decoding
+     * the chunk, or even all values).
+     */
+    public int rank(byte[] input, int inputPtr, int rawLength, int bitOffset)
+    {
+        if (_startValues(input, inputPtr) < 0) {
+            final int start = inputPtr + encodedChunkLength(input, inputPtr) - rawLength;
+            final int fullBytes = bitOffset >> 3;
+            int count = 0;
+            for (int i = 0; i < fullBytes; ++i) {
+                count += Integer.bitCount(input[start + i] & 0xFF);
+            }
+            for (int bit = fullBytes << 3; bit < bitOffset; ++bit) {
+                if ((input[start + fullBytes] & _mask(bit)) != 0) {
+                    ++count;
+                }
+            }
+            return count;
+        }
+        int runBits = 0;
+        int pos = 0;
+        for (int i = 0, count = _valueCount; i < count; ++i) {
+            final int value = _nextValue(input);
+            final int runStart = pos + (value >>> 1);
+            if (runStart >= bitOffset) {
+                break;
+            }
+            if ((value & 1) == 0) {
+                pos = runStart + 1;
+            } else {
+                pos = runStart + _nextValue(input) + 2;
+                ++i;
+            }
+            runBits += Math.min(pos, bitOffset) - runStart;
+        }
+        return _inverted ? (bitOffset - runBits) : runBits;
+    }
+
+    /**
+     * Method for complementing content of the encoded chunk in place: for
+     * runs, only the background needs to be flipped.
+     *
+     * @return Offset right after the encoded chunk
+     */
+    public int invertChunk(byte[] data, int ptr, int rawLength)
+    {
+        final int end = ptr + encodedChunkLength(data, ptr);
+        if ((data[ptr] & GapEncoder.FLAG_RAW) == 0) {
+            data[ptr] ^= GapEncoder.FLAG_INVERTED;
+        } else {
+            for (int i = end - rawLength; i < end; ++i) {
+                data[i] = (byte) ~data[i];
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Method for reporting structure of the encoded chunk to given stats object:
+     * bytes fully covered by runs (of either background or foreground bits)
+     * are reported as runs, others as literals.
+     *
+     * @return Offset right after the encoded chunk
+     */
+    int analyzeChunk(byte[] data, int ptr, int rawLength, ChunkStats stats)
+    {
+        final int end = ptr + encodedChunkLength(data, ptr);
+        if (_readValues(data, ptr) < 0) {
+            stats.literals(rawLength);
+            stats.finish();
+            return end;
+        }
+        final int[] values = _values;
+        _doneBytes = 0;
+        int pos = 0;
+        for (int i = 0, count = _valueCount; i < count; ++i) {
+            final int value = values[i];
+            final int runStart = pos + (value >>> 1);
+            final int runEnd = ((value & 1) == 0) ? (runStart + 1) : (runStart + values[++i] + 2);
+            _analyzeRun(pos, runStart, stats);
+            _analyzeRun(runStart, runEnd, stats);
+            pos = runEnd;
+        }
+        _analyzeRun(pos, rawLength << 3, stats);
+        if (_doneBytes < rawLength) {
+            stats.literals(rawLength - _doneBytes);
+        }
+        stats.finish();
+        return end;
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    private int _mask(int bit) {
+        return _bigEndian ? (0x80 >> (bit & 7)) : (1 << (bit & 7));
+    }
+
+    private void _analyzeRun(int from, int to, ChunkStats stats)
+    {
+        final int fullStart = (from + 7) >> 3;
+        final int fullEnd = to >> 3;
+        if (fullEnd > fullStart) {
+            if (fullStart > _doneBytes) {
+                stats.literals(fullStart - _doneBytes);
+            }
+            stats.run(fullEnd - fullStart);
+            _doneBytes = fullEnd;
+        }
+    }
+
+    /**
+     * Method for decoding values of the chunk at given offset.
+     *
+     * @return Offset of the data section; or -1 if chunk contains raw content
+     */
+    private int _readValues(byte[] input, int ptr)
+    {
+        ptr = _readHeader(input, ptr);
+        if (ptr < 0) {
+            return -1;
+        }
+        final int count = _valueCount;
+        if (_values == null || _values.length < count) {
+            _values = new int[Math.max(64, count + (count >> 2))];
+        }
+        final int[] values = _values;
+        final int dataStart = ptr + ((count + 3) >> 2);
+        int dataPtr = dataStart;
+        for (int i = 0; i < count; i += 4) {
+            int control = input[ptr++] & 0xFF;
+            for (int j = i, n = Math.min(count, i + 4); j < n; ++j, control >>= 2) {
+                // little-endian, 1 to 4 bytes as indicated by control bits
+                final int end = dataPtr + (control & 3);
+                int value = 0;
+                for (int k = end; k >= dataPtr; --k) {
+                    value = (value << 8) | (input[k] & 0xFF);
+                }
+                dataPtr = end + 1;
+                values[j] = value;
+            }
+        }
+        return dataStart;
+    }
+
+    /**
+     * Method for reading header of the chunk at given offset: sets
+     * {@link #_inverted} and {@link #_valueCount}.
+     *
+     * @return Offset of the control bytes; or -1 if chunk contains raw content
+     */
+    private int _readHeader(byte[] input, int ptr)
+    {
+        int head = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = input[ptr++];
+            head |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                break;
+            }
+        }
+        if ((head & GapEncoder.FLAG_RAW) != 0) {
+            return -1;
+        }
+        _inverted = (head & GapEncoder.FLAG_INVERTED) != 0;
+        _valueCount = head >>> 2;
+        return ptr;
+    }
+
+    /**
+     * Method for starting to read values of the chunk at given offset one by
+     * one, with {@link #_nextValue}, instead of all in one batch.
+     *
+     * @return Offset of the control bytes; or -1 if chunk contains raw content
+     */
+    private int _startValues(byte[] input, int ptr)
+    {
+        ptr = _readHeader(input, ptr);
+        _controlPtr = ptr;
+        _dataPtr = ptr + ((_valueCount + 3) >> 2);
+        _valueIndex = 0;
+        return ptr;
+    }
+
+    private int _nextValue(byte[] input)
+    {
+        final int i = _valueIndex++;
+        final int control = (input[_controlPtr + (i >> 2)] >> ((i & 3) << 1)) & 3;
+        final int start = _dataPtr;
+        int value = 0;
+        for (int k = start + control; k >= start; --k) {
+            value = (value << 8) | (input[k] & 0xFF);
+        }
+        _dataPtr = start + control + 1;
+        return value;
+    }
+
+    /**
+     * Helper method for setting (or clearing) bits from <code>from</code> (inclusive)
+     * to <code>to</code> (exclusive), relative to given byte offset
+     */
+    private void _fillBits(byte[] output, int base, int from, int to, boolean set)
+    {
+        final int first = from >> 3;
+        final int last = (to - 1) >> 3;
+        final int endBits = ((to - 1) & 7) + 1;
+        if (first == last) {
+            _fillByte(output, base+first, _mask(from & 7, endBits), set);
+            return;
+        }
+        _fillByte(output, base+first, _mask(from & 7, 8), set);
+        Arrays.fill(output, base+first+1, base+last, set ? (byte) 0xFF : 0);
+        _fillByte(output, base+last, _mask(0, endBits), set);
+    }
+
+    private static void _fillByte(byte[] output, int ix, int mask, boolean set)
+    {
+        if (set) {
+            output[ix] |= mask;
+        } else {
+            output[ix] &= ~mask;
+        }
+    }
+
+    /**
+     * @return Mask for bits from <code>from</code> (inclusive) to
+     *    <code>to</code> (exclusive) of a byte, in bit order used
+     */
+    private int _mask(int from, int to)
+    {
+        if (_bigEndian) {
+            return (0xFF >> from) & (0xFF << (8 - to));
+        }
+        return (0xFF << from) & (0xFF >> (8 - to));
+    }
+}
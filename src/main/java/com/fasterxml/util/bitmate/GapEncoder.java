@@ -0,0 +1,299 @@
+package com.fasterxml.util.bitmate;
+
+import java.util.Arrays;
+
+/**
+ * Encoder for chunks of {@link BitmapCodec#GAP}, meant for very sparse content:
+ * instead of bytes, content is expressed as runs of "foreground" bits (set bits,
+ * unless {@link #FLAG_INVERTED} is used) within background of opposite bits,
+ * so that a chunk with a few set bits only takes a few bytes, regardless of
+ * where in the chunk bits are.
+ *<p>
+ * Encoded chunk starts with header of a variable-length int (7 bits
+ * per byte, least-significant first, MSB set for all but the last byte, as
+ * with summary entries of {@link EncodedBitmap}): number of values stored,
+ * shifted left by 2, with {@link #FLAG_INVERTED} and {@link #FLAG_RAW} as
+ * the lowest bits. It is followed by, for runs ("stream-vbyte" layout), one control byte
+ * for each group of 4 values (2 bits per value, first value in the
+ * lowest bits, indicating length of the value in bytes, minus one),
+ * followed by data section with values as little-endian ints. Each run is
+ * expressed as value of number of background bits before the run (gap),
+ * shifted left by one, with the lowest bit set if the run is longer than
+ * one bit, in which case the next value is length of the run minus 2.
+ * So a single set bit only takes one value, and decoding can proceed a group
+ * (control byte) at a time, without branching per byte. Background bits after
+ * the last run are not stored.
+ *<p>
+ * If runs would take as much space as raw content, raw content is stored
+ * instead (with {@link #FLAG_RAW}), preceded by its length as another
+ * variable-length int; so encoded chunk is
+ * never more than {@link #MAX_HEADER_LENGTH} bytes longer than the raw content.
+ */
+public class GapEncoder
+{
+    public final static int MAX_CHUNK_SIZE = 0x10000; // that is, 64k
+
+    /**
+     * Flag for header value that indicates that runs are those of clear bits,
+     * within background of set bits
+     */
+    public final static int FLAG_INVERTED = 0x1;
+
+    /**
+     * Flag for header value that indicates that data section contains raw
+     * content, instead of runs
+     */
+    public final static int FLAG_RAW = 0x2;
+
+    /**
+     * Header of raw content takes 1 byte for flags, 3 bytes (21 bits) for
+     * length up to 64k; header of runs is shorter than that
+     */
+    public final static int MAX_HEADER_LENGTH = 4;
+
+    public final static int MAX_OUTPUT_BUFFER = MAX_CHUNK_SIZE + MAX_HEADER_LENGTH;
+
+    protected final boolean _bigEndian;
+
+    /**
+     * Values of the chunk being encoded
+     */
+    protected int[] _values = new int[64];
+
+    protected int _valueCount;
+
+    /**
+     * Length of the control bytes and data section for values so far
+     */
+    protected int _encodedLength;
+
+    /**
+     * Whether background of the chunk being encoded consists of set bits
+     */
+    protected boolean _inverted;
+
+    /**
+     * Length of the background run before the next run
+     */
+    protected int _gap;
+
+    public GapEncoder() {
+        this(BitOrder.MSB_FIRST);
+    }
+
+    public GapEncoder(BitOrder order) {
+        _bigEndian = (order == BitOrder.MSB_FIRST);
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API
+    /**********************************************************************
+     */
+
+    /**
+     * @return Offset right after last encoded byte
+     */
+    public int encode(byte[] input, int inputPtr, int inputLen,
+            byte[] output, int outputPtr)
+    {
+        if (inputLen <= 0 || inputLen > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Invalid input length ("+inputLen
+                    +"): must be between 1 and "+MAX_CHUNK_SIZE);
+        }
+        final int bits = inputLen << 3;
+        final boolean first = (_byte(input[inputPtr]) & 0x80) != 0;
+        final boolean last = (_byte(input[inputPtr + inputLen - 1]) & 0x01) != 0;
+        _start(first && last);
+
+        boolean set = first;
+        for (int pos = 0; pos < bits; set = !set) {
+            final int end = _findRunEnd(input, inputPtr, inputLen, pos, set);
+            if (!_addRun(set, end - pos, inputLen)) {
+                return _writeRaw(input, inputPtr, inputLen, output, outputPtr);
+            }
+            pos = end;
+        }
+        return _writeRuns(output, outputPtr);
+    }
+
+    /**
+     * Method for encoding a chunk with given set bits: indexes
+     * from <code>ids[ptr]</code> (inclusive) to <code>ids[end]</code> (exclusive),
+     * relative to <code>base</code>, all within the chunk. Output is identical
+     * to that of {@link #encode} for the equivalent raw chunk.
+     *
+     * @return Offset right after last encoded byte
+     */
+    public int encodeSorted(int[] ids, int ptr, final int end, long base, int rawLength,
+            byte[] output, int outputPtr)
+    {
+        final int bits = rawLength << 3;
+        final int start = ptr;
+        _start((ptr < end) && (ids[ptr] == base) && (ids[end-1] == base + bits - 1));
+
+        int pos = 0;
+        while (ptr < end) {
+            final int from = (int) (ids[ptr] - base);
+            int to = from + 1;
+            while (++ptr < end && (ids[ptr] - base) == to) {
+                ++to;
+            }
+            if ((from > pos && !_addRun(false, from - pos, rawLength))
+                    || !_addRun(true, to - from, rawLength)) {
+                return _writeRawIds(ids, start, end, base, rawLength, output, outputPtr);
+            }
+            pos = to;
+        }
+        if (pos < bits && !_addRun(false, bits - pos, rawLength)) {
+            return _writeRawIds(ids, start, end, base, rawLength, output, outputPtr);
+        }
+        return _writeRuns(output, outputPtr);
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    private void _start(boolean inverted)
+    {
+        _inverted = inverted;
+        _valueCount = 0;
+        _encodedLength = 0;
+        _gap = 0;
+    }
+
+    /**
+     * Method called with runs of the chunk, in order, alternating between
+     * set and clear bits.
+     *
+     * @return False if encoded runs would be too long (compared to
+     *    given raw length), so that raw content should be stored instead
+     */
+    private boolean _addRun(boolean set, int length, int rawLength)
+    {
+        if (set == _inverted) { // background: only need to know the gap
+            _gap = length;
+            return true;
+        }
+        _addValue((_gap << 1) | ((length > 1) ? 1 : 0));
+        if (length > 1) {
+            _addValue(length - 2);
+        }
+        _gap = 0;
+        return (_encodedLength < rawLength);
+    }
+
+    private void _addValue(int value)
+    {
+        if (_valueCount == _values.length) {
+            _values = Arrays.copyOf(_values, _valueCount + (_valueCount >> 1));
+        }
+        _values[_valueCount] = value;
+        // new group needs a control byte
+        _encodedLength += _valueLength(value) + (((_valueCount & 3) == 0) ? 1 : 0);
+        ++_valueCount;
+    }
+
+    private int _writeRuns(byte[] output, int ptr)
+    {
+        final int count = _valueCount;
+        final int controlLength = (count + 3) >> 2;
+        ptr = _writeVInt((count << 2) | (_inverted ? FLAG_INVERTED : 0), output, ptr);
+
+        final int[] values = _values;
+        int dataPtr = ptr + controlLength;
+        for (int i = 0; i < count; i += 4) {
+            int control = 0;
+            for (int j = 0, n = Math.min(4, count - i); j < n; ++j) {
+                int value = values[i+j];
+                final int len = _valueLength(value);
+                control |= (len - 1) << (j << 1);
+                for (int k = 0; k < len; ++k) {
+                    output[dataPtr++] = (byte) value;
+                    value >>>= 8;
+                }
+            }
+            output[ptr++] = (byte) control;
+        }
+        return dataPtr;
+    }
+
+    private int _writeRaw(byte[] input, int inputPtr, int inputLen, byte[] output, int ptr)
+    {
+        ptr = _writeVInt(FLAG_RAW, output, ptr);
+        ptr = _writeVInt(inputLen, output, ptr);
+        System.arraycopy(input, inputPtr, output, ptr, inputLen);
+        return ptr + inputLen;
+    }
+
+    private int _writeRawIds(int[] ids, int ptr, int end, long base, int rawLength,
+            byte[] output, int outputPtr)
+    {
+        outputPtr = _writeVInt(FLAG_RAW, output, outputPtr);
+        outputPtr = _writeVInt(rawLength, output, outputPtr);
+        Arrays.fill(output, outputPtr, outputPtr + rawLength, (byte) 0);
+        for (; ptr < end; ++ptr) {
+            final int bit = (int) (ids[ptr] - base);
+            output[outputPtr + (bit >> 3)] |= _bigEndian ? (0x80 >> (bit & 7)) : (1 << (bit & 7));
+        }
+        return outputPtr + rawLength;
+    }
+
+    /**
+     * @return Bit position (relative to the chunk start) after the end of run
+     *    of given bits that starts at given position
+     */
+    private int _findRunEnd(byte[] input, int start, int len, int pos, boolean set)
+    {
+        final int flip = set ? 0xFF : 0;
+        int ix = pos >> 3;
+        int b = (_byte(input[start+ix]) ^ flip) & (0xFF >> (pos & 7));
+        if (b != 0) {
+            return (ix << 3) + Integer.numberOfLeadingZeros(b) - 24;
+        }
+        final byte match = (byte) flip;
+        final long matchWord = set ? -1L : 0L;
+        while (++ix < len) {
+            // skip 8 bytes at a time, when possible
+            if ((ix + 8) <= len && BitRatEncoder._readWord(input, start+ix, true) == matchWord) {
+                ix += 7;
+                continue;
+            }
+            if (input[start+ix] != match) {
+                b = _byte(input[start+ix]) ^ flip;
+                return (ix << 3) + Integer.numberOfLeadingZeros(b) - 24;
+            }
+        }
+        return len << 3;
+    }
+
+    /**
+     * @return Given byte with bits in {@link BitOrder#MSB_FIRST} order
+     */
+    private int _byte(byte b) {
+        return _bigEndian ? (b & 0xFF) : (Integer.reverse(b) >>> 24);
+    }
+
+    private static int _valueLength(int value) {
+        if (value < 0x100) {
+            return 1;
+        }
+        if (value < 0x10000) {
+            return 2;
+        }
+        return (value < 0x1000000) ? 3 : 4;
+    }
+
+    private static int _writeVInt(int value, byte[] output, int ptr)
+    {
+        while (value > 0x7F) {
+            output[ptr++] = (byte) (0x80 | (value & 0x7F));
+            value >>>= 7;
+        }
+        output[ptr++] = (byte) value;
+        return ptr;
+    }
+}
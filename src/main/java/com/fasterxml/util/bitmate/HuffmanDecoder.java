@@ -0,0 +1,162 @@
+package com.fasterxml.util.bitmate;
+
+import java.util.Arrays;
+
+/**
+ * Decoder for streams produced by {@link HuffmanEncoder}: codes are decoded
+ * with a single lookup per symbol, from a table indexed by the next
+ * {@link HuffmanEncoder#MAX_CODE_LENGTH} bits of input, with entries
+ * consisting of symbol and length of its code.
+ */
+public class HuffmanDecoder
+{
+    private final static int TABLE_BITS = HuffmanEncoder.MAX_CODE_LENGTH;
+
+    /**
+     * Decoding table: symbol shifted left by 4, plus code length; zero
+     * for unused entries
+     */
+    protected final short[] _table = new short[1 << TABLE_BITS];
+
+    public HuffmanDecoder() { }
+
+    /*
+    /**********************************************************************
+    /* Public API
+    /**********************************************************************
+     */
+
+    /**
+     * @return Length of raw content of the encoded stream at given offset
+     */
+    public static int decodedLength(byte[] input, int inputPtr) {
+        return _readVInt(input, inputPtr) >>> 1;
+    }
+
+    /**
+     * Method for decoding stream at given offset; output buffer must have
+     * room for {@link #decodedLength} bytes.
+     *
+     * @return Offset right after the encoded stream
+     */
+    public int decode(byte[] input, int inputPtr, byte[] output, int outputPtr)
+    {
+        final int head = _readVInt(input, inputPtr);
+        inputPtr += _vintLength(head);
+        final int rawLength = head >>> 1;
+        if ((head & HuffmanEncoder.FLAG_RAW) != 0) {
+            _verifyLength(input, inputPtr + rawLength);
+            System.arraycopy(input, inputPtr, output, outputPtr, rawLength);
+            return inputPtr + rawLength;
+        }
+        inputPtr = _buildTable(input, inputPtr);
+        final int codeLength = _readVInt(input, inputPtr);
+        inputPtr += _vintLength(codeLength);
+        final int end = inputPtr + codeLength;
+        _verifyLength(input, end);
+
+        final short[] table = _table;
+        long buffer = 0L; // bits not yet consumed, MSB-aligned
+        int bits = 0;
+        for (final int outputEnd = outputPtr + rawLength; outputPtr < outputEnd; ++outputPtr) {
+            if (bits < TABLE_BITS) {
+                // past the end, pad with zero bits
+                for (; bits <= 56; bits += 8) {
+                    final int b = (inputPtr < end) ? (input[inputPtr++] & 0xFF) : 0;
+                    buffer |= (long) b << (56 - bits);
+                }
+            }
+            final int entry = table[(int) (buffer >>> (64 - TABLE_BITS))];
+            final int len = entry & 0xF;
+            if (len == 0) {
+                throw new IllegalArgumentException("Invalid encoded content: unknown code");
+            }
+            output[outputPtr] = (byte) (entry >> 4);
+            buffer <<= len;
+            bits -= len;
+        }
+        return end;
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    /**
+     * Method for reading code lengths from the header and constructing
+     * decoding table from canonical codes.
+     *
+     * @return Offset right after code lengths
+     */
+    private int _buildTable(byte[] input, int ptr)
+    {
+        final int[] lengths = new int[256];
+        final int[] lengthCounts = new int[TABLE_BITS + 1];
+        final int lengthPtr = ptr + HuffmanEncoder.SYMBOL_BITMAP_LENGTH;
+        int nibble = 0;
+        for (int sym = 0; sym < 256; ++sym) {
+            if ((input[ptr + (sym >> 3)] & (0x80 >> (sym & 7))) != 0) {
+                final int b = input[lengthPtr + (nibble >> 1)];
+                final int len = ((nibble++ & 1) == 0) ? ((b >> 4) & 0xF) : (b & 0xF);
+                if (len == 0 || len > TABLE_BITS) {
+                    throw new IllegalArgumentException("Invalid encoded content: code length "
+                            +len+" for symbol "+sym);
+                }
+                lengths[sym] = len;
+                ++lengthCounts[len];
+            }
+        }
+        final int[] nextCode = new int[TABLE_BITS + 1];
+        for (int len = 1, code = 0; len <= TABLE_BITS; ++len) {
+            code = (code + lengthCounts[len-1]) << 1;
+            nextCode[len] = code;
+        }
+        final short[] table = _table;
+        Arrays.fill(table, (short) 0);
+        for (int sym = 0; sym < 256; ++sym) {
+            final int len = lengths[sym];
+            if (len > 0) {
+                final int shift = TABLE_BITS - len;
+                final int start = nextCode[len]++ << shift;
+                final int end = start + (1 << shift);
+                if (end > table.length) {
+                    throw new IllegalArgumentException("Invalid encoded content: code lengths over-subscribed");
+                }
+                Arrays.fill(table, start, end, (short) ((sym << 4) | len));
+            }
+        }
+        return lengthPtr + ((nibble + 1) >> 1);
+    }
+
+    private static void _verifyLength(byte[] input, int end)
+    {
+        if (end > input.length) {
+            throw new IllegalArgumentException("Invalid encoded content: truncated, needs "
+                    +end+" bytes, has "+input.length);
+        }
+    }
+
+    private static int _readVInt(byte[] input, int ptr)
+    {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = input[ptr++];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    private static int _vintLength(int value)
+    {
+        int len = 1;
+        while (value > 0x7F) {
+            value >>>= 7;
+            ++len;
+        }
+        return len;
+    }
+}
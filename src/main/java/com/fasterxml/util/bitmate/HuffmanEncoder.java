@@ -0,0 +1,284 @@
+package com.fasterxml.util.bitmate;
+
+import java.util.Arrays;
+
+/**
+ * Entropy coder for byte streams, using canonical Huffman codes limited to
+ * {@link #MAX_CODE_LENGTH} bits, so that {@link HuffmanDecoder} can decode
+ * each symbol with a single lookup from a table of 2k entries (4kB), small
+ * enough to stay in L1 cache.
+ *<p>
+ * Encoded stream starts with a variable-length int (7 bits per byte,
+ * least-significant first, MSB set for all but the last byte): length of
+ * raw content, shifted left by 1, with {@link #FLAG_RAW} as the lowest bit.
+ * If flag is set, raw content follows as is (used when codes would not
+ * be shorter); otherwise:
+ *<ol>
+ * <li>Bitmap of symbols used, 32 bytes, symbol 0 as MSB of the first byte</li>
+ * <li>Code lengths of used symbols in ascending order, 4 bits each, two per
+ *   byte (first one as the high nibble)</li>
+ * <li>Length of codes in bytes, as variable-length int</li>
+ * <li>Codes, MSB first, last byte padded with zero bits</li>
+ *</ol>
+ * Since codes are canonical, lengths are enough to reconstruct them.
+ */
+public class HuffmanEncoder
+{
+    public final static int MAX_CODE_LENGTH = 11;
+
+    /**
+     * Flag for header value that indicates that raw content is stored as is
+     */
+    public final static int FLAG_RAW = 0x1;
+
+    protected final static int SYMBOL_BITMAP_LENGTH = 32;
+
+    protected final int[] _counts = new int[256];
+
+    protected final int[] _lengths = new int[256];
+
+    protected final int[] _codes = new int[256];
+
+    /**
+     * Symbols used by content being encoded, combined with counts (as
+     * <code>(count &lt;&lt; 8) | symbol</code>), for sorting
+     */
+    protected final long[] _sorted = new long[256];
+
+    protected final int[] _work = new int[256];
+
+    public HuffmanEncoder() { }
+
+    /*
+    /**********************************************************************
+    /* Public API
+    /**********************************************************************
+     */
+
+    /**
+     * @return Maximum length of encoded stream for raw content of given length
+     */
+    public static int maxEncodedLength(int inputLen) {
+        return inputLen + 5;
+    }
+
+    /**
+     * @return Offset right after last encoded byte
+     */
+    public int encode(byte[] input, int inputPtr, int inputLen, byte[] output, int outputPtr)
+    {
+        if (inputLen < 0 || inputLen > (Integer.MAX_VALUE >> 1)) {
+            throw new IllegalArgumentException("Invalid input length ("+inputLen+")");
+        }
+        final int[] counts = _counts;
+        Arrays.fill(counts, 0);
+        for (int i = inputPtr, end = inputPtr + inputLen; i < end; ++i) {
+            ++counts[input[i] & 0xFF];
+        }
+        int symbols = 0;
+        for (int sym = 0; sym < 256; ++sym) {
+            if (counts[sym] > 0) {
+                ++symbols;
+            }
+        }
+        final long codeBits = (symbols == 0) ? 0L : _buildCodes(symbols);
+        final int codeLength = (int) ((codeBits + 7L) >> 3);
+        final int encodedLength = SYMBOL_BITMAP_LENGTH + ((symbols + 1) >> 1)
+                + _vintLength(codeLength) + codeLength;
+        if (encodedLength >= inputLen) {
+            outputPtr = _writeVInt((inputLen << 1) | FLAG_RAW, output, outputPtr);
+            System.arraycopy(input, inputPtr, output, outputPtr, inputLen);
+            return outputPtr + inputLen;
+        }
+        outputPtr = _writeVInt(inputLen << 1, output, outputPtr);
+
+        // header: symbols used, then their code lengths
+        final int[] lengths = _lengths;
+        Arrays.fill(output, outputPtr, outputPtr + SYMBOL_BITMAP_LENGTH, (byte) 0);
+        for (int sym = 0; sym < 256; ++sym) {
+            if (lengths[sym] > 0) {
+                output[outputPtr + (sym >> 3)] |= (byte) (0x80 >> (sym & 7));
+            }
+        }
+        outputPtr += SYMBOL_BITMAP_LENGTH;
+        int nibble = 0;
+        for (int sym = 0; sym < 256; ++sym) {
+            if (lengths[sym] > 0) {
+                if ((nibble++ & 1) == 0) {
+                    output[outputPtr] = (byte) (lengths[sym] << 4);
+                } else {
+                    output[outputPtr++] |= (byte) lengths[sym];
+                }
+            }
+        }
+        if ((nibble & 1) != 0) {
+            ++outputPtr;
+        }
+        outputPtr = _writeVInt(codeLength, output, outputPtr);
+
+        // and then codes themselves
+        final int[] codes = _codes;
+        int acc = 0;
+        int accBits = 0;
+        for (int i = inputPtr, end = inputPtr + inputLen; i < end; ++i) {
+            final int sym = input[i] & 0xFF;
+            acc = (acc << lengths[sym]) | codes[sym];
+            accBits += lengths[sym];
+            while (accBits >= 8) {
+                accBits -= 8;
+                output[outputPtr++] = (byte) (acc >> accBits);
+            }
+        }
+        if (accBits > 0) {
+            output[outputPtr++] = (byte) (acc << (8 - accBits));
+        }
+        return outputPtr;
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    /**
+     * Method for calculating length-limited code lengths and canonical codes
+     * for symbols with non-zero counts.
+     *
+     * @return Total length of codes for content, in bits
+     */
+    private long _buildCodes(int symbols)
+    {
+        final int[] counts = _counts;
+        final int[] lengths = _lengths;
+        final int[] work = _work;
+        final int[] weights = Arrays.copyOf(counts, 256);
+        Arrays.fill(lengths, 0);
+
+        if (symbols == 1) {
+            for (int sym = 0; sym < 256; ++sym) {
+                if (counts[sym] > 0) {
+                    lengths[sym] = 1;
+                }
+            }
+        } else {
+            while (true) {
+                int n = 0;
+                for (int sym = 0; sym < 256; ++sym) {
+                    if (weights[sym] > 0) {
+                        _sorted[n++] = ((long) weights[sym] << 8) | sym;
+                    }
+                }
+                Arrays.sort(_sorted, 0, n);
+                for (int i = 0; i < n; ++i) {
+                    work[i] = (int) (_sorted[i] >>> 8);
+                }
+                _calculateLengths(work, n);
+                // longest code is for the least common symbol
+                if (work[0] <= MAX_CODE_LENGTH) {
+                    for (int i = 0; i < n; ++i) {
+                        lengths[(int) _sorted[i] & 0xFF] = work[i];
+                    }
+                    break;
+                }
+                // too long: flatten distribution (keeping all symbols) and retry
+                for (int sym = 0; sym < 256; ++sym) {
+                    weights[sym] = (weights[sym] + 1) >> 1;
+                }
+            }
+        }
+
+        // canonical codes: shorter codes first, same-length codes by symbol
+        final int[] lengthCounts = new int[MAX_CODE_LENGTH + 1];
+        for (int sym = 0; sym < 256; ++sym) {
+            ++lengthCounts[lengths[sym]];
+        }
+        lengthCounts[0] = 0;
+        final int[] nextCode = new int[MAX_CODE_LENGTH + 1];
+        for (int len = 1, code = 0; len <= MAX_CODE_LENGTH; ++len) {
+            code = (code + lengthCounts[len-1]) << 1;
+            nextCode[len] = code;
+        }
+        long bits = 0L;
+        for (int sym = 0; sym < 256; ++sym) {
+            final int len = lengths[sym];
+            if (len > 0) {
+                _codes[sym] = nextCode[len]++;
+                bits += (long) counts[sym] * len;
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * In-place calculation of minimum-redundancy code lengths, as per
+     * Moffat and Katajainen: given weights in non-decreasing order, replaces
+     * them with code lengths.
+     */
+    static void _calculateLengths(int[] a, int n)
+    {
+        a[0] += a[1];
+        int root = 0;
+        int leaf = 2;
+        for (int next = 1; next < n-1; ++next) {
+            // first child
+            if (leaf >= n || a[root] < a[leaf]) {
+                a[next] = a[root];
+                a[root++] = next;
+            } else {
+                a[next] = a[leaf++];
+            }
+            // second child
+            if (leaf >= n || (root < next && a[root] < a[leaf])) {
+                a[next] += a[root];
+                a[root++] = next;
+            } else {
+                a[next] += a[leaf++];
+            }
+        }
+        // parent pointers to internal node depths
+        a[n-2] = 0;
+        for (int next = n-3; next >= 0; --next) {
+            a[next] = a[a[next]] + 1;
+        }
+        // and internal node depths to leaf depths
+        int avail = 1;
+        int used = 0;
+        int depth = 0;
+        int node = n-2;
+        int next = n-1;
+        while (avail > 0) {
+            while (node >= 0 && a[node] == depth) {
+                ++used;
+                --node;
+            }
+            while (avail > used) {
+                a[next--] = depth;
+                --avail;
+            }
+            avail = used << 1;
+            ++depth;
+            used = 0;
+        }
+    }
+
+    private static int _vintLength(int value)
+    {
+        int len = 1;
+        while (value > 0x7F) {
+            value >>>= 7;
+            ++len;
+        }
+        return len;
+    }
+
+    private static int _writeVInt(int value, byte[] output, int ptr)
+    {
+        while (value > 0x7F) {
+            output[ptr++] = (byte) (0x80 | (value & 0x7F));
+            value >>>= 7;
+        }
+        output[ptr++] = (byte) value;
+        return ptr;
+    }
+}
@@ -0,0 +1,703 @@
+package com.fasterxml.util.bitmate;
+
+import java.util.Arrays;
+
+/**
+ * Decoder for chunks produced by {@link NibblerEncoder}. Since encoded chunks
+ * only contain length of encoded content, caller needs to pass length of
+ * the original (raw) content.
+ *<p>
+ * With skip tables (see {@link BitmapCodec#hasSkipTables()}), each chunk is
+ * followed by a table (written by {@link #writeSkipTable}) that allows
+ * decoding to start mid-chunk. Conceptually there is an entry for each
+ * {@link #SKIP_INTERVAL} bytes of raw content, except the first, but only
+ * entries from the first one that does not point to the beginning of the
+ * chunk up to the last one that differs from its predecessor are stored;
+ * lookups past the last one use it. Table consists of the number of the
+ * first stored entry (1-based; one byte), number of entries stored (one byte)
+ * and entries themselves, each consisting of 3 big-endian values:
+ *<ol>
+ * <li>Raw offset of the last literal segment that starts at or before the
+ *   boundary (2 bytes)</li>
+ * <li>Position of the length indicator of that segment, in nibbles from the
+ *   start of the chunk (2 bytes; 3 with wide lengths)</li>
+ * <li>Number of set bits before that segment (2 bytes; 3 with wide lengths)</li>
+ *</ol>
+ */
+public class NibblerDecoder
+{
+    /**
+     * Length of the chunk header {@link NibblerEncoder} produces
+     */
+    public final static int HEADER_LENGTH = 2;
+
+    /**
+     * Length of the chunk header {@link NibblerEncoder} produces when using
+     * wide lengths
+     */
+    public final static int WIDE_HEADER_LENGTH = 3;
+
+    /**
+     * Number of raw bytes between entries of skip tables
+     */
+    public final static int SKIP_INTERVAL = 512;
+
+    protected byte[] _input;
+
+    protected int _inputPtr;
+
+    /**
+     * Pointer to the byte that has an unread nibble in its LSB;
+     * -1 if none.
+     */
+    protected int _nibblePtr;
+
+    /**
+     * Mask for the last bit of a byte, given bit order used
+     */
+    protected final int _lastBit;
+
+    /**
+     * Whether content uses wide chunk header and long length fields
+     */
+    protected final boolean _wide;
+
+    protected final int _headerLength;
+
+    /**
+     * Whether chunks are followed by skip tables
+     */
+    protected final boolean _skipTables;
+
+    protected final BitOrder _bitOrder;
+
+    /**
+     * When starting decoding mid-chunk, number of set bits before starting
+     * position
+     */
+    protected int _ones;
+
+    /**
+     * When starting decoding from the beginning of the chunk, length
+     * of the initial run, if any; 0 if none
+     */
+    protected int _initialRun;
+
+    public NibblerDecoder() {
+        this(BitOrder.MSB_FIRST);
+    }
+
+    public NibblerDecoder(BitOrder order) {
+        this(order, false);
+    }
+
+    /**
+     * @param wide Whether content was encoded using wide lengths;
+     *    see {@link NibblerEncoder#NibblerEncoder(BitOrder, boolean)}
+     */
+    public NibblerDecoder(BitOrder order, boolean wide) {
+        this(order, wide, false);
+    }
+
+    /**
+     * @param skipTables Whether encoded chunks are followed by skip tables;
+     *    see {@link BitmapCodec#hasSkipTables()}
+     */
+    public NibblerDecoder(BitOrder order, boolean wide, boolean skipTables) {
+        _bitOrder = order;
+        _lastBit = order.lastBitMask();
+        _wide = wide;
+        _headerLength = wide ? WIDE_HEADER_LENGTH : HEADER_LENGTH;
+        _skipTables = skipTables;
+    }
+
+    /**
+     * Convenience constructor for decoding chunks of given Nibbler codec
+     */
+    public NibblerDecoder(BitmapCodec codec, BitOrder order) {
+        this(order, codec.hasWideLengths(), codec.hasSkipTables());
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API
+    /**********************************************************************
+     */
+
+    /**
+     * Helper method for finding out the total length of the encoded chunk
+     * starting at given offset, including header.
+     */
+    public static int encodedChunkLength(byte[] input, int inputPtr)
+    {
+        return HEADER_LENGTH + (((input[inputPtr] & 0x3F) << 8) | (input[inputPtr+1] & 0xFF));
+    }
+
+    /**
+     * Variant of {@link #encodedChunkLength(byte[], int)} for content encoded
+     * with or without wide lengths.
+     */
+    public static int encodedChunkLength(byte[] input, int inputPtr, boolean wide)
+    {
+        if (!wide) {
+            return encodedChunkLength(input, inputPtr);
+        }
+        return WIDE_HEADER_LENGTH + (((input[inputPtr] & 0x3F) << 16)
+                | ((input[inputPtr+1] & 0xFF) << 8) | (input[inputPtr+2] & 0xFF));
+    }
+
+    /**
+     * @return Length of skip table at given offset (right after encoded chunk)
+     */
+    public static int skipTableLength(byte[] input, int ptr, boolean wide) {
+        return 2 + (input[ptr+1] & 0xFF) * _skipEntryLength(wide);
+    }
+
+    /**
+     * @return Maximum length of skip table for chunk with given length of raw content
+     */
+    public static int skipTableLength(int rawLength, boolean wide) {
+        return 2 + _skipEntryCount(rawLength) * _skipEntryLength(wide);
+    }
+
+    /**
+     * @param rawLength Length of content that was encoded
+     *
+     * @return Offset right after the encoded chunk (including skip table, if any)
+     */
+    public int decode(byte[] input, int inputPtr, byte[] output, int outputPtr, int rawLength)
+    {
+        final int marker = input[inputPtr] & 0xC0;
+        final int end = _chunkEnd(input, inputPtr);
+        final int outputEnd = outputPtr + rawLength;
+
+        _input = input;
+        _inputPtr = inputPtr + _headerLength;
+        _nibblePtr = -1;
+
+        if (marker != 0x80) { // starts with a zero/one run; minimum length of 1
+            int count = _readLength() + 1;
+            Arrays.fill(output, outputPtr, outputPtr+count, (marker == 0) ? 0 : (byte) 0xFF);
+            outputPtr += count;
+        }
+        while (outputPtr < outputEnd) {
+            // literal run first; with possible shuffling of first bytes
+            final boolean hadNibble = (_nibblePtr >= 0);
+            final int lengthStart = _inputPtr;
+            final int count = _readLength() + 1;
+            final int moved = (_inputPtr - lengthStart) - (hadNibble ? 0 : 1);
+            int ptr = _inputPtr;
+            System.arraycopy(input, ptr, output, outputPtr + moved, count - moved);
+            ptr += count - moved;
+            if (moved > 0) {
+                System.arraycopy(input, ptr, output, outputPtr, moved);
+                ptr += moved;
+            }
+            _inputPtr = ptr;
+            outputPtr += count;
+            if (outputPtr >= outputEnd) {
+                break;
+            }
+            // and then a run, continuing from the last bit of the last literal; minimum length of 3
+            byte match = ((output[outputPtr-1] & _lastBit) == 0) ? 0 : (byte) 0xFF;
+            int runLength = _readLength() + 3;
+            Arrays.fill(output, outputPtr, outputPtr+runLength, match);
+            outputPtr += runLength;
+        }
+        return end;
+    }
+
+    /**
+     * Alternative to {@link #decode(byte[], int, byte[], int, int)} that feeds
+     * decoded content to given combiner, passing runs as such.
+     *
+     * @return Offset right after the encoded chunk
+     */
+    int decode(byte[] input, int inputPtr, WordCombiner output, int rawLength)
+    {
+        final int marker = input[inputPtr] & 0xC0;
+        final int end = _chunkEnd(input, inputPtr);
+        int left = rawLength;
+
+        _input = input;
+        _inputPtr = inputPtr + _headerLength;
+        _nibblePtr = -1;
+
+        if (marker != 0x80) {
+            int count = _readLength() + 1;
+            output.addRun(marker != 0, count);
+            left -= count;
+        }
+        while (left > 0) {
+            final boolean hadNibble = (_nibblePtr >= 0);
+            final int lengthStart = _inputPtr;
+            final int count = _readLength() + 1;
+            final int moved = (_inputPtr - lengthStart) - (hadNibble ? 0 : 1);
+            final int ptr = _inputPtr;
+            // shuffled bytes come first in content, but are stored last
+            final int rest = count - moved;
+            if (moved > 0) {
+                output.addBytes(input, ptr + rest, moved);
+            }
+            output.addBytes(input, ptr, rest);
+            final int last = input[(rest > 0) ? (ptr + rest - 1) : (ptr + count - 1)];
+            _inputPtr = ptr + count;
+            left -= count;
+            if (left <= 0) {
+                break;
+            }
+            int runLength = _readLength() + 3;
+            output.addRun((last & _lastBit) != 0, runLength);
+            left -= runLength;
+        }
+        return end;
+    }
+
+    /**
+     * Method for complementing an encoded chunk in place, without decoding it:
+     * marker of the initial run (if any) is swapped and literal bytes inverted;
+     * other runs continue the last bit of the preceding literal so they
+     * need no changes. Counts of set bits in skip table, if any, are updated.
+     *
+     * @param rawLength Length of content that was encoded
+     *
+     * @return Offset right after the encoded chunk
+     */
+    public int invertChunk(byte[] data, int ptr, int rawLength)
+    {
+        final int marker = data[ptr] & 0xC0;
+        final int end = _chunkEnd(data, ptr);
+        int left = rawLength;
+
+        _input = data;
+        _inputPtr = ptr + _headerLength;
+        _nibblePtr = -1;
+
+        if (marker != 0x80) {
+            data[ptr] ^= 0x40;
+            left -= _readLength() + 1;
+        }
+        while (left > 0) {
+            final int count = _readLength() + 1;
+            for (int i = _inputPtr, litEnd = _inputPtr + count; i < litEnd; ++i) {
+                data[i] = (byte) ~data[i];
+            }
+            _inputPtr += count;
+            left -= count;
+            if (left <= 0) {
+                break;
+            }
+            left -= _readLength() + 3;
+        }
+        _input = null;
+        if (_skipTables) { // set bits before each entry become clear bits and vice versa
+            final int entryLength = _skipEntryLength(_wide);
+            final int width = _wide ? 3 : 2;
+            int entryPtr = ptr + encodedChunkLength(data, ptr, _wide) + 1;
+            for (int i = data[entryPtr++] & 0xFF; i > 0; --i, entryPtr += entryLength) {
+                final int pos = _readValue(data, entryPtr, 2);
+                final int ones = _readValue(data, entryPtr+2+width, width);
+                _writeValue(data, entryPtr+2+width, (pos << 3) - ones, width);
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Method for collecting statistics on structure of an encoded chunk,
+     * without decoding it.
+     *
+     * @return Offset right after the encoded chunk
+     */
+    int analyzeChunk(byte[] data, int ptr, int rawLength, ChunkStats stats)
+    {
+        final int marker = data[ptr] & 0xC0;
+        final int end = _chunkEnd(data, ptr);
+        int left = rawLength;
+
+        _input = data;
+        _inputPtr = ptr + _headerLength;
+        _nibblePtr = -1;
+
+        if (marker != 0x80) {
+            final int count = _readLength(stats) + 1;
+            stats.run(count);
+            left -= count;
+        }
+        while (left > 0) {
+            final int count = _readLength(stats) + 1;
+            stats.literals(count);
+            _inputPtr += count;
+            left -= count;
+            if (left <= 0) {
+                break;
+            }
+            final int runLength = _readLength(stats) + 3;
+            stats.run(runLength);
+            left -= runLength;
+        }
+        stats.finish();
+        _input = null;
+        return end;
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API, partial decoding
+    /**********************************************************************
+     */
+
+    /**
+     * Method for decoding bytes from <code>from</code> (inclusive) to <code>to</code>
+     * (exclusive) of the raw content of given chunk. With skip tables, decoding
+     * starts from the closest entry before <code>from</code>; otherwise from
+     * the beginning of the chunk, but only content within range is copied.
+     */
+    public void decodeRange(byte[] input, int inputPtr, int rawLength, int from, int to,
+            byte[] output, int outputPtr)
+    {
+        int pos = _start(input, inputPtr, from);
+        if (_initialRun > 0) {
+            _fill((input[inputPtr] & 0xC0) != 0, pos, _initialRun, from, to, output, outputPtr);
+            pos += _initialRun;
+        }
+        while (pos < to) {
+            final boolean hadNibble = (_nibblePtr >= 0);
+            final int lengthStart = _inputPtr;
+            final int count = _readLength() + 1;
+            final int moved = (_inputPtr - lengthStart) - (hadNibble ? 0 : 1);
+            final int ptr = _inputPtr;
+            // shuffled bytes come first in content, but are stored last
+            final int rest = count - moved;
+            _copy(input, ptr + rest, pos, moved, from, to, output, outputPtr);
+            _copy(input, ptr, pos + moved, rest, from, to, output, outputPtr);
+            final int last = input[(rest > 0) ? (ptr + rest - 1) : (ptr + count - 1)];
+            _inputPtr = ptr + count;
+            pos += count;
+            if (pos >= to) {
+                break;
+            }
+            final int runLength = _readLength() + 3;
+            _fill((last & _lastBit) != 0, pos, runLength, from, to, output, outputPtr);
+            pos += runLength;
+        }
+        _input = null;
+    }
+
+    /**
+     * Method for counting set bits of given chunk before given bit offset
+     * (relative to the chunk start). With skip tables, counting
+     * starts from the closest entry before the offset.
+     */
+    public int rank(byte[] input, int inputPtr, int rawLength, int bitOffset)
+    {
+        final int to = bitOffset >> 3;
+        int pos = _start(input, inputPtr, to);
+        int ones = _ones;
+        if (_initialRun > 0) {
+            if ((input[inputPtr] & 0xC0) != 0) {
+                ones += Math.min(_initialRun, to) << 3;
+            }
+            pos += _initialRun;
+        }
+        while (pos < to) {
+            final boolean hadNibble = (_nibblePtr >= 0);
+            final int lengthStart = _inputPtr;
+            final int count = _readLength() + 1;
+            final int moved = (_inputPtr - lengthStart) - (hadNibble ? 0 : 1);
+            final int ptr = _inputPtr;
+            final int rest = count - moved;
+            ones += _countBits(input, ptr + rest, pos, moved, to);
+            ones += _countBits(input, ptr, pos + moved, rest, to);
+            final int last = input[(rest > 0) ? (ptr + rest - 1) : (ptr + count - 1)];
+            _inputPtr = ptr + count;
+            pos += count;
+            if (pos >= to) {
+                break;
+            }
+            final int runLength = _readLength() + 3;
+            if ((last & _lastBit) != 0) {
+                ones += Math.min(runLength, to - pos) << 3;
+            }
+            pos += runLength;
+        }
+        _input = null;
+        final int bits = bitOffset & 7;
+        if (bits != 0) {
+            final byte[] b = new byte[1];
+            decodeRange(input, inputPtr, rawLength, to, to+1, b, 0);
+            final int mask = (_bitOrder == BitOrder.MSB_FIRST) ? (0xFF00 >> bits) : ((1 << bits) - 1);
+            ones += Integer.bitCount(b[0] & mask & 0xFF);
+        }
+        return ones;
+    }
+
+    /**
+     * Method for writing skip table for the encoded chunk at given offset
+     * (that does not yet have one).
+     *
+     * @return Offset right after the skip table
+     */
+    int writeSkipTable(byte[] input, int inputPtr, int rawLength, byte[] output, int outputPtr)
+    {
+        final int marker = input[inputPtr] & 0xC0;
+        final int count = _skipEntryCount(rawLength);
+        final int tablePtr = outputPtr;
+        outputPtr += 2;
+
+        _input = input;
+        _inputPtr = inputPtr + _headerLength;
+        _nibblePtr = -1;
+
+        int pos = 0;
+        int ones = 0;
+        if (marker != 0x80) {
+            final int runLength = _readLength() + 1;
+            if (marker != 0) {
+                ones += runLength << 3;
+            }
+            pos += runLength;
+        }
+        int entry = 1;
+        int entryPos = 0, entryNibble = 0, entryOnes = 0;
+        while (pos < rawLength) {
+            // boundaries before this segment point to the previous one
+            for (; entry <= count && (entry * SKIP_INTERVAL) < pos; ++entry) {
+                outputPtr = _writeSkipEntry(output, outputPtr, entryPos, entryNibble, entryOnes);
+            }
+            entryPos = pos;
+            entryNibble = _nibblePosition() - (inputPtr << 1);
+            entryOnes = ones;
+
+            final boolean hadNibble = (_nibblePtr >= 0);
+            final int lengthStart = _inputPtr;
+            final int litCount = _readLength() + 1;
+            final int moved = (_inputPtr - lengthStart) - (hadNibble ? 0 : 1);
+            final int ptr = _inputPtr;
+            for (int i = ptr, end = ptr + litCount; i < end; ++i) {
+                ones += Integer.bitCount(input[i] & 0xFF);
+            }
+            final int rest = litCount - moved;
+            final int last = input[(rest > 0) ? (ptr + rest - 1) : (ptr + litCount - 1)];
+            _inputPtr = ptr + litCount;
+            pos += litCount;
+            if (pos >= rawLength) {
+                break;
+            }
+            final int runLength = _readLength() + 3;
+            if ((last & _lastBit) != 0) {
+                ones += runLength << 3;
+            }
+            pos += runLength;
+        }
+        if (entryPos > 0) {
+            for (; entry <= count; ++entry) {
+                outputPtr = _writeSkipEntry(output, outputPtr, entryPos, entryNibble, entryOnes);
+            }
+        }
+        _input = null;
+        // leading entries for the beginning of the chunk are not needed; nor are
+        // trailing ones that repeat the previous one, as lookups use the last entry
+        final int entryLength = _skipEntryLength(_wide);
+        final int entriesPtr = tablePtr + 2;
+        int start = entriesPtr;
+        while (start < outputPtr && _readValue(output, start, 2) == 0) {
+            start += entryLength;
+        }
+        int end = outputPtr;
+        while ((end - entryLength) > start
+                && _sameEntry(output, end - 2*entryLength, end - entryLength, entryLength)) {
+            end -= entryLength;
+        }
+        final int stored = (end - start) / entryLength;
+        output[tablePtr] = (byte) ((stored == 0) ? 0 : (1 + (start - entriesPtr) / entryLength));
+        output[tablePtr+1] = (byte) stored;
+        System.arraycopy(output, start, output, entriesPtr, end - start);
+        return entriesPtr + (end - start);
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    private int _chunkEnd(byte[] input, int ptr)
+    {
+        int end = ptr + encodedChunkLength(input, ptr, _wide);
+        if (_skipTables) {
+            end += skipTableLength(input, end, _wide);
+        }
+        return end;
+    }
+
+    private static int _skipEntryCount(int rawLength) {
+        return (rawLength - 1) / SKIP_INTERVAL;
+    }
+
+    private static int _skipEntryLength(boolean wide) {
+        return wide ? 8 : 6;
+    }
+
+    /**
+     * Method for setting up decoding state for content at given raw offset:
+     * either from the closest skip table entry, or from the beginning of
+     * the chunk (in which case length of the initial run, if any, is set
+     * as {@link #_initialRun}).
+     *
+     * @return Raw offset at which decoding starts
+     */
+    private int _start(byte[] input, int inputPtr, int from)
+    {
+        _input = input;
+        _nibblePtr = -1;
+        _ones = 0;
+        _initialRun = 0;
+        if (_skipTables && from >= SKIP_INTERVAL) {
+            int ptr = inputPtr + encodedChunkLength(input, inputPtr, _wide);
+            final int first = input[ptr] & 0xFF;
+            final int stored = input[ptr+1] & 0xFF;
+            final int entry = Math.min(from / SKIP_INTERVAL, first + stored - 1);
+            if (stored > 0 && entry >= first) {
+                ptr += 2 + (entry - first) * _skipEntryLength(_wide);
+                final int width = _wide ? 3 : 2;
+                final int nibble = _readValue(input, ptr+2, width);
+                _ones = _readValue(input, ptr+2+width, width);
+                _inputPtr = inputPtr + ((nibble + 1) >> 1);
+                if ((nibble & 1) != 0) {
+                    _nibblePtr = _inputPtr - 1;
+                }
+                return _readValue(input, ptr, 2);
+            }
+        }
+        _inputPtr = inputPtr + _headerLength;
+        if ((input[inputPtr] & 0xC0) != 0x80) {
+            _initialRun = _readLength() + 1;
+        }
+        return 0;
+    }
+
+    private int _writeSkipEntry(byte[] output, int ptr, int pos, int nibble, int ones)
+    {
+        final int width = _wide ? 3 : 2;
+        ptr = _writeValue(output, ptr, pos, 2);
+        ptr = _writeValue(output, ptr, nibble, width);
+        return _writeValue(output, ptr, ones, width);
+    }
+
+    private static boolean _sameEntry(byte[] data, int ptr1, int ptr2, int length)
+    {
+        for (int i = 0; i < length; ++i) {
+            if (data[ptr1+i] != data[ptr2+i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int _writeValue(byte[] output, int ptr, int value, int width)
+    {
+        for (int shift = (width - 1) << 3; shift >= 0; shift -= 8) {
+            output[ptr++] = (byte) (value >> shift);
+        }
+        return ptr;
+    }
+
+    private static int _readValue(byte[] input, int ptr, int width)
+    {
+        int value = 0;
+        for (int end = ptr + width; ptr < end; ++ptr) {
+            value = (value << 8) | (input[ptr] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Helper method for copying part of a literal segment, at raw offset
+     * <code>segStart</code>, that is within range
+     */
+    private static void _copy(byte[] input, int inputPtr, int segStart, int segLength,
+            int from, int to, byte[] output, int outputPtr)
+    {
+        final int start = Math.max(segStart, from);
+        final int end = Math.min(segStart + segLength, to);
+        if (start < end) {
+            System.arraycopy(input, inputPtr + (start - segStart), output,
+                    outputPtr + (start - from), end - start);
+        }
+    }
+
+    private static void _fill(boolean set, int segStart, int segLength,
+            int from, int to, byte[] output, int outputPtr)
+    {
+        final int start = Math.max(segStart, from);
+        final int end = Math.min(segStart + segLength, to);
+        if (start < end) {
+            Arrays.fill(output, outputPtr + (start - from), outputPtr + (end - from),
+                    set ? (byte) 0xFF : 0);
+        }
+    }
+
+    /**
+     * @return Number of set bits in part of a literal segment, at raw offset
+     *    <code>segStart</code>, that is before <code>to</code>
+     */
+    private static int _countBits(byte[] input, int inputPtr, int segStart, int segLength, int to)
+    {
+        int ones = 0;
+        for (int i = 0, end = Math.min(segLength, to - segStart); i < end; ++i) {
+            ones += Integer.bitCount(input[inputPtr+i] & 0xFF);
+        }
+        return ones;
+    }
+
+    /**
+     * Variant of {@link #_readLength()} that also records the form of length used
+     */
+    private int _readLength(ChunkStats stats)
+    {
+        final int start = _nibblePosition();
+        final int length = _readLength();
+        stats.length(_nibblePosition() - start);
+        return length;
+    }
+
+    /**
+     * @return Number of nibbles read so far (relative to start of input)
+     */
+    private int _nibblePosition() {
+        return (_inputPtr << 1) - ((_nibblePtr >= 0) ? 1 : 0);
+    }
+
+    protected int _readLength()
+    {
+        int n = _readNibble();
+        if (n < 0x8) { // 3-bit value
+            return n;
+        }
+        if (n < 0xC) { // 6-bit value, offset by 8
+            return (((n & 0x3) << 4) | _readNibble()) + 8;
+        }
+        // 14-bit value (or, with wide lengths, 22-bit), as is
+        int value = (n & 0x3);
+        value = (value << 4) | _readNibble();
+        value = (value << 4) | _readNibble();
+        if (_wide) {
+            value = (value << 4) | _readNibble();
+            value = (value << 4) | _readNibble();
+        }
+        return (value << 4) | _readNibble();
+    }
+
+    protected int _readNibble()
+    {
+        int ptr = _nibblePtr;
+        if (ptr >= 0) {
+            _nibblePtr = -1;
+            return _input[ptr] & 0xF;
+        }
+        ptr = _inputPtr++;
+        _nibblePtr = ptr;
+        return (_input[ptr] >> 4) & 0xF;
+    }
+}
@@ -14,7 +14,18 @@ public class NibblerEncoder
     public final static int MAX_OVERHEAD_BYTES = 4;
 
     public final static int MAX_OUTPUT_BUFFER = MAX_CHUNK_SIZE + MAX_OVERHEAD_BYTES;
-    
+
+    /**
+     * Maximum chunk size when using wide lengths: 3 byte header (with
+     * 22-bit length of encoded content) and 6-nibble long length fields
+     * (with 22-bit values).
+     */
+    public final static int MAX_WIDE_CHUNK_SIZE = 0x10000; // that is, 64k
+
+    public final static int MAX_WIDE_OVERHEAD_BYTES = 6;
+
+    public final static int MAX_WIDE_OUTPUT_BUFFER = MAX_WIDE_CHUNK_SIZE + MAX_WIDE_OVERHEAD_BYTES;
+
     protected byte[] _input;
 
     protected byte[] _output;
@@ -32,7 +43,42 @@ public class NibblerEncoder
      * LSB; 0 if, no such place available.
      */
     protected int _nibblePtr;
-    
+
+    /**
+     * Mask for the last bit of a byte, given bit order used: determines
+     * which kind of run may follow a literal byte
+     */
+    protected final int _lastBit;
+
+    /**
+     * Whether wide chunk header and long length fields are used;
+     * see {@link BitmapCodec#hasWideLengths()}
+     */
+    protected final boolean _wide;
+
+    protected final int _maxChunkSize;
+
+    protected final int _headerLength;
+
+    public NibblerEncoder() {
+        this(BitOrder.MSB_FIRST);
+    }
+
+    public NibblerEncoder(BitOrder order) {
+        this(order, false);
+    }
+
+    /**
+     * @param wide Whether to use wide (24-bit) chunk header and long length fields,
+     *    allowing chunks of up to {@link #MAX_WIDE_CHUNK_SIZE} bytes
+     */
+    public NibblerEncoder(BitOrder order, boolean wide) {
+        _lastBit = order.lastBitMask();
+        _wide = wide;
+        _maxChunkSize = wide ? MAX_WIDE_CHUNK_SIZE : MAX_CHUNK_SIZE;
+        _headerLength = wide ? NibblerDecoder.WIDE_HEADER_LENGTH : NibblerDecoder.HEADER_LENGTH;
+    }
+
     /**
      * @return Offset right after last encoded byte
      */
@@ -48,24 +94,21 @@ public class NibblerEncoder
 
         // First things first: 3 possible start conditions
         int ch = input[inputPtr++];
-        final int outputStart = outputPtr+2;
+        final int outputStart = outputPtr + _headerLength;
 
-        _outputPtr = outputStart; // to reserve room for 2 header bytes
+        _outputPtr = outputStart; // to reserve room for header bytes
 
         int marker;
         if ((ch == 0) || (ch == -1)) { // "run" of all-zero-bits/all-one-bits; at
             // this point even one is enough to warrant write (no minimum)
             int repeats = _findRunLength(inputPtr, ch); // one less than full length
             marker = (ch == 0) ? 0x0 : 0x40;
-            _outputPtr = outputPtr;
             _writeRunLength(repeats);
             // also possible, if unlikely, that we are all done now
             inputPtr += repeats;
             if (inputPtr == _inputEnd) {
                 outputPtr = _outputPtr;
-                int encodedLength = outputPtr - outputStart;
-                _output[outputStart-2] = (byte) (marker + (encodedLength >> 8));
-                _output[outputStart-1] = (byte) encodedLength;
+                _writeHeader(outputStart, marker, outputPtr - outputStart);
                 return outputPtr;
             }
             ch = input[inputPtr++];
@@ -74,12 +117,25 @@ public class NibblerEncoder
         }
         // On to scheduled programming; got a literal run of at least one byte...
         outputPtr = _encode2(inputPtr, ch);
-        int encodedLength = outputPtr - outputStart;
-        _output[outputStart-2] = (byte) (marker + (encodedLength >> 8));
-        _output[outputStart-1] = (byte) encodedLength;
+        _writeHeader(outputStart, marker, outputPtr - outputStart);
         return outputPtr;
     }
 
+    /**
+     * Method for writing chunk header (marker and length of encoded content)
+     * right before given offset
+     */
+    private void _writeHeader(int outputStart, int marker, int encodedLength)
+    {
+        if (_wide) {
+            _output[outputStart-3] = (byte) (marker + (encodedLength >> 16));
+            _output[outputStart-2] = (byte) (encodedLength >> 8);
+        } else {
+            _output[outputStart-2] = (byte) (marker + (encodedLength >> 8));
+        }
+        _output[outputStart-1] = (byte) encodedLength;
+    }
+
     /**
      * Second-level method, starts with a literal-run of length of at least 1 byte
      */
@@ -87,26 +143,27 @@ public class NibblerEncoder
     {
         // let's separate handling of last 3 bytes
         final int lastStart = _inputEnd - 3;
+        final int lastBit = _lastBit;
 
         // reserve room for one length byte iff no room for nibble.
-        int startOutputOffset = _outputPtr;
         if (_nibblePtr == 0) {
             ++_outputPtr;
         }
+        int literalStart = _outputPtr;
         int count = 1;
         _output[_outputPtr++] = (byte) ch;
-        int match = ((ch & 1) == 1) ? -1 : 0x0;
+        int match = ((ch & lastBit) != 0) ? -1 : 0x0;
 
         while (true) {
             if (inputPtr > lastStart) {
-                return _encodeTailLiterals(inputPtr, ch, startOutputOffset, count);
+                return _encodeTailLiterals(inputPtr, literalStart, count);
             }
             ch = _input[inputPtr++];
             // first, simple case; can't start a new run, so just copy
             if (ch != match) {
                 _output[_outputPtr++] = (byte) ch;
                 ++count;
-                match = ((ch & 1) == 1) ? -1 : 0x0;
+                match = ((ch & lastBit) != 0) ? -1 : 0x0;
                 continue;
             }
             // otherwise got first byte of possible run; 2 more needed
@@ -116,7 +173,7 @@ public class NibblerEncoder
                 _output[_outputPtr++] = (byte) match;
                 _output[_outputPtr++] = (byte) ch;
                 count += 2;
-                match = ((ch & 1) == 1) ? -1 : 0x0;
+                match = ((ch & lastBit) != 0) ? -1 : 0x0;
                 continue;
             }
             // one more?
@@ -126,13 +183,26 @@ public class NibblerEncoder
                 _output[_outputPtr++] = (byte) match;
                 _output[_outputPtr++] = (byte) ch;
                 count += 3;
-                match = ((ch & 1) == 1) ? -1 : 0x0;
+                match = ((ch & lastBit) != 0) ? -1 : 0x0;
+                continue;
+            }
+            // With wide lengths, splitting a long literal segment for a 3-byte run
+            // would cost more (6-nibble length, run nibble) than it saves
+            if (_wide && (count > 71) && (inputPtr < _inputEnd)
+                    && (_input[inputPtr] != match)) {
+                ch = _input[inputPtr++];
+                _output[_outputPtr++] = (byte) match;
+                _output[_outputPtr++] = (byte) match;
+                _output[_outputPtr++] = (byte) match;
+                _output[_outputPtr++] = (byte) ch;
+                count += 4;
+                match = ((ch & lastBit) != 0) ? -1 : 0x0;
                 continue;
             }
 
             // Ok: got a run. First need to update literal length indicator,
             // with its shuffling. Minimal length is just 1, unlike with runs.
-            _writeLiteralLength(count - 1, startOutputOffset);
+            _writeLiteralLength(count - 1, literalStart);
 
             // After which we'll figure actual length of all-one/all-zero run
             int repeats = _findRunLength(inputPtr, ch); // one less than full length
@@ -143,17 +213,17 @@ public class NibblerEncoder
                 return _outputPtr;
             }
             ch = _input[inputPtr++];
-            startOutputOffset = _outputPtr;
             if (_nibblePtr == 0) {
                 ++_outputPtr;
             }
+            literalStart = _outputPtr;
             count = 1;
             _output[_outputPtr++] = (byte) ch;
-            match = ((ch & 1) == 1) ? -1 : 0x0;
+            match = ((ch & lastBit) != 0) ? -1 : 0x0;
         }
     }
 
-    protected int _encodeTailLiterals(int inputPtr, int ch, int startOutputOffset, int count)
+    protected int _encodeTailLiterals(int inputPtr, int literalStart, int count)
     {
         // could try something more complex, but for now maybe simplest to simply
         // extend current literal segment till end
@@ -161,82 +231,104 @@ public class NibblerEncoder
             _output[_outputPtr++] = _input[inputPtr++];
             ++count;
         }
-        _writeLiteralLength(count - 1, startOutputOffset);
+        _writeLiteralLength(count - 1, literalStart);
         return _outputPtr;
     }
 
     /**
      * Method called to append run length indicator for a sequence of literal bytes.
-     * Bit more complicated than one for one/zero-runs because in case of 16-bit
-     * length we will need to shuffle one of literal bytes.
+     * Bit more complicated than one for one/zero-runs because in case of 8- and 16-bit
+     * lengths we may need more room than was reserved before the first literal;
+     * if so, first literal byte(s) are moved after the last one, and decoder
+     * needs to move them back.
      *
      * @param lengthInd Modified length indicator to use
-     * @param startOutputOffset Offset of the first copied literal
+     * @param literalStart Offset of the first copied literal
      */
-    protected void _writeLiteralLength(int lengthInd, int startOutputOffset)
+    protected void _writeLiteralLength(int lengthInd, int literalStart)
     {
+        final int nptr = _nibblePtr;
         if (lengthInd <= 0x7) { // 3-bit into nibble (4-bit)
             // room for nibble?
-            int nptr = _nibblePtr;
             if (nptr != 0) {
-                int value = _output[nptr];
-                _output[nptr] = (byte) (value | lengthInd);
+                _output[nptr] = (byte) (_output[nptr] | lengthInd);
                 _nibblePtr = 0; // no room any more
             } else {
                 // no; now the empty byte left before first literal comes in handy:
-                nptr = startOutputOffset-1;
-                _output[nptr] = (byte)(lengthInd << 4);
-                _nibblePtr = nptr;
+                _output[literalStart-1] = (byte)(lengthInd << 4);
+                _nibblePtr = literalStart-1;
             }
             return;
         }
         // 6-bit value into 8-bit, 2 nibble slots
         if (lengthInd <= 71) {
-            lengthInd -= 8;
             // prefix with marker
             lengthInd = (lengthInd - 8) | 0x80;
 
-            // room for nibble? If so, use one, produce another one.
-            int nptr = _nibblePtr;
+            // room for nibble? If so, use one, produce another one; but since
+            // no byte was reserved, need to shuffle first literal to the end
             if (nptr != 0) {
-                int value = _output[nptr];
-                _output[nptr] = (byte) (value | (lengthInd >> 4));
-                // and produce another nibble slot...
-                nptr = startOutputOffset-1;
-                _output[nptr] = (byte) (lengthInd << 4);
-                _nibblePtr = nptr;
-            } else { // but if not, simpler, just append length indicator as is
-                 nptr = startOutputOffset-1;
-                _output[nptr] = (byte) lengthInd;
+                _output[nptr] = (byte) (_output[nptr] | (lengthInd >> 4));
+                _output[_outputPtr++] = _output[literalStart];
+                _output[literalStart] = (byte) (lengthInd << 4);
+                _nibblePtr = literalStart;
+            } else { // but if not, simpler, just use the reserved byte as is
+                _output[literalStart-1] = (byte) lengthInd;
             }
             return;
         }
-        // 13-bit into two 8-bit slots
-        // but first sanity check
-        if (lengthInd >= MAX_CHUNK_SIZE) {
+        // 14-bit into four nibbles (or 22-bit into six), but first sanity check
+        if (lengthInd >= _maxChunkSize) {
             throw new IllegalStateException("Internal error: trying to write length "+lengthInd);
         }
+        if (_wide) {
+            _writeWideLiteralLength(lengthInd, literalStart);
+            return;
+        }
         // note: we won't modify length indicator any further; this leaves values (0-71) as
         // indicators that should not be used
-        lengthInd = (lengthInd - 8) | 0xC0;
+        lengthInd |= 0xC000;
         // still, nibble-alignment needs to be followed
-        int nptr = _nibblePtr;
         if (nptr != 0) {
-            // got nibble; do nibble, full-byte, another nibble
-            int value = _output[nptr];
-            _output[nptr] = (byte) (value | (lengthInd >> 12));
-            // then the full byte
-            _output[startOutputOffset-1] = (byte) (lengthInd >> 4);
-            // and produce another nibble slot, but this one requires moving the
-            // first byte output to go after last otherwise written, and then using
-            // "free" slot for nibble
-            _output[_outputPtr++] = _output[startOutputOffset];
-            _output[startOutputOffset] = (byte) ((lengthInd & 0xF) << 4);
-            _nibblePtr = startOutputOffset;
+            // got nibble; do nibble, full-byte, another nibble. Requires moving
+            // two first literals after last one, to make room for two bytes
+            _output[nptr] = (byte) (_output[nptr] | (lengthInd >> 12));
+            _output[_outputPtr++] = _output[literalStart];
+            _output[_outputPtr++] = _output[literalStart+1];
+            _output[literalStart] = (byte) (lengthInd >> 4);
+            _output[literalStart+1] = (byte) ((lengthInd & 0xF) << 4);
+            _nibblePtr = literalStart+1;
         } else { // no nibble. Can use pre-allocated one, but then need to do the shuffle
-           _output[startOutputOffset-1] = (byte) (lengthInd >> 8);
-           _output[_outputPtr++] = _output[startOutputOffset];
-           _output[startOutputOffset] = (byte) lengthInd;
+           _output[literalStart-1] = (byte) (lengthInd >> 8);
+           _output[_outputPtr++] = _output[literalStart];
+           _output[literalStart] = (byte) lengthInd;
+        }
+    }
+
+    /**
+     * Variant of {@link #_writeLiteralLength} for long length indicators with
+     * wide lengths: 22-bit value in six nibbles
+     */
+    private void _writeWideLiteralLength(int lengthInd, int literalStart)
+    {
+        lengthInd |= 0xC00000;
+        final int nptr = _nibblePtr;
+        if (nptr != 0) {
+            // nibble, two full bytes, another nibble: need to move three literals
+            _output[nptr] = (byte) (_output[nptr] | (lengthInd >> 20));
+            _output[_outputPtr++] = _output[literalStart];
+            _output[_outputPtr++] = _output[literalStart+1];
+            _output[_outputPtr++] = _output[literalStart+2];
+            _output[literalStart] = (byte) (lengthInd >> 12);
+            _output[literalStart+1] = (byte) (lengthInd >> 4);
+            _output[literalStart+2] = (byte) ((lengthInd & 0xF) << 4);
+            _nibblePtr = literalStart+2;
+        } else { // pre-allocated byte, then two more; need to move two literals
+            _output[literalStart-1] = (byte) (lengthInd >> 16);
+            _output[_outputPtr++] = _output[literalStart];
+            _output[_outputPtr++] = _output[literalStart+1];
+            _output[literalStart] = (byte) (lengthInd >> 8);
+            _output[literalStart+1] = (byte) lengthInd;
         }
     }
 
@@ -268,7 +360,6 @@ public class NibblerEncoder
         }
         // 6-bit value into 8-bit, 2 nibble slots
         if (lengthInd <= 71) {
-            lengthInd -= 8;
             // prefix with marker
             lengthInd = (lengthInd - 8) | 0x80;
 
@@ -289,14 +380,17 @@ public class NibblerEncoder
             }
             return;
         }
-        // 13-bit into two 8-bit slots
-        // but first sanity check
-        if (lengthInd >= MAX_CHUNK_SIZE) {
+        // 14-bit into four nibbles (or 22-bit into six), but first sanity check
+        if (lengthInd >= _maxChunkSize) {
             throw new IllegalStateException("Internal error: trying to write length "+lengthInd);
         }
+        if (_wide) {
+            _writeWideRunLength(lengthInd);
+            return;
+        }
         // note: we won't modify length indicator any further; this leaves values (0-71) as
         // indicators that should not be used
-        lengthInd = (lengthInd - 8) | 0xC0;
+        lengthInd |= 0xC000;
         // still, nibble-alignment needs to be followed
         int nptr = _nibblePtr;
         if (nptr != 0) {
@@ -318,6 +412,32 @@ public class NibblerEncoder
         }
     }
 
+    /**
+     * Variant of {@link #_writeRunLength} for long length indicators with
+     * wide lengths: 22-bit value in six nibbles
+     */
+    private void _writeWideRunLength(int lengthInd)
+    {
+        lengthInd |= 0xC00000;
+        int nptr = _nibblePtr;
+        if (nptr != 0) {
+            // nibble, two full bytes, another nibble
+            _output[nptr] = (byte) (_output[nptr] | (lengthInd >> 20));
+            nptr = _outputPtr;
+            _output[nptr++] = (byte) (lengthInd >> 12);
+            _output[nptr++] = (byte) (lengthInd >> 4);
+            _output[nptr] = (byte) ((lengthInd & 0xF) << 4);
+            _nibblePtr = nptr;
+            _outputPtr = nptr + 1;
+        } else { // no nibble; just append three full bytes
+            nptr = _outputPtr;
+            _output[nptr++] = (byte) (lengthInd >> 16);
+            _output[nptr++] = (byte) (lengthInd >> 8);
+            _output[nptr++] = (byte) lengthInd;
+            _outputPtr = nptr;
+        }
+    }
+
     protected int _findRunLength(int ptr, int ch)
     {
         final int start = ptr;
@@ -342,9 +462,9 @@ public class NibblerEncoder
         if (inputLen < 0) {
             throw new IllegalArgumentException("missing input, inputLen = "+inputLen);
         }
-        if (inputLen > MAX_CHUNK_SIZE) {
+        if (inputLen > _maxChunkSize) {
             throw new IllegalArgumentException("invalid inputLen ("+inputLen
-                    +"), exceeds max chunk size of "+MAX_CHUNK_SIZE);
+                    +"), exceeds max chunk size of "+_maxChunkSize);
         }
         if ((inputPtr < 0) || (inputPtr + inputLen) > input.length) {
             throw new IllegalArgumentException("invalid inputPtr ("+inputPtr+") and/or inputLen ("
@@ -357,7 +477,7 @@ public class NibblerEncoder
         if (outputPtr < 0) {
             throw new IllegalArgumentException("invalid outputPtr ("+outputPtr+")");
         }
-        int maxSize = inputLen + MAX_OVERHEAD_BYTES;
+        int maxSize = inputLen + (_wide ? MAX_WIDE_OVERHEAD_BYTES : MAX_OVERHEAD_BYTES);
         if ((outputPtr + maxSize) > output.length) {
             throw new IllegalArgumentException("invalid outputPtr ("+outputPtr+"), with inputLen ("
                     +inputLen+", output buffer of size "+input.length
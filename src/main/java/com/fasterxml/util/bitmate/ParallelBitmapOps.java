@@ -0,0 +1,383 @@
+package com.fasterxml.util.bitmate;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Component for calculating boolean operations (and cardinalities of them)
+ * of large {@link EncodedBitmap}s in parallel. Since chunks are encoded
+ * independently of each other (including the initial run bit of BitRat
+ * frames, which only depends on content of the chunk itself), bitmaps are
+ * partitioned into ranges of chunks, each of which is processed by a
+ * separate task; results are then stitched together by copying encoded
+ * chunks, so that result is identical to one calculated sequentially.
+ *<p>
+ * Bitmaps with fewer than two ranges of {@link #getMinTaskChunks()} chunks
+ * are processed sequentially by calling thread, as are all bitmaps if
+ * parallelism of 1 is used.
+ *<p>
+ * Instances are thread-safe and may be shared.
+ */
+public class ParallelBitmapOps
+{
+    /**
+     * Default minimum number of chunks per task: with smaller ranges,
+     * overhead of tasks would exceed gains.
+     */
+    public final static int DEFAULT_MIN_TASK_CHUNKS = 64;
+
+    // Results of combining chunks that may be determined without decoding
+    private final static int RESULT_EMPTY = 0;
+    private final static int RESULT_FULL = 1;
+    private final static int RESULT_A = 2;
+    private final static int RESULT_B = 3;
+    private final static int RESULT_DECODE = 4;
+
+    /**
+     * Executor to run tasks with
+     */
+    protected final ExecutorService _executor;
+
+    /**
+     * Maximum number of tasks to split an operation into
+     */
+    protected final int _parallelism;
+
+    protected final int _minTaskChunks;
+
+    /**
+     * Constructor for instance that uses a shared {@link ForkJoinPool}, with
+     * parallelism of number of available processors.
+     */
+    public ParallelBitmapOps() {
+        this(SharedPool.POOL, SharedPool.POOL.getParallelism(), DEFAULT_MIN_TASK_CHUNKS);
+    }
+
+    /**
+     * @param executor Executor to run tasks with
+     * @param parallelism Maximum number of tasks to split each operation into
+     */
+    public ParallelBitmapOps(ExecutorService executor, int parallelism) {
+        this(executor, parallelism, DEFAULT_MIN_TASK_CHUNKS);
+    }
+
+    /**
+     * @param executor Executor to run tasks with
+     * @param parallelism Maximum number of tasks to split each operation into
+     * @param minTaskChunks Minimum number of chunks for each task
+     */
+    public ParallelBitmapOps(ExecutorService executor, int parallelism, int minTaskChunks)
+    {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Invalid parallelism ("+parallelism+"): must be at least 1");
+        }
+        if (minTaskChunks < 1) {
+            throw new IllegalArgumentException("Invalid minimum task chunks ("+minTaskChunks
+                    +"): must be at least 1");
+        }
+        _executor = executor;
+        _parallelism = parallelism;
+        _minTaskChunks = minTaskChunks;
+    }
+
+    public int getParallelism() { return _parallelism; }
+
+    public int getMinTaskChunks() { return _minTaskChunks; }
+
+    /*
+    /**********************************************************************
+    /* Public API, operations
+    /**********************************************************************
+     */
+
+    public EncodedBitmap and(EncodedBitmap a, EncodedBitmap b) {
+        return combine(BitOp.AND, a, b);
+    }
+
+    public EncodedBitmap or(EncodedBitmap a, EncodedBitmap b) {
+        return combine(BitOp.OR, a, b);
+    }
+
+    public EncodedBitmap andNot(EncodedBitmap a, EncodedBitmap b) {
+        return combine(BitOp.AND_NOT, a, b);
+    }
+
+    public EncodedBitmap xor(EncodedBitmap a, EncodedBitmap b) {
+        return combine(BitOp.XOR, a, b);
+    }
+
+    /**
+     * Method for constructing result of combining bits of given bitmaps
+     * (which must have the same codec, bit order and length) with given
+     * operation, with bits of <code>a</code> as target bits.
+     * Chunks that are uniform in either bitmap are resolved without decoding
+     * where possible; others are decoded, combined and re-encoded.
+     */
+    public EncodedBitmap combine(final BitOp op, final EncodedBitmap a, final EncodedBitmap b)
+    {
+        if (a.getCodec() != b.getCodec() || a.getBitOrder() != b.getBitOrder()
+                || a.getBitLength() != b.getBitLength()) {
+            throw new IllegalArgumentException("Can not combine bitmap with codec "+b.getCodec()
+                    +", bit order "+b.getBitOrder()+" and length "+b.getBitLength()
+                    +": expected "+a.getCodec()+"/"+a.getBitOrder()+"/"+a.getBitLength());
+        }
+        final BitmapTracer tracer = BitmapTracer.get();
+        final Object span = (tracer == null) ? null : tracer.beginOperation();
+        final int chunks = a.getChunkCount();
+        final int tasks = _taskCount(chunks);
+        EncodedBitmap result;
+        if (tasks < 2) {
+            result = _combine(op, a, b, 0, chunks);
+        } else {
+            List<Callable<EncodedBitmap>> calls = new ArrayList<Callable<EncodedBitmap>>(tasks);
+            for (int i = 0; i < tasks; ++i) {
+                final int from = _rangeStart(chunks, tasks, i);
+                final int to = _rangeStart(chunks, tasks, i+1);
+                calls.add(new Callable<EncodedBitmap>() {
+                    @Override
+                    public EncodedBitmap call() {
+                        return _combine(op, a, b, from, to);
+                    }
+                });
+            }
+            result = EncodedBitmap.concat(_invokeAll(calls).toArray(new EncodedBitmap[0]));
+        }
+        if (span != null) {
+            tracer.endOperation(span, "parallel-"+op.name().toLowerCase(), result.getCodec(),
+                    System.identityHashCode(result), a.getEncodedLength() + b.getEncodedLength(),
+                    result.getEncodedLength());
+        }
+        return result;
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API, cardinalities
+    /**********************************************************************
+     */
+
+    /**
+     * @return Number of set bits in given bitmap; see {@link BitmapMetrics#cardinality}
+     */
+    public long cardinality(EncodedBitmap bitmap) {
+        return _counts(bitmap, bitmap, true)[BitmapMetrics.COUNT_AND];
+    }
+
+    /**
+     * @return Number of bits set in both bitmaps; see {@link BitmapMetrics#andCardinality}
+     */
+    public long andCardinality(EncodedBitmap a, EncodedBitmap b) {
+        return _counts(a, b, true)[BitmapMetrics.COUNT_AND];
+    }
+
+    /**
+     * @return Number of bits set in either bitmap; see {@link BitmapMetrics#orCardinality}
+     */
+    public long orCardinality(EncodedBitmap a, EncodedBitmap b) {
+        long[] counts = _counts(a, b, false);
+        return counts[BitmapMetrics.COUNT_AND] + counts[BitmapMetrics.COUNT_A_ONLY]
+                + counts[BitmapMetrics.COUNT_B_ONLY];
+    }
+
+    /**
+     * @return Number of bits set in the first bitmap but not in the second;
+     *    see {@link BitmapMetrics#andNotCardinality}
+     */
+    public long andNotCardinality(EncodedBitmap a, EncodedBitmap b) {
+        return _counts(a, b, false)[BitmapMetrics.COUNT_A_ONLY];
+    }
+
+    /**
+     * @return Number of bits set in exactly one of bitmaps; see {@link BitmapMetrics#xorCardinality}
+     */
+    public long xorCardinality(EncodedBitmap a, EncodedBitmap b) {
+        long[] counts = _counts(a, b, false);
+        return counts[BitmapMetrics.COUNT_A_ONLY] + counts[BitmapMetrics.COUNT_B_ONLY];
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    protected int _taskCount(int chunks) {
+        return Math.min(_parallelism, chunks / _minTaskChunks);
+    }
+
+    private static int _rangeStart(int count, int tasks, int task) {
+        return (int) ((long) count * task / tasks);
+    }
+
+    protected long[] _counts(final EncodedBitmap a, final EncodedBitmap b, final boolean andOnly)
+    {
+        // as with BitmapMetrics, units are chunks of the smaller chunk size
+        final int unitBytes = BitmapMetrics._unitSize(a, b);
+        final int units = Math.max(BitmapMetrics._unitCount(a, unitBytes),
+                BitmapMetrics._unitCount(b, unitBytes));
+        final int tasks = _taskCount(units);
+        if (tasks < 2) {
+            return BitmapMetrics._counts(a, b, andOnly, 0, units);
+        }
+        List<Callable<long[]>> calls = new ArrayList<Callable<long[]>>(tasks);
+        for (int i = 0; i < tasks; ++i) {
+            final int from = _rangeStart(units, tasks, i);
+            final int to = _rangeStart(units, tasks, i+1);
+            calls.add(new Callable<long[]>() {
+                @Override
+                public long[] call() {
+                    return BitmapMetrics._counts(a, b, andOnly, from, to);
+                }
+            });
+        }
+        final long[] counts = new long[3];
+        for (long[] partial : _invokeAll(calls)) {
+            for (int i = 0; i < counts.length; ++i) {
+                counts[i] += partial[i];
+            }
+        }
+        return counts;
+    }
+
+    protected <T> List<T> _invokeAll(List<Callable<T>> calls)
+    {
+        final List<T> results = new ArrayList<T>(calls.size());
+        try {
+            for (Future<T> f : _executor.invokeAll(calls)) {
+                results.add(f.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while combining bitmaps", e);
+        } catch (ExecutionException e) {
+            Throwable t = e.getCause();
+            if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            }
+            throw new IllegalStateException("Failed to combine bitmaps: "+t, t);
+        }
+        return results;
+    }
+
+    /**
+     * Method for combining given range of chunks of bitmaps, sequentially.
+     *
+     * @return Bitmap with result for the range of chunks
+     */
+    protected static EncodedBitmap _combine(BitOp op, EncodedBitmap a, EncodedBitmap b,
+            int fromChunk, int toChunk)
+    {
+        final BitmapCodec codec = a.getCodec();
+        final BitOrder order = a.getBitOrder();
+        final int chunkSize = codec.chunkSize();
+        final long chunkBits = (long) chunkSize << 3;
+        final EncodedBitmapBuilder builder = new EncodedBitmapBuilder(codec, order);
+        final long[] wa = new long[chunkSize >> 3];
+        final long[] wb = new long[wa.length];
+        final EncodedBitmap.ChunkCursor ca = a.new ChunkCursor(fromChunk);
+        final EncodedBitmap.ChunkCursor cb = b.new ChunkCursor(fromChunk);
+
+        while (ca.next() && cb.next() && ca.index() < toChunk) {
+            final int i = ca.index();
+            final int rawLength = a.getChunkRawLength(i);
+            final int oa = ca.offset();
+            final int ob = cb.offset();
+            // result may be one of inputs, or uniform
+            int result = _combineUniform(op, oa, ob);
+            if (result == RESULT_A || result == RESULT_B) {
+                final EncodedBitmap src = (result == RESULT_A) ? a : b;
+                final int offset = (result == RESULT_A) ? oa : ob;
+                if (offset >= 0) {
+                    builder.appendEncodedChunk(src._data, offset, src._chunkLength(offset), rawLength);
+                    continue;
+                }
+                result = (offset == EncodedBitmap.OFFSET_FULL) ? RESULT_FULL : RESULT_EMPTY;
+            }
+            if (result != RESULT_DECODE && rawLength == chunkSize) {
+                int end = i+1;
+                if (oa < 0 && ob < 0) { // can append a span at once, up to the last full chunk
+                    end = Math.max(end, Math.min(Math.min(ca.runEnd(), cb.runEnd()),
+                            Math.min(toChunk, (int) (a.getBitLength() / chunkBits))));
+                    ca.skipTo(end);
+                    cb.skipTo(end);
+                }
+                builder.appendUniformChunks(result == RESULT_FULL, end - i);
+                continue;
+            }
+            // otherwise need to decode (also, partial last chunk always re-encoded)
+            _words(a, i, oa, wa);
+            _words(b, i, ob, wb);
+            for (int j = 0; j < wa.length; ++j) {
+                wa[j] = op.apply(wa[j], wb[j]);
+            }
+            builder.appendWordBytes(wa, 0, rawLength);
+        }
+        final long bits = Math.min(a.getBitLength(), toChunk * chunkBits) - fromChunk * chunkBits;
+        return builder.build((int) bits);
+    }
+
+    /**
+     * @return Result of combining chunks with given offsets (see
+     *    {@link EncodedBitmap.ChunkCursor#offset()}), if it can be determined
+     *    without decoding: either uniform, or the same as one of chunks
+     */
+    private static int _combineUniform(BitOp op, int oa, int ob)
+    {
+        final boolean emptyA = (oa == EncodedBitmap.OFFSET_EMPTY);
+        final boolean fullA = (oa == EncodedBitmap.OFFSET_FULL);
+        final boolean emptyB = (ob == EncodedBitmap.OFFSET_EMPTY);
+        final boolean fullB = (ob == EncodedBitmap.OFFSET_FULL);
+        switch (op) {
+        case AND:
+            if (emptyA || emptyB) {
+                return RESULT_EMPTY;
+            }
+            return fullA ? RESULT_B : (fullB ? RESULT_A : RESULT_DECODE);
+        case OR:
+            if (fullA || fullB) {
+                return RESULT_FULL;
+            }
+            return emptyA ? RESULT_B : (emptyB ? RESULT_A : RESULT_DECODE);
+        case AND_NOT:
+            if (emptyA || fullB) {
+                return RESULT_EMPTY;
+            }
+            return emptyB ? RESULT_A : RESULT_DECODE;
+        default:
+            if (emptyA) {
+                return RESULT_B;
+            }
+            if (emptyB) {
+                return RESULT_A;
+            }
+            if (fullA && fullB) {
+                return RESULT_EMPTY;
+            }
+            return RESULT_DECODE;
+        }
+    }
+
+    private static void _words(EncodedBitmap bm, int index, int offset, long[] words)
+    {
+        if (offset < 0) {
+            Arrays.fill(words, (offset == EncodedBitmap.OFFSET_FULL) ? -1L : 0L);
+        } else {
+            Arrays.fill(words, 0L);
+            bm.decodeChunkWords(index, words, 0);
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper classes
+    /**********************************************************************
+     */
+
+    /**
+     * Holder for the lazily created pool used by default
+     */
+    private final static class SharedPool
+    {
+        final static ForkJoinPool POOL = new ForkJoinPool();
+    }
+}
@@ -0,0 +1,256 @@
+package com.fasterxml.util.bitmate;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Component for sequential scans over large bitmaps, in which chunks are
+ * decoded ahead of time by a background task while the calling thread
+ * consumes previously decoded ones. Decoded chunks are passed via a bounded
+ * ring of reusable buffers: when all buffers are full, decoding stalls until
+ * consumer releases one, so memory usage is limited to
+ * {@link #getDepth()} chunks regardless of size of bitmap scanned.
+ * With this, throughput of a scan is close to that of the slower of decoding
+ * and consuming (as opposed to sum of the two), as long as a core is
+ * available for decoding.
+ *<p>
+ * Bitmaps with a single chunk are scanned by calling thread only.
+ *<p>
+ * Instances are thread-safe and may be shared; each scan uses its own buffers.
+ */
+public class PipelinedScanner
+{
+    /**
+     * Default number of decoded chunk buffers for each scan
+     */
+    public final static int DEFAULT_DEPTH = 4;
+
+    /**
+     * Interface for processing chunks decoded during a scan.
+     */
+    public interface ChunkConsumer
+    {
+        /**
+         * Method called for each chunk in order. Words are in bit order of
+         * bitmap scanned, and padding bits of the last chunk are cleared.
+         * Buffer is reused after method returns, so implementations must
+         * not retain it.
+         *
+         * @param bitOffset Bit offset of the chunk within bitmap scanned
+         * @param words Buffer that contains decoded chunk
+         * @param wordCount Number of words in the chunk
+         *
+         * @return True to continue the scan; false to stop it
+         */
+        public boolean chunk(long bitOffset, long[] words, int wordCount);
+    }
+
+    /**
+     * Buffer passed to decoder to wake it up when consumer stops the scan
+     */
+    private final static DecodedChunk STOP_MARKER = new DecodedChunk(0);
+
+    /**
+     * Executor to run decoding tasks with
+     */
+    protected final ExecutorService _executor;
+
+    /**
+     * Number of decoded chunk buffers for each scan; at most this many chunks
+     * are decoded ahead of consumer.
+     */
+    protected final int _depth;
+
+    public PipelinedScanner(ExecutorService executor) {
+        this(executor, DEFAULT_DEPTH);
+    }
+
+    /**
+     * @param executor Executor to run decoding tasks with; each scan occupies
+     *    one thread for its duration
+     * @param depth Number of decoded chunk buffers for each scan
+     */
+    public PipelinedScanner(ExecutorService executor, int depth)
+    {
+        if (depth < 2) {
+            throw new IllegalArgumentException("Invalid depth ("+depth+"): must be at least 2");
+        }
+        _executor = executor;
+        _depth = depth;
+    }
+
+    public int getDepth() { return _depth; }
+
+    /*
+    /**********************************************************************
+    /* Public API
+    /**********************************************************************
+     */
+
+    /**
+     * Method for scanning all chunks of given bitmap.
+     *
+     * @return Number of chunks passed to consumer
+     */
+    public int scan(EncodedBitmap bitmap, ChunkConsumer consumer) {
+        return _scan(new EncodedBitmap[] { bitmap }, 0L, consumer);
+    }
+
+    /**
+     * Method for scanning all chunks of all segments of given bitmap, with
+     * bit offsets of chunks relative to start of the whole bitmap.
+     *
+     * @return Number of chunks passed to consumer
+     */
+    public int scan(SegmentedBitmap bitmap, ChunkConsumer consumer)
+    {
+        final EncodedBitmap[] segments = new EncodedBitmap[bitmap.getSegmentCount()];
+        for (int i = 0; i < segments.length; ++i) {
+            segments[i] = bitmap.getSegment(i);
+        }
+        return _scan(segments, bitmap.getSegmentBits(), consumer);
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    protected int _scan(final EncodedBitmap[] bitmaps, final long segmentBits, ChunkConsumer consumer)
+    {
+        int chunks = 0;
+        for (EncodedBitmap bm : bitmaps) {
+            chunks += bm.getChunkCount();
+        }
+        if (chunks == 0) {
+            return 0;
+        }
+        final int chunkSize = bitmaps[0].getCodec().chunkSize();
+        if (chunks == 1 && bitmaps.length == 1) {
+            long[] words = new long[chunkSize >> 3];
+            consumer.chunk(0L, words, bitmaps[0].decodeChunkWords(0, words, 0));
+            return 1;
+        }
+
+        // Buffers circulate from "free" to decoder, then via "filled" to consumer and back
+        final BlockingQueue<DecodedChunk> free = new ArrayBlockingQueue<DecodedChunk>(_depth);
+        final BlockingQueue<DecodedChunk> filled = new ArrayBlockingQueue<DecodedChunk>(_depth + 1);
+        for (int i = 0; i < _depth; ++i) {
+            free.add(new DecodedChunk(chunkSize >> 3));
+        }
+        final AtomicBoolean stopped = new AtomicBoolean(false);
+        Future<?> decoding = _executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                _decode(bitmaps, segmentBits, free, filled, stopped);
+            }
+        });
+
+        int count = 0;
+        try {
+            while (true) {
+                final DecodedChunk chunk = filled.take();
+                if (chunk.wordCount < 0) { // end marker
+                    if (chunk.failure != null) {
+                        if (chunk.failure instanceof RuntimeException) {
+                            throw (RuntimeException) chunk.failure;
+                        }
+                        throw new IllegalStateException("Failed to decode chunk: "+chunk.failure,
+                                chunk.failure);
+                    }
+                    break;
+                }
+                ++count;
+                final boolean more = consumer.chunk(chunk.bitOffset, chunk.words, chunk.wordCount);
+                free.add(chunk);
+                if (!more) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while scanning bitmap", e);
+        } finally {
+            // If scan ended early, decoder has to be stopped explicitly: interrupts
+            // can not be relied on (not all executors deliver them), so set the flag
+            // and wake up decoder in case it is waiting for a free buffer. If "free"
+            // is full decoder is not waiting, and will see the flag on next buffer.
+            stopped.set(true);
+            free.offer(STOP_MARKER);
+            // and if decoding has not started yet, it need not start at all
+            decoding.cancel(false);
+        }
+        return count;
+    }
+
+    /**
+     * Method run by decoding task: decodes chunks into free buffers, and
+     * passes them on; ends with an end marker (which also carries failure,
+     * if any), unless consumer stops the scan first.
+     */
+    protected void _decode(EncodedBitmap[] bitmaps, long segmentBits,
+            BlockingQueue<DecodedChunk> free, BlockingQueue<DecodedChunk> filled,
+            AtomicBoolean stopped)
+    {
+        final DecodedChunk end = new DecodedChunk(0);
+        end.wordCount = -1;
+        try {
+            for (int i = 0; i < bitmaps.length; ++i) {
+                final EncodedBitmap bm = bitmaps[i];
+                final int chunkBits = bm.getCodec().chunkSize() << 3;
+                final EncodedBitmap.WordDecoder dec = bm.new WordDecoder();
+                final int last = bm.getChunkCount() - 1;
+                for (EncodedBitmap.ChunkCursor c = bm.new ChunkCursor(); c.next(); ) {
+                    final int index = c.index();
+                    final DecodedChunk chunk = free.take();
+                    if (stopped.get()) { // consumer is gone: nobody is waiting for end marker
+                        return;
+                    }
+                    dec.decodeChunk(index, c.offset(), chunk.words, 0);
+                    chunk.wordCount = bm.getChunkWordCount(index);
+                    if (index == last) {
+                        bm._clearPadding(chunk.words, chunk.wordCount - 1, bm.getBitOrder());
+                    }
+                    chunk.bitOffset = (i * segmentBits) + ((long) index * chunkBits);
+                    filled.add(chunk);
+                }
+            }
+        } catch (InterruptedException e) {
+            // executor is shutting down: consumer may still be waiting
+            Thread.currentThread().interrupt();
+            end.failure = new IllegalStateException("Interrupted while decoding chunks", e);
+        } catch (Throwable t) {
+            end.failure = t;
+        }
+        // "filled" has room for all buffers and end marker, so never blocks
+        filled.add(end);
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper classes
+    /**********************************************************************
+     */
+
+    /**
+     * Reusable buffer for a decoded chunk
+     */
+    protected final static class DecodedChunk
+    {
+        final long[] words;
+
+        int wordCount;
+
+        long bitOffset;
+
+        /**
+         * For end marker: failure to decode chunks, if any
+         */
+        Throwable failure;
+
+        DecodedChunk(int maxWords) {
+            words = new long[maxWords];
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package com.fasterxml.util.bitmate;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Component for compacting bitmaps stored as multiple immutable segments
+ * (like one per ingest batch) into single bitmaps. Segments may be merged
+ * either as unions (all segments cover the same rows) or by concatenating
+ * them (segments cover consecutive ranges of rows); in both cases bits set
+ * in optional "tombstone" bitmaps are cleared from the result.
+ *<p>
+ * Merging is done a chunk at a time, directly from encoded segments to
+ * an {@link EncodedBitmapBuilder}, so that at most one chunk is held decoded
+ * per merge: chunks that are uniform in all segments are merged without
+ * decoding (and spans of them in bulk), chunks that are encoded in just one
+ * segment are copied as is, and others are decoded into a single
+ * accumulator chunk and re-encoded.
+ *<p>
+ * Independent bitmaps may be merged in parallel by using an {@link ExecutorService}.
+ * All segments must use the same codec and bit order.
+ */
+public class SegmentMerger
+{
+    public enum Mode {
+        /**
+         * Result has bits set in any of segments; length of the result is that
+         * of the longest segment.
+         */
+        UNION,
+
+        /**
+         * Segments are concatenated in order; length of the result is the sum of
+         * segment lengths.
+         */
+        CONCAT
+    }
+
+    /**
+     * Executor to use for merging multiple bitmaps; if null, merging is done by calling thread.
+     */
+    protected final ExecutorService _executor;
+
+    public SegmentMerger() {
+        this(null);
+    }
+
+    /**
+     * @param executor Executor to use for merging independent bitmaps in parallel,
+     *    by {@link #mergeAll}; if null, merging is done synchronously by calling thread
+     */
+    public SegmentMerger(ExecutorService executor) {
+        _executor = executor;
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API
+    /**********************************************************************
+     */
+
+    /**
+     * Method for merging segments of a single bitmap.
+     *
+     * @param tombstones Bitmaps with bits to clear from the merged bitmap; may be
+     *    null or empty. Positions are those of the merged bitmap.
+     */
+    public EncodedBitmap merge(Mode mode, List<EncodedBitmap> segments,
+            List<EncodedBitmap> tombstones)
+    {
+        if (segments.isEmpty()) {
+            throw new IllegalArgumentException("Need at least one segment to merge");
+        }
+        if (tombstones == null) {
+            tombstones = Collections.emptyList();
+        }
+        if (mode == Mode.CONCAT) {
+            EncodedBitmap concat = EncodedBitmap.concat(segments.toArray(new EncodedBitmap[0]));
+            if (tombstones.isEmpty()) {
+                return concat;
+            }
+            segments = Collections.singletonList(concat);
+        }
+        final BitmapTracer tracer = BitmapTracer.get();
+        final Object span = (tracer == null) ? null : tracer.beginOperation();
+        EncodedBitmap result = _union(segments, tombstones);
+        if (span != null) {
+            long inputBytes = 0L;
+            for (EncodedBitmap bm : segments) {
+                inputBytes += bm.getEncodedLength();
+            }
+            for (EncodedBitmap bm : tombstones) {
+                inputBytes += bm.getEncodedLength();
+            }
+            tracer.endOperation(span, "merge", result.getCodec(), System.identityHashCode(result),
+                    inputBytes, result.getEncodedLength());
+        }
+        return result;
+    }
+
+    /**
+     * Method for merging segments of multiple bitmaps, using executor (if any)
+     * to merge bitmaps in parallel.
+     *
+     * @param segments Segments of bitmaps to merge, by key
+     * @param tombstones Tombstones of bitmaps, by key; may be null, and need
+     *    not have entries for all keys
+     *
+     * @return Merged bitmaps, in iteration order of <code>segments</code>
+     */
+    public <K> Map<K,EncodedBitmap> mergeAll(final Mode mode, Map<K,List<EncodedBitmap>> segments,
+            Map<K,List<EncodedBitmap>> tombstones)
+    {
+        final Map<K,EncodedBitmap> result = new LinkedHashMap<K,EncodedBitmap>();
+        if (_executor == null) {
+            for (Map.Entry<K,List<EncodedBitmap>> entry : segments.entrySet()) {
+                result.put(entry.getKey(), merge(mode, entry.getValue(),
+                        (tombstones == null) ? null : tombstones.get(entry.getKey())));
+            }
+            return result;
+        }
+        final Map<K,Future<EncodedBitmap>> futures = new LinkedHashMap<K,Future<EncodedBitmap>>();
+        for (Map.Entry<K,List<EncodedBitmap>> entry : segments.entrySet()) {
+            final List<EncodedBitmap> segs = entry.getValue();
+            final List<EncodedBitmap> tombs = (tombstones == null) ? null : tombstones.get(entry.getKey());
+            futures.put(entry.getKey(), _executor.submit(new Callable<EncodedBitmap>() {
+                @Override
+                public EncodedBitmap call() {
+                    return merge(mode, segs, tombs);
+                }
+            }));
+        }
+        try {
+            for (Map.Entry<K,Future<EncodedBitmap>> entry : futures.entrySet()) {
+                result.put(entry.getKey(), entry.getValue().get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while merging segments", e);
+        } catch (ExecutionException e) {
+            Throwable t = e.getCause();
+            if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            }
+            throw new IllegalStateException("Failed to merge segments: "+t, t);
+        }
+        return result;
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    protected EncodedBitmap _union(List<EncodedBitmap> segments, List<EncodedBitmap> tombstones)
+    {
+        final EncodedBitmap first = segments.get(0);
+        final BitmapCodec codec = first.getCodec();
+        final BitOrder order = first.getBitOrder();
+        int bitLength = 0;
+        for (EncodedBitmap bm : segments) {
+            _verifyCompatible(first, bm);
+            bitLength = Math.max(bitLength, bm.getBitLength());
+        }
+        for (EncodedBitmap bm : tombstones) {
+            _verifyCompatible(first, bm);
+        }
+        final Input[] segs = _inputs(segments);
+        final Input[] tombs = _inputs(tombstones);
+        final EncodedBitmapBuilder builder = new EncodedBitmapBuilder(codec, order);
+        final int chunkSize = codec.chunkSize();
+        final long chunkBits = (long) chunkSize << 3;
+        final int chunkCount = (int) ((((bitLength + 7L) >> 3) + chunkSize - 1) / chunkSize);
+        final long[] acc = new long[chunkSize >> 3];
+
+        for (int i = 0; i < chunkCount; ) {
+            boolean segFull = false, tombFull = false;
+            boolean segEncoded = false, tombEncoded = false;
+            Input single = null;
+            int runEnd = chunkCount;
+            for (Input in : segs) {
+                in.moveTo(i);
+                if (in.offset >= 0) {
+                    single = segEncoded ? null : in;
+                    segEncoded = true;
+                } else {
+                    segFull |= (in.offset == EncodedBitmap.OFFSET_FULL);
+                    runEnd = Math.min(runEnd, in.runEnd());
+                }
+            }
+            for (Input in : tombs) {
+                in.moveTo(i);
+                if (in.offset >= 0) {
+                    tombEncoded = true;
+                } else {
+                    tombFull |= (in.offset == EncodedBitmap.OFFSET_FULL);
+                    runEnd = Math.min(runEnd, in.runEnd());
+                }
+            }
+            final long chunkStart = i * chunkBits;
+            final int rawLength = (int) Math.min(chunkSize, ((bitLength + 7L) >> 3) - (i * (long) chunkSize));
+            final boolean fullChunk = (rawLength == chunkSize);
+
+            // Uniform result? Can append a span at once, if all inputs are uniform
+            if (fullChunk && (tombFull || (!tombEncoded && (segFull || !segEncoded)))) {
+                final boolean set = !tombFull && segFull;
+                int end = i+1;
+                if (!segEncoded && !tombEncoded) {
+                    // but not past the last full chunk
+                    end = Math.max(end, Math.min(runEnd, (int) (bitLength / chunkBits)));
+                    for (Input in : segs) {
+                        in.skipTo(end);
+                    }
+                    for (Input in : tombs) {
+                        in.skipTo(end);
+                    }
+                }
+                builder.appendUniformChunks(set, end - i);
+                i = end;
+                continue;
+            }
+            if (fullChunk && single != null && !segFull && !tombEncoded
+                    && single.bitmap.getChunkRawLength(i) == chunkSize) {
+                builder.appendEncodedChunk(single.bitmap._data, single.offset,
+                        single.bitmap._chunkLength(single.offset));
+                ++i;
+                continue;
+            }
+            // otherwise need to decode into accumulator
+            Arrays.fill(acc, (segFull && !tombFull) ? -1L : 0L);
+            if (!tombFull) {
+                if (!segFull) {
+                    for (Input in : segs) {
+                        in.combine(BitOp.OR, acc, chunkStart);
+                    }
+                }
+                for (Input in : tombs) {
+                    in.combine(BitOp.AND_NOT, acc, chunkStart);
+                }
+            }
+            builder.appendWordBytes(acc, 0, rawLength);
+            ++i;
+        }
+        return builder.build(bitLength);
+    }
+
+    protected void _verifyCompatible(EncodedBitmap first, EncodedBitmap bm)
+    {
+        if (bm.getCodec() != first.getCodec() || bm.getBitOrder() != first.getBitOrder()) {
+            throw new IllegalArgumentException("Can not merge bitmap with codec "+bm.getCodec()
+                    +" and bit order "+bm.getBitOrder()+" with "+first.getCodec()+"/"+first.getBitOrder());
+        }
+    }
+
+    private static Input[] _inputs(List<EncodedBitmap> bitmaps)
+    {
+        Input[] inputs = new Input[bitmaps.size()];
+        for (int i = 0; i < inputs.length; ++i) {
+            inputs[i] = new Input(bitmaps.get(i));
+        }
+        return inputs;
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper classes
+    /**********************************************************************
+     */
+
+    /**
+     * Position within a segment (or tombstone) being merged
+     */
+    private final static class Input
+    {
+        final EncodedBitmap bitmap;
+        private final EncodedBitmap.ChunkCursor _cursor;
+        private EncodedBitmap.WordDecoder _decoder;
+        private boolean _done;
+
+        /**
+         * Offset of the current chunk; see {@link EncodedBitmap.ChunkCursor#offset()}
+         */
+        int offset = EncodedBitmap.OFFSET_EMPTY;
+
+        Input(EncodedBitmap bm) {
+            bitmap = bm;
+            _cursor = bm.new ChunkCursor();
+        }
+
+        void moveTo(int index)
+        {
+            while (!_done && _cursor.index() < index) {
+                if (!_cursor.next()) {
+                    _done = true;
+                }
+            }
+            offset = _done ? EncodedBitmap.OFFSET_EMPTY : _cursor.offset();
+        }
+
+        /**
+         * @return End of span of the current (uniform) chunk
+         */
+        int runEnd() {
+            return _done ? Integer.MAX_VALUE : _cursor.runEnd();
+        }
+
+        void skipTo(int index) {
+            if (!_done) {
+                _cursor.skipTo(Math.min(index, _cursor.runEnd()));
+            }
+        }
+
+        /**
+         * Method for combining the current chunk (if encoded) into given accumulator
+         */
+        void combine(BitOp op, long[] acc, long chunkStart)
+        {
+            if (offset < 0) {
+                if (offset == EncodedBitmap.OFFSET_FULL) {
+                    new WordCombiner(op, acc, 0L, (long) acc.length << 6, bitmap.getBitOrder())
+                        .addRunBits(true, (long) acc.length << 6);
+                }
+                return;
+            }
+            if (_decoder == null) {
+                _decoder = bitmap.new WordDecoder();
+            }
+            // padding bits of the last chunk must not be included
+            final long bits = Math.min((long) acc.length << 6, bitmap.getBitLength() - chunkStart);
+            WordCombiner comb = new WordCombiner(op, acc, 0L, bits, bitmap.getBitOrder());
+            _decoder.combineChunk(_cursor.index(), offset, comb);
+            comb.finish();
+        }
+    }
+}
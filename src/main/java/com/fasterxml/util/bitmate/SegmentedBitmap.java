@@ -0,0 +1,267 @@
+package com.fasterxml.util.bitmate;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Bitmap that may be longer than 2^31 bits, stored as a sequence of
+ * {@link EncodedBitmap} segments: all segments except for the last one have
+ * the same length, which is a multiple of chunk size of the codec. Since each
+ * segment is a separate array, no single allocation is needed for the
+ * whole bitmap, and positions are addressed with 64-bit (<code>long</code>)
+ * indexes.
+ *<p>
+ * Instances are constructed using {@link SegmentedBitmapBuilder}, or from
+ * existing segments with {@link #fromSegments}. Instances are immutable.
+ */
+public class SegmentedBitmap
+{
+    protected final BitmapCodec _codec;
+
+    protected final BitOrder _bitOrder;
+
+    protected final long _bitLength;
+
+    /**
+     * Length of all segments except for the last one, in bits
+     */
+    protected final long _segmentBits;
+
+    protected final EncodedBitmap[] _segments;
+
+    protected SegmentedBitmap(BitmapCodec codec, BitOrder order, long segmentBits,
+            EncodedBitmap[] segments)
+    {
+        _codec = codec;
+        _bitOrder = order;
+        _segmentBits = segmentBits;
+        _segments = segments;
+        long len = 0L;
+        for (EncodedBitmap bm : segments) {
+            len += bm.getBitLength();
+        }
+        _bitLength = len;
+    }
+
+    /**
+     * Factory method for constructing instance from given segments, all of
+     * which must use the same codec and bit order, and all of which except
+     * for the last must have the same length, a multiple of chunk size.
+     */
+    public static SegmentedBitmap fromSegments(EncodedBitmap... segments)
+    {
+        if (segments.length == 0) {
+            throw new IllegalArgumentException("Need at least one segment");
+        }
+        final EncodedBitmap first = segments[0];
+        final long segmentBits = first.getBitLength();
+        for (int i = 0; i < segments.length; ++i) {
+            final EncodedBitmap bm = segments[i];
+            if (bm.getCodec() != first.getCodec() || bm.getBitOrder() != first.getBitOrder()) {
+                throw new IllegalArgumentException("Can not combine segment with codec "+bm.getCodec()
+                        +" and bit order "+bm.getBitOrder()+" with "+first.getCodec()+"/"+first.getBitOrder());
+            }
+            if (i < segments.length-1) {
+                if (bm.getBitLength() != segmentBits
+                        || (segmentBits % ((long) first.getCodec().chunkSize() << 3)) != 0L) {
+                    throw new IllegalArgumentException(String.format(
+                            "Invalid length of segment #%d (%d bits): all but the last segment must have same length (%d bits), a multiple of chunk size",
+                            i, bm.getBitLength(), segmentBits));
+                }
+            }
+        }
+        return new SegmentedBitmap(first.getCodec(), first.getBitOrder(), segmentBits,
+                segments.clone());
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API, accessors
+    /**********************************************************************
+     */
+
+    public BitmapCodec getCodec() { return _codec; }
+
+    public BitOrder getBitOrder() { return _bitOrder; }
+
+    public long getBitLength() { return _bitLength; }
+
+    /**
+     * @return Length of all segments except for the last one, in bits
+     */
+    public long getSegmentBits() { return _segmentBits; }
+
+    public int getSegmentCount() { return _segments.length; }
+
+    public EncodedBitmap getSegment(int index) { return _segments[index]; }
+
+    /**
+     * @return Total length of encoded segments, in bytes
+     */
+    public long getEncodedLength() {
+        long len = 0L;
+        for (EncodedBitmap bm : _segments) {
+            len += bm.getEncodedLength();
+        }
+        return len;
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API, access to bits
+    /**********************************************************************
+     */
+
+    /**
+     * @return Whether bit at given index is set
+     */
+    public boolean get(long bitIndex)
+    {
+        if (bitIndex < 0L || bitIndex >= _bitLength) {
+            throw new IllegalArgumentException("Invalid bit index "+bitIndex+": bitmap has "
+                    +_bitLength+" bits");
+        }
+        final int seg = (int) (bitIndex / _segmentBits);
+        final EncodedBitmap bm = _segments[seg];
+        return bm.get((int) (bitIndex - seg * _segmentBits));
+    }
+
+    /**
+     * @return Index of the first set bit at or after given index; -1 if none
+     */
+    public long nextSetBit(long fromIndex) {
+        return _nextSetBit(fromIndex, new ChunkBuffer());
+    }
+
+    /**
+     * @return Number of set bits
+     */
+    public long cardinality()
+    {
+        long count = 0L;
+        for (EncodedBitmap bm : _segments) {
+            count += BitmapMetrics.cardinality(bm);
+        }
+        return count;
+    }
+
+    /**
+     * @return Iterator over indexes of set bits, in ascending order
+     */
+    public SetBitIterator iterator() {
+        return new SetBitIterator();
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    protected long _nextSetBit(long from, ChunkBuffer buffer)
+    {
+        if (from < 0L) {
+            from = 0L;
+        }
+        final long chunkBits = (long) _codec.chunkSize() << 3;
+        while (from < _bitLength) {
+            final int seg = (int) (from / _segmentBits);
+            final EncodedBitmap bm = _segments[seg];
+            final long segStart = seg * _segmentBits;
+            final long local = from - segStart;
+            final EncodedBitmap.ChunkCursor c = bm.new ChunkCursor((int) (local / chunkBits));
+            while (c.next()) {
+                final int i = c.index();
+                final long chunkStart = i * chunkBits;
+                final long start = Math.max(local, chunkStart);
+                final int offset = c.offset();
+                if (offset == EncodedBitmap.OFFSET_FULL) {
+                    return segStart + start;
+                }
+                if (offset == EncodedBitmap.OFFSET_EMPTY) {
+                    c.skipTo(c.runEnd());
+                    continue;
+                }
+                final long[] words = buffer.words(seg, i, bm);
+                final int count = bm.getChunkWordCount(i);
+                int bit = (int) (start - chunkStart);
+                for (int w = bit >> 6; w < count; ++w) {
+                    final int found = _firstSet(words[w], (w == (bit >> 6)) ? (bit & 63) : 0);
+                    if (found >= 0) {
+                        return segStart + chunkStart + ((long) w << 6) + found;
+                    }
+                }
+            }
+            from = segStart + _segmentBits;
+        }
+        return -1L;
+    }
+
+    /**
+     * @return Position of the first set bit of given word at or after given
+     *   position; -1 if none
+     */
+    private int _firstSet(long word, int from)
+    {
+        if (_bitOrder == BitOrder.MSB_FIRST) {
+            word &= (-1L >>> from);
+            return (word == 0L) ? -1 : Long.numberOfLeadingZeros(word);
+        }
+        word &= (-1L << from);
+        return (word == 0L) ? -1 : Long.numberOfTrailingZeros(word);
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper classes
+    /**********************************************************************
+     */
+
+    /**
+     * Holder for the most recently decoded chunk, to avoid decoding a chunk
+     * more than once while iterating
+     */
+    protected final class ChunkBuffer
+    {
+        private final long[] _words = new long[_codec.chunkSize() >> 3];
+        private int _segment = -1;
+        private int _chunk = -1;
+
+        long[] words(int segment, int chunk, EncodedBitmap bm)
+        {
+            if (segment != _segment || chunk != _chunk) {
+                bm.decodeChunkWords(chunk, _words, 0);
+                _segment = segment;
+                _chunk = chunk;
+            }
+            return _words;
+        }
+    }
+
+    /**
+     * Iterator over indexes of set bits; chunks of all-zero bits are skipped
+     * without decoding.
+     */
+    public final class SetBitIterator
+    {
+        private final ChunkBuffer _buffer = new ChunkBuffer();
+        private long _next;
+
+        SetBitIterator() {
+            _next = _nextSetBit(0L, _buffer);
+        }
+
+        public boolean hasNext() {
+            return (_next >= 0L);
+        }
+
+        public long next()
+        {
+            final long result = _next;
+            if (result < 0L) {
+                throw new NoSuchElementException();
+            }
+            _next = (result + 1L < _bitLength) ? _nextSetBit(result + 1L, _buffer) : -1L;
+            return result;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.fasterxml.util.bitmate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builder for {@link SegmentedBitmap}s: content is appended the same way as
+ * with {@link EncodedBitmapBuilder}, but without limits on total length; a new
+ * segment is started whenever the current one is full. Only the segment being
+ * appended to is held in raw (partially encoded) form.
+ */
+public class SegmentedBitmapBuilder
+{
+    protected final BitmapCodec _codec;
+
+    protected final BitOrder _bitOrder;
+
+    protected final long _segmentBytes;
+
+    protected final List<EncodedBitmap> _segments = new ArrayList<EncodedBitmap>();
+
+    /**
+     * Builder for the current segment; null if not yet started
+     */
+    protected EncodedBitmapBuilder _current;
+
+    public SegmentedBitmapBuilder(BitmapCodec codec, BitOrder order) {
+        this(codec, order, maxSegmentChunks(codec));
+    }
+
+    /**
+     * @param segmentChunks Number of chunks per segment; at most
+     *    {@link #maxSegmentChunks(BitmapCodec)}
+     */
+    public SegmentedBitmapBuilder(BitmapCodec codec, BitOrder order, int segmentChunks)
+    {
+        final int max = maxSegmentChunks(codec);
+        if (segmentChunks < 1 || segmentChunks > max) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid segment chunk count (%d): must be between 1 and %d", segmentChunks, max));
+        }
+        _codec = codec;
+        _bitOrder = order;
+        _segmentBytes = (long) segmentChunks * codec.chunkSize();
+    }
+
+    /**
+     * @return Maximum number of chunks in a segment with given codec, such
+     *   that its length in bits fits in an <code>int</code>
+     */
+    public static int maxSegmentChunks(BitmapCodec codec) {
+        return Integer.MAX_VALUE / (codec.chunkSize() << 3);
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API, accessors
+    /**********************************************************************
+     */
+
+    public BitmapCodec getCodec() { return _codec; }
+
+    public BitOrder getBitOrder() { return _bitOrder; }
+
+    /**
+     * @return Number of raw bytes appended so far
+     */
+    public long getRawLength() {
+        return (_segments.size() * _segmentBytes)
+                + ((_current == null) ? 0L : _current.getRawLength());
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API, appending content
+    /**********************************************************************
+     */
+
+    /**
+     * Method for appending raw content; see {@link EncodedBitmapBuilder#append}.
+     */
+    public void append(byte[] data, int offset, int len)
+    {
+        while (len > 0) {
+            final int count = (int) Math.min(len, _room());
+            _current().append(data, offset, count);
+            offset += count;
+            len -= count;
+            _checkFull();
+        }
+    }
+
+    /**
+     * Method for appending raw content as 64-bit words; see
+     * {@link EncodedBitmapBuilder#appendWords}.
+     */
+    public void appendWords(long[] words, int offset, int count)
+    {
+        while (count > 0) {
+            final long room = _room();
+            if (room < 8L) { // word straddles segment boundary (only if bytes were appended)
+                byte[] buf = new byte[8];
+                BitRatEncoder._writeWord(words[offset++], (_bitOrder == BitOrder.MSB_FIRST), buf, 0);
+                --count;
+                append(buf, 0, 8);
+                continue;
+            }
+            final int n = (int) Math.min(count, room >> 3);
+            _current().appendWords(words, offset, n);
+            offset += n;
+            count -= n;
+            _checkFull();
+        }
+    }
+
+    /**
+     * Method for appending full chunks in which all bits are either set or
+     * clear; see {@link EncodedBitmapBuilder#appendUniformChunks}.
+     */
+    public void appendUniformChunks(boolean set, long count)
+    {
+        final int chunkSize = _codec.chunkSize();
+        while (count > 0L) {
+            final int n = (int) Math.min(count, _room() / chunkSize);
+            _current().appendUniformChunks(set, n);
+            count -= n;
+            _checkFull();
+        }
+    }
+
+    /**
+     * Method to call after all content has been appended, to construct the
+     * result. If less content has been appended than indicated by bit length,
+     * the rest is padded with clear bits.
+     */
+    public SegmentedBitmap build(long bitLength)
+    {
+        final long rawLength = (bitLength + 7L) >>> 3;
+        if (bitLength < 0L || rawLength < getRawLength()) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid bit length (%d): %d bytes of content appended", bitLength, getRawLength()));
+        }
+        final long segmentBits = _segmentBytes << 3;
+        final int segmentCount = (int) Math.max(1L, (bitLength + segmentBits - 1) / segmentBits);
+        final EncodedBitmap[] segments = new EncodedBitmap[segmentCount];
+        for (int i = 0; i < segmentCount; ++i) {
+            final int bits = (int) Math.min(segmentBits, bitLength - i * segmentBits);
+            if (i < _segments.size()) {
+                segments[i] = _segments.get(i);
+            } else if (i == _segments.size() && _current != null) {
+                segments[i] = _current.build(bits);
+                _current = null;
+            } else {
+                segments[i] = new EncodedBitmapBuilder(_codec, _bitOrder).build(bits);
+            }
+        }
+        return new SegmentedBitmap(_codec, _bitOrder, segmentBits, segments);
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    protected EncodedBitmapBuilder _current()
+    {
+        if (_current == null) {
+            _current = new EncodedBitmapBuilder(_codec, _bitOrder);
+        }
+        return _current;
+    }
+
+    /**
+     * @return Number of bytes that still fit in the current segment
+     */
+    protected long _room() {
+        return _segmentBytes - ((_current == null) ? 0L : _current.getRawLength());
+    }
+
+    protected void _checkFull()
+    {
+        if (_current != null && _current.getRawLength() == _segmentBytes) {
+            _segments.add(_current.build((int) (_segmentBytes << 3)));
+            _current = null;
+        }
+    }
+}
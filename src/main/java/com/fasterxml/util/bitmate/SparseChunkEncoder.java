@@ -0,0 +1,268 @@
+package com.fasterxml.util.bitmate;
+
+/**
+ * Helper class used by {@link EncodedBitmapBuilder} for encoding full chunks
+ * given as sorted lists of indexes of set bits. Output is identical to that
+ * of encoding the equivalent raw chunk, but work done is proportional to the
+ * number of set bits, not to the chunk size: bits are set in a scratch chunk
+ * buffer (and cleared afterwards), and empty regions between set bits are
+ * skipped using the index list instead of scanning the buffer.
+ */
+class SparseChunkEncoder
+{
+    protected final BitmapCodec _codec;
+
+    protected final BitOrder _bitOrder;
+
+    protected final BitRatEncoder _ratEncoder;
+
+    protected final SparseNibblerEncoder _nibblerEncoder;
+
+    /**
+     * Scratch buffer for one chunk; all zeroes between calls
+     */
+    protected final byte[] _chunk;
+
+    protected int[] _ids;
+
+    /**
+     * Index of the first id not yet known to be before current position
+     */
+    protected int _idPtr;
+
+    protected int _idEnd;
+
+    /**
+     * Index of the first bit of the chunk being encoded
+     */
+    protected long _bitBase;
+
+    /**
+     * @param ratEncoder Encoder to use for {@link BitmapCodec#BITRAT}; shared
+     *    with the builder
+     */
+    public SparseChunkEncoder(BitmapCodec codec, BitOrder order, BitRatEncoder ratEncoder)
+    {
+        _codec = codec;
+        _bitOrder = order;
+        _ratEncoder = ratEncoder;
+        _nibblerEncoder = codec.isNibbler() ? new SparseNibblerEncoder(order, codec.hasWideLengths()) : null;
+        _chunk = new byte[codec.chunkSize()];
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API
+    /**********************************************************************
+     */
+
+    /**
+     * Method for encoding a full chunk of a BitRat codec with given
+     * set bits; frame is to be written by the caller.
+     *
+     * @return Top-level mask, as with {@link BitRatEncoder#encodeFullChunk} (or, for
+     *    codecs with sub-chunks, {@link BitRatEncoder#encodeLargeChunk}); output
+     *    pointer is available from the encoder
+     */
+    public int encodeRat(boolean prevBit, int[] ids, int idPtr, int idEnd, long bitBase,
+            byte[] output, int outputPtr)
+    {
+        _setBits(ids, idPtr, idEnd, bitBase);
+        final BitRatEncoder enc = _ratEncoder;
+        enc._input = _chunk;
+        enc._words = null;
+        enc._output = output;
+        enc._outputTail = outputPtr;
+        enc._matchLevel1 = prevBit ? 0xFF : 0x0;
+
+        int resultMask;
+        final int subChunks = _codec.subChunks();
+        if (subChunks == 1) {
+            resultMask = _encodeRatChunk(outputPtr, 0);
+        } else {
+            // one more mask level, for 4k sub-chunks
+            resultMask = 0;
+            for (int i = 0; i < subChunks; ++i) {
+                final int subStart = i * BitRatEncoder.FULL_CHUNK_SIZE;
+                if (_isEmpty(subStart, subStart + BitRatEncoder.FULL_CHUNK_SIZE)) {
+                    continue;
+                }
+                int mask = _encodeRatChunk(outputPtr+1, subStart);
+                if (mask != 0) {
+                    output[outputPtr] = (byte) mask;
+                    resultMask |= (1 << (subChunks - 1 - i));
+                    outputPtr = enc._outputTail;
+                }
+            }
+        }
+        _clearBits(idPtr, idEnd);
+        enc._input = null;
+        return resultMask;
+    }
+
+    /**
+     * Method for encoding a full {@link BitmapCodec#NIBBLER} chunk with given
+     * set bits.
+     *
+     * @return Offset right after last encoded byte
+     */
+    public int encodeNibbler(int[] ids, int idPtr, int idEnd, long bitBase,
+            byte[] output, int outputPtr)
+    {
+        _setBits(ids, idPtr, idEnd, bitBase);
+        outputPtr = _nibblerEncoder.encode(_chunk, 0, _chunk.length, output, outputPtr);
+        _clearBits(idPtr, idEnd);
+        return outputPtr;
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    /**
+     * Method for encoding 4k bytes starting at given offset of the chunk
+     *
+     * @return Top-level mask
+     */
+    protected int _encodeRatChunk(int outputPtr, int chunkStart)
+    {
+        final BitRatEncoder enc = _ratEncoder;
+        int resultMask = 0;
+        for (int i = 0; i < 8; ++i) {
+            final int blockStart = chunkStart + i * BitRatEncoder.LEVEL2_CHUNK_SIZE;
+            if (_isEmpty(blockStart, blockStart + BitRatEncoder.LEVEL2_CHUNK_SIZE)) {
+                continue;
+            }
+            int mask = _encodeRatLevel2(outputPtr+1, blockStart);
+            if (mask != 0) {
+                enc._output[outputPtr] = (byte) mask;
+                resultMask |= (0x80 >> i);
+                outputPtr = enc._outputTail;
+            }
+        }
+        return resultMask;
+    }
+
+    /**
+     * Sparse equivalent of {@link BitRatEncoder#_encodeFullLevel2}
+     */
+    protected int _encodeRatLevel2(int outputPtr, int blockStart)
+    {
+        final BitRatEncoder enc = _ratEncoder;
+        int resultMask = 0;
+
+        for (int i = 0; i < 8; ++i) {
+            resultMask <<= 1;
+            final int pairStart = blockStart + (i << 6);
+            if (_isEmpty(pairStart, pairStart + 64)) {
+                continue;
+            }
+            final int origOutputPtr = outputPtr;
+            ++outputPtr;
+            int mask = _encodeRatLevel1(outputPtr, pairStart);
+            if (mask != 0) {
+                mask <<= 4;
+                outputPtr = enc._outputTail;
+            }
+            int lo = _encodeRatLevel1(outputPtr, pairStart + 32);
+            if (lo != 0) {
+                outputPtr = enc._outputTail;
+                mask |= lo;
+            }
+            if (mask == 0) {
+                outputPtr = origOutputPtr;
+            } else {
+                enc._output[origOutputPtr] = (byte) mask;
+                resultMask |= 1;
+            }
+        }
+        return resultMask;
+    }
+
+    protected int _encodeRatLevel1(int outputPtr, int start)
+    {
+        if (_isEmpty(start, start + 32)) {
+            return 0;
+        }
+        _ratEncoder._inputPtr = start;
+        return _ratEncoder._encodeFullLevel1(outputPtr);
+    }
+
+    /**
+     * Method for checking whether given range of chunk would produce no output:
+     * this is the case if it has no set bits, and no run of set bits is
+     * being continued.
+     */
+    protected boolean _isEmpty(int byteStart, int byteEnd)
+    {
+        if (_ratEncoder._matchLevel1 != 0) {
+            return false;
+        }
+        return _nextSetByte(byteStart) >= byteEnd;
+    }
+
+    /**
+     * @return Offset of the first byte at or after given offset that has
+     *    set bits; or chunk length if none
+     */
+    protected int _nextSetByte(int byteOffset)
+    {
+        final int[] ids = _ids;
+        int ptr = _idPtr;
+        final int end = _idEnd;
+        while (ptr < end) {
+            int b = (int) ((ids[ptr] - _bitBase) >>> 3);
+            if (b >= byteOffset) {
+                _idPtr = ptr;
+                return b;
+            }
+            ++ptr;
+        }
+        _idPtr = ptr;
+        return _chunk.length;
+    }
+
+    protected void _setBits(int[] ids, int idPtr, int idEnd, long bitBase)
+    {
+        final byte[] chunk = _chunk;
+        final BitOrder order = _bitOrder;
+        for (int i = idPtr; i < idEnd; ++i) {
+            int bit = (int) (ids[i] - bitBase);
+            chunk[bit >>> 3] |= order.bitMask(bit & 7);
+        }
+        _ids = ids;
+        _idPtr = idPtr;
+        _idEnd = idEnd;
+        _bitBase = bitBase;
+    }
+
+    protected void _clearBits(int idPtr, int idEnd)
+    {
+        for (int i = idPtr; i < idEnd; ++i) {
+            _chunk[(int) ((_ids[i] - _bitBase) >>> 3)] = 0;
+        }
+        _ids = null;
+    }
+
+    /**
+     * {@link NibblerEncoder} that finds ends of zero runs using the list of
+     * set bits, instead of scanning the input.
+     */
+    protected class SparseNibblerEncoder extends NibblerEncoder
+    {
+        public SparseNibblerEncoder(BitOrder order, boolean wide) {
+            super(order, wide);
+        }
+
+        @Override
+        protected int _findRunLength(int ptr, int ch)
+        {
+            if (ch != 0) {
+                return super._findRunLength(ptr, ch);
+            }
+            return Math.min(_inputEnd, _nextSetByte(ptr)) - ptr;
+        }
+    }
+}
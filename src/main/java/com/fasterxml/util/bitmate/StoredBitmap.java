@@ -0,0 +1,41 @@
+package com.fasterxml.util.bitmate;
+
+import java.util.Arrays;
+
+/**
+ * Bitmap stored in a {@link ChunkStore}: consists of references to (ids of)
+ * chunks stored in the store, or to uniform chunks
+ * ({@link ChunkStore#EMPTY_CHUNK}, {@link ChunkStore#FULL_CHUNK}).
+ * Instances are immutable; each instance holds one reference to each stored
+ * chunk it refers to, released with {@link ChunkStore#release}.
+ */
+public class StoredBitmap
+{
+    protected final ChunkStore _store;
+
+    protected final int _bitLength;
+
+    protected final long[] _chunkIds;
+
+    protected StoredBitmap(ChunkStore store, int bitLength, long[] chunkIds)
+    {
+        _store = store;
+        _bitLength = bitLength;
+        _chunkIds = chunkIds;
+    }
+
+    public ChunkStore getStore() { return _store; }
+
+    public int getBitLength() { return _bitLength; }
+
+    public int getChunkCount() { return _chunkIds.length; }
+
+    public long getChunkId(int index) { return _chunkIds[index]; }
+
+    /**
+     * @return Copy of ids of chunks of this bitmap
+     */
+    public long[] getChunkIds() {
+        return Arrays.copyOf(_chunkIds, _chunkIds.length);
+    }
+}
@@ -0,0 +1,213 @@
+package com.fasterxml.util.bitmate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Store for successive versions (snapshots) of a bitmap, where versions
+ * typically differ in a small fraction of bits. Each version is stored either
+ * as is (a "base" version), or as {@link BitmapCodec#BITRAT} encoded XOR
+ * delta from the previous version: since most chunks of a delta have no bits
+ * set, they are omitted from encoding altogether.
+ *<p>
+ * Versions are reconstructed by XOR-ing the closest preceding base version,
+ * and deltas after it, directly into a single word array (see
+ * {@link EncodedBitmap#xorInto}), without decoding deltas separately.
+ * To bound the cost of reconstruction, every {@link #getRebaseInterval()}th
+ * version is stored as a new base version.
+ *<p>
+ * Instances are not thread-safe: access must be synchronized if versions
+ * are added concurrently with reading.
+ */
+public class VersionedBitmapStore
+{
+    public final static int DEFAULT_REBASE_INTERVAL = 16;
+
+    protected final BitOrder _bitOrder;
+
+    protected final int _rebaseInterval;
+
+    protected final List<Version> _versions = new ArrayList<Version>();
+
+    /**
+     * Contents of the latest version, to calculate delta for the next
+     * version without reconstructing it; in bit order of the store.
+     */
+    protected long[] _latest;
+
+    protected long _encodedLength;
+
+    public VersionedBitmapStore(BitOrder order) {
+        this(order, DEFAULT_REBASE_INTERVAL);
+    }
+
+    /**
+     * @param rebaseInterval Maximum number of versions in a delta chain,
+     *    including the base version; 1 means that all versions are stored as is.
+     */
+    public VersionedBitmapStore(BitOrder order, int rebaseInterval)
+    {
+        if (rebaseInterval < 1) {
+            throw new IllegalArgumentException("Invalid rebase interval ("+rebaseInterval
+                    +"): must be at least 1");
+        }
+        _bitOrder = order;
+        _rebaseInterval = rebaseInterval;
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API, accessors
+    /**********************************************************************
+     */
+
+    public BitOrder getBitOrder() { return _bitOrder; }
+
+    public int getRebaseInterval() { return _rebaseInterval; }
+
+    public int getVersionCount() { return _versions.size(); }
+
+    /**
+     * @return Total length of encoded base versions and deltas, in bytes
+     */
+    public long getEncodedLength() { return _encodedLength; }
+
+    /**
+     * @return True if given version is stored as is; false if as a delta
+     */
+    public boolean isBaseVersion(int version) {
+        return _version(version).base;
+    }
+
+    /**
+     * @return Encoded length of given version (or its delta), in bytes
+     */
+    public int getEncodedLength(int version) {
+        return _version(version).bitmap.getEncodedLength();
+    }
+
+    /*
+    /**********************************************************************
+    /* Public API, adding and reconstructing versions
+    /**********************************************************************
+     */
+
+    /**
+     * Method for adding the next version of the bitmap; bitmaps may use any
+     * codec (which is retained for reconstructed versions), but must use bit
+     * order of the store. Length of versions may vary.
+     *
+     * @return Index of the version added
+     */
+    public int add(EncodedBitmap bitmap)
+    {
+        if (bitmap.getBitOrder() != _bitOrder) {
+            throw new IllegalArgumentException("Can not add bitmap with bit order "
+                    +bitmap.getBitOrder()+": store uses "+_bitOrder);
+        }
+        final int index = _versions.size();
+        final int bitLength = bitmap.getBitLength();
+        final long[] words = new long[_wordCount(bitLength)];
+        bitmap.xorInto(words, 0L);
+
+        Version v;
+        if ((index % _rebaseInterval) == 0) {
+            v = new Version(bitmap, true, bitmap.getCodec(), bitLength);
+        } else {
+            // delta covers the longer of the two versions
+            final long[] prev = _latest;
+            final long[] delta = Arrays.copyOf(words, Math.max(words.length, prev.length));
+            for (int i = 0; i < prev.length; ++i) {
+                delta[i] ^= prev[i];
+            }
+            final int deltaBits = Math.max(bitLength, _versions.get(index-1).bitLength);
+            v = new Version(EncodedBitmap.encode(BitmapCodec.BITRAT, delta, deltaBits, _bitOrder),
+                    false, bitmap.getCodec(), bitLength);
+        }
+        _versions.add(v);
+        _encodedLength += v.bitmap.getEncodedLength();
+        _latest = words;
+        return index;
+    }
+
+    /**
+     * Method for reconstructing given version, encoded with the codec of
+     * the bitmap originally added.
+     */
+    public EncodedBitmap get(int version)
+    {
+        final Version v = _version(version);
+        if (v.base) {
+            return v.bitmap;
+        }
+        return EncodedBitmap.encode(v.codec, decodeWords(version), v.bitLength, _bitOrder);
+    }
+
+    /**
+     * Method for reconstructing given version as 64-bit words, in bit order of
+     * the store.
+     */
+    public long[] decodeWords(int version)
+    {
+        _version(version);
+        int base = version;
+        while (!_versions.get(base).base) {
+            --base;
+        }
+        // chain may contain longer versions, so need to size for the longest
+        int maxBits = 0;
+        for (int i = base; i <= version; ++i) {
+            maxBits = Math.max(maxBits, _versions.get(i).bitmap.getBitLength());
+        }
+        final long[] words = new long[_wordCount(maxBits)];
+        for (int i = base; i <= version; ++i) {
+            _versions.get(i).bitmap.xorInto(words, 0L);
+        }
+        final int count = _wordCount(_versions.get(version).bitLength);
+        return (count == words.length) ? words : Arrays.copyOf(words, count);
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    protected Version _version(int version)
+    {
+        if (version < 0 || version >= _versions.size()) {
+            throw new IllegalArgumentException("Invalid version "+version+": store has "
+                    +_versions.size()+" versions");
+        }
+        return _versions.get(version);
+    }
+
+    private static int _wordCount(int bitLength) {
+        return (int) ((bitLength + 63L) >>> 6);
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper classes
+    /**********************************************************************
+     */
+
+    protected final static class Version
+    {
+        /**
+         * Version as is, for base versions; delta from the previous version otherwise
+         */
+        final EncodedBitmap bitmap;
+        final boolean base;
+        final BitmapCodec codec;
+        final int bitLength;
+
+        Version(EncodedBitmap bitmap, boolean base, BitmapCodec codec, int bitLength) {
+            this.bitmap = bitmap;
+            this.base = base;
+            this.codec = codec;
+            this.bitLength = bitLength;
+        }
+    }
+}
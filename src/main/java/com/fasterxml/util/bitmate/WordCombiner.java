@@ -0,0 +1,266 @@
+package com.fasterxml.util.bitmate;
+
+import java.util.Arrays;
+
+/**
+ * Helper class that decoders feed decoded content to, for combining it into
+ * a target word array (see {@link BitOp}), or simply copying it. Content may
+ * be fed as full words, bytes or runs, and is placed starting at given bit
+ * position of the target, which need not be word-aligned; runs are applied as
+ * bulk operations on target words, or skipped altogether if they would not
+ * change target.
+ *<p>
+ * Words are in the bit order given: for {@link BitOrder#MSB_FIRST}, first bit
+ * is the most significant bit of a word.
+ */
+final class WordCombiner
+{
+    private final static int RANGE_NONE = 0;
+    private final static int RANGE_SET = 1;
+    private final static int RANGE_CLEAR = 2;
+    private final static int RANGE_FLIP = 3;
+
+    /**
+     * Operation to apply; null for copying content as is
+     */
+    private final BitOp _op;
+
+    private final long[] _target;
+
+    private final boolean _bigEndian;
+
+    /**
+     * Target bit position of the next full word (or of the pending partial word)
+     */
+    private long _bitPos;
+
+    /**
+     * Target bit position after which content is not applied
+     */
+    private final long _bitEnd;
+
+    private long _pending;
+
+    private int _pendingBytes;
+
+    public WordCombiner(BitOp op, long[] target, long bitPos, long bitEnd, BitOrder order)
+    {
+        _op = op;
+        _target = target;
+        _bitPos = bitPos;
+        _bitEnd = bitEnd;
+        _bigEndian = (order == BitOrder.MSB_FIRST);
+    }
+
+    /**
+     * Factory method for combiner that just copies content to given word offset
+     */
+    public static WordCombiner copier(long[] target, int wordPtr, int wordCount, BitOrder order) {
+        long bitPos = (long) wordPtr << 6;
+        return new WordCombiner(null, target, bitPos, bitPos + ((long) wordCount << 6), order);
+    }
+
+    public long getBitPosition() { return _bitPos + (_pendingBytes << 3); }
+
+    /*
+    /**********************************************************************
+    /* Adding content
+    /**********************************************************************
+     */
+
+    /**
+     * Method for adding a full word of content; can only be called when
+     * content so far is in full words.
+     */
+    public void addWord(long w)
+    {
+        _emit(w, 64);
+        _bitPos += 64;
+    }
+
+    /**
+     * Method for adding given number of all-zero or all-one words; can only be
+     * called when content so far is in full words.
+     */
+    public void addWords(boolean ones, int count)
+    {
+        addRunBits(ones, (long) count << 6);
+    }
+
+    /**
+     * Method for adding given number of all-zero or all-one bits; can only be
+     * called when content so far is in full words.
+     */
+    public void addRunBits(boolean ones, long bits)
+    {
+        final long end = Math.min(_bitEnd, _bitPos + bits);
+        if (end > _bitPos) {
+            _applyRange(_bitPos, end, _rangeMode(ones));
+        }
+        _bitPos += bits;
+    }
+
+    /**
+     * Method for adding given number of all-zero (0x00) or all-one (0xFF) bytes.
+     */
+    public void addRun(boolean ones, int bytes)
+    {
+        final int b = ones ? 0xFF : 0;
+        while (_pendingBytes != 0 && bytes > 0) {
+            _addByte(b);
+            --bytes;
+        }
+        if (bytes >= 8) {
+            addWords(ones, bytes >> 3);
+            bytes &= 7;
+        }
+        while (--bytes >= 0) {
+            _addByte(b);
+        }
+    }
+
+    public void addBytes(byte[] buffer, int ptr, int count)
+    {
+        for (final int end = ptr + count; ptr < end; ++ptr) {
+            _addByte(buffer[ptr] & 0xFF);
+        }
+    }
+
+    /**
+     * Method to call after all content has been added, to apply content
+     * of the possible partial last word: rest of the word is taken to be
+     * zeroes, up to the end position.
+     */
+    public void finish()
+    {
+        if (_pendingBytes > 0) {
+            _emit(_pending, 64);
+            _bitPos += (_pendingBytes << 3);
+            _pending = 0L;
+            _pendingBytes = 0;
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Internal methods
+    /**********************************************************************
+     */
+
+    private void _addByte(int b)
+    {
+        final int shift = _bigEndian ? (56 - (_pendingBytes << 3)) : (_pendingBytes << 3);
+        _pending |= ((long) b) << shift;
+        if (++_pendingBytes == 8) {
+            _emit(_pending, 64);
+            _bitPos += 64;
+            _pending = 0L;
+            _pendingBytes = 0;
+        }
+    }
+
+    /**
+     * Method for applying the first given number of bits of given word
+     * at current position.
+     */
+    private void _emit(long w, int bits)
+    {
+        final long avail = _bitEnd - _bitPos;
+        if (avail < bits) {
+            if (avail <= 0L) {
+                return;
+            }
+            bits = (int) avail;
+        }
+        long mask;
+        if (bits == 64) {
+            mask = -1L;
+        } else if (_bigEndian) {
+            mask = -1L << (64 - bits);
+        } else {
+            mask = (1L << bits) - 1;
+        }
+        final int ix = (int) (_bitPos >>> 6);
+        final int shift = (int) (_bitPos & 63);
+        if (shift == 0) {
+            _apply(ix, w, mask);
+        } else if (_bigEndian) {
+            _apply(ix, w >>> shift, mask >>> shift);
+            if ((shift + bits) > 64) {
+                _apply(ix+1, w << (64 - shift), mask << (64 - shift));
+            }
+        } else {
+            _apply(ix, w << shift, mask << shift);
+            if ((shift + bits) > 64) {
+                _apply(ix+1, w >>> (64 - shift), mask >>> (64 - shift));
+            }
+        }
+    }
+
+    private void _apply(int ix, long w, long mask)
+    {
+        final long t = _target[ix];
+        final long result = (_op == null) ? w : _op.apply(t, w);
+        _target[ix] = (t & ~mask) | (result & mask);
+    }
+
+    private int _rangeMode(boolean ones)
+    {
+        if (_op == null) {
+            return ones ? RANGE_SET : RANGE_CLEAR;
+        }
+        switch (_op) {
+        case AND:
+            return ones ? RANGE_NONE : RANGE_CLEAR;
+        case OR:
+            return ones ? RANGE_SET : RANGE_NONE;
+        case AND_NOT:
+            return ones ? RANGE_CLEAR : RANGE_NONE;
+        default:
+            return ones ? RANGE_FLIP : RANGE_NONE;
+        }
+    }
+
+    private void _applyRange(long from, long to, int mode)
+    {
+        if (mode == RANGE_NONE) {
+            return;
+        }
+        int first = (int) (from >>> 6);
+        final int last = (int) ((to - 1) >>> 6);
+        final long firstMask = _bigEndian ? (-1L >>> (from & 63)) : (-1L << (from & 63));
+        final int endShift = (int) (((to - 1) & 63) + 1);
+        final long lastMask = (endShift == 64) ? -1L
+                : (_bigEndian ? (-1L << (64 - endShift)) : ((1L << endShift) - 1));
+        if (first == last) {
+            _applyMasked(first, firstMask & lastMask, mode);
+            return;
+        }
+        _applyMasked(first, firstMask, mode);
+        ++first;
+        if (first < last) {
+            if (mode == RANGE_FLIP) {
+                for (int i = first; i < last; ++i) {
+                    _target[i] = ~_target[i];
+                }
+            } else {
+                Arrays.fill(_target, first, last, (mode == RANGE_SET) ? -1L : 0L);
+            }
+        }
+        _applyMasked(last, lastMask, mode);
+    }
+
+    private void _applyMasked(int ix, long mask, int mode)
+    {
+        switch (mode) {
+        case RANGE_SET:
+            _target[ix] |= mask;
+            break;
+        case RANGE_CLEAR:
+            _target[ix] &= ~mask;
+            break;
+        default:
+            _target[ix] ^= mask;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.fasterxml.util.bitmate.jackson;
+
+import java.io.IOException;
+import java.util.BitSet;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.deser.std.StdScalarDeserializer;
+
+public class BitSetDeserializer extends StdScalarDeserializer<BitSet>
+{
+    private static final long serialVersionUID = 1L;
+
+    public BitSetDeserializer() {
+        super(BitSet.class);
+    }
+
+    @Override
+    public BitSet deserialize(JsonParser p, DeserializationContext ctxt) throws IOException
+    {
+        JsonToken t = p.getCurrentToken();
+        if (t == JsonToken.VALUE_STRING || t == JsonToken.VALUE_EMBEDDED_OBJECT) {
+            return BitmapEncoding.toBitSet(BitmapEncoding.read(p));
+        }
+        throw ctxt.mappingException(handledType(), t);
+    }
+}
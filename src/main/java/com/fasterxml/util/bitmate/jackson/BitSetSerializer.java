@@ -0,0 +1,29 @@
+package com.fasterxml.util.bitmate.jackson;
+
+import java.io.IOException;
+import java.util.BitSet;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.std.StdScalarSerializer;
+import com.fasterxml.util.bitmate.EncodedBitmap;
+
+public class BitSetSerializer extends StdScalarSerializer<BitSet>
+{
+    private static final long serialVersionUID = 1L;
+
+    protected final BitmapEncoding _encoding;
+
+    BitSetSerializer(BitmapEncoding enc) {
+        super(BitSet.class);
+        _encoding = enc;
+    }
+
+    @Override
+    public void serialize(BitSet value, JsonGenerator gen, SerializerProvider provider)
+        throws IOException
+    {
+        EncodedBitmap bm = _encoding.encode(value);
+        gen.writeBinary(bm.asInputStream(), bm.getEncodedLength());
+    }
+}
@@ -0,0 +1,142 @@
+package com.fasterxml.util.bitmate.jackson;
+
+import java.io.IOException;
+import java.util.BitSet;
+
+import org.roaringbitmap.IntIterator;
+import org.roaringbitmap.RoaringBitmap;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.util.bitmate.BitOrder;
+import com.fasterxml.util.bitmate.BitmapCodec;
+import com.fasterxml.util.bitmate.EncodedBitmap;
+import com.fasterxml.util.bitmate.EncodedBitmapBuilder;
+
+/**
+ * Helper class that handles conversions between supported bitmap types
+ * and {@link EncodedBitmap}.
+ */
+class BitmapEncoding
+{
+    /**
+     * Codec to use; if null, the one producing smallest output (which means
+     * encoding every value with every codec)
+     */
+    private final BitmapCodec _codec;
+
+    public BitmapEncoding(BitmapCodec codec) {
+        _codec = codec;
+    }
+
+    public EncodedBitmap encode(byte[] raw, int bitLength)
+    {
+        if (_codec == null) {
+            return EncodedBitmap.encodeSmallest(raw, bitLength);
+        }
+        return EncodedBitmap.encode(_codec, raw, bitLength);
+    }
+
+    /**
+     * {@link BitSet}s are encoded directly from their words, using
+     * {@link BitOrder#LSB_FIRST} bit order.
+     */
+    public EncodedBitmap encode(BitSet bits)
+    {
+        final long[] words = bits.toLongArray();
+        final int bitLength = bits.length();
+        if (_codec == null) {
+            return EncodedBitmap.encodeSmallest(words, bitLength, BitOrder.LSB_FIRST);
+        }
+        return EncodedBitmap.encode(_codec, words, bitLength, BitOrder.LSB_FIRST);
+    }
+
+    /**
+     * {@link RoaringBitmap}s are encoded from their set bits, without constructing
+     * raw bitmap, so work and memory needed is proportional to cardinality;
+     * {@link BitOrder#LSB_FIRST} bit order is used. Values are unsigned 32-bit
+     * ints, but only ones below {@link Integer#MAX_VALUE} can be encoded.
+     */
+    public EncodedBitmap encode(RoaringBitmap bits)
+    {
+        if (bits.isEmpty()) {
+            return encodeSorted(new int[0], 0);
+        }
+        // iteration is in unsigned order, so last value is the biggest one
+        final int last = bits.last();
+        if (last < 0 || last == Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Can not encode RoaringBitmap with value "
+                    +(last & 0xFFFFFFFFL)+": maximum value is "+(Integer.MAX_VALUE-1));
+        }
+        final int[] ids = new int[bits.getCardinality()];
+        int count = 0;
+        for (IntIterator it = bits.getIntIterator(); it.hasNext(); ) {
+            ids[count++] = it.next();
+        }
+        return encodeSorted(ids, count);
+    }
+
+    /**
+     * Method for encoding bitmap with given sorted set bits; bit length is one
+     * past the last set bit.
+     */
+    EncodedBitmap encodeSorted(int[] ids, int count)
+    {
+        final int bitLength = (count == 0) ? 0 : (ids[count-1] + 1);
+        if (_codec != null) {
+            return _encodeSorted(_codec, ids, count, bitLength);
+        }
+        EncodedBitmap best = null;
+        for (BitmapCodec codec : BitmapCodec.values()) {
+            EncodedBitmap bm = _encodeSorted(codec, ids, count, bitLength);
+            if (best == null || bm.getEncodedLength() < best.getEncodedLength()) {
+                best = bm;
+            }
+        }
+        return best;
+    }
+
+    private static EncodedBitmap _encodeSorted(BitmapCodec codec, int[] ids, int count, int bitLength)
+    {
+        EncodedBitmapBuilder b = new EncodedBitmapBuilder(codec, BitOrder.LSB_FIRST);
+        b.appendSortedIds(ids, 0, count);
+        return b.build(bitLength);
+    }
+
+    public static BitSet toBitSet(EncodedBitmap bm)
+    {
+        // padding bits are cleared so no need to check bit length
+        return BitSet.valueOf(bm.decodeWords(BitOrder.LSB_FIRST));
+    }
+
+    public static RoaringBitmap toRoaringBitmap(EncodedBitmap bm)
+    {
+        final long[] words = bm.decodeWords(BitOrder.LSB_FIRST);
+        RoaringBitmap result = new RoaringBitmap();
+        for (int i = 0, end = words.length; i < end; ++i) {
+            long w = words[i];
+            final int base = i << 6;
+            while (w != 0L) {
+                result.add(base + Long.numberOfTrailingZeros(w));
+                w &= (w - 1);
+            }
+        }
+        result.runOptimize();
+        return result;
+    }
+
+    /**
+     * Helper method for reading serialized {@link EncodedBitmap} from the current
+     * binary (or Base64-encoded String) value; for binary formats content is
+     * used without copying.
+     */
+    public static EncodedBitmap read(JsonParser p) throws IOException
+    {
+        byte[] data = p.getBinaryValue();
+        try {
+            return EncodedBitmap.wrap(data);
+        } catch (IllegalArgumentException e) {
+            throw JsonMappingException.from(p, e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.fasterxml.util.bitmate.jackson;
+
+import java.util.BitSet;
+
+import org.roaringbitmap.RoaringBitmap;
+
+import com.fasterxml.jackson.core.Version;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.util.bitmate.BitmapCodec;
+import com.fasterxml.util.bitmate.EncodedBitmap;
+
+/**
+ * Jackson module that registers serializers and deserializers for
+ * {@link BitSet}, {@link RoaringBitmap} and {@link EncodedBitmap}: all are
+ * written as binary values containing serialized {@link EncodedBitmap}
+ * (that is, as native binary for binary formats like Smile, and Base64-encoded
+ * String for JSON).
+ *<p>
+ * By default, {@link #DEFAULT_CODEC} is used; alternatively a specific codec
+ * may be given, or (with {@link #smallestEncoding()}) all codecs tried and
+ * the smallest result used, at cost of encoding each value once per codec.
+ */
+public class BitmateModule extends SimpleModule
+{
+    private static final long serialVersionUID = 1L;
+
+    public final static Version VERSION = new Version(0, 5, 0, "SNAPSHOT",
+            "com.fasterxml.util", "java-bitmate");
+
+    public final static BitmapCodec DEFAULT_CODEC = BitmapCodec.BITRAT;
+
+    public BitmateModule() {
+        this(DEFAULT_CODEC);
+    }
+
+    /**
+     * @param codec Codec to use for encoding
+     */
+    public BitmateModule(BitmapCodec codec)
+    {
+        this(new BitmapEncoding(_verifyCodec(codec)));
+    }
+
+    private BitmateModule(BitmapEncoding enc)
+    {
+        super("BitmateModule", VERSION);
+        addSerializer(EncodedBitmap.class, new EncodedBitmapSerializer());
+        addDeserializer(EncodedBitmap.class, new EncodedBitmapDeserializer());
+        addSerializer(BitSet.class, new BitSetSerializer(enc));
+        addDeserializer(BitSet.class, new BitSetDeserializer());
+        addSerializer(RoaringBitmap.class, new RoaringBitmapSerializer(enc));
+        addDeserializer(RoaringBitmap.class, new RoaringBitmapDeserializer());
+    }
+
+    /**
+     * Factory method for module that encodes values with all codecs, and uses
+     * the smallest result: this is considerably slower than using a single codec.
+     */
+    public static BitmateModule smallestEncoding() {
+        return new BitmateModule(new BitmapEncoding(null));
+    }
+
+    private static BitmapCodec _verifyCodec(BitmapCodec codec) {
+        if (codec == null) {
+            throw new IllegalArgumentException("Codec must not be null: use smallestEncoding() to try all codecs");
+        }
+        return codec;
+    }
+}
@@ -0,0 +1,28 @@
+package com.fasterxml.util.bitmate.jackson;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.deser.std.StdScalarDeserializer;
+import com.fasterxml.util.bitmate.EncodedBitmap;
+
+public class EncodedBitmapDeserializer extends StdScalarDeserializer<EncodedBitmap>
+{
+    private static final long serialVersionUID = 1L;
+
+    public EncodedBitmapDeserializer() {
+        super(EncodedBitmap.class);
+    }
+
+    @Override
+    public EncodedBitmap deserialize(JsonParser p, DeserializationContext ctxt) throws IOException
+    {
+        JsonToken t = p.getCurrentToken();
+        if (t == JsonToken.VALUE_STRING || t == JsonToken.VALUE_EMBEDDED_OBJECT) {
+            return BitmapEncoding.read(p);
+        }
+        throw ctxt.mappingException(handledType(), t);
+    }
+}
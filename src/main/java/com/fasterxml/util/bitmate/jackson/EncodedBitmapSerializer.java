@@ -0,0 +1,24 @@
+package com.fasterxml.util.bitmate.jackson;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.std.StdScalarSerializer;
+import com.fasterxml.util.bitmate.EncodedBitmap;
+
+public class EncodedBitmapSerializer extends StdScalarSerializer<EncodedBitmap>
+{
+    private static final long serialVersionUID = 1L;
+
+    public EncodedBitmapSerializer() {
+        super(EncodedBitmap.class);
+    }
+
+    @Override
+    public void serialize(EncodedBitmap value, JsonGenerator gen, SerializerProvider provider)
+        throws IOException
+    {
+        gen.writeBinary(value.asInputStream(), value.getEncodedLength());
+    }
+}
@@ -0,0 +1,29 @@
+package com.fasterxml.util.bitmate.jackson;
+
+import java.io.IOException;
+
+import org.roaringbitmap.RoaringBitmap;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.deser.std.StdScalarDeserializer;
+
+public class RoaringBitmapDeserializer extends StdScalarDeserializer<RoaringBitmap>
+{
+    private static final long serialVersionUID = 1L;
+
+    public RoaringBitmapDeserializer() {
+        super(RoaringBitmap.class);
+    }
+
+    @Override
+    public RoaringBitmap deserialize(JsonParser p, DeserializationContext ctxt) throws IOException
+    {
+        JsonToken t = p.getCurrentToken();
+        if (t == JsonToken.VALUE_STRING || t == JsonToken.VALUE_EMBEDDED_OBJECT) {
+            return BitmapEncoding.toRoaringBitmap(BitmapEncoding.read(p));
+        }
+        throw ctxt.mappingException(handledType(), t);
+    }
+}
@@ -0,0 +1,36 @@
+package com.fasterxml.util.bitmate.jackson;
+
+import java.io.IOException;
+
+import org.roaringbitmap.RoaringBitmap;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.std.StdScalarSerializer;
+import com.fasterxml.util.bitmate.EncodedBitmap;
+
+public class RoaringBitmapSerializer extends StdScalarSerializer<RoaringBitmap>
+{
+    private static final long serialVersionUID = 1L;
+
+    protected final BitmapEncoding _encoding;
+
+    RoaringBitmapSerializer(BitmapEncoding enc) {
+        super(RoaringBitmap.class);
+        _encoding = enc;
+    }
+
+    @Override
+    public void serialize(RoaringBitmap value, JsonGenerator gen, SerializerProvider provider)
+        throws IOException
+    {
+        EncodedBitmap bm;
+        try {
+            bm = _encoding.encode(value);
+        } catch (IllegalArgumentException e) {
+            throw JsonMappingException.from(gen, e.getMessage(), e);
+        }
+        gen.writeBinary(bm.asInputStream(), bm.getEncodedLength());
+    }
+}
@@ -0,0 +1,28 @@
+package com.fasterxml.util.bitmate.jfr;
+
+import jdk.jfr.*;
+
+@Name("com.fasterxml.util.bitmate.Operation")
+@Label("Bitmap Operation")
+@Category({ "Bitmate" })
+@Description("Operation on a whole bitmap, such as decoding or combining with another bitmap")
+@Threshold("10 us")
+public class BitmapOperationEvent extends Event
+{
+    @Label("Operation")
+    public String operation;
+
+    @Label("Bitmap Id")
+    public long bitmapId;
+
+    @Label("Codec")
+    public String codec;
+
+    @Label("Input Bytes")
+    @DataAmount
+    public long inputBytes;
+
+    @Label("Output Bytes")
+    @DataAmount
+    public long outputBytes;
+}
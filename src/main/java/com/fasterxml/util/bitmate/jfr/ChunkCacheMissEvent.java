@@ -0,0 +1,25 @@
+package com.fasterxml.util.bitmate.jfr;
+
+import jdk.jfr.*;
+
+@Name("com.fasterxml.util.bitmate.ChunkCacheMiss")
+@Label("Decoded Chunk Cache Miss")
+@Category({ "Bitmate", "Cache" })
+@Description("Miss in DecodedChunkCache, including decoding of the chunk")
+@StackTrace(false)
+@Threshold("20 us")
+public class ChunkCacheMissEvent extends Event
+{
+    @Label("Bitmap Id")
+    public long bitmapId;
+
+    @Label("Codec")
+    public String codec;
+
+    @Label("Chunk Index")
+    public int chunkIndex;
+
+    @Label("Decoded Bytes")
+    @DataAmount
+    public int decodedBytes;
+}
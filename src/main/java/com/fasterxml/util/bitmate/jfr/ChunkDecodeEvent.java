@@ -0,0 +1,25 @@
+package com.fasterxml.util.bitmate.jfr;
+
+import jdk.jfr.*;
+
+@Name("com.fasterxml.util.bitmate.ChunkDecode")
+@Label("Bitmap Chunk Decode")
+@Category({ "Bitmate", "Codec" })
+@Description("Decoding of a single chunk of a bitmap")
+@StackTrace(false)
+@Enabled(false)
+public class ChunkDecodeEvent extends Event
+{
+    @Label("Bitmap Id")
+    public long bitmapId;
+
+    @Label("Codec")
+    public String codec;
+
+    @Label("Chunk Index")
+    public int chunkIndex;
+
+    @Label("Output Bytes")
+    @DataAmount
+    public int outputBytes;
+}
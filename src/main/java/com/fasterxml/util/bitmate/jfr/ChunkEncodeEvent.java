@@ -0,0 +1,37 @@
+package com.fasterxml.util.bitmate.jfr;
+
+import jdk.jfr.*;
+
+@Name("com.fasterxml.util.bitmate.ChunkEncode")
+@Label("Bitmap Chunk Encode")
+@Category({ "Bitmate", "Codec" })
+@Description("Encoding of a single chunk of a bitmap")
+@StackTrace(false)
+@Enabled(false)
+public class ChunkEncodeEvent extends Event
+{
+    @Label("Codec")
+    public String codec;
+
+    @Label("Chunk Index")
+    public int chunkIndex;
+
+    @Label("Input Bytes")
+    @DataAmount
+    public int inputBytes;
+
+    @Label("Output Bytes")
+    @DataAmount
+    public int outputBytes;
+
+    @Label("Literal Bytes")
+    @DataAmount
+    public int literalBytes;
+
+    @Label("Escapes")
+    @Description("Number of BitRat blocks stored uncompressed")
+    public int escapes;
+
+    @Label("Uniform")
+    public boolean uniform;
+}
@@ -0,0 +1,119 @@
+package com.fasterxml.util.bitmate.jfr;
+
+import com.fasterxml.util.bitmate.BitmapCodec;
+import com.fasterxml.util.bitmate.BitmapTracer;
+import com.fasterxml.util.bitmate.ChunkStats;
+
+/**
+ * {@link BitmapTracer} that records Java Flight Recorder events; located by
+ * {@link BitmapTracer} reflectively, so this package may only be loaded on
+ * JDKs that have JFR API (<code>jdk.jfr</code>).
+ * By default chunk encode and decode events are disabled, and operation and cache
+ * miss events have duration thresholds (10 and 20 microseconds); these can be
+ * changed in recording settings.
+ */
+public class JfrBitmapTracer extends BitmapTracer
+{
+    @Override
+    public Object beginChunkEncode() {
+        ChunkEncodeEvent e = new ChunkEncodeEvent();
+        if (!e.isEnabled()) {
+            return null;
+        }
+        e.begin();
+        return e;
+    }
+
+    @Override
+    public void endChunkEncode(Object span, ChunkStats stats)
+    {
+        ChunkEncodeEvent e = (ChunkEncodeEvent) span;
+        e.end();
+        if (e.shouldCommit()) {
+            e.codec = stats.getCodec().name();
+            e.chunkIndex = stats.getChunkIndex();
+            e.inputBytes = stats.getRawLength();
+            e.outputBytes = stats.getEncodedLength();
+            e.literalBytes = stats.getLiteralBytes();
+            e.escapes = stats.getEscapeCount();
+            e.uniform = stats.isUniform();
+            e.commit();
+        }
+    }
+
+    @Override
+    public Object beginChunkDecode() {
+        ChunkDecodeEvent e = new ChunkDecodeEvent();
+        if (!e.isEnabled()) {
+            return null;
+        }
+        e.begin();
+        return e;
+    }
+
+    @Override
+    public void endChunkDecode(Object span, BitmapCodec codec, long bitmapId,
+            int chunkIndex, int rawBytes)
+    {
+        ChunkDecodeEvent e = (ChunkDecodeEvent) span;
+        e.end();
+        if (e.shouldCommit()) {
+            e.bitmapId = bitmapId;
+            e.codec = codec.name();
+            e.chunkIndex = chunkIndex;
+            e.outputBytes = rawBytes;
+            e.commit();
+        }
+    }
+
+    @Override
+    public Object beginOperation() {
+        BitmapOperationEvent e = new BitmapOperationEvent();
+        if (!e.isEnabled()) {
+            return null;
+        }
+        e.begin();
+        return e;
+    }
+
+    @Override
+    public void endOperation(Object span, String name, BitmapCodec codec, long bitmapId,
+            long inputBytes, long outputBytes)
+    {
+        BitmapOperationEvent e = (BitmapOperationEvent) span;
+        e.end();
+        if (e.shouldCommit()) {
+            e.operation = name;
+            e.bitmapId = bitmapId;
+            e.codec = codec.name();
+            e.inputBytes = inputBytes;
+            e.outputBytes = outputBytes;
+            e.commit();
+        }
+    }
+
+    @Override
+    public Object beginCacheMiss() {
+        ChunkCacheMissEvent e = new ChunkCacheMissEvent();
+        if (!e.isEnabled()) {
+            return null;
+        }
+        e.begin();
+        return e;
+    }
+
+    @Override
+    public void endCacheMiss(Object span, BitmapCodec codec, long bitmapId,
+            int chunkIndex, int decodedBytes)
+    {
+        ChunkCacheMissEvent e = (ChunkCacheMissEvent) span;
+        e.end();
+        if (e.shouldCommit()) {
+            e.bitmapId = bitmapId;
+            e.codec = codec.name();
+            e.chunkIndex = chunkIndex;
+            e.decodedBytes = decodedBytes;
+            e.commit();
+        }
+    }
+}
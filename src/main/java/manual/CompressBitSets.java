@@ -2,48 +2,277 @@ package manual;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.*;
 
 import org.roaringbitmap.RoaringBitmap;
 
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.util.bitmate.BitmapCodec;
+import com.fasterxml.util.bitmate.ChunkStats;
+import com.fasterxml.util.bitmate.CodecListener;
+import com.fasterxml.util.bitmate.EncodedBitmap;
+
 /**
- * Test tool to check how well bitset compression libs work.
+ * Analysis tool to check how well bitset compression libs work on given
+ * column data: for each column reports actual (framed) sizes for all
+ * compressions, encode and decode throughput of bitmate codecs, density
+ * of content and the best codec for each region of bits, as well as
+ * recommended codec; either as text or, with <code>--json</code>, as JSON.
+ *<p>
+ * Columns are kept encoded after reading (see {@link #readEncodedBitsets}),
+ * and only decoded to raw form when analyzed, so memory needed is bound by
+ * encoded size of all columns plus raw size of columns being analyzed.
+ *<p>
+ * Columns are analyzed in parallel; note that throughput figures are thus
+ * measured with other columns being processed concurrently, and are best
+ * compared with each other (for absolute figures use <code>--threads 1</code>).
  */
 public class CompressBitSets
     extends ToolBase
 {
-    private CompressBitSets() { }
+    /**
+     * Maximum size difference (as fraction of the smallest) within which a codec
+     * with faster decoding is recommended over the smallest one.
+     */
+    final static double SIZE_TOLERANCE = 0.05;
+
+    /**
+     * Number of bytes to (roughly) process when timing codecs for each column
+     */
+    final static int TIMING_BYTES = 4 << 20;
+
+    final static int MAX_TIMING_REPS = 100;
+
+    /**
+     * Maximum number of cells in heatmaps of textual output
+     */
+    final static int HEATMAP_WIDTH = 64;
+
+    /**
+     * Characters for density levels of textual heatmaps: empty, deciles, full
+     */
+    final static String HEAT_CHARS = ".0123456789#";
+
+    /**
+     * Size of regions for which densities and best codecs are reported: large
+     * enough to consist of whole chunks of all codecs
+     */
+    final static int REGION_SIZE;
+    static {
+        int size = 0;
+        for (BitmapCodec codec : BitmapCodec.values()) {
+            size = Math.max(size, codec.chunkSize());
+        }
+        REGION_SIZE = size;
+    }
+
+    protected final int _threads;
+
+    protected final boolean _json;
+
+    private CompressBitSets(int threads, boolean json) {
+        _threads = threads;
+        _json = json;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean json = false;
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("--"); ++i) {
+            switch (args[i]) {
+            case "--json":
+                json = true;
+                break;
+            case "--threads":
+                if (++i == args.length) {
+                    _usage();
+                }
+                threads = Integer.parseInt(args[i]);
+                break;
+            default:
+                _usage();
+            }
+        }
+        if (i != args.length-1 || threads < 1) {
+            _usage();
+        }
+        new CompressBitSets(threads, json).run(args[i]);
+    }
+
+    private static void _usage() {
+        System.err.println("Usage: java ... "+CompressBitSets.class.getName()
+                +" [--threads N] [--json] <input json file>");
+        System.exit(1);
+    }
+
+    protected void run(String filename) throws IOException, InterruptedException
+    {
+        final EncodedBitsets bitsets = readEncodedBitsets(filename, BitmapCodec.BITRAT);
+        final int rows = bitsets.rowCount;
+        List<Future<ColumnReport>> futures = new ArrayList<>();
+        ExecutorService exec = Executors.newFixedThreadPool(_threads);
+        try {
+            for (final Map.Entry<String,EncodedBitsetRecord> entry : bitsets.bitsets.entrySet()) {
+                futures.add(exec.submit(new Callable<ColumnReport>() {
+                    @Override
+                    public ColumnReport call() {
+                        return analyze(entry.getKey(), entry.getValue(), rows);
+                    }
+                }));
+            }
+            Report report = new Report();
+            report.file = filename;
+            report.rowCount = rows;
+            report.columnCount = bitsets.bitsets.size();
+            report.threads = _threads;
+            report.regionBytes = REGION_SIZE;
+            for (Future<ColumnReport> f : futures) {
+                ColumnReport col;
+                try {
+                    col = f.get();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Failed to analyze column: "+e.getCause(), e.getCause());
+                }
+                report.add(col);
+                if (!_json) {
+                    _print(col);
+                }
+            }
+            report.finish();
+            if (_json) {
+                System.out.println(JSON_MAPPER.writer(SerializationFeature.INDENT_OUTPUT)
+                        .writeValueAsString(report));
+            } else {
+                _print(report);
+            }
+        } finally {
+            exec.shutdown();
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Analysis
+    /**********************************************************************
+     */
+
+    protected ColumnReport analyze(String name, EncodedBitsetRecord r, int rows)
+    {
+        final byte[] rawSet = r.presence.decode();
+        final ColumnReport col = new ColumnReport();
+        col.name = name;
+        col.set = r.set;
+        col.density = (rows == 0) ? 0.0 : (double) r.set / (double) rows;
+        col.sizes.put("raw", rawSet.length);
+        col.sizes.put("lzf", compressedLengthLZF(rawSet));
+        col.sizes.put("gzip", compressedLengthGzip(rawSet));
+        col.sizes.put("cold", coldCompress(rawSet));
+
+        final int regions = (rawSet.length + REGION_SIZE - 1) / REGION_SIZE;
+        col.regionDensity = new int[regions];
+        for (int i = 0; i < regions; ++i) {
+            col.regionDensity[i] = _permille(rawSet, i * REGION_SIZE,
+                    Math.min(rawSet.length, (i+1) * REGION_SIZE));
+        }
+
+        final BitmapCodec[] codecs = BitmapCodec.values();
+        final int[][] regionSizes = new int[codecs.length][];
+        for (int c = 0; c < codecs.length; ++c) {
+            final BitmapCodec codec = codecs[c];
+            final String key = codec.name().toLowerCase();
+            final int reps = Math.max(1, Math.min(MAX_TIMING_REPS, TIMING_BYTES / Math.max(1, rawSet.length)));
+            // one round to warm up, then timed rounds
+            EncodedBitmap bm = EncodedBitmap.encode(codec, rawSet, rawSet.length << 3);
+            bm.decode();
+            long start = System.nanoTime();
+            for (int i = 0; i < reps; ++i) {
+                bm = EncodedBitmap.encode(codec, rawSet, rawSet.length << 3);
+            }
+            long encodeNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < reps; ++i) {
+                bm.decode();
+            }
+            long decodeNanos = System.nanoTime() - start;
+
+            col.sizes.put(key, bm.getEncodedLength());
+            col.encodeMBps.put(key, _mbps(rawSet.length, reps, encodeNanos));
+            col.decodeMBps.put(key, _mbps(rawSet.length, reps, decodeNanos));
+            RegionSizes sizes = new RegionSizes(regions);
+            bm.reportChunkStats(sizes);
+            regionSizes[c] = sizes.sizes;
+            col.uniformChunks.put(key, sizes.uniform);
+        }
+        col.sizes.put("roaring", roaringCompress(rawSet));
 
-    public static void main(String[] args) throws IOException
+        // Best codec for each region: one with smallest frames (uniform regions need none)
+        col.bestCodec = new String[regions];
+        for (int i = 0; i < regions; ++i) {
+            int best = 0;
+            for (int c = 1; c < codecs.length; ++c) {
+                if (regionSizes[c][i] < regionSizes[best][i]) {
+                    best = c;
+                }
+            }
+            String key = (regionSizes[best][i] == 0) ? "uniform" : codecs[best].name().toLowerCase();
+            col.bestCodec[i] = key;
+            Integer count = col.bestCodecCounts.get(key);
+            col.bestCodecCounts.put(key, (count == null) ? 1 : count + 1);
+        }
+        col.recommended = _recommend(codecs, col.sizes, col.decodeMBps);
+        return col;
+    }
+
+    /**
+     * Method for choosing codec to recommend: the one producing smallest output,
+     * unless another one is within {@link #SIZE_TOLERANCE} of it and decodes faster.
+     */
+    static BitmapCodec _recommend(BitmapCodec[] codecs, Map<String,? extends Number> sizes,
+            Map<String,Double> decodeMBps)
     {
-        if (args.length < 1) {
-            System.err.println("Usage: java ... "+CompressBitSets.class.getName()+" <input json file>");
-            System.exit(1);
+        BitmapCodec smallest = codecs[0];
+        for (BitmapCodec codec : codecs) {
+            if (_value(sizes, codec) < _value(sizes, smallest)) {
+                smallest = codec;
+            }
         }
-        new CompressBitSets().run(args[0]);
+        final double limit = _value(sizes, smallest) * (1.0 + SIZE_TOLERANCE);
+        BitmapCodec result = smallest;
+        for (BitmapCodec codec : codecs) {
+            if (_value(sizes, codec) <= limit
+                    && _value(decodeMBps, codec) > _value(decodeMBps, result)) {
+                result = codec;
+            }
+        }
+        return result;
+    }
+
+    private static double _value(Map<String,? extends Number> values, BitmapCodec codec) {
+        return values.get(codec.name().toLowerCase()).doubleValue();
     }
 
-    protected void run(String filename) throws IOException
+    private static int _permille(byte[] data, int start, int end)
     {
-        Bitsets bitsets = readBitsets(filename);
-        int rows = bitsets.rowCount;
-        for (Map.Entry<String,BitsetRecord> entry : bitsets.bitsets.entrySet()) {
-            BitsetRecord r = entry.getValue();
-
-            double pct = 100.0 * (double) r.set / (double) rows;
-            String pctDesc = (pct < 1.0) ? String.format("%.1f%%(%db)", pct, r.set)
-                    : String.format("%.2f%%", pct);
-            System.out.printf("Column '%s' (%s): ", entry.getKey(), pctDesc);
-            byte[] rawSet = r.presence;
-            System.out.printf("%s(raw), %s(lzf), %s(gzip), %s(bitrat), %s(nibbler), %s(roaring)",
-                    _length(rawSet.length),
-                    _length(compressedLengthLZF(rawSet)),
-                    _length(compressedLengthGzip(rawSet)),
-                    _length(ratCompress(rawSet)),
-                    _length(nibblerCompress(rawSet)),
-                    _length(roaringCompress(rawSet))
-            );
-            System.out.println();
+        if (start >= end) {
+            return 0;
+        }
+        long ones = 0;
+        for (int i = start; i < end; ++i) {
+            ones += Integer.bitCount(data[i] & 0xFF);
+        }
+        // round partial regions away from 0 and 1000, so heatmaps only show those as uniform
+        final long bits = (long) (end - start) << 3;
+        if (ones == 0L || ones == bits) {
+            return (ones == 0L) ? 0 : 1000;
         }
+        return (int) Math.max(1L, Math.min(999L, (ones * 1000L) / bits));
+    }
+
+    private static double _mbps(int length, int reps, long nanos) {
+        // bytes per microsecond is the same as megabytes per second
+        return (nanos <= 0L) ? 0.0 : (1000.0 * length * reps) / nanos;
     }
 
     static int roaringCompress(byte[] data)
@@ -62,4 +291,198 @@ public class CompressBitSets
         r.runOptimize();
         return r.serializedSizeInBytes();
     }
+
+    /*
+    /**********************************************************************
+    /* Textual output
+    /**********************************************************************
+     */
+
+    protected void _print(ColumnReport col)
+    {
+        double pct = 100.0 * col.density;
+        String pctDesc = (pct < 1.0) ? String.format("%.1f%%(%db)", pct, col.set)
+                : String.format("%.2f%%", pct);
+        System.out.printf("Column '%s' (%s): ", col.name, pctDesc);
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String,Integer> entry : col.sizes.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(_length(entry.getValue())).append('(').append(entry.getKey()).append(')');
+        }
+        System.out.println(sb);
+        for (BitmapCodec codec : BitmapCodec.values()) {
+            String key = codec.name().toLowerCase();
+            System.out.printf("  %-8s encode %7.1f MB/s, decode %7.1f MB/s, %d uniform chunks\n",
+                    key, col.encodeMBps.get(key), col.decodeMBps.get(key), col.uniformChunks.get(key));
+        }
+        System.out.printf("  density [%s]\n", _heatmap(col.regionDensity));
+        System.out.printf("  best    %s -> recommend %s\n", col.bestCodecCounts,
+                col.recommended.name().toLowerCase());
+    }
+
+    protected void _print(Report report)
+    {
+        System.out.printf("Total (%d columns, %d rows): ", report.columnCount, report.rowCount);
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String,Long> entry : report.totalSizes.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(String.format("%.1fkB(%s)", entry.getValue() / 1024.0, entry.getKey()));
+        }
+        System.out.println(sb);
+        if (report.recommendedCodec == null) {
+            return;
+        }
+        System.out.printf("Recommended: codec %s (chunk size %d bytes; best for %d of %d columns)\n",
+                report.recommendedCodec.name().toLowerCase(), report.recommendedChunkSize,
+                report.recommendedCounts.get(report.recommendedCodec.name().toLowerCase()),
+                report.columnCount);
+    }
+
+    /**
+     * Method for rendering densities of regions as a line of characters; if there
+     * are more regions than {@link #HEATMAP_WIDTH}, adjacent ones are averaged
+     */
+    static String _heatmap(int[] permilles)
+    {
+        final int cells = Math.min(HEATMAP_WIDTH, permilles.length);
+        StringBuilder sb = new StringBuilder(cells);
+        for (int cell = 0; cell < cells; ++cell) {
+            final int start = (int) ((long) cell * permilles.length / cells);
+            final int end = (int) ((long) (cell+1) * permilles.length / cells);
+            long sum = 0;
+            boolean empty = true, full = true;
+            for (int i = start; i < end; ++i) {
+                sum += permilles[i];
+                empty &= (permilles[i] == 0);
+                full &= (permilles[i] == 1000);
+            }
+            if (empty) {
+                sb.append(HEAT_CHARS.charAt(0));
+            } else if (full) {
+                sb.append(HEAT_CHARS.charAt(HEAT_CHARS.length()-1));
+            } else {
+                sb.append(HEAT_CHARS.charAt(1 + (int) Math.min(9, sum / (end - start) / 100)));
+            }
+        }
+        return sb.toString();
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper classes
+    /**********************************************************************
+     */
+
+    /**
+     * Listener for collecting sizes of encoded chunk frames per region
+     */
+    static class RegionSizes implements CodecListener
+    {
+        final int[] sizes;
+
+        int uniform;
+
+        RegionSizes(int regions) {
+            sizes = new int[regions];
+        }
+
+        @Override
+        public void chunkEncoded(ChunkStats stats) { }
+
+        @Override
+        public void chunkDecoded(ChunkStats stats) {
+            if (stats.isUniform()) {
+                ++uniform;
+            }
+            long start = (long) stats.getChunkIndex() * stats.getCodec().chunkSize();
+            sizes[(int) (start / REGION_SIZE)] += stats.getEncodedLength();
+        }
+    }
+
+    static class ColumnReport
+    {
+        public String name;
+        public int set;
+        public double density;
+
+        /**
+         * Sizes of content by compression (including "raw" for uncompressed)
+         */
+        public Map<String,Integer> sizes = new LinkedHashMap<>();
+        public Map<String,Double> encodeMBps = new LinkedHashMap<>();
+        public Map<String,Double> decodeMBps = new LinkedHashMap<>();
+        public Map<String,Integer> uniformChunks = new LinkedHashMap<>();
+
+        /**
+         * Density of set bits per region, in permille
+         */
+        public int[] regionDensity;
+
+        /**
+         * Codec with smallest encoding per region; "uniform" if region has
+         * only all-zero and all-one chunks
+         */
+        public String[] bestCodec;
+        public Map<String,Integer> bestCodecCounts = new TreeMap<>();
+
+        public BitmapCodec recommended;
+    }
+
+    static class Report
+    {
+        public String file;
+        public int rowCount;
+        public int columnCount;
+        public int threads;
+        public int regionBytes;
+
+        public List<ColumnReport> columns = new ArrayList<>();
+        public Map<String,Long> totalSizes = new LinkedHashMap<>();
+        public Map<String,Double> encodeMBps = new LinkedHashMap<>();
+        public Map<String,Double> decodeMBps = new LinkedHashMap<>();
+
+        /**
+         * Number of columns for which each codec is recommended
+         */
+        public Map<String,Integer> recommendedCounts = new TreeMap<>();
+        public BitmapCodec recommendedCodec;
+        public int recommendedChunkSize;
+
+        void add(ColumnReport col)
+        {
+            columns.add(col);
+            for (Map.Entry<String,Integer> entry : col.sizes.entrySet()) {
+                Long total = totalSizes.get(entry.getKey());
+                totalSizes.put(entry.getKey(), ((total == null) ? 0L : total) + entry.getValue());
+            }
+            String key = col.recommended.name().toLowerCase();
+            Integer count = recommendedCounts.get(key);
+            recommendedCounts.put(key, (count == null) ? 1 : count + 1);
+        }
+
+        void finish()
+        {
+            // Overall throughput weighted by raw size of columns
+            final long raw = totalSizes.containsKey("raw") ? totalSizes.get("raw") : 0L;
+            for (BitmapCodec codec : BitmapCodec.values()) {
+                final String key = codec.name().toLowerCase();
+                double encSecs = 0.0, decSecs = 0.0;
+                for (ColumnReport col : columns) {
+                    final double mb = col.sizes.get("raw") / 1000000.0;
+                    encSecs += mb / Math.max(col.encodeMBps.get(key), 0.001);
+                    decSecs += mb / Math.max(col.decodeMBps.get(key), 0.001);
+                }
+                encodeMBps.put(key, (encSecs == 0.0) ? 0.0 : raw / 1000000.0 / encSecs);
+                decodeMBps.put(key, (decSecs == 0.0) ? 0.0 : raw / 1000000.0 / decSecs);
+            }
+            if (!columns.isEmpty()) {
+                recommendedCodec = _recommend(BitmapCodec.values(), totalSizes, decodeMBps);
+                recommendedChunkSize = recommendedCodec.chunkSize();
+            }
+        }
+    }
 }
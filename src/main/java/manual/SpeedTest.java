@@ -1,8 +1,12 @@
 package manual;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
+import com.fasterxml.util.bitmate.BitmapCodec;
+
 // Simple comparison of performance of bitrat vs nibbler compressions
 public class SpeedTest extends ToolBase
 {
@@ -19,26 +23,33 @@ public class SpeedTest extends ToolBase
 
     protected void run(String filename) throws IOException
     {
-        Bitsets bitsets = readBitsets(filename);
+        EncodedBitsets bitsets = readEncodedBitsets(filename, BitmapCodec.BITRAT);
         final int rows = bitsets.rowCount;
 
+        // encoding is timed from raw content, so need all columns decoded
+        List<byte[]> columns = new ArrayList<byte[]>();
+        for (EncodedBitsetRecord r : bitsets.bitsets.values()) {
+            columns.add(r.presence.decode());
+        }
+
         // First, run through as warm up, couple of times
 
         for (int i = 0; i < 5; ++i) {
-            for (Map.Entry<String,BitsetRecord> entry : bitsets.bitsets.entrySet()) {
-                BitsetRecord r = entry.getValue();
-                byte[] rawSet = r.presence;
+            for (byte[] rawSet : columns) {
                 ratCompress(rawSet);
                 nibblerCompress(rawSet);
             }
+            batchCompress(BitmapCodec.BITRAT, columns);
+            batchCompress(BitmapCodec.NIBBLER, columns);
         }
 
         // to get close to 1M of encoded data, use
         final int REPS = 80;
         // and then second time, with timings
-        for (Map.Entry<String,BitsetRecord> entry : bitsets.bitsets.entrySet()) {
-            BitsetRecord r = entry.getValue();
-            byte[] rawSet = r.presence;
+        int col = 0;
+        for (Map.Entry<String,EncodedBitsetRecord> entry : bitsets.bitsets.entrySet()) {
+            EncodedBitsetRecord r = entry.getValue();
+            byte[] rawSet = columns.get(col++);
 
             int nibblerSize = 0;
             int ratSize = 0;
@@ -66,5 +77,27 @@ public class SpeedTest extends ToolBase
                     msecs1, msecs2);
             System.out.println();
         }
+
+        // and finally all columns at once, one by one vs as a batch
+        for (BitmapCodec codec : new BitmapCodec[] { BitmapCodec.BITRAT, BitmapCodec.NIBBLER }) {
+            int size = 0;
+            long nanos1 = System.nanoTime();
+            for (int i = 0; i < REPS; ++i) {
+                size = 0;
+                for (byte[] rawSet : columns) {
+                    size += _encodedLength(codec, rawSet);
+                }
+            }
+            long nanos2 = System.nanoTime();
+            int batchSize = 0;
+            for (int i = 0; i < REPS; ++i) {
+                batchSize = batchCompress(codec, columns).getTotalLength();
+            }
+            long nanos3 = System.nanoTime();
+            System.out.printf("All %d columns, %s: compress %s/%s; time %.2f / %.2f msec (separate/batch)",
+                    columns.size(), codec, _length(size), _length(batchSize),
+                    (nanos2 - nanos1) / 1000000.0, (nanos3 - nanos2) / 1000000.0);
+            System.out.println();
+        }
     }
 }
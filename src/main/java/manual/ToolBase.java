@@ -4,29 +4,42 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.security.DigestOutputStream;
 import java.security.MessageDigest;
-import java.util.BitSet;
+import java.util.Arrays;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.util.bitmate.BitRatEncoder;
-import com.fasterxml.util.bitmate.NibblerEncoder;
+import com.fasterxml.util.bitmate.BatchEncoder;
+import com.fasterxml.util.bitmate.BitmapCodec;
+import com.fasterxml.util.bitmate.EncodedBatch;
+import com.fasterxml.util.bitmate.EncodedBitmap;
+import com.fasterxml.util.bitmate.EncodedBitmapBuilder;
+import com.fasterxml.util.bitmate.EncodingOutputStream;
+import com.fasterxml.util.bitmate.EntropyPacker;
 
 public class ToolBase
 {
-    static class Bitsets {
+    // Content read from the input file: presence bitmaps are encoded while reading
+    static class EncodedBitsets {
         public int rowCount;
         public int columnCount;
-        public Map<String,BitsetRecord> bitsets;
+        public Map<String,EncodedBitsetRecord> bitsets = new LinkedHashMap<>();
     }
 
-    static class BitsetRecord {
+    static class EncodedBitsetRecord {
         public int set; // count of set bits
-        public byte[] presence;
+        public EncodedBitmap presence;
+
+        // Only used while reading, if row count is not known before the column
+        EncodedBitmapBuilder builder;
+        boolean full;
     }
     
     static MessageDigest _sha1;
@@ -43,41 +56,123 @@ public class ToolBase
         JSON_MAPPER.enable(JsonParser.Feature.ALLOW_COMMENTS);
     }
 
-    protected Bitsets readBitsets(String filename) throws IOException
+    /**
+     * Method for reading content using streaming parser, encoding presence
+     * bitmaps as they are decoded from Base64, so that only one chunk of raw
+     * content is buffered at any given point (and not full raw content of
+     * all columns). Similarly, hash used for removing duplicates is calculated
+     * incrementally. If row count precedes columns (as it does in files
+     * produced by our exporter), each bitmap is completed as soon as its value
+     * ends; otherwise builders are only completed at the end.
+     */
+    protected EncodedBitsets readEncodedBitsets(String filename, BitmapCodec codec) throws IOException
     {
-        Bitsets bs = JSON_MAPPER.readValue(new File(filename), Bitsets.class);
+        EncodedBitsets bs = new EncodedBitsets();
+        boolean rowCountKnown = false;
+        try (JsonParser p = JSON_MAPPER.getFactory().createParser(new File(filename))) {
+            if (p.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Invalid content: expected START_OBJECT, got "+p.getCurrentToken());
+            }
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String field = p.getCurrentName();
+                p.nextToken();
+                switch (field) {
+                case "rowCount":
+                    bs.rowCount = p.getIntValue();
+                    rowCountKnown = true;
+                    break;
+                case "columnCount":
+                    bs.columnCount = p.getIntValue();
+                    break;
+                case "bitsets":
+                    _readEncodedColumns(p, codec, bs.bitsets, rowCountKnown ? bs.rowCount : -1);
+                    break;
+                default:
+                    p.skipChildren();
+                }
+            }
+        }
         final int rows = bs.rowCount;
-        System.out.printf("Read %d records, with %d columns\n", rows, bs.columnCount);
+        System.err.printf("Read %d records, with %d columns\n", rows, bs.columnCount);
 
-        Set<String> seenResults = new HashSet<>();
+        // Complete bitmaps read before row count was known, if any
+        for (EncodedBitsetRecord r : bs.bitsets.values()) {
+            _complete(r, codec, rows);
+        }
+        System.err.printf("... of which %d unique.\n", bs.bitsets.size());
+        return bs;
+    }
 
+    /**
+     * @param rows Number of rows, if known; -1 if not
+     */
+    private void _readEncodedColumns(JsonParser p, BitmapCodec codec,
+            Map<String,EncodedBitsetRecord> columns, int rows) throws IOException
+    {
+        Set<String> seenResults = new HashSet<String>();
         boolean firstEmpty = true;
 
-        Iterator<Map.Entry<String,BitsetRecord>> it = bs.bitsets.entrySet().iterator();
-
-        while (it.hasNext()) {
-            Map.Entry<String,BitsetRecord> entry = it.next();
-            BitsetRecord r = entry.getValue();
-            byte[] rawSet = r.presence;
-            if (rawSet == null) {
-                if (firstEmpty) {
-                    firstEmpty = false;
-                    BitSet full = new BitSet();
-                    full.set(0, rows);
-                    rawSet = full.toByteArray();
-                    r.presence = rawSet;
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            final String name = p.getCurrentName();
+            p.nextToken();
+            EncodedBitsetRecord r = new EncodedBitsetRecord();
+            boolean unique = true;
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String field = p.getCurrentName();
+                JsonToken t = p.nextToken();
+                if ("set".equals(field)) {
+                    r.set = p.getIntValue();
+                } else if ("presence".equals(field)) {
+                    if (t != JsonToken.VALUE_NULL) {
+                        r.builder = new EncodedBitmapBuilder(codec);
+                        _sha1.reset();
+                        DigestOutputStream out = new DigestOutputStream(
+                                new EncodingOutputStream(r.builder), _sha1);
+                        p.readBinaryValue(out);
+                        // Let's reduce noise by only using unique results:
+                        unique = seenResults.add(_hex(_sha1.digest()));
+                    }
                 } else {
-                    it.remove();
+                    p.skipChildren();
                 }
-            } else {
-                // Let's reduce noise by only using unique results:
-                if (!seenResults.add(sha1(rawSet))) {
-                    it.remove();
+            }
+            if (r.builder == null) { // missing presence; first one considered full, rest dropped
+                if (!firstEmpty) {
+                    continue;
                 }
+                firstEmpty = false;
+                r.full = true;
+            } else if (!unique) {
+                continue;
+            }
+            if (rows >= 0) { // no need to keep builder (and its buffers) around
+                _complete(r, codec, rows);
             }
+            columns.put(name, r);
         }
-        System.out.printf("... of which %d unique.\n", bs.bitsets.size());
-        return bs;
+    }
+
+    private static void _complete(EncodedBitsetRecord r, BitmapCodec codec, int rows)
+    {
+        if (r.full) {
+            r.presence = _fullBitmap(codec, rows);
+            r.full = false;
+        } else if (r.builder != null) {
+            r.presence = r.builder.build(rows);
+            r.builder = null;
+        }
+    }
+
+    static EncodedBitmap _fullBitmap(BitmapCodec codec, int rows)
+    {
+        final int chunkSize = codec.chunkSize();
+        final int rawLength = (rows + 7) >>> 3;
+        EncodedBitmapBuilder b = new EncodedBitmapBuilder(codec);
+        b.appendUniformChunks(true, rawLength / chunkSize);
+        byte[] rest = new byte[rawLength % chunkSize];
+        Arrays.fill(rest, (byte) 0xFF);
+        b.append(rest, 0, rest.length);
+        return b.build(rows);
     }
 
     static int compressedLengthLZF(byte[] data) {
@@ -96,53 +191,38 @@ public class ToolBase
         return bytes.size();
     }
 
-    final byte[] _ratInput = new byte[4096];
-    
-    int ratCompress(byte[] data)
-    {
-        byte[] output = new byte[4096 + 100];
-        final BitRatEncoder enc = new BitRatEncoder();
-        int i = 0;
-        int left = data.length;
-        int totalOutput = 0;
-
-        for (; left >= 4096; i += 4096, left -= 4096) {
-            System.arraycopy(data, i, _ratInput, 0, 4096);
-            enc.encodeFullChunk(false, _ratInput, output, 0);
-            totalOutput += enc.getOutputPtr() + ratOverheadPerChunk();
-        }
-        if (left > 0) {
-            System.arraycopy(data, i, _ratInput, 0, left);
-            enc.encodePartialChunk(false, _ratInput, left, output, 0);
-            totalOutput += enc.getOutputPtr() + ratOverheadPerChunk();
-        }
-        return totalOutput;
+    /**
+     * @return Length of given raw bitmap when encoded with BitRat, including
+     *   container header and summary; all-zero and all-one chunks only
+     *   take space in the summary
+     */
+    int ratCompress(byte[] data) {
+        return _encodedLength(BitmapCodec.BITRAT, data);
     }
 
-    static int ratOverheadPerChunk() {
-        // one byte for bit mask, 2-byte length indicator
-        return 1 + 2;
+    int nibblerCompress(byte[] data) {
+        return _encodedLength(BitmapCodec.NIBBLER, data);
     }
-    
-    final byte[] _nibblerOutput = new byte[NibblerEncoder.MAX_OUTPUT_BUFFER];
-    
-    int nibblerCompress(byte[] data)
-    {
-        final int CHUNK_LEN = NibblerEncoder.MAX_CHUNK_SIZE;
-        final NibblerEncoder enc = new NibblerEncoder();
-        int i = 0;
-        int left = data.length;
-        int totalOutput = 0;
-
-        for (; left >= CHUNK_LEN; i += CHUNK_LEN, left -= CHUNK_LEN) {
-            int outBytes = enc.encode(data, i, CHUNK_LEN, _nibblerOutput, 0);
-            totalOutput += outBytes;
-        }
-        if (left > 0) {
-            int outBytes = enc.encode(data, i, left, _nibblerOutput, 0);
-            totalOutput += outBytes;
-        }
-        return totalOutput;
+
+    /**
+     * @return Length of given raw bitmap when encoded with BitRat and then
+     *   packed with {@link EntropyPacker}, as would be done for cold storage
+     */
+    static int coldCompress(byte[] data) {
+        EncodedBitmap bm = EncodedBitmap.encode(BitmapCodec.BITRAT, data, data.length << 3);
+        return new EntropyPacker().pack(bm).length;
+    }
+
+    /**
+     * @return All given raw bitmaps encoded as a single batch, as would be
+     *   done for storing all columns of a table
+     */
+    static EncodedBatch batchCompress(BitmapCodec codec, List<byte[]> data) {
+        return new BatchEncoder(codec).encode(data);
+    }
+
+    static int _encodedLength(BitmapCodec codec, byte[] data) {
+        return EncodedBitmap.encode(codec, data, data.length << 3).getEncodedLength();
     }
 
     static String _length(int length) {
@@ -155,11 +235,12 @@ public class ToolBase
         return String.format("%.1fkB", length/1024.0);
     }
     
-    static String sha1(byte[] data) {
-        try {
-            return new String(_sha1.digest(data), "UTF-8");
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+    static String _hex(byte[] data) {
+        StringBuilder sb = new StringBuilder(data.length * 2);
+        for (byte b : data) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16))
+                .append(Character.forDigit(b & 0xF, 16));
         }
+        return sb.toString();
     }
 }
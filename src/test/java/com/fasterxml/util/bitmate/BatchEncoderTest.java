@@ -0,0 +1,121 @@
+package com.fasterxml.util.bitmate;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class BatchEncoderTest extends ModuleTestBase
+{
+    public void testMatchesSeparateEncoding()
+    {
+        List<byte[]> columns = _columns(new Random(49), 300);
+        for (BitmapCodec codec : BitmapCodec.values()) {
+            EncodedBatch batch = new BatchEncoder(codec).encode(columns);
+            assertEquals(columns.size(), batch.size());
+            _verifyBatch(codec, BitOrder.MSB_FIRST, columns, batch);
+        }
+    }
+
+    public void testParallel() throws Exception
+    {
+        List<byte[]> columns = _columns(new Random(149), 500);
+        ExecutorService exec = Executors.newFixedThreadPool(3);
+        try {
+            for (BitmapCodec codec : new BitmapCodec[] { BitmapCodec.BITRAT, BitmapCodec.NIBBLER }) {
+                EncodedBatch batch = new BatchEncoder(codec, BitOrder.LSB_FIRST, exec, 64).encode(columns);
+                _verifyBatch(codec, BitOrder.LSB_FIRST, columns, batch);
+                // same as with calling thread
+                _verifyBytes(batch.toByteArray(), new BatchEncoder(codec, BitOrder.LSB_FIRST, null, 7)
+                        .encode(columns).toByteArray());
+            }
+        } finally {
+            exec.shutdown();
+        }
+    }
+
+    public void testOffsetsAndWrap()
+    {
+        // all bitmaps within same input array
+        byte[] raw = _randomBitmap(new Random(249), 5000);
+        byte[][] inputs = new byte[][] { raw, raw, raw, new byte[10] };
+        int[] offsets = new int[] { 0, 17, 4000, 3 };
+        int[] lengths = new int[] { 5000, 0, 1000, 7 };
+        EncodedBatch batch = EncodedBatch.wrap(new BatchEncoder(BitmapCodec.NIBBLER)
+                .encode(inputs, offsets, lengths).toByteArray());
+        assertEquals(4, batch.size());
+        assertEquals(EncodedBatch.headerLength(4), batch.getOffset(0));
+        for (int i = 0; i < 4; ++i) {
+            EncodedBitmap bm = batch.get(i);
+            assertEquals(lengths[i] << 3, bm.getBitLength());
+            _verifyBytes(bm.decode(), Arrays.copyOfRange(inputs[i], offsets[i], offsets[i] + lengths[i]));
+        }
+        assertEquals(batch.getTotalLength(), batch.getOffset(3) + batch.getEncodedLength(3));
+
+        EncodedBatch empty = new BatchEncoder(BitmapCodec.BITRAT).encode(new ArrayList<byte[]>());
+        assertEquals(0, EncodedBatch.wrap(empty.toByteArray()).size());
+    }
+
+    public void testBuilderReset()
+    {
+        Random r = new Random(349);
+        EncodedBitmapBuilder builder = new EncodedBitmapBuilder(BitmapCodec.BITRAT);
+        for (byte[] raw : _columns(r, 20)) {
+            builder.reset();
+            builder.append(raw, 0, raw.length);
+            _verifyBytes(builder.build(raw.length << 3).toByteArray(),
+                    EncodedBitmap.encode(BitmapCodec.BITRAT, raw, raw.length << 3).toByteArray());
+        }
+    }
+
+    public void testInvalid()
+    {
+        BatchEncoder enc = new BatchEncoder(BitmapCodec.BITRAT);
+        try {
+            enc.encode(new byte[][] { new byte[10] }, new int[] { 5 }, new int[] { 6 });
+            fail("Should not pass");
+        } catch (IllegalArgumentException e) {
+            verifyException(e, "Invalid input #0");
+        }
+        byte[] data = enc.encode(_columns(new Random(449), 3)).toByteArray();
+        try {
+            EncodedBatch.wrap(Arrays.copyOf(data, data.length - 1));
+            fail("Should not pass");
+        } catch (IllegalArgumentException e) {
+            verifyException(e, "Invalid encoded batch");
+        }
+        try {
+            EncodedBatch.wrap(data).get(3);
+            fail("Should not pass");
+        } catch (IllegalArgumentException e) {
+            verifyException(e, "Invalid bitmap index");
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper methods
+    /**********************************************************************
+     */
+
+    private void _verifyBatch(BitmapCodec codec, BitOrder order, List<byte[]> columns, EncodedBatch batch)
+    {
+        for (int i = 0; i < columns.size(); ++i) {
+            byte[] raw = columns.get(i);
+            EncodedBitmapBuilder builder = new EncodedBitmapBuilder(codec, order);
+            builder.append(raw, 0, raw.length);
+            _verifyBytes(batch.get(i).toByteArray(), builder.build(raw.length << 3).toByteArray());
+        }
+    }
+
+    /**
+     * Small columns of varying length and density, including empty ones
+     */
+    private static List<byte[]> _columns(Random r, int count)
+    {
+        List<byte[]> columns = new ArrayList<byte[]>(count);
+        for (int i = 0; i < count; ++i) {
+            final int length = r.nextInt(4) == 0 ? r.nextInt(20) : r.nextInt(20000);
+            columns.add(_bitmapWithRuns(r, length << 3, 1, length));
+        }
+        return columns;
+    }
+}
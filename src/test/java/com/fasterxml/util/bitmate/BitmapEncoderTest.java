@@ -30,10 +30,19 @@ public class BitmapEncoderTest extends ModuleTestBase
         assertEquals(0, b[2]);
     }
 
+    // Helper for constructing encoder to use for testing internal methods
+    private BitRatEncoder _encoder(byte[] input)
+    {
+        BitRatEncoder encoder = new BitRatEncoder();
+        encoder._input = input;
+        encoder._output = new byte[input.length * 2];
+        return encoder;
+    }
+
     public void testLevel1Compressing()
     {
         byte[] input = new byte[32];
-        BitRatEncoder encoder = new BitRatEncoder();
+        BitRatEncoder encoder = _encoder(input);
 
         // with empty contents should just get straight run
         
@@ -47,7 +56,7 @@ public class BitmapEncoderTest extends ModuleTestBase
         // with all 1s, bit different due to assumption of starting with '0'
         input = new byte[32];
         Arrays.fill(input, (byte) 0xFF);
-        encoder = new BitRatEncoder();
+        encoder = _encoder(input);
         result = encoder._encodeFullLevel1(0);
         // 4-bit mask with first one set
         assertEquals(0x8, result);
@@ -60,7 +69,7 @@ public class BitmapEncoderTest extends ModuleTestBase
         // and more, with 16 0s, 16 1s, yet different
         input = new byte[32];
         Arrays.fill(input, 16, 32, (byte) 0xFF);
-        encoder = new BitRatEncoder();
+        encoder = _encoder(input);
         result = encoder._encodeFullLevel1(0);
         assertEquals(0x02, result);
         assertEquals(32, encoder._inputPtr);
@@ -83,7 +92,7 @@ public class BitmapEncoderTest extends ModuleTestBase
         input[0] = 0;
         input[30] = input[31] = -1;
         
-        encoder = new BitRatEncoder();
+        encoder = _encoder(input);
         int result = encoder._encodeFullLevel1(0);
         assertEquals(0xF, result);
         assertEquals(32, encoder._inputPtr);
@@ -109,7 +118,7 @@ public class BitmapEncoderTest extends ModuleTestBase
         // Test with zigzag pattern
         input = new byte[32];
         Arrays.fill(input, (byte) 0xAA);
-        encoder = new BitRatEncoder();
+        encoder = _encoder(input);
         int result = encoder._encodeFullLevel1(0);
         assertEquals(0xF, result);
         assertEquals(32, encoder._inputPtr);
@@ -128,7 +137,7 @@ public class BitmapEncoderTest extends ModuleTestBase
         // and just to ensure bit is properly checked
         input = new byte[32];
         Arrays.fill(input, (byte) 0x55);
-        encoder = new BitRatEncoder();
+        encoder = _encoder(input);
         result = encoder._encodeFullLevel1(0);
         assertEquals(0xF, result);
         assertEquals(32, encoder._inputPtr);
@@ -150,7 +159,7 @@ public class BitmapEncoderTest extends ModuleTestBase
 
         // with empty contents should just get straight run
         input = new byte[BYTES];
-        encoder = new BitRatEncoder();
+        encoder = _encoder(input);
         assertEquals(0, encoder._encodeFullLevel2(0));
         // but has now consumed input...
         assertEquals(BYTES, encoder._inputPtr);
@@ -160,7 +169,7 @@ public class BitmapEncoderTest extends ModuleTestBase
         // with all 1s, bit different due to assumption of starting with '0'
         input = new byte[BYTES];
         Arrays.fill(input, (byte) 0xFF);
-        encoder = new BitRatEncoder();
+        encoder = _encoder(input);
         // 8-bit mask with first one set
         assertEquals(0x80, encoder._encodeFullLevel2(0));
         assertEquals(BYTES, encoder._inputPtr);
@@ -173,7 +182,7 @@ public class BitmapEncoderTest extends ModuleTestBase
         // and more, with half 0s, followed by half 1s
         input = new byte[BYTES];
         Arrays.fill(input, BYTES/2, input.length, (byte) 0xFF);
-        encoder = new BitRatEncoder();
+        encoder = _encoder(input);
         // should not be completely empty...
         result = encoder._encodeFullLevel2(0);
         assertEquals(BYTES, encoder._inputPtr);
@@ -194,7 +203,7 @@ public class BitmapEncoderTest extends ModuleTestBase
         // if non-compressing, should just get sets of literals
         input = new byte[BYTES];
         Arrays.fill(input, (byte)0xAA);
-        encoder = new BitRatEncoder();
+        encoder = _encoder(input);
         assertEquals(0xFF, encoder._encodeFullLevel2(0));
         assertEquals(BYTES, encoder._inputPtr);
         assertEquals(0, encoder._matchLevel1); // ends with 0-bit
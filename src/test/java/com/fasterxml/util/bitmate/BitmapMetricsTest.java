@@ -0,0 +1,100 @@
+package com.fasterxml.util.bitmate;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class BitmapMetricsTest extends ModuleTestBase
+{
+    public void testPairCounts()
+    {
+        Random r = new Random(34);
+        for (int round = 0; round < 20; ++round) {
+            EncodedBitmap a = _bitmap(r);
+            EncodedBitmap b = _bitmap(r);
+            long[] wa = _words(a, a.getBitOrder());
+            long[] wb = _words(b, a.getBitOrder());
+            int len = Math.max(wa.length, wb.length);
+            wa = Arrays.copyOf(wa, len);
+            wb = Arrays.copyOf(wb, len);
+
+            long and = 0L, or = 0L, andNot = 0L, xor = 0L, cardA = 0L;
+            for (int i = 0; i < len; ++i) {
+                and += Long.bitCount(wa[i] & wb[i]);
+                or += Long.bitCount(wa[i] | wb[i]);
+                andNot += Long.bitCount(wa[i] & ~wb[i]);
+                xor += Long.bitCount(wa[i] ^ wb[i]);
+                cardA += Long.bitCount(wa[i]);
+            }
+            assertEquals(cardA, BitmapMetrics.cardinality(a));
+            assertEquals(and, BitmapMetrics.andCardinality(a, b));
+            assertEquals(or, BitmapMetrics.orCardinality(a, b));
+            assertEquals(andNot, BitmapMetrics.andNotCardinality(a, b));
+            assertEquals(xor, BitmapMetrics.xorCardinality(a, b));
+            double expJ = (or == 0L) ? 0.0 : ((double) and / or);
+            assertEquals(expJ, BitmapMetrics.jaccard(a, b), 0.0000001);
+        }
+    }
+
+    public void testAllPairs()
+    {
+        Random r = new Random(35);
+        EncodedBitmap[] bitmaps = new EncodedBitmap[7];
+        for (int i = 0; i < bitmaps.length; ++i) {
+            bitmaps[i] = _bitmap(r);
+        }
+        long[][] single = BitmapMetrics.allPairsAndCardinality(bitmaps, null, 1);
+        long[][] parallel;
+        double[][] jaccard;
+        ExecutorService exec = Executors.newFixedThreadPool(3);
+        try {
+            parallel = BitmapMetrics.allPairsAndCardinality(bitmaps, exec, 4);
+            // same executor may be used again (and is not shut down)
+            jaccard = BitmapMetrics.allPairsJaccard(bitmaps, exec, 3);
+        } finally {
+            exec.shutdown();
+        }
+        for (int i = 0; i < bitmaps.length; ++i) {
+            assertEquals(BitmapMetrics.cardinality(bitmaps[i]), single[i][i]);
+            for (int j = 0; j < bitmaps.length; ++j) {
+                long exp = BitmapMetrics.andCardinality(bitmaps[i], bitmaps[j]);
+                assertEquals(exp, single[i][j]);
+                assertEquals(exp, parallel[i][j]);
+                assertEquals(BitmapMetrics.jaccard(bitmaps[i], bitmaps[j]), jaccard[i][j], 0.0000001);
+            }
+        }
+    }
+
+    public void testInvalidParallelism()
+    {
+        try {
+            BitmapMetrics.allPairsAndCardinality(new EncodedBitmap[0], null, 0);
+            fail("Should not pass");
+        } catch (IllegalArgumentException e) {
+            verifyException(e, "Invalid parallelism");
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper methods
+    /**********************************************************************
+     */
+
+    private static EncodedBitmap _bitmap(Random r)
+    {
+        final int bits = 4096 * 8 * r.nextInt(12) + r.nextInt(50000);
+        byte[] raw = _bitmapWithRuns(r, bits, 3, 30000);
+        BitmapCodec codec = r.nextBoolean() ? BitmapCodec.BITRAT : BitmapCodec.NIBBLER;
+        EncodedBitmap bm = EncodedBitmap.encode(codec, raw, bits);
+        if (r.nextBoolean()) {
+            bm = EncodedBitmap.encode(codec, bm.decodeWords(BitOrder.LSB_FIRST), bits, BitOrder.LSB_FIRST);
+        }
+        return bm;
+    }
+
+    private static long[] _words(EncodedBitmap bm, BitOrder order) {
+        return bm.decodeWords(order);
+    }
+}
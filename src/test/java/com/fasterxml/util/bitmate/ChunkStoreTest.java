@@ -0,0 +1,141 @@
+package com.fasterxml.util.bitmate;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class ChunkStoreTest extends ModuleTestBase
+{
+    public void testRoundTripAndDedup()
+    {
+        Random r = new Random(40);
+        for (BitmapCodec codec : BitmapCodec.values()) {
+            for (BitOrder order : BitOrder.values()) {
+                ChunkStore store = new ChunkStore(codec, order);
+                byte[][] pool = _pool(r, codec, 3);
+                final int bits = codec.chunkSize() * 8 * 12 + 1234;
+                byte[] rawA = _compose(r, pool, bits);
+                byte[] rawB = _compose(r, pool, bits);
+                EncodedBitmap a = _encode(codec, order, rawA, bits);
+                EncodedBitmap b = _encode(codec, order, rawB, bits);
+
+                StoredBitmap sa = store.store(a);
+                StoredBitmap sb = store.store(b);
+                assertEquals(13, sa.getChunkCount());
+                // at most 3 pooled chunks, plus distinct last chunks
+                assertTrue(store.getChunkCount() <= 5);
+
+                _verifyBytes(store.load(sa).toByteArray(), a.toByteArray());
+                _verifyBytes(store.load(sb).toByteArray(), b.toByteArray());
+
+                // storing same bitmap again only adds references
+                final int chunks = store.getChunkCount();
+                StoredBitmap sa2 = store.store(a);
+                assertEquals(chunks, store.getChunkCount());
+                assertEquals(Arrays.toString(sa.getChunkIds()), Arrays.toString(sa2.getChunkIds()));
+                store.release(sa2);
+                store.release(sa);
+                _verifyBytes(store.load(sb).toByteArray(), b.toByteArray());
+                store.release(sb);
+                assertEquals(0, store.getChunkCount());
+                assertEquals(0L, store.getStoredBytes());
+            }
+        }
+    }
+
+    public void testAndOr()
+    {
+        Random r = new Random(41);
+        for (BitmapCodec codec : BitmapCodec.values()) {
+            final BitOrder order = BitOrder.MSB_FIRST;
+            ChunkStore store = new ChunkStore(codec, order);
+            byte[][] pool = _pool(r, codec, 3);
+            for (int round = 0; round < 5; ++round) {
+                final int bits = codec.chunkSize() * 8 * r.nextInt(10) + r.nextInt(30000) + 1;
+                byte[] rawA = _compose(r, pool, bits);
+                byte[] rawB = _compose(r, pool, bits);
+                StoredBitmap sa = store.store(_encode(codec, order, rawA, bits));
+                StoredBitmap sb = store.store(_encode(codec, order, rawB, bits));
+
+                byte[] and = new byte[rawA.length];
+                byte[] or = new byte[rawA.length];
+                long card = 0L;
+                for (int i = 0; i < rawA.length; ++i) {
+                    and[i] = (byte) (rawA[i] & rawB[i]);
+                    or[i] = (byte) (rawA[i] | rawB[i]);
+                    card += Integer.bitCount(and[i] & 0xFF);
+                }
+                StoredBitmap sAnd = store.and(sa, sb);
+                StoredBitmap sOr = store.or(sa, sb);
+                _verifyBytes(store.load(sAnd).toByteArray(), _encode(codec, order, and, bits).toByteArray());
+                _verifyBytes(store.load(sOr).toByteArray(), _encode(codec, order, or, bits).toByteArray());
+                assertEquals(card, store.andCardinality(sa, sb));
+
+                for (StoredBitmap bm : new StoredBitmap[] { sa, sb, sAnd, sOr }) {
+                    store.release(bm);
+                }
+            }
+            assertEquals(0, store.getChunkCount());
+        }
+    }
+
+    public void testIncompatible()
+    {
+        ChunkStore store = new ChunkStore(BitmapCodec.BITRAT, BitOrder.MSB_FIRST);
+        try {
+            store.store(EncodedBitmap.encode(BitmapCodec.NIBBLER, new byte[8], 64));
+            fail("Should not pass");
+        } catch (IllegalArgumentException e) {
+            verifyException(e, "Can not store bitmap");
+        }
+        StoredBitmap a = store.store(EncodedBitmap.encode(BitmapCodec.BITRAT, new byte[8], 64));
+        StoredBitmap b = store.store(EncodedBitmap.encode(BitmapCodec.BITRAT, new byte[16], 128));
+        try {
+            store.and(a, b);
+            fail("Should not pass");
+        } catch (IllegalArgumentException e) {
+            verifyException(e, "different lengths");
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper methods
+    /**********************************************************************
+     */
+
+    private static EncodedBitmap _encode(BitmapCodec codec, BitOrder order, byte[] raw, int bits)
+    {
+        EncodedBitmapBuilder b = new EncodedBitmapBuilder(codec, order);
+        b.append(raw, 0, raw.length);
+        return b.build(bits);
+    }
+
+    private static byte[][] _pool(Random r, BitmapCodec codec, int count)
+    {
+        byte[][] pool = new byte[count][];
+        for (int i = 0; i < count; ++i) {
+            pool[i] = _randomBitmap(r, codec.chunkSize());
+        }
+        return pool;
+    }
+
+    /**
+     * Content made of chunks from given pool, and uniform chunks
+     */
+    private static byte[] _compose(Random r, byte[][] pool, int bits)
+    {
+        final int chunkSize = pool[0].length;
+        byte[] raw = new byte[(bits + 7) >> 3];
+        for (int i = 0; i < raw.length; i += chunkSize) {
+            final int len = Math.min(chunkSize, raw.length - i);
+            int choice = r.nextInt(pool.length + 2);
+            if (choice < pool.length) {
+                System.arraycopy(pool[choice], 0, raw, i, len);
+            } else if (choice == pool.length) {
+                Arrays.fill(raw, i, i + len, (byte) 0xFF);
+            }
+        }
+        _clearPadding(raw, bits);
+        return raw;
+    }
+}
@@ -0,0 +1,179 @@
+package com.fasterxml.util.bitmate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class CodecStatsTest extends ModuleTestBase
+{
+    public void testEncodeAndDecodeStats()
+    {
+        Random r = new Random(44);
+        for (BitmapCodec codec : BitmapCodec.values()) {
+            final int bits = codec.chunkSize() * 8 * 6 + 3333;
+            byte[] raw = new byte[(bits + 7) >> 3];
+            // dense random chunk, sparse chunk, uniform chunks, dense tail
+            final int cs = codec.chunkSize();
+            for (int i = 0; i < cs; ++i) { // no byte can continue a run
+                raw[i] = (byte) (1 + r.nextInt(254));
+            }
+            for (int i = 0; i < 40; ++i) {
+                raw[cs + r.nextInt(cs)] = (byte) (2 * (1 + r.nextInt(127))); // last bit clear
+            }
+            for (int i = 3 * cs; i < 4 * cs; ++i) {
+                raw[i] = (byte) 0xFF;
+            }
+            System.arraycopy(_randomBitmap(r, raw.length - 6 * cs), 0, raw, 6 * cs, raw.length - 6 * cs);
+            _clearPadding(raw, bits);
+
+            Recorder encoded = new Recorder();
+            CodecHistogram hist = new CodecHistogram();
+            EncodedBitmapBuilder b = new EncodedBitmapBuilder(codec);
+            b.setListener(new Both(encoded, hist));
+            b.append(raw, 0, raw.length);
+            EncodedBitmap bm = b.build(bits);
+            // instrumentation must not change output
+            _verifyBytes(bm.toByteArray(), EncodedBitmap.encode(codec, raw, bits).toByteArray());
+
+            assertEquals(7, encoded.stats.size());
+            assertEquals(7L, hist.getChunksEncoded());
+            assertEquals(4L, hist.getUniformChunks());
+            assertEquals((long) raw.length, hist.getRawBytes());
+
+            long[] dense = encoded.stats.get(0);
+            assertEquals(cs, (int) dense[1]); // all literal
+            long[] sparse = encoded.stats.get(1);
+            // Nibbler may also encode short gaps between literals as literals
+            assertTrue(sparse[1] >= 30 && sparse[1] <= 80);
+            assertTrue(sparse[2] > 1);
+            assertEquals(1L, encoded.stats.get(2)[2]); // uniform: a single run
+            assertEquals(0L, encoded.stats.get(3)[0]);
+            if (codec.isBitRat()) {
+                assertEquals(cs / 32, (int) dense[3]); // all escaped
+                assertTrue(hist.getLevel2Occupancy() > 0.0);
+            } else if (codec.isNibbler()) {
+                assertTrue(hist.getNibbleLengths() > 0);
+            }
+
+            // decoding reports same structure
+            Recorder decoded = new Recorder();
+            bm.reportChunkStats(decoded);
+            assertEquals(encoded.stats.size(), decoded.stats.size());
+            for (int i = 0; i < decoded.stats.size(); ++i) {
+                long[] exp = encoded.stats.get(i);
+                long[] act = decoded.stats.get(i);
+                for (int j = 0; j < exp.length; ++j) {
+                    assertEquals("chunk #"+i+", value #"+j, exp[j], act[j]);
+                }
+            }
+        }
+    }
+
+    public void testDecodeListener()
+    {
+        Random r = new Random(41);
+        for (BitmapCodec codec : BitmapCodec.values()) {
+            final int cs = codec.chunkSize();
+            final int bits = cs * 8 * 4 + 100;
+            byte[] raw = _randomBitmap(r, (bits + 7) >> 3);
+            Arrays.fill(raw, cs, 2 * cs, (byte) 0);
+            _clearPadding(raw, bits);
+            final EncodedBitmap plain = EncodedBitmap.encode(codec, raw, bits);
+            Recorder expected = new Recorder();
+            plain.reportChunkStats(expected);
+            assertEquals(5, expected.stats.size());
+
+            Recorder decoded = new Recorder();
+            EncodedBitmap bm = plain.withListener(decoded);
+            assertSame(plain, plain.withListener(null));
+            assertSame(bm, bm.withListener(decoded));
+
+            _verifyBytes(bm.decode(), raw);
+            _verifyStats(expected, decoded);
+            assertTrue(Arrays.equals(plain.decodeWords(BitOrder.LSB_FIRST),
+                    bm.decodeWords(BitOrder.LSB_FIRST)));
+            _verifyStats(expected, decoded);
+            bm.combineInto(BitOp.OR, new long[(bits + 63) >> 6], 0L);
+            _verifyStats(expected, decoded);
+
+            // random access only reports chunks accessed
+            assertEquals(plain.get(3 * cs * 8 + 5), bm.get(3 * cs * 8 + 5));
+            assertEquals(1, decoded.stats.size());
+            assertEquals(3L, decoded.stats.get(0)[7]);
+            decoded.stats.clear();
+            byte[] range = new byte[cs];
+            bm.decodeRange(cs / 2, cs / 2 + cs, range, 0);
+            assertEquals(2, decoded.stats.size());
+            assertEquals(1L, decoded.stats.get(1)[8]); // second one is uniform
+            decoded.stats.clear();
+
+            // and no reporting without listener
+            plain.decode();
+            bm.withListener(null).decode();
+            assertEquals(0, decoded.stats.size());
+        }
+    }
+
+    private void _verifyStats(Recorder expected, Recorder actual)
+    {
+        assertEquals(expected.stats.size(), actual.stats.size());
+        for (int i = 0; i < expected.stats.size(); ++i) {
+            long[] exp = expected.stats.get(i);
+            long[] act = actual.stats.get(i);
+            for (int j = 0; j < exp.length; ++j) {
+                assertEquals("chunk #"+i+", value #"+j, exp[j], act[j]);
+            }
+        }
+        actual.stats.clear();
+    }
+
+    public void testBuckets()
+    {
+        assertEquals(0, CodecHistogram.bucket(0L));
+        assertEquals(0, CodecHistogram.bucket(1L));
+        assertEquals(10, CodecHistogram.bucket(1500L));
+        assertEquals(0, ChunkStats.runLengthBucket(1));
+        assertEquals(2, ChunkStats.runLengthBucket(7));
+        assertEquals(ChunkStats.RUN_LENGTH_BUCKETS-1, ChunkStats.runLengthBucket(8192));
+    }
+
+    static class Recorder implements CodecListener
+    {
+        final List<long[]> stats = new ArrayList<long[]>();
+
+        @Override
+        public void chunkEncoded(ChunkStats s) { _add(s); }
+
+        @Override
+        public void chunkDecoded(ChunkStats s) { _add(s); }
+
+        private void _add(ChunkStats s) {
+            stats.add(new long[] { s.getEncodedLength(), s.getLiteralBytes(), s.getRunCount(),
+                    s.getEscapeCount(), s.getLevel1Present(), s.getByteLengths(),
+                    s.getRawLength(), s.getChunkIndex(), s.isUniform() ? 1 : 0 });
+        }
+    }
+
+    static class Both implements CodecListener
+    {
+        final CodecListener a, b;
+
+        Both(CodecListener a, CodecListener b) {
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        public void chunkEncoded(ChunkStats s) {
+            a.chunkEncoded(s);
+            b.chunkEncoded(s);
+        }
+
+        @Override
+        public void chunkDecoded(ChunkStats s) {
+            a.chunkDecoded(s);
+            b.chunkDecoded(s);
+        }
+    }
+}
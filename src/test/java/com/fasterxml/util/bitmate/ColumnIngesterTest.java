@@ -0,0 +1,162 @@
+package com.fasterxml.util.bitmate;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class ColumnIngesterTest extends ModuleTestBase
+{
+    private final ObjectMapper MAPPER = new ObjectMapper();
+
+    public void testSimpleIds()
+    {
+        ColumnIngester ingester = new ColumnIngester(BitmapCodec.BITRAT);
+        int a = ingester.columnId("a");
+        int b = ingester.columnId("b");
+        ingester.addRow(a);
+        ingester.addRow(b);
+        ingester.addRow(a, b);
+        ingester.addRow();
+        Map<String,EncodedBitmap> result = ingester.finish();
+        assertEquals(Arrays.asList("a", "b"), new ArrayList<String>(result.keySet()));
+        EncodedBitmap bmA = result.get("a");
+        assertEquals(4, bmA.getBitLength());
+        _verifyBytes(bmA.decode(), (byte) 0xA0);
+        _verifyBytes(result.get("b").decode(), (byte) 0x60);
+
+        try {
+            ingester = new ColumnIngester(BitmapCodec.BITRAT);
+            ingester.addRow(0);
+            fail("Should not pass");
+        } catch (IllegalArgumentException e) {
+            verifyException(e, "Invalid column id");
+        }
+    }
+
+    public void testInvalidRowAddsNothing()
+    {
+        ColumnIngester ingester = new ColumnIngester(BitmapCodec.BITRAT);
+        int a = ingester.columnId("a");
+        try {
+            ingester.addRow(a, 99);
+            fail("Should not pass");
+        } catch (IllegalArgumentException e) {
+            verifyException(e, "Invalid column id");
+        }
+        ingester.addRow();
+        ingester.addRow(a);
+        Map<String,EncodedBitmap> result = ingester.finish();
+        assertEquals(2, ingester.getRowCount());
+        _verifyBytes(result.get("a").decode(), (byte) 0x40);
+    }
+
+    public void testNotUsableAfterFinish()
+    {
+        ColumnIngester ingester = new ColumnIngester(BitmapCodec.BITRAT);
+        int a = ingester.columnId("a");
+        ingester.addRow(a);
+        ingester.finish();
+        try {
+            ingester.addRow(a);
+            fail("Should not pass");
+        } catch (IllegalStateException e) {
+            verifyException(e, "already finished");
+        }
+        try {
+            ingester.addRow(Arrays.asList("a"));
+            fail("Should not pass");
+        } catch (IllegalStateException e) {
+            verifyException(e, "already finished");
+        }
+        try {
+            ingester.columnId("b");
+            fail("Should not pass");
+        } catch (IllegalStateException e) {
+            verifyException(e, "already finished");
+        }
+        try {
+            ingester.finish();
+            fail("Should not pass");
+        } catch (IllegalStateException e) {
+            verifyException(e, "already finished");
+        }
+    }
+
+    public void testJsonRows() throws Exception
+    {
+        ColumnIngester ingester = new ColumnIngester(BitmapCodec.NIBBLER);
+        ingester.addRow(MAPPER.readTree("{\"a\":1, \"b\":null}"));
+        ingester.addRow(MAPPER.readTree("{\"b\":\"x\", \"c\":[ ]}"));
+        ingester.addRow(MAPPER.readTree("{}"));
+        Map<String,EncodedBitmap> result = ingester.finish();
+        assertEquals(3, result.size());
+        _verifyBytes(result.get("a").decode(), (byte) 0x80);
+        _verifyBytes(result.get("b").decode(), (byte) 0x40);
+        _verifyBytes(result.get("c").decode(), (byte) 0x40);
+    }
+
+    public void testMultipleChunksSequential()
+    {
+        for (BitmapCodec codec : BitmapCodec.values()) {
+            _testMultipleChunks(new ColumnIngester(codec), codec);
+        }
+    }
+
+    public void testMultipleChunksParallel()
+    {
+        ExecutorService exec = Executors.newFixedThreadPool(3);
+        try {
+            for (BitmapCodec codec : BitmapCodec.values()) {
+                _testMultipleChunks(new ColumnIngester(codec, exec, 4), codec);
+            }
+        } finally {
+            exec.shutdown();
+        }
+    }
+
+    private void _testMultipleChunks(ColumnIngester ingester, BitmapCodec codec)
+    {
+        final int COLUMNS = 20;
+        final int ROWS = codec.chunkSize() * 8 * 3 + 1234;
+        Random r = new Random(codec.ordinal());
+        BitSet[] expected = new BitSet[COLUMNS];
+        for (int i = 0; i < COLUMNS; ++i) {
+            expected[i] = new BitSet();
+        }
+        // register half of columns up front, half lazily
+        for (int i = 0; i < COLUMNS/2; ++i) {
+            assertEquals(i, ingester.columnId("col"+i));
+        }
+        List<String> names = new ArrayList<String>();
+        for (int row = 0; row < ROWS; ++row) {
+            names.clear();
+            // denser for lower columns; and no values for some ranges
+            for (int col = 0; col < COLUMNS; ++col) {
+                if (col >= COLUMNS/2 && row < codec.chunkSize() * 10) {
+                    continue;
+                }
+                if (r.nextInt(col + 2) == 0) {
+                    names.add("col"+col);
+                    expected[col].set(row);
+                }
+            }
+            ingester.addRow(names);
+        }
+        assertEquals(ROWS, ingester.getRowCount());
+        Map<String,EncodedBitmap> result = ingester.finish();
+        assertEquals(COLUMNS, result.size());
+        for (int col = 0; col < COLUMNS; ++col) {
+            EncodedBitmap bm = result.get("col"+col);
+            assertEquals(ROWS, bm.getBitLength());
+            byte[] raw = bm.decode();
+            for (int row = 0; row < ROWS; ++row) {
+                boolean set = (raw[row >> 3] & (0x80 >> (row & 7))) != 0;
+                if (set != expected[col].get(row)) {
+                    fail("Column "+col+", row "+row+": expected "+expected[col].get(row));
+                }
+            }
+        }
+    }
+}
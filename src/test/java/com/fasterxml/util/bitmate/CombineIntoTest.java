@@ -0,0 +1,110 @@
+package com.fasterxml.util.bitmate;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class CombineIntoTest extends ModuleTestBase
+{
+    public void testCombineAligned()
+    {
+        _testCombine(new Random(33), new long[] { 0L, 64L, 4096L * 8 });
+    }
+
+    public void testCombineUnaligned()
+    {
+        _testCombine(new Random(34), new long[] { 1L, 63L, 100L, 4096L * 8 + 7 });
+    }
+
+    public void testCombineWithCache()
+    {
+        Random r = new Random(35);
+        final int bits = 4096 * 8 * 3 + 77;
+        EncodedBitmap bm = EncodedBitmap.encode(BitmapCodec.BITRAT, _bitmapWithRuns(r, bits, 4, 40000), bits);
+        DecodedChunkCache cache = new DecodedChunkCache(1024 * 1024);
+        for (BitOp op : BitOp.values()) {
+            long[] target = _randomWords(r, (bits >> 6) + 3);
+            long[] exp = _combine(op, bm, target, 70L);
+            bm.combineInto(op, target, 70L, cache, 1L);
+            assertTrue(Arrays.equals(exp, target));
+        }
+        assertTrue(cache.getHitCount() > 0L);
+    }
+
+    public void testInvalidOffset()
+    {
+        EncodedBitmap bm = EncodedBitmap.encode(BitmapCodec.NIBBLER, new byte[16], 128);
+        try {
+            bm.orInto(new long[2], 1L);
+            fail("Should not pass");
+        } catch (IllegalArgumentException e) {
+            verifyException(e, "Invalid bit offset");
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper methods
+    /**********************************************************************
+     */
+
+    private void _testCombine(Random r, long[] offsets)
+    {
+        for (BitmapCodec codec : BitmapCodec.values()) {
+            for (BitOrder order : BitOrder.values()) {
+                for (int round = 0; round < 3; ++round) {
+                    final int bits = 4096 * 8 * (1 + r.nextInt(20)) + r.nextInt(5000);
+                    long[] words = EncodedBitmap.encode(codec, _bitmapWithRuns(r, bits, 4, 40000), bits)
+                            .decodeWords(order);
+                    EncodedBitmap bm = EncodedBitmap.encode(codec, words, bits, order);
+                    for (long offset : offsets) {
+                        for (BitOp op : BitOp.values()) {
+                            long[] target = _randomWords(r, (int) ((offset + bits + 63) >> 6) + 1);
+                            long[] exp = _combine(op, bm, target, offset);
+                            bm.combineInto(op, target, offset);
+                            assertTrue("Failed "+op+" for "+codec+"/"+order+", offset "+offset,
+                                    Arrays.equals(exp, target));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Random target words
+     */
+    private static long[] _randomWords(Random r, int count)
+    {
+        long[] words = new long[count];
+        for (int i = 0; i < count; ++i) {
+            words[i] = r.nextLong();
+        }
+        return words;
+    }
+
+    /**
+     * Reference implementation, bit by bit
+     */
+    private static long[] _combine(BitOp op, EncodedBitmap bm, long[] target, long offset)
+    {
+        final long[] src = bm.decodeWords(bm.getBitOrder());
+        final long[] result = Arrays.copyOf(target, target.length);
+        final boolean msb = (bm.getBitOrder() == BitOrder.MSB_FIRST);
+        for (int i = 0; i < bm.getBitLength(); ++i) {
+            long srcBit = _bit(src, i, msb);
+            long pos = offset + i;
+            long t = _bit(result, pos, msb);
+            long v = op.apply(t, srcBit) & 1L;
+            long mask = msb ? (1L << (63 - (pos & 63))) : (1L << (pos & 63));
+            int ix = (int) (pos >> 6);
+            result[ix] = (v == 0L) ? (result[ix] & ~mask) : (result[ix] | mask);
+        }
+        return result;
+    }
+
+    private static long _bit(long[] words, long pos, boolean msb)
+    {
+        long w = words[(int) (pos >> 6)];
+        return (msb ? (w >>> (63 - (pos & 63))) : (w >>> (pos & 63))) & 1L;
+    }
+}
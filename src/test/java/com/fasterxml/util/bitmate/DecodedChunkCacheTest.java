@@ -0,0 +1,78 @@
+package com.fasterxml.util.bitmate;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class DecodedChunkCacheTest extends ModuleTestBase
+{
+    public void testHitsAndMisses()
+    {
+        Random r = new Random(31);
+        final int bits = 4096 * 8 * 3 + 100;
+        byte[] raw = _randomBitmap(r, (bits + 7) >> 3);
+        EncodedBitmap bm = EncodedBitmap.encode(BitmapCodec.BITRAT, raw, bits);
+        DecodedChunkCache cache = new DecodedChunkCache(1024 * 1024);
+
+        long[] words = cache.decodeWords(1L, bm);
+        assertTrue(Arrays.equals(bm.decodeWords(BitOrder.MSB_FIRST), words));
+        assertEquals(0L, cache.getHitCount());
+        assertEquals(4L, cache.getMissCount());
+        assertEquals(4, cache.getEntryCount());
+
+        long[] chunk = cache.getChunk(1L, bm, 2);
+        assertSame(chunk, cache.getChunk(1L, bm, 2));
+        assertEquals(2L, cache.getHitCount());
+        // last chunk is partial
+        assertEquals(2, cache.getChunk(1L, bm, 3).length);
+
+        // different id, different entry
+        cache.getChunk(2L, bm, 2);
+        assertEquals(5L, cache.getMissCount());
+
+        cache.invalidate(1L);
+        assertEquals(1, cache.getEntryCount());
+        cache.clear();
+        assertEquals(0, cache.getEntryCount());
+        assertEquals(0L, cache.getSizeInBytes());
+    }
+
+    public void testEvictionResistsScans()
+    {
+        Random r = new Random(1);
+        final int bits = 4096 * 8 * 20;
+        EncodedBitmap hot = EncodedBitmap.encode(BitmapCodec.BITRAT, _randomBitmap(r, bits / 8), bits);
+        EncodedBitmap cold = EncodedBitmap.encode(BitmapCodec.BITRAT, _randomBitmap(r, bits / 8), bits);
+        // room for about 10 chunks, in a single stripe
+        DecodedChunkCache cache = new DecodedChunkCache(10 * (4096 + 100), 1);
+
+        // access 4 hot chunks twice, to get them promoted
+        for (int round = 0; round < 2; ++round) {
+            for (int i = 0; i < 4; ++i) {
+                cache.getChunk(1L, hot, i);
+            }
+        }
+        // then scan through the cold bitmap
+        for (int i = 0; i < cold.getChunkCount(); ++i) {
+            cache.getChunk(2L, cold, i);
+        }
+        assertTrue(cache.getEvictionCount() > 0);
+        assertTrue(cache.getSizeInBytes() <= cache.getMaxBytes());
+
+        // hot chunks should have survived
+        final long misses = cache.getMissCount();
+        for (int i = 0; i < 4; ++i) {
+            cache.getChunk(1L, hot, i);
+        }
+        assertEquals(misses, cache.getMissCount());
+    }
+
+    public void testInvalidConfig()
+    {
+        try {
+            new DecodedChunkCache(0L);
+            fail("Should not pass");
+        } catch (IllegalArgumentException e) {
+            verifyException(e, "Invalid maxBytes");
+        }
+    }
+}
@@ -0,0 +1,393 @@
+package com.fasterxml.util.bitmate;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+public class EncodedBitmapTest extends ModuleTestBase
+{
+    public void testEmptyAndFull()
+    {
+        for (BitmapCodec codec : BitmapCodec.values()) {
+            final int bits = codec.chunkSize() * 8 * 3;
+            byte[] raw = new byte[bits / 8];
+            _verifyRoundTrip(codec, raw, bits);
+            Arrays.fill(raw, (byte) 0xFF);
+            _verifyRoundTrip(codec, raw, bits);
+        }
+    }
+
+    public void testUniformChunks()
+    {
+        for (BitmapCodec codec : BitmapCodec.values()) {
+            EncodedBitmapBuilder b = new EncodedBitmapBuilder(codec);
+            b.appendUniformChunks(false, 2);
+            b.appendUniformChunks(true, 1);
+            final int bits = codec.chunkSize() * 8 * 3;
+            EncodedBitmap bm = b.build(bits);
+            assertEquals(3, bm.getChunkCount());
+            byte[] exp = new byte[bits / 8];
+            Arrays.fill(exp, 2 * codec.chunkSize(), exp.length, (byte) 0xFF);
+            _verifyBytes(bm.decode(), exp);
+        }
+    }
+
+    public void testRandomRoundTrip()
+    {
+        Random r = new Random(123);
+        for (BitmapCodec codec : BitmapCodec.values()) {
+            for (int i = 0; i < 50; ++i) {
+                int bits = r.nextInt(codec.chunkSize() * 8 * 5) + 1;
+                byte[] raw = _randomBitmap(r, (bits + 7) >> 3);
+                // clear padding bits, for easier comparison
+                _clearPadding(raw, bits);
+                EncodedBitmap bm = _verifyRoundTrip(codec, raw, bits);
+                // and access by chunk as well
+                byte[] chunk = new byte[codec.chunkSize()];
+                int ix = r.nextInt(bm.getChunkCount());
+                int len = bm.decodeChunk(ix, chunk, 0);
+                assertEquals(bm.getChunkRawLength(ix), len);
+                byte[] exp = Arrays.copyOfRange(raw, ix * codec.chunkSize(), ix * codec.chunkSize() + len);
+                _clearPadding(exp, (ix == bm.getChunkCount()-1) ? bits : 0);
+                byte[] act = Arrays.copyOf(chunk, len);
+                _clearPadding(act, (ix == bm.getChunkCount()-1) ? bits : 0);
+                _verifyBytes(act, exp);
+            }
+        }
+    }
+
+    public void testShortContentIsPadded()
+    {
+        for (BitmapCodec codec : BitmapCodec.values()) {
+            EncodedBitmapBuilder b = new EncodedBitmapBuilder(codec);
+            b.append(new byte[] { (byte) 0x81 }, 0, 1);
+            final int bits = codec.chunkSize() * 8 * 2 + 9;
+            EncodedBitmap bm = b.build(bits);
+            byte[] exp = new byte[(bits + 7) / 8];
+            exp[0] = (byte) 0x81;
+            _verifyBytes(bm.decode(), exp);
+
+            try {
+                b = new EncodedBitmapBuilder(codec);
+                b.append(new byte[3], 0, 3);
+                b.build(9);
+                fail("Should not pass");
+            } catch (IllegalArgumentException e) {
+                verifyException(e, "Invalid bit length");
+            }
+        }
+    }
+
+    public void testSerialization()
+    {
+        byte[] raw = new byte[10000];
+        raw[500] = 0x12;
+        Arrays.fill(raw, 6000, 7000, (byte) 0xFF);
+        for (BitmapCodec codec : BitmapCodec.values()) {
+            EncodedBitmap bm = EncodedBitmap.encode(codec, raw, raw.length * 8);
+            EncodedBitmap bm2 = EncodedBitmap.wrap(bm.toByteArray());
+            assertEquals(codec, bm2.getCodec());
+            assertEquals(raw.length * 8, bm2.getBitLength());
+            _verifyBytes(bm2.decode(), raw);
+        }
+        try {
+            EncodedBitmap.wrap(new byte[3]);
+            fail("Should not pass");
+        } catch (IllegalArgumentException e) {
+            verifyException(e, "missing header");
+        }
+    }
+
+    public void testWordRoundTrip()
+    {
+        Random r = new Random(29);
+        for (BitmapCodec codec : BitmapCodec.values()) {
+            for (int i = 0; i < 20; ++i) {
+                BitSet bits = new BitSet();
+                final int len = r.nextInt(codec.chunkSize() * 8 * 3) + 1;
+                for (int j = 0; j < len; ++j) {
+                    // mix of runs and random bits
+                    if ((j & 0x3FF) < 0x200 ? r.nextBoolean() : ((j >> 12) & 1) != 0) {
+                        bits.set(j);
+                    }
+                }
+                EncodedBitmap bm = EncodedBitmap.encode(codec, bits.toLongArray(),
+                        bits.length(), BitOrder.LSB_FIRST);
+                bm = EncodedBitmap.wrap(bm.toByteArray());
+                assertEquals(BitOrder.LSB_FIRST, bm.getBitOrder());
+                assertEquals(bits, BitSet.valueOf(bm.decodeWords(BitOrder.LSB_FIRST)));
+
+                // and with bytes, bit order is that of the encoded bitmap
+                _verifyBytes(bm.decode(), Arrays.copyOf(bits.toByteArray(), bm.getRawLength()));
+
+                // as well as with reversed order
+                long[] msb = bm.decodeWords(BitOrder.MSB_FIRST);
+                for (int j = 0; j < bits.length(); ++j) {
+                    assertEquals(bits.get(j), (msb[j >> 6] << j) < 0L);
+                }
+            }
+        }
+    }
+
+    public void testWordsSameAsBytes()
+    {
+        Random r = new Random(3);
+        for (BitmapCodec codec : BitmapCodec.values()) {
+            final int bits = codec.chunkSize() * 8 * 2 + 100;
+            byte[] raw = _randomBitmap(r, (bits + 7) >> 3);
+            Arrays.fill(raw, 10, codec.chunkSize() + 300, (byte) 0);
+            _clearPadding(raw, bits);
+            long[] words = new long[(bits + 63) >> 6];
+            for (int i = 0; i < raw.length; ++i) {
+                words[i >> 3] |= (raw[i] & 0xFFL) << (56 - ((i & 7) << 3));
+            }
+            EncodedBitmap fromBytes = EncodedBitmap.encode(codec, raw, bits);
+            EncodedBitmap fromWords = EncodedBitmap.encode(codec, words, bits, BitOrder.MSB_FIRST);
+            _verifyBytes(fromWords.toByteArray(), fromBytes.toByteArray());
+            assertTrue(Arrays.equals(words, fromBytes.decodeWords(BitOrder.MSB_FIRST)));
+
+            // and if bytes are appended first, words are not aligned to chunks
+            EncodedBitmapBuilder b = new EncodedBitmapBuilder(codec);
+            b.append(raw, 0, 8);
+            b.appendWords(words, 1, words.length-2);
+            final int tail = (words.length-1) * 8;
+            b.append(raw, tail, raw.length - tail);
+            _verifyBytes(b.build(bits).decode(), raw);
+
+            // as well as content that does not end at word boundary
+            b = new EncodedBitmapBuilder(codec);
+            b.appendWordBytes(words, 0, raw.length);
+            _verifyBytes(b.build(bits).toByteArray(), fromBytes.toByteArray());
+        }
+    }
+
+    public void testSortedIds()
+    {
+        Random r = new Random(30);
+        for (BitmapCodec codec : BitmapCodec.values()) {
+            final int bits = codec.chunkSize() * 8 * 6 + 77;
+            int[] ids = new int[200];
+            int count = 0;
+            for (int id = r.nextInt(5); count < ids.length; id += 1 + r.nextInt(100)) {
+                ids[count++] = id;
+                // leave a few chunks empty
+                if (count == 100) {
+                    id += codec.chunkSize() * 8 * 3;
+                }
+            }
+            byte[] raw = new byte[(bits + 7) >> 3];
+            for (int id : ids) {
+                raw[id >> 3] |= (0x80 >> (id & 7));
+            }
+            EncodedBitmap fromRaw = EncodedBitmap.encode(codec, raw, bits);
+            EncodedBitmap fromIds = EncodedBitmap.encodeSorted(codec, ids, ids.length, bits);
+            _verifyBytes(fromIds.toByteArray(), fromRaw.toByteArray());
+
+            // content may be appended after ids as well
+            EncodedBitmapBuilder b = new EncodedBitmapBuilder(codec);
+            b.appendSortedIds(new int[] { 3, 12 }, 0, 2);
+            b.append(new byte[] { (byte) 0xFF }, 0, 1);
+            _verifyBytes(b.build(24).decode(), (byte) 0x10, (byte) 0x08, (byte) 0xFF);
+
+            try {
+                EncodedBitmap.encodeSorted(codec, new int[] { 1, 5, 5 }, 3, 100);
+                fail("Should not pass");
+            } catch (IllegalArgumentException e) {
+                verifyException(e, "ascending order");
+            }
+        }
+    }
+
+    public void testSummaryForUniformSpans()
+    {
+        for (BitmapCodec codec : BitmapCodec.values()) {
+            // 100M bits (or more, for big chunks), with just a few set, and a span of set bits
+            final int chunkBits = codec.chunkSize() * 8;
+            final int bits = Math.max(100 * 1000 * 1000, chunkBits * 1200 + 12345);
+            EncodedBitmapBuilder b = new EncodedBitmapBuilder(codec);
+            b.appendSortedIds(new int[] { 7, 5000000 }, 0, 2);
+            b.build(bits); // just to ensure this works with buffered content
+            b = new EncodedBitmapBuilder(codec);
+            b.appendSortedIds(new int[] { 7, 5000000 }, 0, 2);
+            byte[] zeroes = new byte[codec.chunkSize()];
+            while (b.getRawLength() % codec.chunkSize() != 0) {
+                b.append(zeroes, 0, 1);
+            }
+            final int fullStart = (int) (b.getRawLength() / codec.chunkSize()) + 100;
+            b.appendUniformChunks(false, 100);
+            b.appendUniformChunks(true, 1000);
+            EncodedBitmap bm = EncodedBitmap.wrap(b.build(bits).toByteArray());
+            assertTrue("Encoded length "+bm.getEncodedLength(), bm.getEncodedLength() < 100);
+
+            assertEquals(EncodedBitmap.ChunkType.ENCODED, bm.getChunkType(0));
+            assertEquals(EncodedBitmap.ChunkType.EMPTY, bm.getChunkType(1));
+            assertEquals(EncodedBitmap.ChunkType.FULL, bm.getChunkType(fullStart));
+            assertEquals(EncodedBitmap.ChunkType.FULL, bm.getChunkType(fullStart + 999));
+            assertEquals(EncodedBitmap.ChunkType.EMPTY, bm.getChunkType(fullStart + 1000));
+            // last chunk is partial, so it is encoded even if empty
+            assertEquals(EncodedBitmap.ChunkType.EMPTY, bm.getChunkType(bm.getChunkCount()-2));
+            // span of full chunks should be skippable in a few steps
+            int ix = fullStart;
+            int steps = 0;
+            while (ix < fullStart + 1000) {
+                assertEquals(EncodedBitmap.ChunkType.FULL, bm.getChunkType(ix));
+                ix = bm.getRunEnd(ix);
+                ++steps;
+            }
+            assertEquals(fullStart + 1000, ix);
+            assertTrue("steps "+steps+" start "+fullStart, steps <= 3);
+
+            long[] words = bm.decodeWords(BitOrder.MSB_FIRST);
+            assertEquals(1L << 56, words[0]);
+            assertEquals(-1L, words[fullStart * chunkBits / 64]);
+            assertEquals(0L, words[words.length-1]);
+        }
+    }
+
+    public void testNotAndFlip()
+    {
+        Random r = new Random(35);
+        for (BitmapCodec codec : BitmapCodec.values()) {
+            for (BitOrder order : BitOrder.values()) {
+                for (int round = 0; round < 4; ++round) {
+                    final int bits = 4096 * 8 * (1 + r.nextInt(30)) + r.nextInt(9000);
+                    byte[] raw = _randomBitmap(r, (bits + 7) >> 3);
+                    // add long uniform spans, for uniform chunks
+                    for (int i = 0; i < 3; ++i) {
+                        int start = r.nextInt(raw.length);
+                        Arrays.fill(raw, start, Math.min(raw.length, start + r.nextInt(60000)),
+                                r.nextBoolean() ? (byte) 0xFF : 0);
+                    }
+                    long[] words = EncodedBitmap.encode(codec, raw, bits).decodeWords(order);
+                    EncodedBitmap bm = EncodedBitmap.encode(codec, words, bits, order);
+                    byte[] exp = bm.decode();
+
+                    EncodedBitmap not = bm.not();
+                    assertEquals(bm.getEncodedLength(), not.getEncodedLength());
+                    _verifyBytes(EncodedBitmap.wrap(not.toByteArray()).decode(), _flip(bm, exp, 0, bits));
+                    _verifyBytes(not.not().toByteArray(), bm.toByteArray());
+
+                    for (int i = 0; i < 3; ++i) {
+                        int from = r.nextInt(bits);
+                        int to = from + r.nextInt(bits - from + 1);
+                        _verifyBytes(bm.flip(from, to).decode(), _flip(bm, exp, from, to));
+                    }
+                }
+            }
+        }
+    }
+
+    public void testSliceAndConcat()
+    {
+        Random r = new Random(36);
+        for (BitmapCodec codec : BitmapCodec.values()) {
+            final int chunkBits = codec.chunkSize() * 8;
+            for (BitOrder order : BitOrder.values()) {
+                for (int round = 0; round < 4; ++round) {
+                    final int bits = chunkBits * (1 + r.nextInt(25)) + r.nextInt(9000);
+                    final boolean[] content = _randomBits(r, bits);
+                    EncodedBitmap bm = _encode(codec, order, content, 0, bits);
+
+                    for (int i = 0; i < 4; ++i) {
+                        // aligned and unaligned starts
+                        int from = (i < 2) ? chunkBits * r.nextInt(bits / chunkBits + 1) : r.nextInt(bits);
+                        int to = from + r.nextInt(bits - from + 1);
+                        _verifyBytes(bm.slice(from, to).toByteArray(),
+                                _encode(codec, order, content, from, to).toByteArray());
+                    }
+
+                    int split = (round < 2) ? chunkBits * r.nextInt(bits / chunkBits + 1) : r.nextInt(bits);
+                    EncodedBitmap concat = EncodedBitmap.concat(bm.slice(0, split), bm.slice(split, bits));
+                    _verifyBytes(concat.toByteArray(), bm.toByteArray());
+                }
+            }
+        }
+    }
+
+    public void testLargeChunkGeometry()
+    {
+        Random r = new Random(37);
+        // sparse content, with runs crossing 4k sub-chunk boundaries
+        final int bits = 4 * 1000 * 1000;
+        byte[] raw = new byte[bits >> 3];
+        for (int i = 0; i < 200; ++i) {
+            raw[r.nextInt(raw.length)] = (byte) (1 << r.nextInt(8));
+        }
+        Arrays.fill(raw, 10000, 30000, (byte) 0xFF);
+        Arrays.fill(raw, 140000, 140000 + 4096 * 3 + 77, (byte) 0xFF);
+
+        int[] sizes = new int[BitmapCodec.values().length];
+        for (BitmapCodec codec : BitmapCodec.values()) {
+            for (BitOrder order : BitOrder.values()) {
+                EncodedBitmapBuilder b = new EncodedBitmapBuilder(codec, order);
+                b.append(raw, 0, raw.length);
+                EncodedBitmap bm = EncodedBitmap.wrap(b.build(bits).toByteArray());
+                assertSame(codec, bm.getCodec());
+                assertSame(order, bm.getBitOrder());
+                _verifyBytes(bm.decode(), raw);
+                sizes[codec.ordinal()] = bm.getEncodedLength();
+            }
+        }
+        // runs within big chunks need no frames of their own
+        final int bitrat = sizes[BitmapCodec.BITRAT.ordinal()];
+        assertTrue(sizes[BitmapCodec.BITRAT_32K.ordinal()] < bitrat);
+        assertTrue(sizes[BitmapCodec.BITRAT_64K.ordinal()] < bitrat);
+    }
+
+    /*
+    /**********************************************************
+    /* Helper methods
+    /**********************************************************
+     */
+
+    private static boolean[] _randomBits(Random r, int bits)
+    {
+        byte[] raw = _bitmapWithRuns(r, bits, 3, 70000);
+        boolean[] result = new boolean[bits];
+        for (int i = 0; i < bits; ++i) {
+            result[i] = (raw[i >> 3] & (0x80 >> (i & 7))) != 0;
+        }
+        return result;
+    }
+
+    private static EncodedBitmap _encode(BitmapCodec codec, BitOrder order, boolean[] content,
+            int from, int to)
+    {
+        byte[] raw = new byte[(to - from + 7) >> 3];
+        for (int i = from; i < to; ++i) {
+            if (content[i]) {
+                raw[(i - from) >> 3] |= order.bitMask((i - from) & 7);
+            }
+        }
+        EncodedBitmapBuilder b = new EncodedBitmapBuilder(codec, order);
+        b.append(raw, 0, raw.length);
+        return b.build(to - from);
+    }
+
+    private static byte[] _flip(EncodedBitmap bm, byte[] raw, int from, int to)
+    {
+        byte[] result = Arrays.copyOf(raw, raw.length);
+        for (int i = from; i < to; ++i) {
+            result[i >> 3] ^= bm.getBitOrder().bitMask(i & 7);
+        }
+        return result;
+    }
+
+    private EncodedBitmap _verifyRoundTrip(BitmapCodec codec, byte[] raw, int bits)
+    {
+        EncodedBitmap bm = EncodedBitmap.encode(codec, raw, bits);
+        assertEquals(bits, bm.getBitLength());
+        byte[] result = bm.decode();
+        _clearPadding(result, bits);
+        _verifyBytes(result, raw);
+
+        // and ditto when appending in small pieces
+        EncodedBitmapBuilder b = new EncodedBitmapBuilder(codec);
+        for (int i = 0; i < raw.length; i += 1000) {
+            b.append(raw, i, Math.min(1000, raw.length - i));
+        }
+        EncodedBitmap bm2 = b.build(bits);
+        _verifyBytes(bm2.toByteArray(), bm.toByteArray());
+        return bm;
+    }
+}
@@ -0,0 +1,48 @@
+package com.fasterxml.util.bitmate;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import com.fasterxml.jackson.core.*;
+
+public class EncodingOutputStreamTest extends ModuleTestBase
+{
+    private final JsonFactory JSON_F = new JsonFactory();
+
+    public void testSingleBytes() throws Exception
+    {
+        EncodingOutputStream out = new EncodingOutputStream(new EncodedBitmapBuilder(BitmapCodec.BITRAT));
+        out.write(0x12);
+        out.write(0xFF);
+        out.write(new byte[] { 1, 2, 3 }, 1, 2);
+        out.close();
+        EncodedBitmap bm = out.getBuilder().build(40);
+        _verifyBytes(bm.decode(), (byte) 0x12, (byte) 0xFF, (byte) 2, (byte) 3, (byte) 0);
+    }
+
+    // Test to verify that content may be decoded from Base64 incrementally
+    public void testFromBase64() throws Exception
+    {
+        Random r = new Random(7);
+        final byte[] raw = _randomBitmap(r, 50000);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JsonGenerator g = JSON_F.createGenerator(bytes);
+        g.writeStartObject();
+        g.writeBinaryField("presence", raw);
+        g.writeEndObject();
+        g.close();
+
+        for (BitmapCodec codec : BitmapCodec.values()) {
+            JsonParser p = JSON_F.createParser(bytes.toByteArray());
+            assertToken(JsonToken.START_OBJECT, p.nextToken());
+            assertToken(JsonToken.FIELD_NAME, p.nextToken());
+            assertToken(JsonToken.VALUE_STRING, p.nextToken());
+            EncodingOutputStream out = new EncodingOutputStream(new EncodedBitmapBuilder(codec));
+            assertEquals(raw.length, p.readBinaryValue(out));
+            assertToken(JsonToken.END_OBJECT, p.nextToken());
+            p.close();
+            EncodedBitmap bm = out.getBuilder().build(raw.length * 8);
+            _verifyBytes(bm.decode(), raw);
+        }
+    }
+}
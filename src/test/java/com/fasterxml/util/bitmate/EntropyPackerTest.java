@@ -0,0 +1,103 @@
+package com.fasterxml.util.bitmate;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class EntropyPackerTest extends ModuleTestBase
+{
+    public void testHuffmanRoundTrip()
+    {
+        Random r = new Random(46);
+        HuffmanEncoder enc = new HuffmanEncoder();
+        HuffmanDecoder dec = new HuffmanDecoder();
+        for (int round = 0; round < 50; ++round) {
+            // skewed: a few common values and long tail of rare ones
+            byte[] raw = new byte[r.nextInt(20000)];
+            for (int i = 0; i < raw.length; ++i) {
+                int v = r.nextInt(100);
+                raw[i] = (byte) ((v < 60) ? 0x80 : ((v < 90) ? 0x01 : r.nextInt(256)));
+            }
+            _verifyHuffman(enc, dec, raw);
+        }
+        // and edge cases: empty, single symbol, geometric distribution that
+        // would need codes longer than the limit
+        _verifyHuffman(enc, dec, new byte[0]);
+        byte[] single = new byte[1000];
+        Arrays.fill(single, (byte) 0x7F);
+        _verifyHuffman(enc, dec, single);
+        assertTrue(enc.encode(single, 0, single.length, new byte[2000], 0) < 200);
+        byte[] geometric = new byte[1 << 20];
+        for (int i = 0, sym = 0, end = geometric.length >> 1; i < geometric.length; ++sym, end += (geometric.length - end) >> 1) {
+            for (; i < end || (sym == 20 && i < geometric.length); ++i) {
+                geometric[i] = (byte) sym;
+            }
+        }
+        _verifyHuffman(enc, dec, geometric);
+    }
+
+    public void testRawFallback()
+    {
+        byte[] raw = new byte[5000];
+        new Random(46).nextBytes(raw);
+        byte[] output = new byte[HuffmanEncoder.maxEncodedLength(raw.length)];
+        int end = new HuffmanEncoder().encode(raw, 0, raw.length, output, 0);
+        assertEquals(HuffmanEncoder.maxEncodedLength(raw.length) - 3, end); // 2-byte header
+        assertEquals(HuffmanEncoder.FLAG_RAW, output[0] & HuffmanEncoder.FLAG_RAW);
+        _verifyHuffman(new HuffmanEncoder(), new HuffmanDecoder(), raw);
+    }
+
+    public void testPackRoundTrip()
+    {
+        Random r = new Random(46);
+        EntropyPacker packer = new EntropyPacker();
+        for (BitmapCodec codec : BitmapCodec.values()) {
+            for (int round = 0; round < 5; ++round) {
+                int bits = 1 + r.nextInt(100000 * (round + 1));
+                byte[] raw = _randomBitmap(r, (bits + 7) >> 3);
+                EncodedBitmap bm = EncodedBitmap.encode(codec, raw, bits);
+                byte[] packed = packer.pack(bm);
+                EncodedBitmap unpacked = packer.unpack(packed);
+                _verifyBytes(unpacked.toByteArray(), bm.toByteArray());
+            }
+        }
+    }
+
+    public void testPackedIsSmaller()
+    {
+        // sparse-ish content: mostly single set bits, where masks dominate
+        Random r = new Random(46);
+        byte[] raw = new byte[1 << 20];
+        for (int i = 0; i < 20000; ++i) {
+            raw[r.nextInt(raw.length)] = (byte) (0x80 >> r.nextInt(8));
+        }
+        EncodedBitmap bm = EncodedBitmap.encode(BitmapCodec.BITRAT, raw, raw.length << 3);
+        byte[] packed = new EntropyPacker().pack(bm);
+        assertTrue(packed.length+" vs "+bm.getEncodedLength(),
+                packed.length < bm.getEncodedLength() * 3 / 4);
+        _verifyBytes(new EntropyPacker().unpack(packed).decode(), raw);
+    }
+
+    public void testInvalid()
+    {
+        EntropyPacker packer = new EntropyPacker();
+        byte[] packed = packer.pack(EncodedBitmap.encode(BitmapCodec.BITRAT,
+                _randomBitmap(new Random(46), 10000), 80000));
+        try {
+            packer.unpack(Arrays.copyOf(packed, packed.length - 1));
+            fail("Should not pass");
+        } catch (IllegalArgumentException e) {
+            verifyException(e, "Invalid");
+        }
+    }
+
+    private void _verifyHuffman(HuffmanEncoder enc, HuffmanDecoder dec, byte[] raw)
+    {
+        byte[] encoded = new byte[HuffmanEncoder.maxEncodedLength(raw.length) + 3];
+        int end = enc.encode(raw, 0, raw.length, encoded, 3);
+        assertTrue(end <= HuffmanEncoder.maxEncodedLength(raw.length) + 3);
+        assertEquals(raw.length, HuffmanDecoder.decodedLength(encoded, 3));
+        byte[] decoded = new byte[raw.length];
+        assertEquals(end, dec.decode(encoded, 3, decoded, 0));
+        _verifyBytes(decoded, raw);
+    }
+}
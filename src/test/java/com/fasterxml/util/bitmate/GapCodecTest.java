@@ -0,0 +1,130 @@
+package com.fasterxml.util.bitmate;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class GapCodecTest extends ModuleTestBase
+{
+    public void testEncodedLayout()
+    {
+        byte[] raw = new byte[1000];
+        raw[0] = 0x01; // bit 7
+        raw[125] = (byte) 0x80; // bit 1000
+        byte[] output = new byte[GapEncoder.MAX_OUTPUT_BUFFER];
+        int end = new GapEncoder().encode(raw, 0, raw.length, output, 0);
+        // two single-bit runs, after gaps of 7 and 992 bits: values 14 and 1984
+        _verifyBytes(Arrays.copyOf(output, end),
+                (byte) (2 << 2), // 2 values
+                (byte) 0x04, // control byte: 1 and 2 bytes
+                (byte) 14, (byte) 0xC0, (byte) 0x07);
+        assertEquals(end, GapDecoder.encodedChunkLength(output, 0));
+
+        byte[] decoded = new byte[raw.length];
+        assertEquals(end, new GapDecoder().decode(output, 0, decoded, 0, raw.length));
+        _verifyBytes(decoded, raw);
+
+        // and for sorted ids, same output
+        byte[] fromIds = new byte[GapEncoder.MAX_OUTPUT_BUFFER];
+        int end2 = new GapEncoder().encodeSorted(new int[] { 107, 1100 }, 0, 2, 100L,
+                raw.length, fromIds, 0);
+        _verifyBytes(Arrays.copyOf(fromIds, end2), Arrays.copyOf(output, end));
+    }
+
+    public void testRawFallback()
+    {
+        Random r = new Random(45);
+        for (BitOrder order : BitOrder.values()) {
+            byte[] raw = new byte[GapEncoder.MAX_CHUNK_SIZE];
+            r.nextBytes(raw);
+            byte[] output = new byte[GapEncoder.MAX_OUTPUT_BUFFER];
+            int end = new GapEncoder(order).encode(raw, 0, raw.length, output, 0);
+            assertEquals(raw.length + GapEncoder.MAX_HEADER_LENGTH, end);
+            assertEquals(end, GapDecoder.encodedChunkLength(output, 0));
+            assertEquals(GapEncoder.FLAG_RAW, output[0] & GapEncoder.FLAG_RAW);
+
+            byte[] decoded = new byte[raw.length];
+            new GapDecoder(order).decode(output, 0, decoded, 0, raw.length);
+            _verifyBytes(decoded, raw);
+        }
+    }
+
+    public void testSuperSparse()
+    {
+        // a hundred set bits in 10M rows
+        final int bits = 10 * 1000 * 1000;
+        int[] ids = new int[100];
+        for (int i = 0; i < ids.length; ++i) {
+            ids[i] = (i + 1) * (bits / (ids.length + 1));
+        }
+        EncodedBitmap gap = EncodedBitmap.encodeSorted(BitmapCodec.GAP, ids, ids.length, bits);
+        for (BitmapCodec codec : BitmapCodec.values()) {
+            if (codec != BitmapCodec.GAP) {
+                EncodedBitmap bm = EncodedBitmap.encodeSorted(codec, ids, ids.length, bits);
+                // at least half the size of default codecs; smaller than wide ones
+                int factor = (codec == BitmapCodec.BITRAT || codec == BitmapCodec.NIBBLER) ? 2 : 1;
+                assertTrue(codec+": "+bm.getEncodedLength()+" vs "+gap.getEncodedLength(),
+                        bm.getEncodedLength() > factor * gap.getEncodedLength());
+                _verifyBytes(gap.decode(), bm.decode());
+            }
+        }
+        long[] words = gap.decodeWords(BitOrder.LSB_FIRST);
+        int card = 0;
+        for (long w : words) {
+            card += Long.bitCount(w);
+        }
+        assertEquals(ids.length, card);
+
+        // complement is done in place, so has the same length
+        EncodedBitmap not = gap.not();
+        assertEquals(gap.getEncodedLength(), not.getEncodedLength());
+        byte[] exp = gap.decode();
+        for (int i = 0; i < exp.length; ++i) {
+            exp[i] = (byte) ~exp[i];
+        }
+        _verifyBytes(not.decode(), exp);
+    }
+
+    public void testRandomAccess()
+    {
+        Random r = new Random(145);
+        // mix of run-coded (plain and inverted) and raw chunks
+        final int chunkBits = BitmapCodec.GAP.chunkSize() << 3;
+        final int bits = 4 * chunkBits + 1024;
+        byte[] raw = new byte[(bits + 7) >> 3];
+        for (int i = 0; i < 300; ++i) {
+            int bit = r.nextInt(bits);
+            raw[bit >> 3] |= (byte) (0x80 >> (bit & 7));
+        }
+        Arrays.fill(raw, chunkBits >> 3, (chunkBits >> 3) + 500, (byte) 0xF0);
+        byte[] noise = new byte[chunkBits >> 3];
+        r.nextBytes(noise);
+        System.arraycopy(noise, 0, raw, 2 * (chunkBits >> 3), noise.length);
+        _clearPadding(raw, bits);
+        for (BitOrder order : BitOrder.values()) {
+            EncodedBitmap bm = EncodedBitmap.encode(BitmapCodec.GAP, raw, bits);
+            if (order == BitOrder.LSB_FIRST) {
+                EncodedBitmapBuilder b = new EncodedBitmapBuilder(BitmapCodec.GAP, order);
+                b.appendWords(EncodedBitmap.encode(BitmapCodec.BITRAT, raw, bits)
+                        .decodeWords(order), 0, (bits + 63) >> 6);
+                bm = b.build(bits);
+            }
+            for (EncodedBitmap b : new EncodedBitmap[] { bm, bm.not() }) {
+                final boolean inverted = (b != bm);
+                int rank = 0;
+                for (int i = 0; i < bits; ++i) {
+                    if ((i % 997) == 0 || i == bits - 1) {
+                        assertEquals("rank "+i, rank, b.rank(i));
+                    }
+                    final boolean set = ((raw[i >> 3] & (0x80 >> (i & 7))) != 0) != inverted;
+                    if ((i % 13) == 0 || (set && !inverted)) {
+                        assertEquals(order+", bit "+i, set, b.get(i));
+                    }
+                    if (set) {
+                        ++rank;
+                    }
+                }
+                assertEquals(rank, b.rank(bits));
+            }
+        }
+    }
+}
@@ -2,6 +2,7 @@ package com.fasterxml.util.bitmate;
 
 import java.io.*;
 import java.util.Arrays;
+import java.util.Random;
 
 import org.junit.Assert;
 
@@ -88,4 +89,60 @@ public abstract class ModuleTestBase
     public String quote(String str) {
         return '"'+str+'"';
     }
+
+    /**
+     * Helper method for generating raw bitmaps with mix of runs and literal content
+     */
+    protected static byte[] _randomBitmap(Random r, int length)
+    {
+        byte[] raw = new byte[length];
+        int i = 0;
+        while (i < length) {
+            int type = r.nextInt(4);
+            int count = Math.min(length - i, 1 + r.nextInt(r.nextBoolean() ? 16 : 2000));
+            for (int end = i + count; i < end; ++i) {
+                switch (type) {
+                case 0:
+                    break;
+                case 1:
+                    raw[i] = (byte) 0xFF;
+                    break;
+                case 2:
+                    raw[i] = (byte) r.nextInt(256);
+                    break;
+                default:
+                    if (r.nextInt(40) == 0) {
+                        raw[i] = (byte) (1 << r.nextInt(8));
+                    }
+                }
+            }
+        }
+        return raw;
+    }
+
+    /**
+     * Helper method for generating raw bitmaps with given number of bits (and
+     * padding bits cleared): content from {@link #_randomBitmap} is overwritten
+     * with given number of runs of clear or set bytes, each up to
+     * <code>maxRunBytes</code> long, at random positions. Long enough runs
+     * result in uniform chunks.
+     */
+    protected static byte[] _bitmapWithRuns(Random r, int bits, int runs, int maxRunBytes)
+    {
+        byte[] raw = _randomBitmap(r, (bits + 7) >> 3);
+        for (int i = 0; i < runs && raw.length > 0; ++i) {
+            int start = r.nextInt(raw.length);
+            int end = Math.min(raw.length, start + r.nextInt(maxRunBytes + 1));
+            Arrays.fill(raw, start, end, r.nextBoolean() ? (byte) 0xFF : 0);
+        }
+        _clearPadding(raw, bits);
+        return raw;
+    }
+
+    protected static void _clearPadding(byte[] raw, int bits)
+    {
+        if ((bits & 7) != 0) {
+            raw[raw.length-1] &= (0xFF00 >> (bits & 7));
+        }
+    }
 }
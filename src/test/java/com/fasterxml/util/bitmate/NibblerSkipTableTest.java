@@ -0,0 +1,145 @@
+package com.fasterxml.util.bitmate;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class NibblerSkipTableTest extends ModuleTestBase
+{
+    public void testIndexedMatchesPlain()
+    {
+        Random r = new Random(47);
+        final int bits = 600 * 1000 * 8 + 5;
+        byte[] raw = _randomBitmap(r, (bits + 7) >> 3);
+        _clearPadding(raw, bits);
+        _verifyIndexed(raw, bits, BitmapCodec.NIBBLER, BitmapCodec.NIBBLER_INDEXED);
+        _verifyIndexed(raw, bits, BitmapCodec.NIBBLER_64K, BitmapCodec.NIBBLER_64K_INDEXED);
+    }
+
+    public void testSkipTableLayout()
+    {
+        // literal at start, run up to byte 1500, literal there, run to the end
+        byte[] raw = new byte[2000];
+        raw[0] = 0x11;
+        raw[1500] = 0x22;
+        byte[] output = new byte[NibblerEncoder.MAX_OUTPUT_BUFFER + 100];
+        int end = new NibblerEncoder().encode(raw, 0, raw.length, output, 0);
+        final int chunkLength = end;
+        end = new NibblerDecoder(BitmapCodec.NIBBLER_INDEXED, BitOrder.MSB_FIRST)
+            .writeSkipTable(output, 0, raw.length, output, end);
+        // boundaries 512 and 1024 point to the beginning (so are omitted), 1536 to byte 1500
+        assertEquals(3, output[chunkLength]);
+        assertEquals(1, output[chunkLength + 1]);
+        assertEquals(chunkLength + 2 + 6, end);
+        assertEquals(NibblerDecoder.skipTableLength(output, chunkLength, false), end - chunkLength);
+        assertEquals(NibblerDecoder.skipTableLength(raw.length, false), 2 + 3 * 6);
+        assertEquals(1500, ((output[end-6] & 0xFF) << 8) | (output[end-5] & 0xFF));
+        // two set bits before that
+        assertEquals(2, ((output[end-2] & 0xFF) << 8) | (output[end-1] & 0xFF));
+
+        // and nothing for a sparse chunk with a single literal
+        raw[1500] = 0;
+        end = new NibblerEncoder().encode(raw, 0, raw.length, output, 0);
+        assertEquals(end + 2, new NibblerDecoder(BitmapCodec.NIBBLER_INDEXED, BitOrder.MSB_FIRST)
+            .writeSkipTable(output, 0, raw.length, output, end));
+        assertEquals(0, output[end+1]);
+    }
+
+    public void testRandomAccess()
+    {
+        Random r = new Random(147);
+        final int bits = 300 * 1000 * 8 + 3;
+        byte[] raw = _randomBitmap(r, (bits + 7) >> 3);
+        _clearPadding(raw, bits);
+        final int[] ranks = _ranks(raw, bits);
+
+        for (BitmapCodec codec : BitmapCodec.values()) {
+            EncodedBitmap bm = EncodedBitmap.encode(codec, raw, bits);
+            for (int i = 0; i < 500; ++i) {
+                final int bit = r.nextInt(bits);
+                assertEquals("Codec "+codec+", bit "+bit, _get(raw, bit), bm.get(bit));
+                assertEquals("Codec "+codec+", rank "+bit, ranks[bit], bm.rank(bit));
+
+                final int from = r.nextInt(raw.length);
+                final int to = Math.min(raw.length, from + r.nextInt(r.nextBoolean() ? 40 : 20000));
+                byte[] range = new byte[to - from + 2];
+                bm.decodeRange(from, to, range, 1);
+                _verifyBytes(Arrays.copyOfRange(range, 1, range.length - 1),
+                        Arrays.copyOfRange(raw, from, to));
+            }
+            assertEquals("Codec "+codec, ranks[bits], bm.rank(bits));
+            assertEquals(0, bm.rank(0));
+        }
+    }
+
+    public void testInverted()
+    {
+        Random r = new Random(247);
+        final int bits = 200 * 1000 * 8;
+        byte[] raw = _randomBitmap(r, bits >> 3);
+        byte[] inverted = new byte[raw.length];
+        for (int i = 0; i < raw.length; ++i) {
+            inverted[i] = (byte) ~raw[i];
+        }
+        final int[] ranks = _ranks(inverted, bits);
+        for (BitmapCodec codec : new BitmapCodec[] {
+                BitmapCodec.NIBBLER_INDEXED, BitmapCodec.NIBBLER_64K_INDEXED }) {
+            EncodedBitmap bm = EncodedBitmap.encode(codec, raw, bits).not();
+            _verifyBytes(bm.decode(), inverted);
+            for (int i = 0; i < 500; ++i) {
+                final int bit = r.nextInt(bits);
+                assertEquals("Codec "+codec+", rank "+bit, ranks[bit], bm.rank(bit));
+            }
+        }
+    }
+
+    public void testInvalidAccess()
+    {
+        EncodedBitmap bm = EncodedBitmap.encode(BitmapCodec.NIBBLER_INDEXED, new byte[100], 800);
+        try {
+            bm.get(800);
+            fail("Should not pass");
+        } catch (IllegalArgumentException e) {
+            verifyException(e, "Invalid bit index");
+        }
+        try {
+            bm.decodeRange(50, 101, new byte[100], 0);
+            fail("Should not pass");
+        } catch (IllegalArgumentException e) {
+            verifyException(e, "Invalid byte range");
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper methods
+    /**********************************************************************
+     */
+
+    private void _verifyIndexed(byte[] raw, int bits, BitmapCodec plainCodec, BitmapCodec codec)
+    {
+        EncodedBitmap plain = EncodedBitmap.encode(plainCodec, raw, bits);
+        EncodedBitmap indexed = EncodedBitmap.wrap(EncodedBitmap.encode(codec, raw, bits).toByteArray());
+        assertEquals(codec, indexed.getCodec());
+        _verifyBytes(indexed.decode(), raw);
+        _verifyBytes(indexed.slice(1000, bits - 1000).decode(),
+                plain.slice(1000, bits - 1000).decode());
+        // overhead limited to skip tables
+        final int maxTable = NibblerDecoder.skipTableLength(codec.chunkSize(), codec.hasWideLengths());
+        assertTrue(indexed.getEncodedLength() > plain.getEncodedLength());
+        assertTrue(indexed.getEncodedLength() <= plain.getEncodedLength()
+                + plain.getChunkCount() * maxTable);
+    }
+
+    private static boolean _get(byte[] raw, int bit) {
+        return (raw[bit >> 3] & (0x80 >> (bit & 7))) != 0;
+    }
+
+    private static int[] _ranks(byte[] raw, int bits)
+    {
+        int[] ranks = new int[bits + 1];
+        for (int i = 0; i < bits; ++i) {
+            ranks[i+1] = ranks[i] + (_get(raw, i) ? 1 : 0);
+        }
+        return ranks;
+    }
+}
@@ -0,0 +1,93 @@
+package com.fasterxml.util.bitmate;
+
+import java.util.Random;
+import java.util.concurrent.*;
+
+public class ParallelBitmapOpsTest extends ModuleTestBase
+{
+    public void testCombine() throws Exception
+    {
+        Random r = new Random(48);
+        final int bits = 3 * 1000 * 1000 + 13;
+        byte[] rawA = _bitmapWithRuns(r, bits, 40, 16384);
+        byte[] rawB = _bitmapWithRuns(r, bits, 40, 16384);
+        ExecutorService exec = Executors.newFixedThreadPool(4);
+        try {
+            ParallelBitmapOps parallel = new ParallelBitmapOps(exec, 4, 4);
+            ParallelBitmapOps sequential = new ParallelBitmapOps(exec, 1);
+            for (BitmapCodec codec : new BitmapCodec[] { BitmapCodec.BITRAT, BitmapCodec.NIBBLER,
+                    BitmapCodec.BITRAT_32K, BitmapCodec.GAP }) {
+                EncodedBitmap a = EncodedBitmap.encode(codec, rawA, bits);
+                EncodedBitmap b = EncodedBitmap.encode(codec, rawB, bits);
+                for (BitOp op : BitOp.values()) {
+                    byte[] exp = new byte[rawA.length];
+                    for (int i = 0; i < exp.length; ++i) {
+                        exp[i] = (byte) op.apply(rawA[i], rawB[i]);
+                    }
+                    _clearPadding(exp, bits);
+                    EncodedBitmap result = parallel.combine(op, a, b);
+                    assertEquals(bits, result.getBitLength());
+                    _verifyBytes(result.decode(), exp);
+                    // stitched result identical to sequential one
+                    _verifyBytes(result.toByteArray(), sequential.combine(op, a, b).toByteArray());
+                }
+            }
+        } finally {
+            exec.shutdown();
+        }
+    }
+
+    public void testCardinality()
+    {
+        Random r = new Random(148);
+        final int bits = 2 * 1000 * 1000 + 5;
+        EncodedBitmap a = EncodedBitmap.encode(BitmapCodec.BITRAT, _bitmapWithRuns(r, bits, 40, 16384), bits);
+        EncodedBitmap b = EncodedBitmap.encode(BitmapCodec.NIBBLER, _bitmapWithRuns(r, bits - 1000, 30, 16384), bits - 1000);
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            ParallelBitmapOps ops = new ParallelBitmapOps(pool, 3, 2);
+            assertEquals(BitmapMetrics.cardinality(a), ops.cardinality(a));
+            assertEquals(BitmapMetrics.andCardinality(a, b), ops.andCardinality(a, b));
+            assertEquals(BitmapMetrics.orCardinality(a, b), ops.orCardinality(a, b));
+            assertEquals(BitmapMetrics.andNotCardinality(a, b), ops.andNotCardinality(a, b));
+            assertEquals(BitmapMetrics.xorCardinality(a, b), ops.xorCardinality(a, b));
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(BitmapMetrics.cardinality(a), new ParallelBitmapOps().cardinality(a));
+    }
+
+    public void testThreshold()
+    {
+        final int bits = 100 * 1000;
+        byte[] raw = _bitmapWithRuns(new Random(248), bits, 2, 8192);
+        EncodedBitmap a = EncodedBitmap.encode(BitmapCodec.BITRAT, raw, bits);
+        ThreadPoolExecutor exec = new ThreadPoolExecutor(2, 2, 1L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        try {
+            // only 4 chunks: below threshold, so done by calling thread
+            ParallelBitmapOps ops = new ParallelBitmapOps(exec, 2);
+            _verifyBytes(ops.or(a, a).decode(), a.decode());
+            assertEquals(BitmapMetrics.cardinality(a), ops.cardinality(a));
+            assertEquals(0L, exec.getTaskCount());
+
+            ops = new ParallelBitmapOps(exec, 2, 1);
+            _verifyBytes(ops.or(a, a).decode(), a.decode());
+            assertEquals(2L, exec.getTaskCount());
+        } finally {
+            exec.shutdown();
+        }
+    }
+
+    public void testIncompatible()
+    {
+        EncodedBitmap a = EncodedBitmap.encode(BitmapCodec.BITRAT, new byte[100], 800);
+        EncodedBitmap b = EncodedBitmap.encode(BitmapCodec.NIBBLER, new byte[100], 800);
+        try {
+            new ParallelBitmapOps().and(a, b);
+            fail("Should not pass");
+        } catch (IllegalArgumentException e) {
+            verifyException(e, "Can not combine");
+        }
+    }
+}
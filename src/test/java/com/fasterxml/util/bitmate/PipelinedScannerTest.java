@@ -0,0 +1,131 @@
+package com.fasterxml.util.bitmate;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.*;
+
+public class PipelinedScannerTest extends ModuleTestBase
+{
+    public void testScan() throws Exception
+    {
+        Random r = new Random(50);
+        final int bits = 500 * 1000 * 8 + 11;
+        byte[] raw = _randomBitmap(r, (bits + 7) >> 3);
+        // with uniform spans too
+        Arrays.fill(raw, 20000, 90000, (byte) 0);
+        Arrays.fill(raw, 200000, 300000, (byte) 0xFF);
+        _clearPadding(raw, bits);
+        ExecutorService exec = Executors.newFixedThreadPool(2);
+        try {
+            PipelinedScanner scanner = new PipelinedScanner(exec, 3);
+            for (BitmapCodec codec : BitmapCodec.values()) {
+                EncodedBitmap bm = EncodedBitmap.encode(codec, raw, bits);
+                WordCollector coll = new WordCollector(bm.getBitLength(), Integer.MAX_VALUE);
+                assertEquals(bm.getChunkCount(), scanner.scan(bm, coll));
+                assertTrue("Codec "+codec, Arrays.equals(bm.decodeWords(bm.getBitOrder()), coll.words));
+            }
+        } finally {
+            exec.shutdown();
+        }
+    }
+
+    public void testSegmented() throws Exception
+    {
+        Random r = new Random(150);
+        final int segmentBits = 8 * 8192 * 3;
+        byte[] raw = _randomBitmap(r, 3 * (segmentBits >> 3) + 100);
+        EncodedBitmap[] segments = new EncodedBitmap[4];
+        for (int i = 0; i < segments.length; ++i) {
+            int start = i * (segmentBits >> 3);
+            int end = Math.min(raw.length, start + (segmentBits >> 3));
+            segments[i] = EncodedBitmap.encode(BitmapCodec.NIBBLER,
+                    Arrays.copyOfRange(raw, start, end), (end - start) << 3);
+        }
+        SegmentedBitmap sb = SegmentedBitmap.fromSegments(segments);
+        EncodedBitmap whole = EncodedBitmap.encode(BitmapCodec.NIBBLER, raw, raw.length << 3);
+        ExecutorService exec = Executors.newSingleThreadExecutor();
+        try {
+            WordCollector coll = new WordCollector(sb.getBitLength(), Integer.MAX_VALUE);
+            assertEquals(10, new PipelinedScanner(exec).scan(sb, coll));
+            assertTrue(Arrays.equals(whole.decodeWords(BitOrder.MSB_FIRST), coll.words));
+        } finally {
+            exec.shutdown();
+        }
+    }
+
+    public void testEarlyStopAndFailure() throws Exception
+    {
+        final int bits = 800 * 1000 * 8;
+        EncodedBitmap bm = EncodedBitmap.encode(BitmapCodec.BITRAT,
+                _randomBitmap(new Random(250), bits >> 3), bits);
+        // single thread: would block later scans if decoding task did not end
+        ExecutorService exec = Executors.newSingleThreadExecutor();
+        try {
+            PipelinedScanner scanner = new PipelinedScanner(exec, 2);
+            assertEquals(5, scanner.scan(bm, new WordCollector(bits, 5)));
+            try {
+                scanner.scan(bm, new PipelinedScanner.ChunkConsumer() {
+                    @Override
+                    public boolean chunk(long bitOffset, long[] words, int wordCount) {
+                        throw new IllegalStateException("Consumer failure");
+                    }
+                });
+                fail("Should not pass");
+            } catch (IllegalStateException e) {
+                verifyException(e, "Consumer failure");
+            }
+            WordCollector coll = new WordCollector(bits, Integer.MAX_VALUE);
+            assertEquals(bm.getChunkCount(), scanner.scan(bm, coll));
+            assertTrue(Arrays.equals(bm.decodeWords(BitOrder.MSB_FIRST), coll.words));
+        } finally {
+            exec.shutdown();
+        }
+    }
+
+    public void testEarlyStopWithForkJoinPool() throws Exception
+    {
+        final int bits = 800 * 1000 * 8;
+        EncodedBitmap bm = EncodedBitmap.encode(BitmapCodec.NIBBLER,
+                _randomBitmap(new Random(350), bits >> 3), bits);
+        // ForkJoinPool tasks can not be interrupted, so decoder must notice stop by itself
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            PipelinedScanner scanner = new PipelinedScanner(pool, 2);
+            for (int i = 0; i < 3; ++i) {
+                assertEquals(1, scanner.scan(bm, new WordCollector(bits, 1)));
+                // (awaitQuiescence() would do, but is not available on Java 7)
+                final long deadline = System.currentTimeMillis() + 10000L;
+                while (!pool.isQuiescent() && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(5L);
+                }
+                assertTrue(pool.isQuiescent());
+                assertEquals(0, pool.getActiveThreadCount());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Consumer that copies chunks into a word array, stopping after given number of chunks
+     */
+    static class WordCollector implements PipelinedScanner.ChunkConsumer
+    {
+        final long[] words;
+
+        final int maxChunks;
+
+        int chunks;
+
+        WordCollector(long bits, int maxChunks) {
+            words = new long[(int) ((bits + 63L) >>> 6)];
+            this.maxChunks = maxChunks;
+        }
+
+        @Override
+        public boolean chunk(long bitOffset, long[] buffer, int wordCount) {
+            System.arraycopy(buffer, 0, words, (int) (bitOffset >>> 6), wordCount);
+            return ++chunks < maxChunks;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.fasterxml.util.bitmate;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class SegmentMergerTest extends ModuleTestBase
+{
+    public void testUnionWithTombstones()
+    {
+        Random r = new Random(37);
+        SegmentMerger merger = new SegmentMerger();
+        for (BitmapCodec codec : BitmapCodec.values()) {
+            for (int round = 0; round < 5; ++round) {
+                List<EncodedBitmap> segs = new ArrayList<EncodedBitmap>();
+                List<byte[]> raws = new ArrayList<byte[]>();
+                int maxBits = 0;
+                for (int i = 0, count = 1 + r.nextInt(4); i < count; ++i) {
+                    int bits = _bits(r, codec);
+                    byte[] raw = _bitmapWithRuns(r, bits, bits >> 16, 30000);
+                    raws.add(raw);
+                    segs.add(EncodedBitmap.encode(codec, raw, bits));
+                    maxBits = Math.max(maxBits, bits);
+                }
+                byte[] exp = new byte[(maxBits + 7) >> 3];
+                for (byte[] raw : raws) {
+                    for (int i = 0; i < raw.length; ++i) {
+                        exp[i] |= raw[i];
+                    }
+                }
+                List<EncodedBitmap> tombs = new ArrayList<EncodedBitmap>();
+                if (r.nextBoolean()) {
+                    int bits = _bits(r, codec);
+                    byte[] raw = _bitmapWithRuns(r, bits, bits >> 16, 30000);
+                    tombs.add(EncodedBitmap.encode(codec, raw, bits));
+                    for (int i = 0; i < Math.min(raw.length, exp.length); ++i) {
+                        exp[i] &= ~raw[i];
+                    }
+                }
+                EncodedBitmap result = merger.merge(SegmentMerger.Mode.UNION, segs, tombs);
+                _verifyBytes(result.toByteArray(), EncodedBitmap.encode(codec, exp, maxBits).toByteArray());
+            }
+        }
+    }
+
+    public void testConcat()
+    {
+        Random r = new Random(38);
+        SegmentMerger merger = new SegmentMerger();
+        final BitmapCodec codec = BitmapCodec.BITRAT;
+        List<EncodedBitmap> segs = new ArrayList<EncodedBitmap>();
+        for (int i = 0; i < 4; ++i) {
+            int bits = (i == 1) ? 4096 * 8 * 3 : _bits(r, codec);
+            segs.add(EncodedBitmap.encode(codec, _bitmapWithRuns(r, bits, bits >> 16, 30000), bits));
+        }
+        EncodedBitmap result = merger.merge(SegmentMerger.Mode.CONCAT, segs, null);
+        _verifyBytes(result.toByteArray(),
+                EncodedBitmap.concat(segs.toArray(new EncodedBitmap[0])).toByteArray());
+
+        // and tombstones apply to positions of the result
+        final int bits = result.getBitLength();
+        byte[] tomb = _bitmapWithRuns(r, bits, bits >> 16, 30000);
+        EncodedBitmap deleted = merger.merge(SegmentMerger.Mode.CONCAT, segs,
+                Arrays.asList(EncodedBitmap.encode(codec, tomb, bits)));
+        byte[] exp = result.decode();
+        for (int i = 0; i < exp.length; ++i) {
+            exp[i] &= ~tomb[i];
+        }
+        _verifyBytes(deleted.decode(), exp);
+    }
+
+    public void testMergeAllInParallel() throws Exception
+    {
+        Random r = new Random(39);
+        final BitmapCodec codec = BitmapCodec.NIBBLER;
+        Map<String,List<EncodedBitmap>> segments = new LinkedHashMap<String,List<EncodedBitmap>>();
+        for (int i = 0; i < 10; ++i) {
+            List<EncodedBitmap> segs = new ArrayList<EncodedBitmap>();
+            for (int j = 0; j < 3; ++j) {
+                int bits = _bits(r, codec);
+                segs.add(EncodedBitmap.encode(codec, _bitmapWithRuns(r, bits, bits >> 16, 30000), bits));
+            }
+            segments.put("col"+i, segs);
+        }
+        Map<String,EncodedBitmap> exp = new SegmentMerger().mergeAll(SegmentMerger.Mode.UNION, segments, null);
+        ExecutorService exec = Executors.newFixedThreadPool(3);
+        try {
+            Map<String,EncodedBitmap> result = new SegmentMerger(exec)
+                .mergeAll(SegmentMerger.Mode.UNION, segments, null);
+            assertEquals(new ArrayList<String>(segments.keySet()), new ArrayList<String>(result.keySet()));
+            for (String key : exp.keySet()) {
+                _verifyBytes(result.get(key).toByteArray(), exp.get(key).toByteArray());
+            }
+        } finally {
+            exec.shutdown();
+        }
+    }
+
+    public void testIncompatibleSegments()
+    {
+        List<EncodedBitmap> segs = Arrays.asList(
+                EncodedBitmap.encode(BitmapCodec.BITRAT, new byte[8], 64),
+                EncodedBitmap.encode(BitmapCodec.NIBBLER, new byte[8], 64));
+        try {
+            new SegmentMerger().merge(SegmentMerger.Mode.UNION, segs, null);
+            fail("Should not pass");
+        } catch (IllegalArgumentException e) {
+            verifyException(e, "Can not merge");
+        }
+    }
+
+    /*
+    /**********************************************************************
+    /* Helper methods
+    /**********************************************************************
+     */
+
+    private static int _bits(Random r, BitmapCodec codec) {
+        return codec.chunkSize() * 8 * r.nextInt(20) + r.nextInt(20000) + 1;
+    }
+}
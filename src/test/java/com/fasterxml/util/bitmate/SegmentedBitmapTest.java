@@ -0,0 +1,100 @@
+package com.fasterxml.util.bitmate;
+
+import java.util.Random;
+
+public class SegmentedBitmapTest extends ModuleTestBase
+{
+    public void testBuildAndAccess()
+    {
+        Random r = new Random(43);
+        for (BitmapCodec codec : BitmapCodec.values()) {
+            for (BitOrder order : BitOrder.values()) {
+                SegmentedBitmapBuilder b = new SegmentedBitmapBuilder(codec, order, 3);
+                final int chunkSize = codec.chunkSize();
+                // mix of bytes (unaligned), words and uniform chunks
+                byte[] raw = new byte[chunkSize * 11 + 1003];
+                int ptr = 0;
+                byte[] part = _randomBitmap(r, chunkSize + 13);
+                System.arraycopy(part, 0, raw, ptr, part.length);
+                b.append(part, 0, part.length);
+                ptr += part.length;
+
+                long[] words = new long[(chunkSize * 2) >> 3];
+                for (int i = 0; i < words.length; i += 1 + r.nextInt(50)) {
+                    words[i] = r.nextLong();
+                }
+                b.appendWords(words, 0, words.length);
+                for (long w : words) {
+                    for (int k = 0; k < 8; ++k) {
+                        int shift = (order == BitOrder.MSB_FIRST) ? (56 - 8*k) : (8*k);
+                        raw[ptr++] = (byte) (w >>> shift);
+                    }
+                }
+                // pad to chunk boundary, then uniform chunks
+                int pad = chunkSize - (ptr % chunkSize);
+                b.append(new byte[pad], 0, pad);
+                ptr += pad;
+                b.appendUniformChunks(true, 4);
+                for (int i = 0; i < 4 * chunkSize; ++i) {
+                    raw[ptr++] = (byte) 0xFF;
+                }
+                part = _randomBitmap(r, 2000);
+                b.append(part, 0, part.length);
+                System.arraycopy(part, 0, raw, ptr, part.length);
+                ptr += part.length;
+
+                final long bits = (long) raw.length * 8 - 3;
+                raw[raw.length-1] &= (order == BitOrder.MSB_FIRST) ? 0xF8 : 0x1F;
+                SegmentedBitmap bm = b.build(bits);
+                assertEquals(bits, bm.getBitLength());
+                assertEquals(4, bm.getSegmentCount());
+                assertEquals(3L * chunkSize * 8, bm.getSegmentBits());
+
+                long card = 0L;
+                for (long i = 0; i < bits; i += 1 + r.nextInt(7)) {
+                    assertEquals("bit "+i, _bit(raw, i, order), bm.get(i));
+                }
+                long expNext = -1L;
+                SegmentedBitmap.SetBitIterator it = bm.iterator();
+                for (long i = 0; i < bits; ++i) {
+                    if (_bit(raw, i, order)) {
+                        ++card;
+                        assertTrue(it.hasNext());
+                        assertEquals(i, it.next());
+                        if (expNext < 0L && i >= 12345L) {
+                            expNext = i;
+                        }
+                    }
+                }
+                assertFalse(it.hasNext());
+                assertEquals(card, bm.cardinality());
+                assertEquals(expNext, bm.nextSetBit(12345L));
+            }
+        }
+    }
+
+    public void testFromSegments()
+    {
+        EncodedBitmap full = EncodedBitmap.encode(BitmapCodec.BITRAT, new byte[4096], 4096 * 8);
+        EncodedBitmap last = EncodedBitmap.encode(BitmapCodec.BITRAT, new byte[] { 1 }, 8);
+        SegmentedBitmap bm = SegmentedBitmap.fromSegments(full, full, last);
+        assertEquals(4096L * 8 * 2 + 8, bm.getBitLength());
+        assertEquals(4096L * 8 * 2 + 7, bm.nextSetBit(0L));
+        try {
+            SegmentedBitmap.fromSegments(last, full);
+            fail("Should not pass");
+        } catch (IllegalArgumentException e) {
+            verifyException(e, "Invalid length of segment");
+        }
+        try {
+            bm.get(bm.getBitLength());
+            fail("Should not pass");
+        } catch (IllegalArgumentException e) {
+            verifyException(e, "Invalid bit index");
+        }
+    }
+
+    private static boolean _bit(byte[] raw, long index, BitOrder order) {
+        return (raw[(int) (index >> 3)] & order.bitMask((int) (index & 7))) != 0;
+    }
+}
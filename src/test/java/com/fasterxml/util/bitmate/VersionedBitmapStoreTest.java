@@ -0,0 +1,73 @@
+package com.fasterxml.util.bitmate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class VersionedBitmapStoreTest extends ModuleTestBase
+{
+    public void testVersions()
+    {
+        Random r = new Random(42);
+        for (BitmapCodec codec : BitmapCodec.values()) {
+            VersionedBitmapStore store = new VersionedBitmapStore(BitOrder.MSB_FIRST, 4);
+            List<byte[]> versions = new ArrayList<byte[]>();
+            List<Integer> lengths = new ArrayList<Integer>();
+            int bits = 4096 * 8 * 20 + 777;
+            byte[] raw = _randomBitmap(r, (bits + 7) >> 3);
+            _clearPadding(raw, bits);
+            long plain = 0L;
+            for (int v = 0; v < 10; ++v) {
+                if (v > 0) {
+                    // flip a few bits; occasionally grow or shrink
+                    if (v == 5) {
+                        bits += 5000;
+                        raw = Arrays.copyOf(raw, (bits + 7) >> 3);
+                    } else if (v == 8) {
+                        bits -= 9000;
+                        raw = Arrays.copyOf(raw, (bits + 7) >> 3);
+                        _clearPadding(raw, bits);
+                    }
+                    raw = raw.clone();
+                    for (int i = 0; i < 20; ++i) {
+                        int bit = r.nextInt(bits);
+                        raw[bit >> 3] ^= (byte) (0x80 >> (bit & 7));
+                    }
+                }
+                EncodedBitmap bm = EncodedBitmap.encode(codec, raw, bits);
+                plain += bm.getEncodedLength();
+                assertEquals(v, store.add(bm));
+                versions.add(raw);
+                lengths.add(bits);
+            }
+            assertEquals(10, store.getVersionCount());
+            assertTrue(store.isBaseVersion(0));
+            assertFalse(store.isBaseVersion(3));
+            assertTrue(store.isBaseVersion(4));
+            assertTrue(store.getEncodedLength() < plain);
+
+            for (int v = 0; v < versions.size(); ++v) {
+                EncodedBitmap exp = EncodedBitmap.encode(codec, versions.get(v), lengths.get(v));
+                _verifyBytes(store.get(v).toByteArray(), exp.toByteArray());
+            }
+        }
+    }
+
+    public void testInvalid()
+    {
+        try {
+            new VersionedBitmapStore(BitOrder.MSB_FIRST, 0);
+            fail("Should not pass");
+        } catch (IllegalArgumentException e) {
+            verifyException(e, "Invalid rebase interval");
+        }
+        VersionedBitmapStore store = new VersionedBitmapStore(BitOrder.MSB_FIRST);
+        try {
+            store.get(0);
+            fail("Should not pass");
+        } catch (IllegalArgumentException e) {
+            verifyException(e, "Invalid version");
+        }
+    }
+}
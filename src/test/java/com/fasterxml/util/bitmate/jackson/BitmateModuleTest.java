@@ -0,0 +1,128 @@
+package com.fasterxml.util.bitmate.jackson;
+
+import java.util.BitSet;
+
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.util.bitmate.BitOrder;
+import com.fasterxml.util.bitmate.BitmapCodec;
+import com.fasterxml.util.bitmate.EncodedBitmap;
+import com.fasterxml.util.bitmate.ModuleTestBase;
+
+public class BitmateModuleTest extends ModuleTestBase
+{
+    static class Bitmaps {
+        public BitSet bits;
+        public EncodedBitmap encoded;
+    }
+
+    private final ObjectMapper MAPPER = new ObjectMapper()
+        .registerModule(new BitmateModule());
+
+    public void testBitSetRoundTrip() throws Exception
+    {
+        BitSet bits = new BitSet();
+        bits.set(3);
+        bits.set(100, 5000);
+        bits.set(250000);
+        String json = MAPPER.writeValueAsString(bits);
+        BitSet result = MAPPER.readValue(json, BitSet.class);
+        assertEquals(bits, result);
+
+        // should be much more compact than raw bitmap
+        byte[] binary = MAPPER.readValue(json, byte[].class);
+        assertTrue(binary.length < 100);
+
+        // and empty works too
+        assertEquals(new BitSet(), MAPPER.readValue(MAPPER.writeValueAsString(new BitSet()),
+                BitSet.class));
+    }
+
+    public void testEncodedBitmapRoundTrip() throws Exception
+    {
+        byte[] raw = new byte[20000];
+        raw[10] = (byte) 0x81;
+        raw[19999] = 0x1;
+        Bitmaps input = new Bitmaps();
+        input.encoded = EncodedBitmap.encode(BitmapCodec.NIBBLER, raw, raw.length * 8);
+        input.bits = new BitSet();
+        input.bits.set(7);
+
+        String json = MAPPER.writeValueAsString(input);
+        JsonNode tree = MAPPER.readTree(json);
+        assertTrue(tree.path("encoded").isTextual());
+        assertTrue(tree.path("bits").isTextual());
+
+        Bitmaps result = MAPPER.readValue(json, Bitmaps.class);
+        assertEquals(BitmapCodec.NIBBLER, result.encoded.getCodec());
+        _verifyBytes(result.encoded.decode(), raw);
+        assertEquals(input.bits, result.bits);
+    }
+
+    public void testSpecificCodec() throws Exception
+    {
+        ObjectMapper mapper = new ObjectMapper()
+            .registerModule(new BitmateModule(BitmapCodec.BITRAT));
+        BitSet bits = new BitSet();
+        bits.set(1, 10);
+        byte[] binary = mapper.readValue(mapper.writeValueAsString(bits), byte[].class);
+        assertEquals(BitmapCodec.BITRAT, EncodedBitmap.wrap(binary).getCodec());
+    }
+
+    public void testDefaultAndSmallest() throws Exception
+    {
+        BitSet bits = new BitSet();
+        bits.set(1, 10);
+        bits.set(70000);
+        byte[] binary = MAPPER.readValue(MAPPER.writeValueAsString(bits), byte[].class);
+        assertEquals(BitmateModule.DEFAULT_CODEC, EncodedBitmap.wrap(binary).getCodec());
+
+        ObjectMapper mapper = new ObjectMapper()
+            .registerModule(BitmateModule.smallestEncoding());
+        byte[] smallest = mapper.readValue(mapper.writeValueAsString(bits), byte[].class);
+        assertTrue(smallest.length <= binary.length);
+        assertEquals(bits, mapper.readValue(mapper.writeValueAsString(bits), BitSet.class));
+
+        try {
+            new BitmateModule((BitmapCodec) null);
+            fail("Should not pass");
+        } catch (IllegalArgumentException e) {
+            verifyException(e, "smallestEncoding()");
+        }
+    }
+
+    public void testSortedIds() throws Exception
+    {
+        // as used for RoaringBitmaps: sparse ids far apart, no dense intermediate
+        int[] ids = new int[] { 5, 64, 100000, 50 * 1000 * 1000, Integer.MAX_VALUE - 1 };
+        for (BitmapEncoding enc : new BitmapEncoding[] {
+                new BitmapEncoding(BitmapCodec.BITRAT), new BitmapEncoding(null) }) {
+            EncodedBitmap bm = enc.encodeSorted(ids, ids.length);
+            assertEquals(Integer.MAX_VALUE, bm.getBitLength());
+            assertEquals(BitOrder.LSB_FIRST, bm.getBitOrder());
+            for (int id : ids) {
+                assertTrue(bm.get(id));
+            }
+            assertFalse(bm.get(6));
+            assertEquals(ids.length, bm.rank(Integer.MAX_VALUE));
+        }
+        assertEquals(0, new BitmapEncoding(null).encodeSorted(new int[0], 0).getBitLength());
+    }
+
+    public void testInvalidContent() throws Exception
+    {
+        try {
+            MAPPER.readValue(quote("AAAA"), EncodedBitmap.class);
+            fail("Should not pass");
+        } catch (JsonMappingException e) {
+            verifyException(e, "Invalid encoded bitmap");
+        }
+        try {
+            MAPPER.readValue("[ ]", BitSet.class);
+            fail("Should not pass");
+        } catch (JsonMappingException e) {
+            verifyException(e, "BitSet");
+        }
+    }
+}
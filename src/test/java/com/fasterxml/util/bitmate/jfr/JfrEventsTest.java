@@ -0,0 +1,57 @@
+package com.fasterxml.util.bitmate.jfr;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import com.fasterxml.util.bitmate.*;
+
+public class JfrEventsTest extends ModuleTestBase
+{
+    public void testEventsRecorded() throws Exception
+    {
+        assertTrue(BitmapTracer.get() instanceof JfrBitmapTracer);
+
+        Recording rec = new Recording();
+        for (String name : new String[] { "ChunkEncode", "ChunkDecode", "Operation", "ChunkCacheMiss" }) {
+            rec.enable("com.fasterxml.util.bitmate."+name).withThreshold(java.time.Duration.ZERO);
+        }
+        rec.start();
+
+        Random r = new Random(45);
+        byte[] raw = _randomBitmap(r, 20000);
+        EncodedBitmap bm = EncodedBitmap.encode(BitmapCodec.BITRAT, raw, raw.length * 8);
+        bm.decode();
+        bm.not();
+        DecodedChunkCache cache = new DecodedChunkCache(1000000L);
+        bm.combineInto(BitOp.OR, new long[raw.length / 8 + 1], 0L, cache, 123L);
+
+        rec.stop();
+        File f = File.createTempFile("bitmate", ".jfr");
+        try {
+            rec.dump(f.toPath());
+            Set<String> names = new HashSet<String>();
+            boolean sawId = false;
+            for (RecordedEvent e : RecordingFile.readAllEvents(f.toPath())) {
+                String name = e.getEventType().getName();
+                names.add(name);
+                if (name.endsWith("ChunkCacheMiss")) {
+                    sawId |= (e.getLong("bitmapId") == 123L);
+                }
+            }
+            assertTrue(names.toString(), names.contains("com.fasterxml.util.bitmate.ChunkEncode"));
+            assertTrue(names.toString(), names.contains("com.fasterxml.util.bitmate.ChunkDecode"));
+            assertTrue(names.toString(), names.contains("com.fasterxml.util.bitmate.Operation"));
+            assertTrue(names.toString(), names.contains("com.fasterxml.util.bitmate.ChunkCacheMiss"));
+            assertTrue(sawId);
+        } finally {
+            rec.close();
+            f.delete();
+        }
+    }
+}
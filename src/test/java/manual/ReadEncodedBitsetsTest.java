@@ -0,0 +1,63 @@
+package manual;
+
+import java.io.File;
+import java.util.*;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.util.bitmate.BitmapCodec;
+import com.fasterxml.util.bitmate.ModuleTestBase;
+
+public class ReadEncodedBitsetsTest extends ModuleTestBase
+{
+    public void testRead() throws Exception
+    {
+        // row count both before and after columns
+        _verifyRead(true);
+        _verifyRead(false);
+    }
+
+    private void _verifyRead(boolean rowCountFirst) throws Exception
+    {
+        final int rows = 100 * 1000 + 3;
+        Random r = new Random(27);
+        byte[] a = _randomBitmap(r, (rows + 7) >> 3);
+        _clearPadding(a, rows);
+        byte[] b = new byte[a.length];
+        b[100] = 0x40;
+
+        ObjectNode root = ToolBase.JSON_MAPPER.createObjectNode();
+        if (rowCountFirst) {
+            root.put("rowCount", rows);
+        }
+        root.put("columnCount", 5);
+        ObjectNode columns = root.putObject("bitsets");
+        columns.putObject("a").put("set", 1).put("presence", a);
+        columns.putObject("b").put("set", 1).put("presence", b);
+        columns.putObject("dup").put("set", 1).put("presence", a.clone());
+        columns.putObject("full").put("set", rows).putNull("presence");
+        columns.putObject("full2").put("set", rows).putNull("presence");
+        if (!rowCountFirst) {
+            root.put("rowCount", rows);
+        }
+        File f = File.createTempFile("bitsets", ".json");
+        try {
+            ToolBase.JSON_MAPPER.writeValue(f, root);
+            ToolBase.EncodedBitsets bs = new ToolBase().readEncodedBitsets(f.getPath(),
+                    BitmapCodec.NIBBLER);
+            assertEquals(rows, bs.rowCount);
+            assertEquals(Arrays.asList("a", "b", "full"), new ArrayList<String>(bs.bitsets.keySet()));
+            for (ToolBase.EncodedBitsetRecord rec : bs.bitsets.values()) {
+                assertNull(rec.builder);
+                assertEquals(rows, rec.presence.getBitLength());
+            }
+            _verifyBytes(bs.bitsets.get("a").presence.decode(), a);
+            _verifyBytes(bs.bitsets.get("b").presence.decode(), b);
+            byte[] full = new byte[a.length];
+            Arrays.fill(full, (byte) 0xFF);
+            _clearPadding(full, rows);
+            _verifyBytes(bs.bitsets.get("full").presence.decode(), full);
+        } finally {
+            f.delete();
+        }
+    }
+}